@@ -0,0 +1,12 @@
+package ch.heia.ZigZag.benchmark;
+
+/**
+ * BenchmarkSeeds are the seeds of the generated pages, fixed so that every run measures the same pixels.
+ */
+final class BenchmarkSeeds {
+
+	static final long PAGE = 20240501L;
+
+	private BenchmarkSeeds() {
+	}
+}
@@ -0,0 +1,69 @@
+package ch.heia.ZigZag.benchmark;
+
+import ch.heia.ZigZag.SyntheticDocuments;
+import ch.heia.ZigZag.service.BufferPool;
+import ch.heia.ZigZag.service.ImageEncoder;
+import ch.heia.ZigZag.tasks.OutputFormat;
+import org.openjdk.jmh.annotations.*;
+import sugarcube.zigzag.ZigZagFilter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CodecBenchmark measures the image I/O around the binarization: ImageIO decoding of the PNG and JPEG inputs and PNG
+ * encoding of a binarized page (default mode), with ImageIO and with the ImageEncoder of the encode stage (default
+ * settings, chunks deflated in parallel).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+	@Param({"1", "10", "50"})
+	public double megapixels;
+
+	@Param({"png", "jpeg"})
+	public String format;
+
+	private byte[] encoded;
+	private BufferedImage binarized;
+	private ImageEncoder imageEncoder;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		BufferedImage page = SyntheticDocuments.page(megapixels, BenchmarkSeeds.PAGE, true);
+		encoded = SyntheticDocuments.encode(page, format);
+		binarized = new ZigZagFilter(30, 100, 2).setHistoricalWhiteThreshold(245).filterImplementation(page);
+		imageEncoder = new ImageEncoder(4, "up", 262144, 0, new BufferPool(128 << 20));
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		imageEncoder.close();
+	}
+
+	@Benchmark
+	public BufferedImage decode() throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(encoded));
+	}
+
+	@Benchmark
+	public int encodePng() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ImageIO.write(binarized, "png", stream);
+		return stream.size();
+	}
+
+	@Benchmark
+	public int encodePngEncoder() throws IOException {
+		return imageEncoder.encode(binarized, OutputFormat.PNG).length;
+	}
+}
@@ -0,0 +1,52 @@
+package ch.heia.ZigZag.benchmark;
+
+import ch.heia.ZigZag.SyntheticDocuments;
+import org.openjdk.jmh.annotations.*;
+import sugarcube.zigzag.ZigZagFilter;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FilterBenchmark measures ZigZagFilter.filterImplementation alone, for every mode of ImageBinarizer and several
+ * window sizes. The filter writes into its input, so every invocation works on a fresh copy of the page (the copy is
+ * not measured).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+	@Param({"1", "10", "50"})
+	public double megapixels;
+
+	/**
+	 * mode is one of the ImageBinarizer modes: BINARY, BINARY_UPSAMPLED, BINARY_ANTIALIASED, GRAY_LEVEL and COLOR.
+	 */
+	@Param({"0", "1", "2", "3", "4"})
+	public int mode;
+
+	@Param({"15", "30", "60"})
+	public int windowSize;
+
+	private BufferedImage page;
+	private BufferedImage input;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		page = SyntheticDocuments.page(megapixels, BenchmarkSeeds.PAGE, true);
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		input = SyntheticDocuments.copy(page);
+	}
+
+	@Benchmark
+	public BufferedImage filterImplementation() {
+		return new ZigZagFilter(windowSize, 100, mode).setHistoricalWhiteThreshold(245).filterImplementation(input);
+	}
+}
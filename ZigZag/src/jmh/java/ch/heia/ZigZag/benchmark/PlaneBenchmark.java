@@ -0,0 +1,61 @@
+package ch.heia.ZigZag.benchmark;
+
+import ch.heia.ZigZag.SyntheticDocuments;
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.PlaneBinarizer;
+import org.openjdk.jmh.annotations.*;
+import sugarcube.zigzag.ZigZagFilter;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PlaneBenchmark compares the engines of a gray level page, as the pipeline hands it over for the modes BINARY to
+ * GRAY_LEVEL, in a single thread: the ZigZag filter, and the PlaneBinarizer with its scalar and its vector kernels
+ * (which are the scalar ones if the Vector API is not available, see the log of the trial). The filter writes into
+ * its input, so every invocation works on a fresh copy of the page (the copy is not measured).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms8g", "-Xmx8g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class PlaneBenchmark {
+
+	@Param({"1", "10", "50"})
+	public double megapixels;
+
+	@Param({"0", "2", "3"})
+	public int mode;
+
+	@Param({"zigzag", "scalar", "vector"})
+	public String engine;
+
+	private BufferedImage page;
+	private BufferedImage input;
+	private PlaneBinarizer binarizer;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		page = SyntheticDocuments.page(megapixels, BenchmarkSeeds.PAGE, false);
+		binarizer = new PlaneBinarizer(mode, BinarizationService.DEFAULT_WINDOW_SIZE,
+				BinarizationService.DEFAULT_PERCENT, BinarizationService.DEFAULT_WHITE_THRESHOLD,
+				engine.equals("vector"));
+		if (!engine.equals("zigzag")) System.out.println("Plane kernels: " + binarizer.getKernels());
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		input = SyntheticDocuments.copy(page);
+	}
+
+	@Benchmark
+	public BufferedImage binarize() {
+		if (engine.equals("zigzag"))
+			return new ZigZagFilter(BinarizationService.DEFAULT_WINDOW_SIZE, BinarizationService.DEFAULT_PERCENT, mode)
+					.setHistoricalWhiteThreshold(BinarizationService.DEFAULT_WHITE_THRESHOLD)
+					.filterImplementation(input);
+		return binarizer.binarize(input);
+	}
+}
@@ -0,0 +1,51 @@
+package ch.heia.ZigZag.benchmark;
+
+import ch.heia.ZigZag.SyntheticDocuments;
+import ch.heia.ZigZag.service.BinarizationService;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServiceBenchmark measures the entry points of the BinarizationService end to end (decoding included), with the
+ * default mode and window size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class ServiceBenchmark {
+
+	@Param({"1", "10", "50"})
+	public double megapixels;
+
+	@Param({"png", "jpeg"})
+	public String format;
+
+	private BinarizationService binarizationService;
+	private byte[] encoded;
+	private String dataUrl;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		binarizationService = new BinarizationService();
+		encoded = SyntheticDocuments.encode(SyntheticDocuments.page(megapixels, BenchmarkSeeds.PAGE, true), format);
+		dataUrl = "data:image/" + format + ";base64," + Base64.getEncoder().encodeToString(encoded);
+	}
+
+	@Benchmark
+	public BufferedImage binarizeImageBytes() {
+		return binarizationService.binarizeImageBytes(encoded, BinarizationService.DEFAULT_BIN_MODE,
+				BinarizationService.DEFAULT_WINDOW_SIZE);
+	}
+
+	@Benchmark
+	public BufferedImage binarizeImageB64() {
+		return binarizationService.binarizeImageB64(dataUrl, BinarizationService.DEFAULT_BIN_MODE,
+				BinarizationService.DEFAULT_WINDOW_SIZE);
+	}
+}
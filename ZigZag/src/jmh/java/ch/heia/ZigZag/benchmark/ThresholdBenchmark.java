@@ -0,0 +1,69 @@
+package ch.heia.ZigZag.benchmark;
+
+import ch.heia.ZigZag.SyntheticDocuments;
+import ch.heia.ZigZag.service.IntegralBinarizer;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import org.openjdk.jmh.annotations.*;
+import sugarcube.zigzag.ImageBinarizer;
+import sugarcube.zigzag.legacy.BradleyBinarizer;
+import sugarcube.zigzag.legacy.NiblackBinarizer;
+import sugarcube.zigzag.legacy.OtsuBinarizer;
+import sugarcube.zigzag.legacy.SauvolaBinarizer;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThresholdBenchmark compares the thresholding engines of the IntegralBinarizer with the legacy binarizers they
+ * replace, on a gray level page. The legacy binarizers read the whole window of every pixel, the pages are kept
+ * small. The legacy Otsu binarizer writes into its input, so every invocation works on a fresh copy of the page (the
+ * copy is not measured).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms8g", "-Xmx8g", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class ThresholdBenchmark {
+
+	@Param({"0.5", "1"})
+	public double megapixels;
+
+	@Param({"sauvola", "niblack", "bradley", "otsu"})
+	public String engine;
+
+	@Param({"legacy", "integral"})
+	public String implementation;
+
+	@Param({"15", "30"})
+	public int windowSize;
+
+	private BufferedImage page;
+	private BufferedImage input;
+	private ImageBinarizer legacy;
+	private IntegralBinarizer integral;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		page = SyntheticDocuments.page(megapixels, BenchmarkSeeds.PAGE, false);
+		BinarizationEngine thresholding = BinarizationEngine.of(engine);
+		legacy = switch (thresholding) {
+			case SAUVOLA -> new SauvolaBinarizer(windowSize);
+			case NIBLACK -> new NiblackBinarizer(windowSize);
+			case BRADLEY -> new BradleyBinarizer(windowSize);
+			default -> new OtsuBinarizer();
+		};
+		integral = new IntegralBinarizer(thresholding, windowSize);
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		input = SyntheticDocuments.copy(page);
+	}
+
+	@Benchmark
+	public BufferedImage binarize() {
+		return implementation.equals("legacy") ? legacy.filterImplementation(input) : integral.binarize(input);
+	}
+}
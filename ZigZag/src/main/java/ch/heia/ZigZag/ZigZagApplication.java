@@ -1,5 +1,6 @@
 package ch.heia.ZigZag;
 
+import ch.heia.ZigZag.service.VirtualThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -7,14 +8,29 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.env.Environment;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.util.concurrent.Executor;
+
 @SpringBootApplication
 public class ZigZagApplication {
 	public static void main(String[] args) {
 		SpringApplication.run(ZigZagApplication.class, args);
 	}
+
+	/**
+	 * virtualThreadRequests makes Tomcat handle each request on its own virtual thread when VirtualThreads is enabled,
+	 * instead of its pool of platform threads.
+	 */
+	@Bean
+	public TomcatProtocolHandlerCustomizer<?> virtualThreadRequests(VirtualThreads virtualThreads) {
+		return protocolHandler -> {
+			Executor executor = virtualThreads.executor("http");
+			if (executor != null) protocolHandler.setExecutor(executor);
+		};
+	}
 }
 
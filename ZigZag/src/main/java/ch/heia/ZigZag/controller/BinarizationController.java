@@ -0,0 +1,84 @@
+package ch.heia.ZigZag.controller;
+
+import ch.heia.ZigZag.service.DirectBinarizationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * BinarizationController serves the direct binarization: POST ${UrlPrefix}/binarize with the image as body
+ * (image/png, image/jpeg or application/octet-stream) or as the "image" part of a multipart upload, and optional mode,
+ * window, format (png or tiff) and engine (see BinarizationEngine) query parameters. The response is the binarized
+ * PNG or TIFF, streamed while it is encoded.
+ */
+@Controller
+public class BinarizationController {
+
+    private final DirectBinarizationService directBinarizationService;
+
+    @Autowired
+    private BinarizationController(DirectBinarizationService directBinarizationService) {
+        this.directBinarizationService = directBinarizationService;
+    }
+
+    Logger logger = LoggerFactory.getLogger(BinarizationController.class);
+
+    @RequestMapping(value = "${UrlPrefix}/binarize", method = RequestMethod.POST,
+            consumes = {MediaType.IMAGE_PNG_VALUE, MediaType.IMAGE_JPEG_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    public ResponseEntity<StreamingResponseBody> binarize(
+            InputStream body,
+            @RequestHeader(value = "Content-Length", required = false) Long length,
+            @RequestParam(value = "mode", required = false) Integer mode,
+            @RequestParam(value = "window", required = false) Integer window,
+            @RequestParam(value = "format", required = false) String format,
+            @RequestParam(value = "engine", required = false) String engine) {
+        logger.info("Binarize route called");
+        return binarize(body, length == null ? -1 : length, mode, window, format, engine);
+    }
+
+    @RequestMapping(value = "${UrlPrefix}/binarize", method = RequestMethod.POST,
+            consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<StreamingResponseBody> binarizeUpload(
+            @RequestPart("image") MultipartFile image,
+            @RequestParam(value = "mode", required = false) Integer mode,
+            @RequestParam(value = "window", required = false) Integer window,
+            @RequestParam(value = "format", required = false) String format,
+            @RequestParam(value = "engine", required = false) String engine) throws IOException {
+        logger.info("Binarize route called with an upload");
+        try (InputStream body = image.getInputStream()) {
+            return binarize(body, image.getSize(), mode, window, format, engine);
+        }
+    }
+
+    private ResponseEntity<StreamingResponseBody> binarize(InputStream body, long length, Integer mode,
+                                                           Integer window, String format, String engine) {
+        DirectBinarizationService.Binarized binarized;
+        try {
+            binarized = directBinarizationService.binarize(body, length, mode, window, format, engine);
+        } catch (DirectBinarizationService.Rejection e) {
+            logger.info("Binarization rejected: " + e.getMessage());
+            throw new ResponseStatusException(e.getStatus(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted");
+        }
+        StreamingResponseBody image = output -> {
+            try (binarized) {
+                binarized.writeTo(output);
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(binarized.getFormat().getContentType()))
+                .body(image);
+    }
+}
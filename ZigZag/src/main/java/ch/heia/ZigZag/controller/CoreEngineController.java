@@ -1,6 +1,8 @@
 package ch.heia.ZigZag.controller;
 
 import ch.heia.ZigZag.service.TaskService;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.OutputFormat;
 import ch.heia.ZigZag.tasks.ServiceTaskBase;
 import ch.heia.ZigZag.tasks.ServiceTaskTask;
 import org.json.JSONArray;
@@ -84,9 +86,20 @@ public class CoreEngineController {
         callbackUrl = (String) json.get("callback_url");
         ServiceTaskBase serviceTaskBase = new ServiceTaskBase(accessKeyId,secretAccessKey, region, host, bucket, serviceTaskTask,
                 callbackUrl);
+        // optional, 0 (default) to PageScheduler.MAX_PRIORITY
+        serviceTaskBase.setPriority(json.optInt("priority", 0));
+        // optional, png (default) or tiff, and the engine (default of the service), see BinarizationEngine
+        try {
+            serviceTaskBase.setOutputFormat(OutputFormat.of(json.optString("format", null)));
+            serviceTaskBase.setEngine(BinarizationEngine.of(json.optString("engine", null)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
 
         logger.info("created TaskBase from json body, id : " + serviceTaskBase.getTask().getId());
-        taskService.addTask(serviceTaskBase);
+        if (!taskService.addTask(serviceTaskBase)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Too many tasks, try again later");
+        }
         return ResponseEntity.ok().build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package ch.heia.ZigZag.controller;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * MetricsController serves the metrics of the service in the Prometheus text format on GET ${UrlPrefix}/metrics: the
+ * pipeline stages and steps, the CPU budget, the caches, the S3 clients and the JVM.
+ */
+@Controller
+public class MetricsController {
+
+    /**
+     * CONTENT_TYPE is the content type of the Prometheus text format.
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final PrometheusMeterRegistry prometheusRegistry;
+
+    @Autowired
+    private MetricsController(PrometheusMeterRegistry prometheusRegistry) {
+        this.prometheusRegistry = prometheusRegistry;
+    }
+
+    @RequestMapping(value = "${UrlPrefix}/metrics", method = RequestMethod.GET, produces = CONTENT_TYPE)
+    @ResponseBody
+    public String getMetrics() {
+        return prometheusRegistry.scrape();
+    }
+}
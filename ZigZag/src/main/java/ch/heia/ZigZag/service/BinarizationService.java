@@ -1,15 +1,36 @@
 package ch.heia.ZigZag.service;
 
-import org.apache.tomcat.util.codec.binary.Base64;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import sugarcube.zigzag.ImageBinarizer;
+import sugarcube.zigzag.ZigZagFilter;
+import sugarcube.zigzag.util.ImageUtil;
+
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import sugarcube.zigzag.ZigZagFilter;
 import java.net.URI;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
 
 
 @Service
@@ -19,23 +40,66 @@ public class BinarizationService {
 
     public static final int DEFAULT_WINDOW_SIZE = 30;
 
+    public static final int DEFAULT_PERCENT = 100;
+
+    public static final int DEFAULT_WHITE_THRESHOLD = 245;
+
+    private final Logger logger = LoggerFactory.getLogger(BinarizationService.class);
+
+    private final FilterRegistry filterRegistry;
+    private final PipelineMetrics metrics;
+    private final BinarizationEngine defaultEngine;
+
+    /**
+     * Creates a service with its own filter registry, filtering in the calling thread.
+     */
+    public BinarizationService() {
+        this(new FilterRegistry(0, 4));
+    }
+
+    public BinarizationService(FilterRegistry filterRegistry) {
+        this(filterRegistry, new PipelineMetrics());
+    }
+
+    public BinarizationService(FilterRegistry filterRegistry, PipelineMetrics metrics) {
+        this(filterRegistry, metrics, BinarizationEngine.ZIGZAG.getValue());
+    }
+
+    /**
+     * @param engine the engine of the tasks which do not give theirs, see BinarizationEngine
+     */
+    @Autowired
+    public BinarizationService(FilterRegistry filterRegistry, PipelineMetrics metrics,
+                               @Value("${BinarizationEngine}") String engine) {
+        this.filterRegistry = filterRegistry;
+        this.metrics = metrics;
+        BinarizationEngine parsed = BinarizationEngine.of(engine);
+        this.defaultEngine = parsed == null ? BinarizationEngine.ZIGZAG : parsed;
+        if (defaultEngine == BinarizationEngine.VECTOR && !PlaneBinarizer.isVectorAvailable())
+            logger.warn("Vector API not available (start with --add-modules jdk.incubator.vector), the vector engine"
+                    + " runs scalar kernels");
+    }
+
     /**
      * binarizeImageB64 takes a b64 image as input (string), decodes it and performs binarization on it using Zigzag
-     * filter with the specified mode.
+     * filter with the specified mode. The characters after the data url prefix are decoded from a single byte copy of
+     * the string, without intermediate strings. Only PNG and JPEG images are decoded, see inspect.
      * @param original the B64 encoded image to binarize.
      * @param mode determines what mode the zigzag will be used with
      * @return the binarized image as a BufferedImage
      */
     public BufferedImage binarizeImageB64(String original, int mode, int windowSize) {
         byte[] byteImage = null;
-        String image = "";
+        int length = 0;
 
         try {
-            image = new String(original.getBytes());
-            String imageB64 = image.substring(image.indexOf(",") + 1);
-            byteImage = Base64.decodeBase64(imageB64);
-            assert (Arrays.equals(byteImage, java.util.Base64.getDecoder().decode(imageB64)));
-        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            byte[] chars = original.getBytes(StandardCharsets.ISO_8859_1);
+            int start = original.indexOf(',') + 1;
+            // the MIME decoder skips line breaks and other characters outside the alphabet, like the Tomcat decoder
+            ByteBuffer decoded = Base64.getMimeDecoder().decode(ByteBuffer.wrap(chars, start, chars.length - start));
+            byteImage = decoded.array();
+            length = decoded.limit();
+        } catch (IllegalArgumentException e) {
             System.out.println(e.getMessage());
         }
 
@@ -43,20 +107,19 @@ public class BinarizationService {
 
 
         try {
-            ByteArrayInputStream stream = new ByteArrayInputStream(byteImage);
-            originalImageBuffered = ImageIO.read(stream);
+            ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(byteImage, 0, length));
+            originalImageBuffered = readImage(stream);
             stream.close();
         } catch (IOException e) {
             System.out.println("Could not read image byteArray : " + e.getMessage());
         }
 
-        ZigZagFilter filter = new ZigZagFilter(windowSize, 100, mode).setHistoricalWhiteThreshold(245);
-        return filter.filterImplementation(originalImageBuffered);
+        return binarizeImage(originalImageBuffered, mode, windowSize);
     }
 
     /**
      * binarizeImageB64 takes an image byte array as input and performs binarization on it using Zigzag
-     * filter with the specified mode.
+     * filter with the specified mode. Only PNG and JPEG images are decoded, see inspect.
      * @param byteImage the image byte array to binarize.
      * @param mode determines what mode the zigzag will be used with
      * @return the binarized image as a BufferedImage
@@ -64,14 +127,321 @@ public class BinarizationService {
     public BufferedImage binarizeImageBytes(byte[] byteImage, int mode, int windowSize) {
         BufferedImage originalImageBuffered = null;
         try {
-            ByteArrayInputStream stream = new ByteArrayInputStream(byteImage);
-            originalImageBuffered = ImageIO.read(stream);
+            ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(byteImage));
+            originalImageBuffered = readImage(stream);
             stream.close();
         } catch (IOException e) {
             System.out.println("Could not read image byteArray : " + e.getMessage());
         }
-        ZigZagFilter filter = new ZigZagFilter(windowSize, 100, mode).setHistoricalWhiteThreshold(245);
-        return filter.filterImplementation(originalImageBuffered);
+        return binarizeImage(originalImageBuffered, mode, windowSize);
+    }
+
+    /**
+     * binarizeImage performs binarization on an already decoded image using Zigzag filter with the specified mode.
+     * The filter is leased from the registry for the time of the binarization.
+     * @param image the image to binarize.
+     * @param mode determines what mode the zigzag will be used with
+     * @return the binarized image as a BufferedImage
+     */
+    public BufferedImage binarizeImage(BufferedImage image, int mode, int windowSize) {
+        try (FilterRegistry.Lease lease = filterRegistry.lease(mode, windowSize, DEFAULT_PERCENT,
+                DEFAULT_WHITE_THRESHOLD)) {
+            return filter(lease.filter(), image);
+        }
+    }
+
+    /**
+     * binarizeImage performs binarization on an already decoded image using Zigzag filter with the specified mode,
+     * slicing the image over the given number of threads.
+     * @param image the image to binarize.
+     * @param mode determines what mode the zigzag will be used with
+     * @param sliceThreads the number of threads the image is processed with (1 for the calling thread only)
+     * @return the binarized image as a BufferedImage
+     */
+    public BufferedImage binarizeImage(BufferedImage image, int mode, int windowSize, int sliceThreads) {
+        try (FilterRegistry.Lease lease = filterRegistry.lease(mode, windowSize, DEFAULT_PERCENT,
+                DEFAULT_WHITE_THRESHOLD, sliceThreads)) {
+            return filter(lease.filter(), image);
+        }
+    }
+
+    /**
+     * binarizeImage performs binarization on an already decoded image with the given engine. The thresholding
+     * engines binarize the image with the IntegralBinarizer and the VECTOR engine on planes, in the calling thread
+     * (see isSingleThreaded), otherwise the image is filtered by Zigzag, sliced over the given number of threads.
+     * @param image the image to binarize.
+     * @param mode determines what mode the zigzag will be used with, ignored by the thresholding engines
+     * @param sliceThreads the number of threads the image is filtered with (1 for the calling thread only)
+     * @param engine the engine of the task, null for the one of the service
+     * @return the binarized image as a BufferedImage
+     */
+    public BufferedImage binarizeImage(BufferedImage image, int mode, int windowSize, int sliceThreads,
+                                       BinarizationEngine engine) {
+        BinarizationEngine resolved = engine(engine);
+        if (resolved.isThresholding())
+            return new IntegralBinarizer(resolved, windowSize).binarize(image);
+        if (usesPlanes(resolved, mode, windowSize, image.getWidth(), image.getHeight()))
+            return new PlaneBinarizer(mode, windowSize, DEFAULT_PERCENT, DEFAULT_WHITE_THRESHOLD, true)
+                    .binarize(image);
+        return binarizeImage(image, mode, windowSize, sliceThreads);
+    }
+
+    /**
+     * isSingleThreaded tells if an image is binarized in the calling thread rather than by the filter: with the
+     * thresholding engines, and with the VECTOR engine for the modes BINARY to GRAY_LEVEL and images larger than the
+     * window.
+     * @param engine the engine of the task, null for the one of the service
+     * @return true if binarizeImage binarizes the image in the calling thread.
+     */
+    public boolean isSingleThreaded(BinarizationEngine engine, int mode, int windowSize, int width, int height) {
+        BinarizationEngine resolved = engine(engine);
+        return resolved.isThresholding() || usesPlanes(resolved, mode, windowSize, width, height);
+    }
+
+    private static boolean usesPlanes(BinarizationEngine engine, int mode, int windowSize, int width, int height) {
+        return engine == BinarizationEngine.VECTOR && PlaneBinarizer.supports(mode)
+                && PlaneBinarizer.accepts(windowSize, width, height);
+    }
+
+    /**
+     * @param requested the engine of a task, null if it has none
+     * @return the engine the task is binarized with.
+     */
+    public BinarizationEngine engine(BinarizationEngine requested) {
+        return requested == null ? defaultEngine : requested;
+    }
+
+    /**
+     * filter binarizes an image with a leased filter. The chronometer of the filter is restarted first, the time it
+     * measured over the phases of the filter (addChronoTime) is then recorded in the metrics.
+     */
+    private BufferedImage filter(ZigZagFilter filter, BufferedImage image) {
+        filter.chronometer().reset(null);
+        BufferedImage result = filter.filterImplementation(image);
+        metrics.recordFilterChronometer(filter.chronometer().elapsedTime());
+        return result;
+    }
+
+    /**
+     * readImage decodes an image directly from a stream, without copying the encoded bytes to memory first.
+     * @param stream the encoded image (PNG or JPEG)
+     * @return the decoded image
+     * @throws IOException if the stream could not be read or does not contain a supported image
+     */
+    public BufferedImage readImage(InputStream stream) throws IOException {
+        BufferedImage image = ImageIO.read(stream);
+        if (image == null)
+            throw new IOException("Unsupported image format");
+        return image;
+    }
+
+    /**
+     * readImage decodes an image for binarization with the given mode. Only the COLOR mode uses the colors of the
+     * image, for the other modes the image is converted to gray level right away (the same conversion as the filter
+     * does), so the decoded image kept until the binarization uses one byte per pixel.
+     * @param stream the encoded image (PNG or JPEG)
+     * @param mode the zigzag mode the image will be binarized with
+     * @return the decoded image
+     * @throws IOException if the stream could not be read or does not contain a supported image
+     */
+    public BufferedImage readImage(InputStream stream, int mode) throws IOException {
+        return toModeImage(readImage(stream), mode);
+    }
+
+    /**
+     * readImage decodes the image of a reader for binarization with the given mode, like readImage(stream, mode).
+     * @param reader the reader of the image, see openReader
+     * @param mode the zigzag mode the image will be binarized with
+     * @return the decoded image
+     * @throws IOException if the image could not be read
+     */
+    public BufferedImage readImage(ImageReader reader, int mode) throws IOException {
+        return toModeImage(reader.read(0), mode);
+    }
+
+    /**
+     * readImage decodes the image of a reader for binarization with the given mode, like readImage(reader, mode), into
+     * rasters leased from the buffer pool: the decoder writes into a pooled image of its default type and the gray
+     * level conversion, if any, into a pooled gray image, the decoded image is then released.
+     * @param reader the reader of the image, see openReader
+     * @param mode the zigzag mode the image will be binarized with
+     * @param buffers the lease of the page, the image is released to it once binarized
+     * @return the decoded image
+     * @throws IOException if the image could not be read
+     */
+    public BufferedImage readImage(ImageReader reader, int mode, BufferPool.Lease buffers) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (!types.hasNext()) return readImage(reader, mode);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(buffers.image(types.next(), width, height));
+        BufferedImage image = reader.read(0, param);
+        if (mode == ImageBinarizer.MODE_COLOR || image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+            return image;
+        BufferedImage gray = buffers.image(BufferedImage.TYPE_BYTE_GRAY, width, height);
+        ImageUtil.convertToGrayLevel(image, gray);
+        buffers.release(image);
+        return gray;
+    }
+
+    private static BufferedImage toModeImage(BufferedImage image, int mode) {
+        if (mode == ImageBinarizer.MODE_COLOR || image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+            return image;
+        return ImageUtil.convertToGrayLevel(image, null);
+    }
+
+    /**
+     * openReader finds the reader of the image of a stream and sets the stream as its input. Only the header of the
+     * image is read, its size is then known before it is decoded. The reader must be disposed after use.
+     * @param input the encoded image (PNG or JPEG), null if ImageIO could not open the source
+     * @return the reader of the image
+     * @throws IOException if the stream does not contain a supported image
+     */
+    public ImageReader openReader(ImageInputStream input) throws IOException {
+        Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers == null || !readers.hasNext())
+            throw new IOException("Unsupported image format");
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, true);
+        return reader;
+    }
+
+    /**
+     * inspect describes the image of a reader from its header (format, size and layout of the samples), without
+     * decoding its pixels.
+     * @param reader the reader of the image, see openReader
+     * @return the header of the image
+     * @throws IOException if the header could not be read
+     */
+    public ImageHeader inspect(ImageReader reader) throws IOException {
+        String format = reader.getFormatName().toLowerCase(Locale.ROOT);
+        if (format.equals("jpg")) format = "jpeg";
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (types.hasNext()) type = types.next();
+        }
+        return type == null ? new ImageHeader(format, width, height, 0, 0)
+                : new ImageHeader(format, width, height, type.getNumBands(), type.getColorModel().getPixelSize());
+    }
+
+    /**
+     * readImage decodes the image of a reader after checking its header, see inspect.
+     * @param input the encoded image (PNG or JPEG)
+     * @return the decoded image
+     * @throws IOException if the image could not be read or is not a PNG or JPEG image
+     */
+    private BufferedImage readImage(ImageInputStream input) throws IOException {
+        ImageReader reader = openReader(input);
+        try {
+            ImageHeader header = inspect(reader);
+            if (!header.isSupported())
+                throw new IOException("Unsupported image: " + header);
+            return reader.read(0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * isStripMode tells if the images binarized with the given mode can be binarized in strips.
+     * @param mode the zigzag mode
+     * @return true for all modes but COLOR.
+     */
+    public static boolean isStripMode(int mode) {
+        return mode >= ImageBinarizer.MODE_BINARY && mode <= ImageBinarizer.MODE_GRAY_LEVEL;
+    }
+
+    /**
+     * binarizeInStrips binarizes an image too large to be decoded at once with a StripBinarizer, the binarized image
+     * is written as PNG while it is computed. The result is the same as the one of binarizeImage followed by the PNG
+     * encoding (1-bit for black and white modes).
+     * @param source the file of the encoded image (PNG or JPEG)
+     * @param output the stream the PNG is written to, left open
+     * @param mode determines what mode the zigzag will be used with, not COLOR
+     * @param stripPixels the number of pixels binarized at a time
+     * @throws IOException if the image could not be read or the PNG written
+     */
+    public void binarizeInStrips(Path source, OutputStream output, int mode, int windowSize, int stripPixels)
+            throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            ImageReader reader = openReader(input);
+            try {
+                new StripBinarizer(mode, windowSize, DEFAULT_PERCENT, DEFAULT_WHITE_THRESHOLD, stripPixels)
+                        .binarize(reader, output);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * isBinaryOutput tells if the images binarized with the given mode only contain black and white pixels.
+     * @param mode the zigzag mode
+     * @return true for the BINARY and BINARY_UPSAMPLED modes.
+     */
+    public static boolean isBinaryOutput(int mode) {
+        return mode == ImageBinarizer.MODE_BINARY || mode == ImageBinarizer.MODE_BINARY_UPSAMPLED;
+    }
+
+    /**
+     * isBinaryOutput tells if the images binarized with the given mode and engine only contain black and white
+     * pixels.
+     * @param mode the zigzag mode
+     * @param engine the engine of the task, null for the one of the service
+     * @return true for the BINARY and BINARY_UPSAMPLED modes, and for all modes with the thresholding engines.
+     */
+    public boolean isBinaryOutput(int mode, BinarizationEngine engine) {
+        return engine(engine).isThresholding() || isBinaryOutput(mode);
+    }
+
+    /**
+     * toBinaryImage packs a black and white image into a 1-bit image (8 pixels per byte), the PNG encoder then writes
+     * it with a bit depth of 1.
+     * @param image the binarized image, with only black (0) and white (255) pixels
+     * @return the packed image
+     */
+    public BufferedImage toBinaryImage(BufferedImage image) {
+        return toBinaryImage(image, new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_BYTE_BINARY));
+    }
+
+    /**
+     * toBinaryImage packs a black and white image into a 1-bit image backed by a pooled array, see
+     * toBinaryImage(image).
+     * @param image the binarized image, with only black (0) and white (255) pixels
+     * @param buffers the lease of the page
+     * @return the packed image, released to the lease once encoded
+     */
+    public BufferedImage toBinaryImage(BufferedImage image, BufferPool.Lease buffers) {
+        return toBinaryImage(image, buffers.image(BufferedImage.TYPE_BYTE_BINARY, image.getWidth(),
+                image.getHeight()));
+    }
+
+    private static BufferedImage toBinaryImage(BufferedImage image, BufferedImage binary) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] bits = ((DataBufferByte) binary.getRaster().getDataBuffer()).getData();
+        int stride = (width + 7) / 8;
+        Raster raster = image.getRaster();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(0, y, width, 1, 0, row);
+            int offset = y * stride;
+            for (int x = 0; x < width; x += 8) {
+                int packed = 0;
+                int end = Math.min(8, width - x);
+                for (int bit = 0; bit < end; bit++) {
+                    // index 1 of the binary palette is white
+                    if (row[x + bit] >= 128) packed |= 0x80 >>> bit;
+                }
+                bits[offset + x / 8] = (byte) packed;
+            }
+        }
+        return binary;
     }
 
     /**
@@ -83,8 +453,7 @@ public class BinarizationService {
      */
 
     public BufferedImage binarizeImageUrl(String imageUrl, int mode, int windowSize) {
-        ZigZagFilter filter = new ZigZagFilter(windowSize, 100, mode).setHistoricalWhiteThreshold(245);
-        return filter.filterImplementation(downloadImage(imageUrl));
+        return binarizeImage(downloadImage(imageUrl), mode, windowSize);
     }
 
 
@@ -0,0 +1,415 @@
+package ch.heia.ZigZag.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * BufferPool keeps the large buffers allocated for every page (decoded and packed rasters, deflate buffers, upload
+ * parts) for reuse, so that a steady flow of pages does not turn into a steady flow of large, often humongous,
+ * allocations for the GC.
+ * Buffers are sorted in size classes, four per power of two from MIN_SIZE bytes, so a buffer is at most a quarter
+ * larger than requested and any buffer of a class serves any later request of that class. byte[], int[] and direct
+ * ByteBuffers are kept apart, at most BufferPoolBytes bytes of free buffers are kept in all, a buffer released beyond
+ * that is left to the GC. Smaller buffers are allocated as usual, the young generation handles them well, and so is
+ * everything when BufferPoolBytes is 0.
+ * Buffers are taken through a Lease, one per page (or direct request), which gives them back when it is closed. A
+ * buffer must not be used anymore once it is released or its lease is closed.
+ * The number of requests served from the pool and the bytes allocated for the size classes are exported, with the
+ * JVM allocation and GC metrics they show what the pool saves.
+ */
+@Service
+public class BufferPool {
+
+    private final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+    /**
+     * MIN_SIZE is the size in bytes of the smallest size class.
+     */
+    public static final int MIN_SIZE = 64 * 1024;
+
+    private static final int MIN_SHIFT = 16;
+    private static final int MAX_SHIFT = 30;
+    private static final int CLASSES = (MAX_SHIFT - MIN_SHIFT) * 4 + 1;
+
+    private final long maxBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final Shelves<byte[]> bytes = new Shelves<>(1, byte[]::new, array -> array.length);
+    private final Shelves<int[]> ints = new Shelves<>(4, int[]::new, array -> array.length);
+    private final Shelves<ByteBuffer> directs = new Shelves<>(1, ByteBuffer::allocateDirect, ByteBuffer::capacity);
+
+    /**
+     * Creates a pool whose metrics are only kept in memory.
+     */
+    public BufferPool(long maxBytes) {
+        this(maxBytes, new SimpleMeterRegistry());
+    }
+
+    /**
+     * @param maxBytes the maximum number of bytes of free buffers kept, 0 disables the pool
+     * @param meterRegistry the registry the state of the pool is exported to
+     */
+    @Autowired
+    public BufferPool(@Value("${BufferPoolBytes}") long maxBytes, MeterRegistry meterRegistry) {
+        this.maxBytes = Math.max(0, maxBytes);
+        Gauge.builder("zigzag.buffers.pooled", pooledBytes, AtomicLong::get)
+                .description("Number of bytes of free buffers kept for reuse")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        FunctionCounter.builder("zigzag.buffers.requests", reused, AtomicLong::get)
+                .description("Number of buffer requests by outcome")
+                .tag("result", "reused")
+                .register(meterRegistry);
+        FunctionCounter.builder("zigzag.buffers.requests", allocated, AtomicLong::get)
+                .description("Number of buffer requests by outcome")
+                .tag("result", "allocated")
+                .register(meterRegistry);
+        FunctionCounter.builder("zigzag.buffers.allocated", allocatedBytes, AtomicLong::get)
+                .description("Number of bytes allocated for the buffer requests the pool could not serve")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        logger.info("Buffer pool: " + (this.maxBytes > 0 ? "up to " + this.maxBytes + " bytes" : "disabled"));
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return the number of bytes of free buffers in the pool.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return a new lease, to be closed once its buffers are no longer used.
+     */
+    public Lease lease() {
+        return new Lease();
+    }
+
+    /**
+     * @param initialSize the expected size of the output
+     * @return a new output stream writing to pooled arrays, to be closed once its bytes are copied.
+     */
+    public Output output(int initialSize) {
+        return new Output(initialSize);
+    }
+
+    /**
+     * takeBytes takes a byte array of at least the given length, from the pool if possible. The array is not cleared.
+     * @param length the minimum length
+     * @return the array, to be given back with giveBytes.
+     */
+    public byte[] takeBytes(int length) {
+        return bytes.take(length);
+    }
+
+    public void giveBytes(byte[] array) {
+        bytes.give(array);
+    }
+
+    /**
+     * takeDirect takes a direct buffer of at least the given capacity, from the pool if possible. When the pool is
+     * disabled, a heap buffer is allocated instead, direct buffers are only worth their cost when they are reused.
+     * @param capacity the minimum capacity
+     * @return the buffer, cleared, to be given back with giveDirect.
+     */
+    public ByteBuffer takeDirect(int capacity) {
+        if (maxBytes == 0) return ByteBuffer.allocate(capacity);
+        return directs.take(capacity).clear();
+    }
+
+    public void giveDirect(ByteBuffer buffer) {
+        if (buffer.isDirect()) directs.give(buffer);
+    }
+
+    /**
+     * classOf gives the size class of a buffer of the given size.
+     * @param size the size in bytes
+     * @return the index of the smallest class holding that size, -1 if the size is not pooled.
+     */
+    static int classOf(long size) {
+        if (size < MIN_SIZE || size > 1L << MAX_SHIFT) return -1;
+        int shift = 63 - Long.numberOfLeadingZeros(size);
+        long base = 1L << shift;
+        long step = base >> 2;
+        return (shift - MIN_SHIFT) * 4 + (int) ((size - base + step - 1) / step);
+    }
+
+    /**
+     * @return the size in bytes of the buffers of a class.
+     */
+    static int sizeOf(int sizeClass) {
+        int shift = MIN_SHIFT + sizeClass / 4;
+        return (1 << shift) + (sizeClass % 4) * (1 << (shift - 2));
+    }
+
+    /**
+     * Shelves are the free buffers of one kind, by size class. The most recently released buffer of a class is
+     * reused first.
+     */
+    private final class Shelves<T> {
+        private final int elementBytes;
+        private final IntFunction<T> allocator;
+        private final ToIntFunction<T> capacity;
+        private final List<ConcurrentLinkedDeque<T>> classes = new ArrayList<>(CLASSES);
+
+        private Shelves(int elementBytes, IntFunction<T> allocator, ToIntFunction<T> capacity) {
+            this.elementBytes = elementBytes;
+            this.allocator = allocator;
+            this.capacity = capacity;
+            for (int i = 0; i < CLASSES; i++) classes.add(new ConcurrentLinkedDeque<>());
+        }
+
+        private T take(int length) {
+            int sizeClass = maxBytes == 0 ? -1 : classOf((long) length * elementBytes);
+            if (sizeClass < 0) return allocator.apply(length);
+            T buffer = classes.get(sizeClass).pollFirst();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-sizeOf(sizeClass));
+                reused.incrementAndGet();
+                return buffer;
+            }
+            allocated.incrementAndGet();
+            allocatedBytes.addAndGet(sizeOf(sizeClass));
+            return allocator.apply(sizeOf(sizeClass) / elementBytes);
+        }
+
+        private void give(T buffer) {
+            if (maxBytes == 0) return;
+            long size = (long) capacity.applyAsInt(buffer) * elementBytes;
+            int sizeClass = classOf(size);
+            // only the buffers allocated by the pool have the exact size of a class
+            if (sizeClass < 0 || sizeOf(sizeClass) != size) return;
+            if (pooledBytes.addAndGet(size) > maxBytes) {
+                pooledBytes.addAndGet(-size);
+                return;
+            }
+            classes.get(sizeClass).offerFirst(buffer);
+        }
+    }
+
+    /**
+     * Lease hands out the buffers used for one page and gives them back to the pool when it is closed, or one by one
+     * with release. Releasing a buffer that does not come from the lease does nothing, so images and arrays can be
+     * released without knowing whether they were pooled.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Set<Object> leased = Collections.newSetFromMap(new IdentityHashMap<>());
+        private boolean closed;
+
+        private Lease() {
+        }
+
+        /**
+         * @return a byte array of at least the given length, not cleared.
+         */
+        public synchronized byte[] bytes(int length) {
+            return keep(bytes.take(length));
+        }
+
+        /**
+         * @return an int array of at least the given length, not cleared.
+         */
+        public synchronized int[] ints(int length) {
+            return keep(ints.take(length));
+        }
+
+        /**
+         * @return a direct buffer of at least the given capacity, cleared (position 0, limit at its capacity).
+         */
+        public synchronized ByteBuffer direct(int capacity) {
+            ByteBuffer buffer = keep(directs.take(capacity));
+            buffer.clear();
+            return buffer;
+        }
+
+        /**
+         * image creates an image of the given type whose raster is backed by a pooled array, when the type stores
+         * its pixels in a single byte or int array. The pixels are cleared like those of a new image, so nothing of
+         * another page can show through pixels a decoder leaves untouched. Other types are allocated as usual.
+         * @param type the type of the image, as given by an image reader
+         * @param width the width of the image
+         * @param height the height of the image
+         * @return the image, released with release(image).
+         */
+        public BufferedImage image(ImageTypeSpecifier type, int width, int height) {
+            SampleModel model = type.getSampleModel(width, height);
+            long elements = elementsOf(model);
+            if (elements < 0 || elements > Integer.MAX_VALUE - 8) return type.createBufferedImage(width, height);
+            int size = (int) elements;
+            DataBuffer buffer = switch (model.getDataType()) {
+                case DataBuffer.TYPE_BYTE -> {
+                    byte[] array = bytes(size);
+                    Arrays.fill(array, 0, size, (byte) 0);
+                    yield new DataBufferByte(array, size);
+                }
+                case DataBuffer.TYPE_INT -> {
+                    int[] array = ints(size);
+                    Arrays.fill(array, 0, size, 0);
+                    yield new DataBufferInt(array, size);
+                }
+                default -> null;
+            };
+            if (buffer == null) return type.createBufferedImage(width, height);
+            WritableRaster raster = Raster.createWritableRaster(model, buffer, null);
+            ColorModel colors = type.getColorModel();
+            return new BufferedImage(colors, raster, colors.isAlphaPremultiplied(), null);
+        }
+
+        /**
+         * @return an image of one of the predefined types (BufferedImage.TYPE_*) backed by a pooled array.
+         */
+        public BufferedImage image(int imageType, int width, int height) {
+            return image(ImageTypeSpecifier.createFromBufferedImageType(imageType), width, height);
+        }
+
+        /**
+         * release gives a buffer back to the pool before the lease is closed.
+         * @param buffer a byte[], int[] or ByteBuffer taken from this lease, or an image created by it
+         */
+        public synchronized void release(Object buffer) {
+            if (buffer instanceof BufferedImage image) {
+                DataBuffer data = image.getRaster().getDataBuffer();
+                if (data instanceof DataBufferByte byteData && byteData.getNumBanks() == 1)
+                    release(byteData.getData());
+                else if (data instanceof DataBufferInt intData && intData.getNumBanks() == 1)
+                    release(intData.getData());
+                return;
+            }
+            if (buffer != null && leased.remove(buffer)) give(buffer);
+        }
+
+        /**
+         * close gives back all the buffers of the lease that were not released.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            for (Object buffer : leased) give(buffer);
+            leased.clear();
+        }
+
+        private <T> T keep(T buffer) {
+            if (closed) throw new IllegalStateException("Lease is closed");
+            leased.add(buffer);
+            return buffer;
+        }
+
+        private void give(Object buffer) {
+            if (buffer instanceof byte[] array) bytes.give(array);
+            else if (buffer instanceof int[] array) ints.give(array);
+            else if (buffer instanceof ByteBuffer direct) directs.give(direct);
+        }
+    }
+
+    /**
+     * elementsOf gives the number of array elements holding the pixels of a sample model.
+     * @return the number of elements, -1 if the model does not keep all its samples in one array.
+     */
+    private static long elementsOf(SampleModel model) {
+        if (model instanceof ComponentSampleModel component) {
+            if (Arrays.stream(component.getBankIndices()).anyMatch(bank -> bank != 0)) return -1;
+            return (long) component.getScanlineStride() * model.getHeight();
+        }
+        if (model instanceof MultiPixelPackedSampleModel packed) {
+            return (long) packed.getScanlineStride() * model.getHeight()
+                    + (packed.getDataBitOffset() + 7) / 8;
+        }
+        if (model instanceof SinglePixelPackedSampleModel packed) {
+            return (long) packed.getScanlineStride() * model.getHeight();
+        }
+        return -1;
+    }
+
+    /**
+     * Output is an output stream writing to a pooled byte array, which grows by size classes instead of doubling
+     * copies of its own. The array goes back to the pool when the stream is closed.
+     */
+    public final class Output extends OutputStream {
+        private byte[] buffer;
+        private int size;
+
+        private Output(int initialSize) {
+            this.buffer = takeBytes(Math.max(1024, initialSize));
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+
+        private void ensureCapacity(int count) {
+            if (buffer == null) throw new IllegalStateException("Output is closed");
+            if (size + count <= buffer.length) return;
+            byte[] larger = takeBytes((int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max(2L * buffer.length, (long) size + count)));
+            System.arraycopy(buffer, 0, larger, 0, size);
+            giveBytes(buffer);
+            buffer = larger;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return a copy of the bytes written, not pooled.
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        @Override
+        public void close() {
+            if (buffer == null) return;
+            giveBytes(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.service.PipelineMetrics.Step;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CallbackDispatcher sends the status updates of the tasks to the core engine (a PATCH on the callback url of the
+ * task), out of the pipeline: dispatch returns at once and the save workers go on with the next pages while the
+ * engine answers.
+ * The requests are sent asynchronously by one shared HTTP/2 client (HTTP/1.1 when the engine does not upgrade), so
+ * no thread waits for the engine. A request that fails (connection error, timeout, 5xx or 429) is sent again after an
+ * exponential backoff with jitter (CallbackBackoffMillis doubled at each attempt, up to CallbackMaxBackoffMillis, the
+ * delay is drawn between half and all of it so the retries of many tasks spread out), up to CallbackMaxAttempts
+ * attempts. Other answers (4xx) are final.
+ * The updates of a task are coalesced: while an update waits for its retry, a newer one replaces it, and while one is
+ * in flight, only the latest of the updates that arrive meanwhile is sent after it. At most CallbackHostConcurrency
+ * requests are in flight to each engine host, the others wait in the order they were dispatched.
+ * The deliveries are counted by zigzag.callbacks (result: delivered, failed, retried or coalesced) and the time from
+ * the dispatch to the answer of the engine is recorded as the notify step of the PipelineMetrics.
+ */
+@Service
+public class CallbackDispatcher implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final int hostConcurrency;
+    private final Duration timeout;
+    private final HttpClient client;
+    private final ScheduledExecutorService retryScheduler;
+    private final PipelineMetrics metrics;
+
+    /**
+     * deliveries holds the delivery of each task with an update not answered yet, guarded by itself.
+     */
+    private final Map<String, Delivery> deliveries = new HashMap<>();
+    private final Map<String, HostLimiter> hosts = new ConcurrentHashMap<>();
+
+    private final Counter delivered;
+    private final Counter failed;
+    private final Counter retried;
+    private final Counter coalesced;
+
+    /**
+     * Creates a dispatcher with platform threads and metrics only kept in memory, for the services built outside of
+     * Spring.
+     */
+    public CallbackDispatcher(int maxAttempts, long backoffMillis, long maxBackoffMillis, int hostConcurrency,
+                              int timeoutSeconds) {
+        this(maxAttempts, backoffMillis, maxBackoffMillis, hostConcurrency, timeoutSeconds, new VirtualThreads(false),
+                new PipelineMetrics(), new SimpleMeterRegistry());
+    }
+
+    /**
+     * @param maxAttempts the number of times an update is sent before giving up (at least 1)
+     * @param backoffMillis the delay before the first retry, doubled at each retry
+     * @param maxBackoffMillis the maximum delay between two attempts
+     * @param hostConcurrency the maximum number of requests in flight to each host (0 for no limit)
+     * @param timeoutSeconds the time to connect to the engine, and for the engine to answer a request
+     */
+    @Autowired
+    public CallbackDispatcher(@Value("${CallbackMaxAttempts}") int maxAttempts,
+                              @Value("${CallbackBackoffMillis}") long backoffMillis,
+                              @Value("${CallbackMaxBackoffMillis}") long maxBackoffMillis,
+                              @Value("${CallbackHostConcurrency}") int hostConcurrency,
+                              @Value("${CallbackTimeoutSeconds}") int timeoutSeconds,
+                              VirtualThreads virtualThreads, PipelineMetrics metrics, MeterRegistry meterRegistry) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = Math.max(1, backoffMillis);
+        this.maxBackoffMillis = Math.max(this.backoffMillis, maxBackoffMillis);
+        this.hostConcurrency = hostConcurrency;
+        this.timeout = Duration.ofSeconds(Math.max(1, timeoutSeconds));
+        this.metrics = metrics;
+        HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(timeout);
+        Executor callbackExecutor = virtualThreads.executor("callback");
+        if (callbackExecutor != null) clientBuilder.executor(callbackExecutor);
+        this.client = clientBuilder.build();
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(
+                VirtualThreads.platformThreadFactory("callback-retry"));
+        this.delivered = resultCounter(meterRegistry, "delivered");
+        this.failed = resultCounter(meterRegistry, "failed");
+        this.retried = resultCounter(meterRegistry, "retried");
+        this.coalesced = resultCounter(meterRegistry, "coalesced");
+        Gauge.builder("zigzag.callbacks.pending", this, CallbackDispatcher::getPendingCount)
+                .description("Number of tasks with a status update not answered by the core engine yet")
+                .register(meterRegistry);
+        logger.info("Callbacks: " + this.maxAttempts + " attempts, backoff " + this.backoffMillis + " to "
+                + this.maxBackoffMillis + " ms, " + (hostConcurrency > 0 ? hostConcurrency : "unlimited")
+                + " requests per host");
+    }
+
+    private static Counter resultCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("zigzag.callbacks")
+                .description("Number of status updates sent to the core engine, by result")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the number of tasks with an update not answered yet.
+     */
+    public int getPendingCount() {
+        synchronized (deliveries) {
+            return deliveries.size();
+        }
+    }
+
+    /**
+     * dispatch sends a status update of a task to the core engine, it does not wait for the engine.
+     * @param taskId the id of the task, the updates of a task are coalesced
+     * @param callbackUrl the url the update is sent to
+     * @param body the JSON body of the update
+     * @return a future completed with true once the engine accepted the update (or a newer one of the same task
+     * replacing it), with false if it refused it or could not be reached after all the attempts. It is not completed
+     * if the dispatcher is closed first.
+     */
+    public CompletableFuture<Boolean> dispatch(String taskId, String callbackUrl, String body) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        Update update;
+        try {
+            update = new Update(URI.create(callbackUrl), body);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            logger.error("Invalid callback url " + callbackUrl + " for task " + taskId);
+            failed.increment();
+            metrics.recordError(Step.NOTIFY);
+            result.complete(false);
+            return result;
+        }
+        Delivery created = null;
+        synchronized (deliveries) {
+            Delivery delivery = deliveries.get(taskId);
+            if (delivery == null) {
+                created = new Delivery(taskId, update);
+                created.waiters.add(result);
+                deliveries.put(taskId, created);
+            } else if (!delivery.sending) {
+                // waiting for a retry or for its host, the newer update is sent instead
+                delivery.update = update;
+                delivery.waiters.add(result);
+                coalesced.increment();
+            } else {
+                if (delivery.next != null) coalesced.increment();
+                delivery.next = update;
+                delivery.nextWaiters.add(result);
+            }
+        }
+        if (created != null) submit(created);
+        return result;
+    }
+
+    /**
+     * submit sends an update as soon as its host has a free slot.
+     */
+    private void submit(Delivery delivery) {
+        HostLimiter host;
+        synchronized (deliveries) {
+            host = hostLimiter(delivery.update.uri());
+        }
+        host.submit(() -> send(delivery, host));
+    }
+
+    private HostLimiter hostLimiter(URI uri) {
+        return hosts.computeIfAbsent(uri.getHost() + ":" + uri.getPort(), host -> new HostLimiter(hostConcurrency));
+    }
+
+    /**
+     * send sends the current update of a delivery, its host slot is taken.
+     */
+    private void send(Delivery delivery, HostLimiter host) {
+        Update update;
+        synchronized (deliveries) {
+            delivery.sending = true;
+            delivery.attempt++;
+            update = delivery.update;
+        }
+        try {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(update.uri())
+                    .timeout(timeout)
+                    .method("PATCH", HttpRequest.BodyPublishers.ofString(update.body()))
+                    .header("Content-Type", "application/json")
+                    .build();
+            logger.info("Patching task " + delivery.taskId + " on core engine (attempt " + delivery.attempt + ")");
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .whenComplete((response, error) -> answered(delivery, host, response, error));
+        } catch (RuntimeException e) {
+            answered(delivery, host, null, e);
+        }
+    }
+
+    /**
+     * answered handles the answer of the engine to an attempt: the delivery ends, or is retried after a backoff. At
+     * its end, the waiters of the update are completed and the next update of the task, if any, is sent.
+     */
+    private void answered(Delivery delivery, HostLimiter host, HttpResponse<String> response, Throwable error) {
+        host.release();
+        int status = response == null ? 0 : response.statusCode();
+        boolean accepted = error == null && status >= 200 && status < 300;
+        boolean retryable = error != null || status >= 500 || status == 429;
+        if (!accepted && retryable && delivery.attempt < maxAttempts && scheduleRetry(delivery, status, error))
+            return;
+
+        if (accepted) {
+            logger.info("sent PATCH to core engine for task " + delivery.taskId + ": response: " + response.body());
+            delivered.increment();
+            metrics.record(Step.NOTIFY, delivery.start);
+        } else {
+            logger.error("Could not notify the core engine of task " + delivery.taskId + " after " + delivery.attempt
+                    + " attempts: " + describe(status, error));
+            failed.increment();
+            metrics.recordError(Step.NOTIFY);
+        }
+        List<CompletableFuture<Boolean>> waiters;
+        boolean more;
+        synchronized (deliveries) {
+            waiters = delivery.waiters;
+            more = delivery.next != null;
+            if (more) {
+                delivery.update = delivery.next;
+                delivery.waiters = delivery.nextWaiters;
+                delivery.next = null;
+                delivery.nextWaiters = new ArrayList<>();
+                delivery.attempt = 0;
+                delivery.sending = false;
+                delivery.start = PipelineMetrics.start();
+            } else {
+                deliveries.remove(delivery.taskId);
+            }
+        }
+        for (CompletableFuture<Boolean> waiter : waiters) waiter.complete(accepted);
+        if (more) submit(delivery);
+    }
+
+    /**
+     * scheduleRetry sends an update again after the backoff of its attempt.
+     * @return false if the dispatcher is closed, the update is not sent again.
+     */
+    private boolean scheduleRetry(Delivery delivery, int status, Throwable error) {
+        long delay = backoff(delivery.attempt);
+        synchronized (deliveries) {
+            delivery.sending = false;
+        }
+        try {
+            retryScheduler.schedule(() -> submit(delivery), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        retried.increment();
+        logger.warn("Core engine did not accept the update of task " + delivery.taskId + " (" + describe(status, error)
+                + "), retrying in " + delay + " ms");
+        return true;
+    }
+
+    /**
+     * backoff gives the delay before the next attempt: backoffMillis doubled after each attempt, up to
+     * maxBackoffMillis, with a random jitter over its second half.
+     * @param attempt the number of attempts made so far (at least 1)
+     * @return the delay in milliseconds
+     */
+    long backoff(int attempt) {
+        long delay = backoffMillis << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > maxBackoffMillis) delay = maxBackoffMillis;
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static String describe(int status, Throwable error) {
+        if (error == null) return "status " + status;
+        Throwable cause = error.getCause() != null ? error.getCause() : error;
+        return cause.getClass().getSimpleName() + " " + cause.getMessage();
+    }
+
+    /**
+     * close stops the retries. The updates not answered yet are dropped without completing their futures, the tasks
+     * they belong to stay unfinished in the task journal and are notified again after the restart.
+     */
+    @PreDestroy
+    @Override
+    public void close() {
+        retryScheduler.shutdownNow();
+    }
+
+    /**
+     * Update is the request of a status update.
+     */
+    private record Update(URI uri, String body) {
+    }
+
+    /**
+     * Delivery is the status update of a task being sent (update), and the latest update that arrived while it was in
+     * flight (next), with the futures waiting for each of them.
+     */
+    private static final class Delivery {
+        private final String taskId;
+        private Update update;
+        private List<CompletableFuture<Boolean>> waiters = new ArrayList<>();
+        private Update next;
+        private List<CompletableFuture<Boolean>> nextWaiters = new ArrayList<>();
+        private int attempt;
+        private boolean sending;
+        private long start = PipelineMetrics.start();
+
+        private Delivery(String taskId, Update update) {
+            this.taskId = taskId;
+            this.update = update;
+        }
+    }
+
+    /**
+     * HostLimiter runs at most limit sends to a host at once, the others wait in a queue. A slot is taken by submit and
+     * given back by release, when the answer arrives, the next waiting send then takes it.
+     */
+    private static final class HostLimiter {
+        private final int limit;
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+        private int active;
+
+        private HostLimiter(int limit) {
+            this.limit = limit;
+        }
+
+        private void submit(Runnable send) {
+            synchronized (this) {
+                if (limit > 0 && active >= limit) {
+                    waiting.add(send);
+                    return;
+                }
+                active++;
+            }
+            send.run();
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+            }
+            next.run();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ch.heia.ZigZag.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * CpuBudgetScheduler owns the CPU budget of the service (a number of cores) and shares it between the images being
+ * binarized. Before an image is binarized, its worker asks for a grant: the grant says how many slice threads the
+ * filter may use for the image, and the cores of the grant are held until it is closed. So the number of images
+ * running at once times the number of slice threads of each never exceeds the budget.
+ * The width of a grant depends on the size of the image and on the number of images competing for the budget (being
+ * binarized, waiting for a grant or queued for the compute stage): a single huge page is sliced over all the cores,
+ * while a flood of small pages runs one image per core, each in its worker thread.
+ */
+@Service
+public class CpuBudgetScheduler {
+
+    private final Logger logger = LoggerFactory.getLogger(CpuBudgetScheduler.class);
+
+    /**
+     * Grant holds cores of the budget, it must be closed once the image is binarized.
+     */
+    public final class Grant implements AutoCloseable {
+        private final int threads;
+        private boolean closed;
+
+        private Grant(int threads) {
+            this.threads = threads;
+        }
+
+        /**
+         * @return the number of cores of the grant, i.e. the number of slice threads the image can be processed with.
+         */
+        public int threads() {
+            return threads;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            runningImages.decrementAndGet();
+            cores.release(threads);
+        }
+    }
+
+    private final int budget;
+    private final long minPixelsPerThread;
+    private final Semaphore cores;
+    private final AtomicInteger runningImages = new AtomicInteger();
+    private final AtomicInteger waitingImages = new AtomicInteger();
+    private volatile IntSupplier backlog = () -> 0;
+    private final DistributionSummary grantedThreads;
+    private final Timer waitTimer;
+
+    /**
+     * @param budget the number of cores shared by the images, 0 for the number of available processors
+     * @param minPixelsPerThread the minimum number of pixels an image needs per slice thread to be worth slicing
+     * @param meterRegistry the registry the decisions are exported to
+     */
+    @Autowired
+    public CpuBudgetScheduler(@Value("${CpuBudget}") int budget,
+                              @Value("${MinPixelsPerSliceThread}") long minPixelsPerThread,
+                              MeterRegistry meterRegistry) {
+        this.budget = budget > 0 ? budget : Runtime.getRuntime().availableProcessors();
+        this.minPixelsPerThread = Math.max(1, minPixelsPerThread);
+        this.cores = new Semaphore(this.budget, true);
+        Gauge.builder("zigzag.cpu.budget", this, scheduler -> scheduler.budget)
+                .description("Number of cores shared by the images being binarized")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.cpu.cores.in.use", this, CpuBudgetScheduler::coresInUse)
+                .description("Number of cores currently granted to images")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.cpu.images.running", runningImages, AtomicInteger::get)
+                .description("Number of images being binarized")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.cpu.images.waiting", waitingImages, AtomicInteger::get)
+                .description("Number of images waiting for cores")
+                .register(meterRegistry);
+        this.grantedThreads = DistributionSummary.builder("zigzag.cpu.grant.threads")
+                .description("Number of slice threads granted to an image")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("zigzag.cpu.grant.wait")
+                .description("Time spent by images waiting for cores")
+                .register(meterRegistry);
+        logger.info("CPU budget: " + this.budget + " cores, " + this.minPixelsPerThread + " pixels per slice thread");
+    }
+
+    /**
+     * setBacklog gives the scheduler the number of images queued before the compute stage, they are taken into
+     * account when deciding how wide a grant can be.
+     * @param backlog the supplier of the number of queued images
+     */
+    public void setBacklog(IntSupplier backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * acquire waits until enough cores are available for the image and grants them.
+     * @param pixels the number of pixels of the image
+     * @return the grant, to be closed once the image is binarized.
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public Grant acquire(long pixels) throws InterruptedException {
+        int threads = decide(pixels);
+        long start = System.nanoTime();
+        waitingImages.incrementAndGet();
+        try {
+            cores.acquire(threads);
+        } finally {
+            waitingImages.decrementAndGet();
+        }
+        runningImages.incrementAndGet();
+        waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        grantedThreads.record(threads);
+        return new Grant(threads);
+    }
+
+    /**
+     * decide computes the width of the grant of an image: its fair share of the budget among the competing images,
+     * but no more slice threads than the image has pixels for.
+     * @param pixels the number of pixels of the image
+     * @return the number of cores to grant, between 1 and the budget.
+     */
+    int decide(long pixels) {
+        int competing = 1 + runningImages.get() + waitingImages.get() + Math.max(0, backlog.getAsInt());
+        int fairShare = Math.max(1, budget / competing);
+        long worthSlicing = Math.max(1, pixels / minPixelsPerThread);
+        return (int) Math.min(Math.min(fairShare, worthSlicing), budget);
+    }
+
+    /**
+     * @return the number of cores of the budget.
+     */
+    public int getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of cores currently granted.
+     */
+    public int coresInUse() {
+        return budget - cores.availablePermits();
+    }
+}
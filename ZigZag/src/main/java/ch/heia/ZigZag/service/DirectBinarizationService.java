@@ -0,0 +1,276 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import ch.heia.ZigZag.tasks.OutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import sugarcube.zigzag.ImageBinarizer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+
+/**
+ * DirectBinarizationService binarizes images sent straight to the service over HTTP, for interactive use: no storage,
+ * no queue and no callback, the binarized PNG (or TIFF) is the response.
+ * Inputs are checked as early as possible: the declared length before reading anything, the actual length while
+ * reading and the number of pixels from the header, before the image is decoded. The window size is at most
+ * DirectMaxWindowSize, whatever the engine. Only DirectMaxConcurrent requests
+ * are served at once, the others are rejected right away rather than queued, and the binarization itself takes its
+ * cores from the CPU budget shared with the tasks. The rasters of a request are leased from the BufferPool until its
+ * response is written.
+ */
+@Service
+public class DirectBinarizationService {
+
+    private final Logger logger = LoggerFactory.getLogger(DirectBinarizationService.class);
+
+    /**
+     * Rejection is an input the service refuses, with the HTTP status to answer.
+     */
+    public static class Rejection extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final HttpStatus status;
+
+        public Rejection(HttpStatus status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public HttpStatus getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Binarized is a binarized image waiting to be written to the response, it holds its request slot, its buffers and
+     * its reservation in the memory budget until closed.
+     */
+    public final class Binarized implements AutoCloseable {
+        private final BufferedImage image;
+        private final OutputFormat format;
+        private final BufferPool.Lease buffers;
+        private final MemoryBudget.Reservation memory;
+        private boolean closed;
+
+        private Binarized(BufferedImage image, OutputFormat format, BufferPool.Lease buffers,
+                          MemoryBudget.Reservation memory) {
+            this.image = image;
+            this.format = format;
+            this.buffers = buffers;
+            this.memory = memory;
+        }
+
+        public OutputFormat getFormat() {
+            return format;
+        }
+
+        /**
+         * writeTo encodes the image in its format to a stream.
+         * @param output the stream, left open
+         * @throws IOException if the image could not be written
+         */
+        public void writeTo(OutputStream output) throws IOException {
+            imageEncoder.encode(image, format, output);
+            output.flush();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            buffers.close();
+            memory.close();
+            slots.release();
+        }
+    }
+
+    /**
+     * LimitedInputStream fails once more than the maximum number of bytes is read, for bodies without a length.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+        private boolean exceeded;
+
+        private LimitedInputStream(InputStream input, long limit) {
+            super(input);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) count(read);
+            return read;
+        }
+
+        private void count(int read) throws IOException {
+            count += read;
+            if (count > limit) {
+                exceeded = true;
+                throw new IOException("Image larger than " + limit + " bytes");
+            }
+        }
+    }
+
+    private final BinarizationService binarizationService;
+    private final CpuBudgetScheduler cpuScheduler;
+    private final ImageEncoder imageEncoder;
+    private final BufferPool bufferPool;
+    private final MemoryBudget memoryBudget;
+    private final int defaultMode;
+    private final long maxBytes;
+    private final long maxPixels;
+    private final int maxWindowSize;
+    private final Semaphore slots;
+
+    /**
+     * @param defaultMode the zigzag mode of the requests without one
+     * @param maxBytes the maximum size of an encoded image
+     * @param maxPixels the maximum number of pixels of an image
+     * @param maxWindowSize the maximum window size, at most IntegralBinarizer.MAX_WINDOW_SIZE
+     * @param maxConcurrent the number of requests served at once, 0 for the CPU budget
+     */
+    @Autowired
+    public DirectBinarizationService(BinarizationService binarizationService, CpuBudgetScheduler cpuScheduler,
+                                     ImageEncoder imageEncoder, BufferPool bufferPool, MemoryBudget memoryBudget,
+                                     @Value("${BinarizationMode}") int defaultMode,
+                                     @Value("${DirectMaxBytes}") long maxBytes,
+                                     @Value("${DirectMaxPixels}") long maxPixels,
+                                     @Value("${DirectMaxWindowSize}") int maxWindowSize,
+                                     @Value("${DirectMaxConcurrent}") int maxConcurrent) {
+        this.binarizationService = binarizationService;
+        this.cpuScheduler = cpuScheduler;
+        this.imageEncoder = imageEncoder;
+        this.bufferPool = bufferPool;
+        this.memoryBudget = memoryBudget;
+        this.defaultMode = defaultMode;
+        this.maxBytes = maxBytes;
+        this.maxPixels = maxPixels;
+        this.maxWindowSize = Math.min(maxWindowSize, IntegralBinarizer.MAX_WINDOW_SIZE);
+        this.slots = new Semaphore(maxConcurrent > 0 ? maxConcurrent : cpuScheduler.getBudget());
+    }
+
+    /**
+     * binarize decodes and binarizes an image read from a request body. The returned image must be closed once
+     * written, to free its request slot.
+     * @param body the encoded image (PNG or JPEG)
+     * @param length the declared length of the body, -1 if unknown
+     * @param mode the zigzag mode, null for the mode of the service
+     * @param windowSize the window size, null for the default one
+     * @param format the output format (png or tiff), null for PNG
+     * @param engine the binarization engine (see BinarizationEngine), null for the engine of the service
+     * @return the binarized image, packed to 1 bit for the black and white modes
+     * @throws Rejection if the request is refused (bad parameters, too large, not a readable image, too many
+     *                   requests)
+     * @throws InterruptedException if interrupted while waiting for memory or cores
+     */
+    public Binarized binarize(InputStream body, long length, Integer mode, Integer windowSize, String format,
+                              String engine) throws Rejection, InterruptedException {
+        OutputFormat outputFormat;
+        BinarizationEngine binarizationEngine;
+        try {
+            outputFormat = OutputFormat.of(format);
+            binarizationEngine = BinarizationEngine.of(engine);
+        } catch (IllegalArgumentException e) {
+            throw new Rejection(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        int zigzagMode = mode == null ? defaultMode : mode;
+        int window = windowSize == null ? BinarizationService.DEFAULT_WINDOW_SIZE : windowSize;
+        if (zigzagMode < ImageBinarizer.MODE_BINARY || zigzagMode > ImageBinarizer.MODE_COLOR)
+            throw new Rejection(HttpStatus.BAD_REQUEST, "Unknown mode " + zigzagMode);
+        if (window < 1)
+            throw new Rejection(HttpStatus.BAD_REQUEST, "Window size must be positive, got " + window);
+        if (window > maxWindowSize)
+            throw new Rejection(HttpStatus.BAD_REQUEST, "Window size must be at most " + maxWindowSize + ", got "
+                    + window);
+        if (length > maxBytes)
+            throw new Rejection(HttpStatus.PAYLOAD_TOO_LARGE, "Image larger than " + maxBytes + " bytes");
+        if (!slots.tryAcquire())
+            throw new Rejection(HttpStatus.SERVICE_UNAVAILABLE, "Too many binarizations in progress");
+
+        boolean handedOver = false;
+        BufferPool.Lease buffers = bufferPool.lease();
+        MemoryBudget.Reservation memory = null;
+        try {
+            BufferedImage image;
+            LimitedInputStream limited = new LimitedInputStream(body, maxBytes);
+            try (ImageInputStream input = ImageIO.createImageInputStream(limited)) {
+                ImageReader reader;
+                try {
+                    reader = binarizationService.openReader(input);
+                } catch (IOException e) {
+                    if (limited.exceeded) throw e;
+                    throw new Rejection(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Expected a PNG or JPEG image");
+                }
+                try {
+                    // the header is checked before any pixel is decoded
+                    ImageHeader header = binarizationService.inspect(reader);
+                    if (!header.isSupported())
+                        throw new Rejection(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Expected a PNG or JPEG image");
+                    if (header.pixels() > maxPixels)
+                        throw new Rejection(HttpStatus.PAYLOAD_TOO_LARGE, "Image larger than " + maxPixels
+                                + " pixels");
+                    try {
+                        memory = memoryBudget.reserve(memoryBudget.estimate(header, ImageRouter.Route.DECODE,
+                                zigzagMode, binarizationService.engine(binarizationEngine)));
+                    } catch (IllegalArgumentException e) {
+                        throw new Rejection(HttpStatus.PAYLOAD_TOO_LARGE, e.getMessage());
+                    }
+                    image = binarizationService.readImage(reader, zigzagMode, buffers);
+                } finally {
+                    reader.dispose();
+                }
+            } catch (IOException e) {
+                if (limited.exceeded)
+                    throw new Rejection(HttpStatus.PAYLOAD_TOO_LARGE, "Image larger than " + maxBytes + " bytes");
+                throw new Rejection(HttpStatus.BAD_REQUEST, "Could not read the image: " + e.getMessage());
+            }
+
+            // the plane and thresholding engines binarize in this thread, on one core
+            boolean singleThreaded = binarizationService.isSingleThreaded(binarizationEngine, zigzagMode, window,
+                    image.getWidth(), image.getHeight());
+            try (CpuBudgetScheduler.Grant grant = cpuScheduler.acquire(
+                    singleThreaded ? 0 : (long) image.getWidth() * image.getHeight())) {
+                logger.info("Direct binarization of a " + image.getWidth() + "x" + image.getHeight() + " image ("
+                        + (singleThreaded ? binarizationService.engine(binarizationEngine).getValue() + " engine"
+                        : grant.threads() + " slice threads") + ")");
+                BufferedImage decoded = image;
+                image = binarizationService.binarizeImage(decoded, zigzagMode, window, grant.threads(),
+                        binarizationEngine);
+                if (image != decoded) buffers.release(decoded);
+            }
+            if (binarizationService.isBinaryOutput(zigzagMode, binarizationEngine))
+                image = binarizationService.toBinaryImage(image, buffers);
+            Binarized binarized = new Binarized(image, outputFormat, buffers, memory);
+            handedOver = true;
+            return binarized;
+        } finally {
+            if (!handedOver) {
+                buffers.close();
+                if (memory != null) memory.close();
+                slots.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ch.heia.ZigZag.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import sugarcube.zigzag.ImageFilter;
+import sugarcube.zigzag.ZigZagFilter;
+import sugarcube.zigzag.util.SliceProcessThreadPool;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FilterRegistry keeps the ZigZag filters used by the BinarizationService so that they are reused across images
+ * instead of being built for every page. Filters are cached by their settings (mode, window size, percent, white
+ * threshold) and by the number of threads of their slice pool.
+ * A filter is not thread-safe (it keeps its processing times in a plain map and hands slices to its own threads), so
+ * each caller leases a filter for itself and gives it back once the image is done; concurrent callers with the same
+ * settings get different instances.
+ * A filter with more than one slice thread gets its own SliceProcessThreadPool once, for its whole life, and the pools
+ * are killed when the filter is dropped or the application stops. With 0 or 1 slice thread images are filtered in the
+ * calling thread and no thread is created at all, the parallelism then comes from the workers.
+ */
+@Service
+public class FilterRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(FilterRegistry.class);
+
+    /**
+     * FilterKey identifies the settings of a filter and the number of threads of its slice pool.
+     */
+    public record FilterKey(int mode, int windowSize, int percent, int whiteThreshold, int sliceThreads) {
+    }
+
+    /**
+     * Lease gives exclusive access to a filter, it must be closed once the image is filtered so that the filter can
+     * be reused.
+     */
+    public final class Lease implements AutoCloseable {
+        private final FilterKey key;
+        private ZigZagFilter filter;
+
+        private Lease(FilterKey key, ZigZagFilter filter) {
+            this.key = key;
+            this.filter = filter;
+        }
+
+        public ZigZagFilter filter() {
+            if (filter == null) throw new IllegalStateException("Filter lease is closed");
+            return filter;
+        }
+
+        @Override
+        public void close() {
+            if (filter == null) return;
+            release(key, filter);
+            filter = null;
+        }
+    }
+
+    private static final Field THREAD_POOL_FIELD = threadPoolField();
+
+    private final int sliceThreads;
+    private final int maxIdleFilters;
+    private final Map<FilterKey, ConcurrentLinkedDeque<ZigZagFilter>> idleFilters = new ConcurrentHashMap<>();
+    private final Set<ZigZagFilter> filters = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param sliceThreads the default number of threads of the slice pool of a filter, 0 to filter in the calling
+     *                     thread
+     * @param maxIdleFilters the maximum number of filters kept for reuse (all settings together)
+     */
+    @Autowired
+    public FilterRegistry(@Value("${FilterSliceThreads}") int sliceThreads,
+                          @Value("${FilterMaxIdle}") int maxIdleFilters) {
+        this.sliceThreads = THREAD_POOL_FIELD == null ? 0 : Math.max(0, sliceThreads);
+        this.maxIdleFilters = Math.max(1, maxIdleFilters);
+        if (sliceThreads > 0 && THREAD_POOL_FIELD == null)
+            logger.warn("Slice thread pools are not supported by this ZigZag version, filtering in the calling thread");
+    }
+
+    /**
+     * lease returns a filter with the given settings and the default number of slice threads, reusing an idle one if
+     * possible.
+     * @param mode the zigzag mode
+     * @param windowSize the size of the window
+     * @param percent the percentage of the local mean used as threshold
+     * @param whiteThreshold the historical white threshold
+     * @return a lease on the filter, to be closed after use.
+     */
+    public Lease lease(int mode, int windowSize, int percent, int whiteThreshold) {
+        return lease(mode, windowSize, percent, whiteThreshold, sliceThreads);
+    }
+
+    /**
+     * lease returns a filter with the given settings, reusing an idle one if possible.
+     * @param mode the zigzag mode
+     * @param windowSize the size of the window
+     * @param percent the percentage of the local mean used as threshold
+     * @param whiteThreshold the historical white threshold
+     * @param sliceThreads the number of threads the filter processes the slices of an image with
+     * @return a lease on the filter, to be closed after use.
+     */
+    public Lease lease(int mode, int windowSize, int percent, int whiteThreshold, int sliceThreads) {
+        if (closed) throw new IllegalStateException("Filter registry is closed");
+        int threads = THREAD_POOL_FIELD == null || sliceThreads <= 1 ? 0 : sliceThreads;
+        FilterKey key = new FilterKey(mode, windowSize, percent, whiteThreshold, threads);
+        ConcurrentLinkedDeque<ZigZagFilter> idle = idleFilters.get(key);
+        ZigZagFilter filter = idle == null ? null : idle.pollFirst();
+        if (filter != null) {
+            idleCount.decrementAndGet();
+        } else {
+            filter = create(key);
+        }
+        filter.chronometer().reset(filter.getName());
+        return new Lease(key, filter);
+    }
+
+    /**
+     * @return the number of filters alive (leased or idle).
+     */
+    public int size() {
+        return filters.size();
+    }
+
+    /**
+     * @return the number of filters waiting to be reused.
+     */
+    public int idleSize() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return the default number of threads of the slice pool of a filter.
+     */
+    public int getSliceThreads() {
+        return sliceThreads;
+    }
+
+    private ZigZagFilter create(FilterKey key) {
+        ZigZagFilter filter = new ZigZagFilter(key.windowSize(), key.percent(), key.mode())
+                .setHistoricalWhiteThreshold(key.whiteThreshold());
+        if (key.sliceThreads() > 0) {
+            try {
+                THREAD_POOL_FIELD.set(filter, new SliceProcessThreadPool(key.sliceThreads()));
+            } catch (IllegalAccessException e) {
+                logger.warn("Could not set the slice thread pool of the filter: " + e.getMessage());
+            }
+        }
+        filters.add(filter);
+        return filter;
+    }
+
+    private void release(FilterKey key, ZigZagFilter filter) {
+        if (!closed) {
+            if (idleCount.incrementAndGet() <= maxIdleFilters) {
+                ConcurrentLinkedDeque<ZigZagFilter> idle = idleFilters.computeIfAbsent(key,
+                        k -> new ConcurrentLinkedDeque<>());
+                idle.offerFirst(filter);
+                // close() may have run in the meantime, in which case it has missed this filter
+                if (!closed || !idle.remove(filter)) return;
+            }
+            idleCount.decrementAndGet();
+        }
+        dispose(filter);
+    }
+
+    private void dispose(ZigZagFilter filter) {
+        if (!filters.remove(filter)) return;
+        SliceProcessThreadPool threadPool = filter.threadPool();
+        if (threadPool != null) threadPool.kill();
+        filter.dispose();
+    }
+
+    /**
+     * close kills the slice thread pools of the idle filters, leased filters are disposed when they are given back.
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        for (ConcurrentLinkedDeque<ZigZagFilter> idle : idleFilters.values()) {
+            ZigZagFilter filter;
+            while ((filter = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                dispose(filter);
+            }
+        }
+        logger.info("Filter registry closed, " + filters.size() + " filters still leased");
+    }
+
+    /**
+     * threadPoolField gives access to the slice thread pool of the filters, ImageFilter only creates it in filter(),
+     * for one image, and kills it right after.
+     */
+    private static Field threadPoolField() {
+        try {
+            Field field = ImageFilter.class.getDeclaredField("threadPool");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            return null;
+        }
+    }
+}
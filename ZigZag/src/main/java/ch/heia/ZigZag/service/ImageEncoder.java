@@ -0,0 +1,563 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.OutputFormat;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ImageEncoder encodes the binarized images in the output format of their task.
+ * PNG images are encoded by the service itself rather than by the ImageIO encoder: the compression level and the row
+ * filter are configurable (PngCompressionLevel, PngFilter), and large images are deflated in parallel the way pigz
+ * does it. The rows are cut in chunks of about PngChunkBytes bytes, each chunk is deflated by one of the
+ * PngDeflateThreads threads with the end of the previous chunk as dictionary and ends with a sync flush, so the
+ * chunks concatenated in order form a single zlib stream, written as one IDAT chunk each. The Adler-32 checksums of
+ * the chunks are combined for the trailer of the stream. Images of a single chunk are deflated in the calling thread.
+ * The encoder handles 1-bit black and white images (see BinarizationService.toBinaryImage), gray level images and RGB
+ * images, any other image is handed to the ImageIO encoder. The deflaters are pooled, the buffers of the chunks and
+ * the encoded images come from the BufferPool.
+ * TIFF images are written by the ImageIO TIFF plugin, compressed with CCITT Group 4 (T.6) for 1-bit images and with
+ * deflate otherwise.
+ */
+@Service
+public class ImageEncoder {
+
+    private final Logger logger = LoggerFactory.getLogger(ImageEncoder.class);
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * WINDOW is the size of the deflate window, the dictionary given to a chunk is at most that long.
+     */
+    private static final int WINDOW = 32 * 1024;
+
+    /**
+     * SEQUENTIAL_BATCH is the number of bytes of rows deflated at once when an image is deflated in one piece.
+     */
+    private static final int SEQUENTIAL_BATCH = 64 * 1024;
+
+    private static final int MAX_DEFLATERS = 64;
+
+    /**
+     * PngFilter is the filter applied to every row: NONE keeps the runs of binarized images intact, SUB and UP can
+     * compress gray level and color images better.
+     */
+    public enum PngFilter {
+        NONE, SUB, UP;
+
+        public static PngFilter of(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Deflated is a deflated chunk of rows.
+     */
+    private record Deflated(byte[] data, int length, long adler, int rawLength) {
+    }
+
+    private final int compressionLevel;
+    private final PngFilter filter;
+    private final int chunkBytes;
+    private final int threads;
+    private final ExecutorService deflateExecutor;
+    private final BufferPool bufferPool;
+    private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_DEFLATERS);
+
+    /**
+     * Creates an encoder deflating in the calling thread, with the compression level of the ImageIO encoder.
+     */
+    public ImageEncoder() {
+        this(4, "none", 0, 1);
+    }
+
+    /**
+     * Creates an encoder whose buffers are not pooled.
+     */
+    public ImageEncoder(int compressionLevel, String filter, int chunkBytes, int threads) {
+        this(compressionLevel, filter, chunkBytes, threads, new BufferPool(0));
+    }
+
+    /**
+     * @param compressionLevel the deflate level of the PNG images, 1 (fastest) to 9 (smallest)
+     * @param filter the filter of the rows of the PNG images: none, sub or up
+     * @param chunkBytes the number of bytes of rows deflated by one thread, 0 to deflate images in one piece
+     * @param threads the number of threads deflating chunks, 0 for the number of available processors
+     * @param bufferPool the pool of the buffers of the chunks and of the encoded images
+     */
+    @Autowired
+    public ImageEncoder(@Value("${PngCompressionLevel}") int compressionLevel,
+                        @Value("${PngFilter}") String filter,
+                        @Value("${PngChunkBytes}") int chunkBytes,
+                        @Value("${PngDeflateThreads}") int threads,
+                        BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.compressionLevel = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION,
+                compressionLevel));
+        this.filter = PngFilter.of(filter);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.chunkBytes = chunkBytes > 0 && this.threads > 1 ? Math.max(WINDOW, chunkBytes) : 0;
+        if (this.chunkBytes > 0) {
+            AtomicInteger count = new AtomicInteger();
+            this.deflateExecutor = Executors.newFixedThreadPool(this.threads, runnable -> {
+                Thread thread = new Thread(runnable, "png-deflate-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.deflateExecutor = null;
+        }
+        logger.info("PNG encoder: level " + this.compressionLevel + ", filter " + this.filter + ", "
+                + (this.chunkBytes > 0 ? "chunks of " + this.chunkBytes + " bytes on " + this.threads + " threads"
+                : "in one piece"));
+    }
+
+    /**
+     * encode encodes an image in the given format.
+     * @param image the binarized image
+     * @param format the output format
+     * @return the encoded image
+     * @throws IOException if the image could not be encoded
+     */
+    public byte[] encode(BufferedImage image, OutputFormat format) throws IOException {
+        try (BufferPool.Output output = bufferPool.output(image.getWidth() * image.getHeight() / 32)) {
+            encode(image, format, output);
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * encode encodes an image in the given format to a stream.
+     * @param image the binarized image
+     * @param format the output format
+     * @param output the stream, flushed but left open
+     * @throws IOException if the image could not be encoded or written
+     */
+    public void encode(BufferedImage image, OutputFormat format, OutputStream output) throws IOException {
+        if (format == OutputFormat.TIFF) {
+            writeTiff(image, output);
+        } else {
+            Rows rows = Rows.of(image);
+            if (rows == null) {
+                if (!ImageIO.write(image, "png", output))
+                    throw new IOException("No PNG writer available");
+            } else {
+                writePng(rows, output);
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * isBilevel tells if an image has 1 bit per pixel.
+     */
+    static boolean isBilevel(BufferedImage image) {
+        return image.getColorModel().getPixelSize() == 1;
+    }
+
+    private void writeTiff(BufferedImage image, OutputStream output) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext()) throw new IOException("No TIFF writer available");
+        ImageWriter writer = writers.next();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType(isBilevel(image) ? "CCITT T.6" : "Deflate");
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private void writePng(Rows rows, OutputStream output) throws IOException {
+        output.write(SIGNATURE);
+        byte[] header = new byte[13];
+        writeInt(header, 0, rows.width);
+        writeInt(header, 4, rows.height);
+        header[8] = (byte) rows.bitDepth;
+        header[9] = (byte) rows.colorType;
+        // deflate (0), standard filters (0), no interlacing (0)
+        writeChunk(output, "IHDR", header, 0, header.length, null);
+
+        int rawRow = rows.rowBytes + 1;
+        int rowsPerChunk = chunkBytes == 0 ? rows.height : Math.max(1, chunkBytes / rawRow);
+        long adler;
+        if (rowsPerChunk >= rows.height) {
+            adler = deflateInOnePiece(rows, output);
+        } else {
+            adler = deflateInParallel(rows, rowsPerChunk, output);
+        }
+        byte[] trailer = new byte[4];
+        writeInt(trailer, 0, (int) adler);
+        writeChunk(output, "IDAT", trailer, 0, trailer.length, null);
+        writeChunk(output, "IEND", trailer, 0, 0, null);
+    }
+
+    /**
+     * deflateInOnePiece deflates all the rows with one deflater, in the calling thread, the compressed data is
+     * written out in IDAT chunks as it comes.
+     * @return the Adler-32 checksum of the rows
+     */
+    private long deflateInOnePiece(Rows rows, OutputStream output) throws IOException {
+        int rawRow = rows.rowBytes + 1;
+        int batchRows = Math.max(1, SEQUENTIAL_BATCH / rawRow);
+        byte[] raw = takeBuffer(batchRows * rawRow);
+        byte[] compressed = takeBuffer(SEQUENTIAL_BATCH);
+        byte[] previous = new byte[rawRow];
+        Deflater deflater = takeDeflater();
+        Adler32 adler = new Adler32();
+        byte[] zlibHeader = zlibHeader();
+        boolean headerWritten = false;
+        try {
+            for (int first = 0; first < rows.height; first += batchRows) {
+                int end = Math.min(rows.height, first + batchRows);
+                int length = rows.filtered(filter, first, end, raw, 0, previous);
+                adler.update(raw, 0, length);
+                deflater.setInput(raw, 0, length);
+                if (end == rows.height) deflater.finish();
+                while (end == rows.height ? !deflater.finished() : !deflater.needsInput()) {
+                    int count = deflater.deflate(compressed);
+                    if (count == 0) continue;
+                    writeChunk(output, "IDAT", compressed, 0, count, headerWritten ? null : zlibHeader);
+                    headerWritten = true;
+                }
+            }
+            if (!headerWritten) writeChunk(output, "IDAT", zlibHeader, 0, zlibHeader.length, null);
+        } finally {
+            giveDeflater(deflater);
+            giveBuffer(raw);
+            giveBuffer(compressed);
+        }
+        return adler.getValue();
+    }
+
+    /**
+     * deflateInParallel deflates the chunks of rows in the deflate threads and writes them in order, at most two
+     * chunks per thread are deflated or waiting to be written at once.
+     * @return the Adler-32 checksum of the rows
+     */
+    private long deflateInParallel(Rows rows, int rowsPerChunk, OutputStream output) throws IOException {
+        int chunks = (rows.height + rowsPerChunk - 1) / rowsPerChunk;
+        ArrayDeque<Future<Deflated>> inFlight = new ArrayDeque<>();
+        int submitted = 0;
+        long adler = 1;
+        try {
+            for (int written = 0; written < chunks; written++) {
+                while (submitted < chunks && inFlight.size() < 2 * threads) {
+                    int first = submitted * rowsPerChunk;
+                    int end = Math.min(rows.height, first + rowsPerChunk);
+                    boolean last = end == rows.height;
+                    inFlight.add(deflateExecutor.submit(() -> deflateChunk(rows, first, end, last)));
+                    submitted++;
+                }
+                Deflated chunk = inFlight.poll().get();
+                try {
+                    writeChunk(output, "IDAT", chunk.data(), 0, chunk.length(), written == 0 ? zlibHeader() : null);
+                } finally {
+                    giveBuffer(chunk.data());
+                }
+                adler = combineAdler(adler, chunk.adler(), chunk.rawLength());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deflating", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not deflate the image", e.getCause());
+        } finally {
+            for (Future<Deflated> future : inFlight) future.cancel(true);
+        }
+        return adler;
+    }
+
+    /**
+     * deflateChunk deflates the rows first to end (excluded) as a part of a zlib stream, with the rows before them as
+     * dictionary. The last chunk ends the deflate stream, the others end with a sync flush on a byte boundary.
+     */
+    private Deflated deflateChunk(Rows rows, int first, int end, boolean last) {
+        int rawRow = rows.rowBytes + 1;
+        int dictionaryRows = first == 0 ? 0 : Math.min(first, (WINDOW + rawRow - 1) / rawRow);
+        int chunkLength = (end - first) * rawRow;
+        byte[] raw = takeBuffer((dictionaryRows + end - first) * rawRow);
+        Deflater deflater = takeDeflater();
+        try {
+            rows.filtered(filter, first - dictionaryRows, end, raw, 0, new byte[rawRow]);
+            int chunkStart = dictionaryRows * rawRow;
+            if (dictionaryRows > 0) {
+                int dictionaryLength = Math.min(WINDOW, chunkStart);
+                deflater.setDictionary(raw, chunkStart - dictionaryLength, dictionaryLength);
+            }
+            Adler32 adler = new Adler32();
+            adler.update(raw, chunkStart, chunkLength);
+            deflater.setInput(raw, chunkStart, chunkLength);
+            if (last) deflater.finish();
+            byte[] compressed = takeBuffer(chunkLength / 4 + 64);
+            int length = 0;
+            while (true) {
+                if (length == compressed.length) {
+                    byte[] larger = takeBuffer(compressed.length * 2);
+                    System.arraycopy(compressed, 0, larger, 0, length);
+                    giveBuffer(compressed);
+                    compressed = larger;
+                }
+                int count = deflater.deflate(compressed, length, compressed.length - length,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += count;
+                // a sync flush is complete when the deflater did not fill the space it was given
+                if (last ? deflater.finished() : length < compressed.length && deflater.needsInput()) break;
+            }
+            return new Deflated(compressed, length, adler.getValue(), chunkLength);
+        } finally {
+            giveDeflater(deflater);
+            giveBuffer(raw);
+        }
+    }
+
+    /**
+     * @return the header of a zlib stream (32K window) compressed with the level of the encoder.
+     */
+    private byte[] zlibHeader() {
+        int cmf = 0x78;
+        int level = compressionLevel < 2 ? 0 : compressionLevel < 6 ? 1 : compressionLevel == 6 ? 2 : 3;
+        int flg = level << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * combineAdler gives the Adler-32 checksum of two concatenated sequences from the checksums of both (the
+     * adler32_combine function of zlib).
+     * @param adler1 the checksum of the first sequence
+     * @param adler2 the checksum of the second sequence
+     * @param length2 the length of the second sequence
+     * @return the checksum of the concatenation.
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private Deflater takeDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) return new Deflater(compressionLevel, true);
+        deflater.reset();
+        return deflater;
+    }
+
+    private void giveDeflater(Deflater deflater) {
+        if (!deflaters.offer(deflater)) deflater.end();
+    }
+
+    /**
+     * takeBuffer returns a buffer of at least the given size from the buffer pool.
+     */
+    private byte[] takeBuffer(int size) {
+        return bufferPool.takeBytes(size);
+    }
+
+    private void giveBuffer(byte[] buffer) {
+        bufferPool.giveBytes(buffer);
+    }
+
+    /**
+     * writeChunk writes a PNG chunk whose data is an optional prefix followed by length bytes of data.
+     */
+    private static void writeChunk(OutputStream output, String type, byte[] data, int offset, int length,
+                                   byte[] prefix) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        int prefixLength = prefix == null ? 0 : prefix.length;
+        byte[] number = new byte[4];
+        writeInt(number, 0, prefixLength + length);
+        output.write(number);
+        output.write(typeBytes);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        if (prefix != null) {
+            output.write(prefix);
+            crc.update(prefix);
+        }
+        output.write(data, offset, length);
+        crc.update(data, offset, length);
+        writeInt(number, 0, (int) crc.getValue());
+        output.write(number);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (deflateExecutor != null) deflateExecutor.shutdownNow();
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) deflater.end();
+    }
+
+    /**
+     * Rows reads the rows of an image straight from its data buffer, in the layout of the PNG scanlines.
+     */
+    private abstract static class Rows {
+        final int width;
+        final int height;
+        final int rowBytes;
+        final int bitDepth;
+        final int colorType;
+        final int bytesPerPixel;
+
+        Rows(int width, int height, int rowBytes, int bitDepth, int colorType, int bytesPerPixel) {
+            this.width = width;
+            this.height = height;
+            this.rowBytes = rowBytes;
+            this.bitDepth = bitDepth;
+            this.colorType = colorType;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        /**
+         * row copies the bytes of a row of the image.
+         */
+        abstract void row(int y, byte[] destination, int offset);
+
+        /**
+         * filtered writes the filtered scanlines of the rows first to end (excluded), each one preceded by its filter
+         * type.
+         * @param previous a buffer of rowBytes + 1 bytes
+         * @return the number of bytes written
+         */
+        int filtered(PngFilter filter, int first, int end, byte[] destination, int offset, byte[] previous) {
+            int position = offset;
+            if (filter == PngFilter.UP) {
+                if (first > 0) row(first - 1, previous, 1);
+                else Arrays.fill(previous, (byte) 0);
+            }
+            for (int y = first; y < end; y++) {
+                int start = position + 1;
+                row(y, destination, start);
+                switch (filter) {
+                    case NONE -> destination[position] = 0;
+                    case SUB -> {
+                        destination[position] = 1;
+                        for (int i = start + rowBytes - 1; i >= start + bytesPerPixel; i--)
+                            destination[i] -= destination[i - bytesPerPixel];
+                    }
+                    case UP -> {
+                        destination[position] = 2;
+                        for (int i = 0; i < rowBytes; i++) {
+                            byte value = destination[start + i];
+                            destination[start + i] = (byte) (value - previous[1 + i]);
+                            previous[1 + i] = value;
+                        }
+                    }
+                }
+                position += rowBytes + 1;
+            }
+            return position - offset;
+        }
+
+        /**
+         * @return the rows of a 1-bit black and white, gray level or RGB image, null for other images.
+         */
+        static Rows of(BufferedImage image) {
+            Raster raster = image.getRaster();
+            if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) return null;
+            int width = image.getWidth();
+            int height = image.getHeight();
+            if (image.getType() == BufferedImage.TYPE_BYTE_BINARY
+                    && raster.getSampleModel() instanceof MultiPixelPackedSampleModel model
+                    && model.getPixelBitStride() == 1 && model.getDataBitOffset() == 0
+                    && raster.getDataBuffer().getOffset() == 0
+                    && image.getColorModel() instanceof IndexColorModel colors && isBlackAndWhite(colors)) {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = model.getScanlineStride();
+                int rowBytes = (width + 7) / 8;
+                return new Rows(width, height, rowBytes, 1, 0, 1) {
+                    void row(int y, byte[] destination, int offset) {
+                        System.arraycopy(data, y * stride, destination, offset, rowBytes);
+                    }
+                };
+            }
+            if (image.getType() == BufferedImage.TYPE_BYTE_GRAY
+                    && raster.getSampleModel() instanceof ComponentSampleModel model
+                    && model.getPixelStride() == 1 && raster.getDataBuffer().getNumBanks() == 1) {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = model.getScanlineStride();
+                int start = raster.getDataBuffer().getOffset() + model.getOffset(0, 0);
+                return new Rows(width, height, width, 8, 0, 1) {
+                    void row(int y, byte[] destination, int offset) {
+                        System.arraycopy(data, start + y * stride, destination, offset, width);
+                    }
+                };
+            }
+            if (image.getType() == BufferedImage.TYPE_INT_RGB
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel model) {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int stride = model.getScanlineStride();
+                int start = raster.getDataBuffer().getOffset();
+                return new Rows(width, height, 3 * width, 8, 2, 3) {
+                    void row(int y, byte[] destination, int offset) {
+                        int source = start + y * stride;
+                        for (int x = 0; x < width; x++) {
+                            int rgb = data[source + x];
+                            destination[offset++] = (byte) (rgb >>> 16);
+                            destination[offset++] = (byte) (rgb >>> 8);
+                            destination[offset++] = (byte) rgb;
+                        }
+                    }
+                };
+            }
+            return null;
+        }
+
+        /**
+         * @return true for the palette of TYPE_BYTE_BINARY images: black then white, like a 1-bit gray level.
+         */
+        private static boolean isBlackAndWhite(IndexColorModel colors) {
+            return colors.getMapSize() == 2 && (colors.getRGB(0) & 0xFFFFFF) == 0
+                    && (colors.getRGB(1) & 0xFFFFFF) == 0xFFFFFF;
+        }
+    }
+}
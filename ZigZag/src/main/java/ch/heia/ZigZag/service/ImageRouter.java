@@ -0,0 +1,74 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * ImageRouter decides from the header of an image (see BinarizationService.inspect) how the fetch stage handles it,
+ * before any pixel is decoded: the image is decoded at once, spooled to a temporary file for the strip binarization,
+ * or rejected.
+ * Images other than PNG and JPEG are rejected, as are images of more than MaxPixels pixels and the ones of more than
+ * DecodeMaxPixels pixels which have to be decoded at once (COLOR mode, thresholding engines). Images of more than
+ * StripThresholdPixels pixels are binarized in strips when the mode and the engine allow it.
+ */
+@Service
+public class ImageRouter {
+
+    /**
+     * Route is the way an image goes through the pipeline.
+     */
+    public enum Route {
+        /**
+         * DECODE decodes the whole image in memory.
+         */
+        DECODE,
+        /**
+         * STRIPS spools the image to a temporary file, binarized in strips by the compute stage.
+         */
+        STRIPS
+    }
+
+    private final long maxPixels;
+    private final long decodeMaxPixels;
+    private final long stripThresholdPixels;
+
+    /**
+     * @param maxPixels the maximum number of pixels of an image, 0 for no limit
+     * @param decodeMaxPixels the maximum number of pixels of an image decoded at once, 0 for no limit
+     * @param stripThresholdPixels the number of pixels above which images are binarized in strips, 0 for never
+     */
+    @Autowired
+    public ImageRouter(@Value("${MaxPixels}") long maxPixels,
+                       @Value("${DecodeMaxPixels}") long decodeMaxPixels,
+                       @Value("${StripThresholdPixels}") long stripThresholdPixels) {
+        this.maxPixels = maxPixels;
+        this.decodeMaxPixels = decodeMaxPixels;
+        this.stripThresholdPixels = stripThresholdPixels;
+    }
+
+    /**
+     * route decides how an image is binarized from its header.
+     * @param header the header of the image
+     * @param mode the zigzag mode the image is binarized with
+     * @param engine the engine the image is binarized with, resolved (see BinarizationService.engine)
+     * @return the route of the image
+     * @throws IllegalArgumentException if the image is rejected
+     */
+    public Route route(ImageHeader header, int mode, BinarizationEngine engine) {
+        if (!header.isSupported())
+            throw new IllegalArgumentException("Unsupported image, expected image/png or image/jpeg got: " + header);
+        long pixels = header.pixels();
+        if (maxPixels > 0 && pixels > maxPixels)
+            throw new IllegalArgumentException("Image of " + pixels + " pixels larger than " + maxPixels + " pixels");
+        // the strips are binarized by the ZigZag filter, the thresholding engines take the whole image
+        boolean strips = BinarizationService.isStripMode(mode) && !engine.isThresholding();
+        if (strips && stripThresholdPixels > 0 && pixels > stripThresholdPixels) return Route.STRIPS;
+        if (decodeMaxPixels > 0 && pixels > decodeMaxPixels)
+            throw new IllegalArgumentException("Image of " + pixels + " pixels larger than " + decodeMaxPixels
+                    + " pixels, too large to be decoded at once");
+        return Route.DECODE;
+    }
+}
@@ -0,0 +1,182 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import sugarcube.zigzag.util.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * IntegralBinarizer computes the legacy binarizers bundled with the filter (sugarcube.zigzag.legacy): Sauvola,
+ * Niblack and Bradley thresholds from the mean (and the deviation) of a window around each pixel, and the global Otsu
+ * threshold. The images are black and white, at the size of the original. Its results are the ones of the legacy
+ * binarizers with their default parameters, up to the rounding of the deviation in Sauvola and Niblack: the legacy
+ * binarizers sum the squared differences to the mean, the deviation is computed here from the sums exactly.
+ * The legacy binarizers sum the window of each pixel (size x size reads per pixel), here the window sums come from
+ * a summed-area table kept one row at a time, in primitive arrays: the sums of each column over the window of the row
+ * are updated by adding the row entering the window and subtracting the one leaving it, and their prefix sums give
+ * the sum of any window of the row with two reads, whatever its size. The row loops are PlaneKernels.
+ * An image is binarized in the calling thread. An IntegralBinarizer has no state, it can be shared between threads.
+ */
+public class IntegralBinarizer {
+
+    /**
+     * MAX_WINDOW_SIZE is the largest window whose sums of squares are exact in a long.
+     */
+    public static final int MAX_WINDOW_SIZE = 1024;
+
+    // the default parameters of the legacy binarizers, the k of Niblack is a float there
+    private static final double SAUVOLA_K = 0.2;
+    private static final double SAUVOLA_R = 128;
+    private static final double NIBLACK_K = -0.2f;
+    private static final int BRADLEY_PERCENT = 20;
+
+    private static final PlaneKernels KERNELS = PlaneKernels.VECTOR != null ? PlaneKernels.VECTOR
+            : PlaneKernels.SCALAR;
+
+    private final BinarizationEngine engine;
+    private final int size;
+    private final int half;
+
+    /**
+     * @param engine a thresholding engine: SAUVOLA, NIBLACK, BRADLEY or OTSU
+     * @param windowSize the size of the window, ignored by OTSU
+     */
+    public IntegralBinarizer(BinarizationEngine engine, int windowSize) {
+        if (!engine.isThresholding())
+            throw new IllegalArgumentException("Engine " + engine.getValue() + " is not a thresholding engine");
+        if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE)
+            throw new IllegalArgumentException("Window size must be between 1 and " + MAX_WINDOW_SIZE + ", got "
+                    + windowSize);
+        this.engine = engine;
+        this.size = windowSize;
+        this.half = windowSize / 2;
+    }
+
+    /**
+     * binarize binarizes an image, like the filterImplementation of the legacy binarizer of the engine. The image is
+     * not modified.
+     * @param image the image
+     * @return the black and white gray level image
+     */
+    public BufferedImage binarize(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] gray = KERNELS.grayPlane(image);
+        BufferedImage binarized = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] output = ((DataBufferByte) binarized.getRaster().getDataBuffer()).getData();
+        switch (engine) {
+            case SAUVOLA, NIBLACK -> meanAndDeviation(gray, output, width, height);
+            case BRADLEY -> bradley(gray, output, width, height);
+            default -> otsu(gray, output, width * height);
+        }
+        return binarized;
+    }
+
+    /**
+     * meanAndDeviation thresholds the pixels with Sauvola or Niblack. The window of a pixel covers the size rows and
+     * columns up to half after it, the pixels outside of the image are the ones of its border.
+     */
+    private void meanAndDeviation(byte[] gray, byte[] output, int width, int height) {
+        int[] columns = new int[width];
+        int[] squares = new int[width];
+        long[] prefix = new long[width + 1];
+        long[] squaresPrefix = new long[width + 1];
+        long area = (long) size * size;
+        double areaSquared = (double) area * area;
+        for (int row = half - size + 1; row <= half; row++) {
+            int offset = clamp(row, height) * width;
+            KERNELS.addRow(columns, gray, offset, width);
+            KERNELS.addSquaredRow(squares, gray, offset, width);
+        }
+        for (int y = 0; y < height; y++) {
+            if (y > 0) {
+                int entering = clamp(y + half, height) * width;
+                int leaving = clamp(y + half - size, height) * width;
+                KERNELS.addRow(columns, gray, entering, width);
+                KERNELS.addSquaredRow(squares, gray, entering, width);
+                KERNELS.subtractRow(columns, gray, leaving, width);
+                KERNELS.subtractSquaredRow(squares, gray, leaving, width);
+            }
+            prefixSums(columns, prefix, width);
+            prefixSums(squares, squaresPrefix, width);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int from = x + half - size + 1;
+                int to = x + half;
+                long sum = windowSum(columns, prefix, from, to, width);
+                long sumOfSquares = windowSum(squares, squaresPrefix, from, to, width);
+                double mean = sum / (double) area;
+                // like the legacy binarizers, the deviation is rounded to a float
+                double deviation = (float) Math.sqrt((area * sumOfSquares - sum * sum) / areaSquared);
+                double threshold = engine == BinarizationEngine.SAUVOLA
+                        ? mean * (1 + SAUVOLA_K * (deviation / SAUVOLA_R - 1))
+                        : mean + NIBLACK_K * deviation;
+                output[offset + x] = (byte) ((gray[offset + x] & 0xFF) < threshold ? 0 : 255);
+            }
+        }
+    }
+
+    /**
+     * bradley thresholds the pixels with Bradley, as the legacy binarizer does: the window of a pixel covers the
+     * columns after x - half - 1 up to x + half (the same for the rows), cut at the borders of the image, and its
+     * mean is divided by size x size pixels unless it is cut.
+     */
+    private void bradley(byte[] gray, byte[] output, int width, int height) {
+        int[] columns = new int[width];
+        long[] prefix = new long[width + 1];
+        int top = 0;
+        int bottom = 0;
+        for (int y = 0; y < height; y++) {
+            int first = Math.max(y - half - 1, 0);
+            int last = Math.min(y + half, height - 1);
+            // the columns sum the rows after first up to last
+            for (; bottom < last; bottom++) KERNELS.addRow(columns, gray, (bottom + 1) * width, width);
+            for (; top < first; top++) KERNELS.subtractRow(columns, gray, (top + 1) * width, width);
+            prefixSums(columns, prefix, width);
+            boolean cutRows = y - half - 1 < 0 || y + half >= height;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(x - half - 1, 0);
+                int right = Math.min(x + half, width - 1);
+                int count = cutRows || x - half - 1 < 0 || x + half >= width
+                        ? (right - left) * (last - first) : size * size;
+                int mean = (int) ((prefix[right + 1] - prefix[left + 1]) / Math.max(count, 1));
+                output[offset + x] = (byte) ((gray[offset + x] & 0xFF) > mean * (100 - BRADLEY_PERCENT) / 100
+                        ? 255 : 0);
+            }
+        }
+    }
+
+    /**
+     * otsu thresholds the pixels with the Otsu threshold of the histogram of the whole image.
+     */
+    private static void otsu(byte[] gray, byte[] output, int pixels) {
+        int[] histogram = new int[256];
+        for (int i = 0; i < pixels; i++) histogram[gray[i] & 0xFF]++;
+        KERNELS.threshold(gray, output, 0, pixels, ImageUtil.computeOtsuThreshold(histogram));
+    }
+
+    private static void prefixSums(int[] columns, long[] prefix, int width) {
+        long sum = 0;
+        for (int x = 0; x < width; x++) {
+            sum += columns[x];
+            prefix[x + 1] = sum;
+        }
+    }
+
+    /**
+     * windowSum sums the columns from (included) to to (included), the columns outside of the row are the ones of
+     * its border.
+     */
+    private static long windowSum(int[] columns, long[] prefix, int from, int to, int width) {
+        long sum = prefix[Math.min(to, width - 1) + 1] - prefix[Math.max(from, 0)];
+        if (from < 0) sum -= (long) from * columns[0];
+        if (to >= width) sum += (long) (to - width + 1) * columns[width - 1];
+        return sum;
+    }
+
+    private static int clamp(int row, int height) {
+        return row < 0 ? 0 : Math.min(row, height - 1);
+    }
+}
@@ -0,0 +1,229 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import sugarcube.zigzag.ImageBinarizer;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MemoryBudget owns the heap the images may use (a fraction of the maximum heap) and admits them one by one: before
+ * an image is decoded, its worker reserves the peak heap the image will need, estimated from its header, the mode and
+ * the engine (see estimate). The image waits until its reservation fits in the budget, in arrival order, and an image
+ * which would need more than the whole budget is rejected. The reservation is held until the page leaves the
+ * pipeline, it shrinks to the encoded result once the image is encoded.
+ * The estimates are the peak live heap per pixel measured for each engine and mode (the smallest heap an A4 page at
+ * 300 dpi could be binarized with, decoded image and packed result included), the reserved bytes are exported next
+ * to the heap the JVM actually uses so that the budget can be tuned.
+ * The budget is kept in units of 1 KiB, so that the reservations fit in the permits of a semaphore.
+ */
+@Service
+public class MemoryBudget {
+
+    private static final long UNIT = 1024;
+
+    /**
+     * PAGE_OVERHEAD is the heap of a page besides its pixels: the reader, the stream buffers and the encoded result
+     * of a small image.
+     */
+    static final long PAGE_OVERHEAD = 1 << 20;
+
+    /**
+     * STRIP_BYTES_PER_PIXEL is the peak heap per pixel of a strip of the strip binarization.
+     */
+    static final int STRIP_BYTES_PER_PIXEL = 23;
+
+    private final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    /**
+     * Reservation holds bytes of the budget, it must be closed once the page leaves the pipeline.
+     */
+    public final class Reservation implements AutoCloseable {
+        private int units;
+
+        private Reservation(int units) {
+            this.units = units;
+        }
+
+        /**
+         * @return the number of bytes reserved.
+         */
+        public synchronized long bytes() {
+            return units * UNIT;
+        }
+
+        /**
+         * shrink gives back the bytes reserved above the given number of bytes, once the page needs less heap.
+         * @param bytes the number of bytes the page still needs
+         */
+        public synchronized void shrink(long bytes) {
+            int keep = units(bytes);
+            if (keep >= units) return;
+            reserved.addAndGet(keep - units);
+            permits.release(units - keep);
+            units = keep;
+        }
+
+        @Override
+        public synchronized void close() {
+            shrink(0);
+        }
+    }
+
+    private final int budget;
+    private final int stripPixels;
+    private final Semaphore permits;
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final AtomicInteger waitingImages = new AtomicInteger();
+    private final DistributionSummary estimates;
+    private final Counter rejected;
+    private final Timer waitTimer;
+
+    /**
+     * @param fraction the fraction of the maximum heap the images may use, 0 for no limit
+     * @param stripPixels the number of pixels binarized at a time by the strip binarization
+     * @param meterRegistry the registry the reservations are exported to
+     */
+    @Autowired
+    public MemoryBudget(@Value("${MemoryBudgetFraction}") double fraction, @Value("${StripPixels}") int stripPixels,
+                        MeterRegistry meterRegistry) {
+        this(fraction > 0 ? (long) (Runtime.getRuntime().maxMemory() * Math.min(fraction, 1.0)) : 0, stripPixels,
+                meterRegistry);
+    }
+
+    /**
+     * @param budgetBytes the number of bytes the images may use, 0 for no limit
+     * @param stripPixels the number of pixels binarized at a time by the strip binarization
+     * @param meterRegistry the registry the reservations are exported to
+     */
+    public MemoryBudget(long budgetBytes, int stripPixels, MeterRegistry meterRegistry) {
+        this.budget = budgetBytes > 0 ? units(budgetBytes) : 0;
+        this.stripPixels = stripPixels;
+        this.permits = new Semaphore(budget, true);
+        Gauge.builder("zigzag.memory.budget", this, memoryBudget -> memoryBudget.budget * (double) UNIT)
+                .description("Heap the images being processed may use, 0 for no limit")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.memory.reserved", this, MemoryBudget::reservedBytes)
+                .description("Heap reserved by the images being processed")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.memory.images.waiting", waitingImages, AtomicInteger::get)
+                .description("Number of images waiting for their reservation")
+                .register(meterRegistry);
+        this.estimates = DistributionSummary.builder("zigzag.memory.estimate")
+                .description("Estimated peak heap of an image")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("zigzag.memory.rejected")
+                .description("Number of images rejected because they need more than the whole budget")
+                .register(meterRegistry);
+        this.waitTimer = Timer.builder("zigzag.memory.wait")
+                .description("Time spent by images waiting for their reservation")
+                .register(meterRegistry);
+        logger.info("Memory budget: " + (budget == 0 ? "no limit" : budget / 1024 + " MiB"));
+    }
+
+    private static int units(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + UNIT - 1) / UNIT);
+    }
+
+    /**
+     * @return true if the images are admitted within a budget.
+     */
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * @return the number of bytes of the budget, 0 for no limit.
+     */
+    public long getBudgetBytes() {
+        return budget * UNIT;
+    }
+
+    /**
+     * @return the number of bytes currently reserved.
+     */
+    public long reservedBytes() {
+        return reserved.get() * UNIT;
+    }
+
+    /**
+     * estimate gives the peak heap an image needs from its header, whether it is decoded at once or binarized in
+     * strips.
+     * @param header the header of the image
+     * @param route the route of the image, see ImageRouter
+     * @param mode the zigzag mode the image is binarized with
+     * @param engine the engine the image is binarized with, resolved (see BinarizationService.engine)
+     * @return the estimated number of bytes
+     */
+    public long estimate(ImageHeader header, ImageRouter.Route route, int mode, BinarizationEngine engine) {
+        if (route == ImageRouter.Route.STRIPS)
+            return PAGE_OVERHEAD + Math.min(header.pixels(), stripPixels) * STRIP_BYTES_PER_PIXEL;
+        return PAGE_OVERHEAD + header.pixels() * bytesPerPixel(header, mode, engine);
+    }
+
+    /**
+     * bytesPerPixel gives the peak heap per pixel of an image decoded at once: the largest of the decoding (the
+     * decoded image and its gray level copy) and of the binarization (the gray level image, the copies of the engine
+     * and the result).
+     */
+    static int bytesPerPixel(ImageHeader header, int mode, BinarizationEngine engine) {
+        // the images whose layout is unknown count as RGB
+        int bands = Math.max(3, header.bands());
+        int decoding = header.isGray() ? 1 : mode == ImageBinarizer.MODE_COLOR ? bands : bands + 1;
+        int binarization;
+        if (engine.isThresholding()) {
+            binarization = 3;
+        } else if (mode == ImageBinarizer.MODE_COLOR) {
+            // the filter works on the colors, on any engine
+            binarization = header.isGray() ? 17 : 16 + bands;
+        } else if (engine == BinarizationEngine.VECTOR) {
+            binarization = mode == ImageBinarizer.MODE_BINARY ? 4 : 10;
+        } else {
+            binarization = mode == ImageBinarizer.MODE_BINARY ? 9 : 15;
+        }
+        return Math.max(decoding, binarization);
+    }
+
+    /**
+     * reserve waits until the budget has room for the given number of bytes and reserves them.
+     * @param bytes the estimated peak heap of the image, see estimate
+     * @return the reservation, to be closed once the page leaves the pipeline.
+     * @throws IllegalArgumentException if the image needs more than the whole budget
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public Reservation reserve(long bytes) throws InterruptedException {
+        estimates.record(bytes);
+        if (budget == 0) return new Reservation(0);
+        int units = units(bytes);
+        if (units > budget) {
+            rejected.increment();
+            throw new IllegalArgumentException("Image needs about " + (bytes >> 20) + " MiB, more than the memory"
+                    + " budget of " + (budget >> 10) + " MiB");
+        }
+        long start = System.nanoTime();
+        waitingImages.incrementAndGet();
+        try {
+            permits.acquire(units);
+        } finally {
+            waitingImages.decrementAndGet();
+        }
+        reserved.addAndGet(units);
+        waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return new Reservation(units);
+    }
+}
@@ -0,0 +1,160 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.PageExecution;
+import ch.heia.ZigZag.tasks.ServiceTaskTask;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PageScheduler is the queue of the pages waiting for the fetch stage. Instead of serving the pages in arrival order,
+ * it shares the pipeline fairly between flows: the pages of a pipeline execution (or of a service when the task has
+ * no pipeline execution) form a flow, and the flows are served by start-time fair queuing. Each flow is served in
+ * turn, in proportion to its weight, so a pipeline execution queuing thousands of pages only delays a one-page task
+ * of another flow by about one page per busy flow.
+ * The weight of a flow is 1 + the priority of its task (0 to MAX_PRIORITY, from the compute payload). Within a flow,
+ * the pages of short tasks go first (shortest job first on the number of pages of the task): a page of a task of n
+ * pages is queued as if it arrived n - 1 pages later, at most SJF_HORIZON, so the long tasks are delayed but never
+ * starved.
+ */
+public class PageScheduler {
+
+    /**
+     * MAX_PRIORITY is the highest priority of a task, a flow of this priority is served MAX_PRIORITY + 1 times as
+     * often as a flow of priority 0.
+     */
+    public static final int MAX_PRIORITY = 9;
+
+    /**
+     * SJF_HORIZON is the maximum number of pages a long task is pushed back by within its flow.
+     */
+    static final int SJF_HORIZON = 64;
+
+    private record Entry(PageExecution page, long rank) {
+    }
+
+    /**
+     * Flow holds the queued pages of a flow and its tag, the virtual time at which its next page starts. A flow
+     * without queued pages is idle, it is kept until the virtual time reaches its tag so that a flow whose pages
+     * trickle in one at a time is not served ahead of its turn.
+     */
+    private static final class Flow {
+        private final Object key;
+        private final PriorityQueue<Entry> pages = new PriorityQueue<>(Comparator.comparingLong(Entry::rank));
+        private double tag;
+
+        private Flow(Object key) {
+            this.key = key;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * flows contains the flows with queued pages and the recently idle ones, by key.
+     */
+    private final Map<Object, Flow> flows = new HashMap<>();
+
+    /**
+     * backlog contains the flows with queued pages, by tag (the next to serve first).
+     */
+    private final PriorityQueue<Flow> backlog = new PriorityQueue<>(Comparator.comparingDouble(flow -> flow.tag));
+    private double virtualTime;
+    private long sequence;
+    private int size;
+
+    /**
+     * @param task a task
+     * @return the key of the flow of the task: its pipeline execution, its service if it has none, the task itself
+     * if it has neither.
+     */
+    static Object flowKey(ServiceTaskTask task) {
+        if (task.getPipelineExecutionID() != null) return task.getPipelineExecutionID();
+        if (task.getServiceId() != null) return task.getServiceId();
+        return task.getId();
+    }
+
+    /**
+     * @param priority the priority of a task
+     * @return the weight of its flow.
+     */
+    static int weight(int priority) {
+        return 1 + Math.max(0, Math.min(MAX_PRIORITY, priority));
+    }
+
+    /**
+     * put queues a page.
+     * @param page the page
+     */
+    public void put(PageExecution page) {
+        long delay = Math.min(page.getExecution().getPageCount() - 1, SJF_HORIZON);
+        lock.lock();
+        try {
+            Object key = flowKey(page.getTaskBase().getTask());
+            Flow flow = flows.get(key);
+            if (flow == null) {
+                flow = new Flow(key);
+                flows.put(key, flow);
+            }
+            if (flow.pages.isEmpty()) {
+                // an idle flow gets no credit for the time it was idle
+                flow.tag = Math.max(flow.tag, virtualTime);
+                flow.pages.add(new Entry(page, sequence++ + delay));
+                backlog.add(flow);
+            } else {
+                flow.pages.add(new Entry(page, sequence++ + delay));
+            }
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * take waits for a page and returns the next one to fetch.
+     * @return the page
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public PageExecution take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) notEmpty.await();
+            Flow flow = backlog.poll();
+            PageExecution page = flow.pages.poll().page();
+            size--;
+            virtualTime = flow.tag;
+            flow.tag += 1.0 / weight(page.getTaskBase().getPriority());
+            if (!flow.pages.isEmpty()) backlog.add(flow);
+            else if (flows.size() > 2 * backlog.size() + 16) forgetIdleFlows();
+            return page;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * forgetIdleFlows removes the idle flows the virtual time has caught up with, they would start at the virtual time
+     * anyway.
+     */
+    private void forgetIdleFlows() {
+        flows.values().removeIf(flow -> flow.pages.isEmpty() && flow.tag <= virtualTime);
+    }
+
+    /**
+     * @return the number of queued pages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ch.heia.ZigZag.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PipelineMetrics holds the meters of the steps a page goes through: the time spent in each step
+ * (zigzag.step.duration), the errors by step (zigzag.step.errors), the bytes read from and written to the storage
+ * (zigzag.bytes) and the size of the images (zigzag.image.megapixels). The time measured by the ZigZag filter's own
+ * Chronometer over its phases is exported as zigzag.filter.chronometer.
+ * All the meters are registered up front and looked up by the ordinal of their step, recording one is a System.nanoTime
+ * call and the update of a striped counter, without lookup nor allocation.
+ * The download is decoded while it is read, so FETCH is measured without the DECODE time spent in it. ENCODE is timed
+ * by the encode stage, and UPLOAD only covers the transfer of the encoded result to the storage.
+ */
+@Service
+public class PipelineMetrics {
+
+    /**
+     * Step is one step of the processing of a page.
+     */
+    public enum Step {
+        FETCH, DECODE, FILTER, ENCODE, UPLOAD, NOTIFY;
+
+        private final String tag = name().toLowerCase();
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    private final Timer[] durations = new Timer[Step.values().length];
+    private final Counter[] errors = new Counter[Step.values().length];
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final DistributionSummary megapixels;
+    private final Timer filterChronometer;
+
+    /**
+     * Creates metrics that are only kept in memory, for the services built outside of Spring.
+     */
+    public PipelineMetrics() {
+        this(new SimpleMeterRegistry());
+    }
+
+    /**
+     * @param meterRegistry the registry the metrics are exported to
+     */
+    @Autowired
+    public PipelineMetrics(MeterRegistry meterRegistry) {
+        for (Step step : Step.values()) {
+            durations[step.ordinal()] = Timer.builder("zigzag.step.duration")
+                    .description("Time spent by a page in a processing step")
+                    .tag("step", step.getTag())
+                    .register(meterRegistry);
+            errors[step.ordinal()] = Counter.builder("zigzag.step.errors")
+                    .description("Number of pages that failed in a processing step")
+                    .tag("step", step.getTag())
+                    .register(meterRegistry);
+        }
+        this.bytesIn = Counter.builder("zigzag.bytes")
+                .description("Number of bytes of images exchanged with the storage")
+                .baseUnit("bytes")
+                .tag("direction", "in")
+                .register(meterRegistry);
+        this.bytesOut = Counter.builder("zigzag.bytes")
+                .description("Number of bytes of images exchanged with the storage")
+                .baseUnit("bytes")
+                .tag("direction", "out")
+                .register(meterRegistry);
+        this.megapixels = DistributionSummary.builder("zigzag.image.megapixels")
+                .description("Size of the images binarized")
+                .baseUnit("megapixels")
+                .register(meterRegistry);
+        this.filterChronometer = Timer.builder("zigzag.filter.chronometer")
+                .description("Time measured by the ZigZag filter over its phases")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the start time of a step, to be given to record.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * record records the time spent in a step.
+     * @param step the step
+     * @param start the start time of the step, see start
+     * @return the time spent, in nanoseconds.
+     */
+    public long record(Step step, long start) {
+        long elapsed = System.nanoTime() - start;
+        durations[step.ordinal()].record(elapsed, TimeUnit.NANOSECONDS);
+        return elapsed;
+    }
+
+    /**
+     * recordNanos records the time spent in a step measured by the caller.
+     * @param step the step
+     * @param nanos the time spent, in nanoseconds
+     */
+    public void recordNanos(Step step, long nanos) {
+        durations[step.ordinal()].record(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * recordError counts a page that failed in a step.
+     * @param step the step
+     */
+    public void recordError(Step step) {
+        errors[step.ordinal()].increment();
+    }
+
+    /**
+     * @param bytes the number of bytes of an image downloaded from the storage
+     */
+    public void recordBytesIn(long bytes) {
+        bytesIn.increment(bytes);
+    }
+
+    /**
+     * @param bytes the number of bytes of a result uploaded to the storage
+     */
+    public void recordBytesOut(long bytes) {
+        bytesOut.increment(bytes);
+    }
+
+    /**
+     * @param pixels the number of pixels of an image to binarize
+     */
+    public void recordImage(long pixels) {
+        megapixels.record(pixels / 1e6);
+    }
+
+    /**
+     * recordFilterChronometer records the time the ZigZag filter measured with its Chronometer (addChronoTime) over
+     * the binarization of an image.
+     * @param millis the elapsed time of the chronometer, in milliseconds
+     */
+    public void recordFilterChronometer(long millis) {
+        filterChronometer.record(millis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,216 @@
+package ch.heia.ZigZag.service;
+
+import sugarcube.zigzag.ImageBinarizer;
+import sugarcube.zigzag.util.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+
+/**
+ * PlaneBinarizer is the binarization of ZigZagFilter for the modes BINARY to GRAY_LEVEL, computed on primitive planes
+ * (one byte per pixel) instead of rasters: the same steps as the StripBinarizer (background, foreground, threshold),
+ * on the whole image at once. Its results are the ones of ZigZagFilter, pixel for pixel.
+ * The window statistics are sliding sums: the sums of each column over the window of the row are updated by adding
+ * the row entering the window and subtracting the one leaving it, then summed over the window of each pixel. The row
+ * loops (gray conversion of RGB images, column sums, window sums, background, foreground and threshold) are
+ * PlaneKernels, run with the Vector API when it is available and scalar code otherwise.
+ * The upsampling of the BINARY_UPSAMPLED to GRAY_LEVEL modes is the one of the filter (ImageUtil.scaleImage), the
+ * images of other types than gray, RGB and BGR are converted to gray by the filter's ImageUtil too.
+ * An image is binarized in the calling thread. A PlaneBinarizer has no state, it can be shared between threads.
+ */
+public class PlaneBinarizer {
+
+    private static final int THRESHOLD = 250;
+
+    private final int mode;
+    private final int half;
+    private final int size;
+    private final int percent;
+    private final int whiteThreshold;
+    private final PlaneKernels kernels;
+
+    /**
+     * @param mode the zigzag mode, BINARY to GRAY_LEVEL
+     * @param windowSize the size of the window
+     * @param percent the percentage of the local mean used as threshold
+     * @param whiteThreshold the historical white threshold
+     * @param vector true to use the Vector API if it is available
+     */
+    public PlaneBinarizer(int mode, int windowSize, int percent, int whiteThreshold, boolean vector) {
+        if (!supports(mode))
+            throw new IllegalArgumentException("Mode " + mode + " can not be binarized on planes");
+        this.mode = mode;
+        this.half = windowSize / 2;
+        this.size = 2 * half + 1;
+        this.percent = percent;
+        this.whiteThreshold = whiteThreshold;
+        // the vector kernels compare the products of the threshold instead of dividing, they must not overflow
+        long area = 100L * size * size;
+        boolean exact = percent >= 0 && 256 * area <= Integer.MAX_VALUE
+                && 255L * percent * size * size <= Integer.MAX_VALUE && 255L * size * size < (1 << 24);
+        this.kernels = vector && PlaneKernels.VECTOR != null && exact ? PlaneKernels.VECTOR : PlaneKernels.SCALAR;
+    }
+
+    /**
+     * @return true if the Vector API is available, see PlaneKernels.
+     */
+    public static boolean isVectorAvailable() {
+        return PlaneKernels.VECTOR != null;
+    }
+
+    /**
+     * @return the kernels the images are binarized with, vector or scalar.
+     */
+    public String getKernels() {
+        return kernels.name();
+    }
+
+    /**
+     * @return true if the mode can be binarized on planes.
+     */
+    public static boolean supports(int mode) {
+        return mode >= ImageBinarizer.MODE_BINARY && mode <= ImageBinarizer.MODE_GRAY_LEVEL;
+    }
+
+    /**
+     * @return true if the image is larger than the window, smaller images are left to the filter.
+     */
+    public boolean accepts(BufferedImage image) {
+        return accepts(size, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * @return true if an image of the given size is larger than the window, see accepts(image).
+     */
+    public static boolean accepts(int windowSize, int width, int height) {
+        int size = 2 * (windowSize / 2) + 1;
+        return width > size && height > size;
+    }
+
+    /**
+     * binarize binarizes an image, like ZigZagFilter.filterImplementation.
+     * @param image the image, larger than the window
+     * @return the binarized gray level image, twice as large in BINARY_UPSAMPLED mode
+     */
+    public BufferedImage binarize(BufferedImage image) {
+        if (!accepts(image))
+            throw new IllegalArgumentException("Image of " + image.getWidth() + "x" + image.getHeight()
+                    + " smaller than the window");
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] gray = kernels.grayPlane(image);
+        byte[] foreground = foreground(gray, width, height);
+
+        if (mode == ImageBinarizer.MODE_GRAY_LEVEL) return upsampled(foreground, width, height, THRESHOLD);
+        int[] histogram = new int[256];
+        // the Otsu threshold of the filter leaves out 10% of the image on each side
+        int top = height * 10 / 100;
+        int left = width * 10 / 100;
+        for (int y = top; y < height - top; y++) {
+            int row = y * width;
+            for (int x = left; x < width - left; x++) histogram[foreground[row + x] & 0xFF]++;
+        }
+        int threshold = Math.min(THRESHOLD, ImageUtil.computeOtsuThreshold(histogram));
+        if (mode != ImageBinarizer.MODE_BINARY) return upsampled(foreground, width, height, threshold);
+
+        BufferedImage binarized = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        kernels.threshold(foreground, ((DataBufferByte) binarized.getRaster().getDataBuffer()).getData(), 0,
+                width * height, threshold);
+        return binarized;
+    }
+
+    /**
+     * foreground computes the background pixels (step 1) and the normalized foreground (step 2) of a gray plane.
+     */
+    private byte[] foreground(byte[] gray, int width, int height) {
+        int pixels = width * height;
+        int[] columns = new int[width];
+        int[] prefix = new int[width + 1];
+        int[] box = new int[width];
+
+        // step 1: background pixels
+        byte[] mask = new byte[pixels];
+        byte[] maskedGray = new byte[pixels];
+        int area = 100 * size * size;
+        int top = 0;
+        int bottom = 0;
+        for (int y = 0; y < height; y++) {
+            int start = windowStart(y, height);
+            for (; bottom < start + size; bottom++) kernels.addRow(columns, gray, (bottom + 1) * width, width);
+            for (; top < start; top++) kernels.subtractRow(columns, gray, (top + 1) * width, width);
+            kernels.windowSums(columns, prefix, box, width, half, size);
+            kernels.background(gray, y * width, box, mask, maskedGray, width, percent, area, whiteThreshold);
+        }
+
+        // step 2: foreground, from the number and the sum of the background pixels of the windows
+        byte[] foreground = new byte[pixels];
+        int[] countColumns = new int[width];
+        int[] counts = new int[width];
+        Arrays.fill(columns, 0);
+        top = 0;
+        bottom = 0;
+        for (int y = 0; y < height; y++) {
+            int start = windowStart(y, height);
+            for (; bottom < start + size; bottom++) {
+                kernels.addRow(countColumns, mask, (bottom + 1) * width, width);
+                kernels.addRow(columns, maskedGray, (bottom + 1) * width, width);
+            }
+            for (; top < start; top++) {
+                kernels.subtractRow(countColumns, mask, (top + 1) * width, width);
+                kernels.subtractRow(columns, maskedGray, (top + 1) * width, width);
+            }
+            kernels.windowSums(countColumns, prefix, counts, width, half, size);
+            kernels.windowSums(columns, prefix, box, width, half, size);
+            kernels.foreground(gray, y * width, counts, box, foreground, width);
+        }
+        return foreground;
+    }
+
+    /**
+     * windowStart gives the window of a row as the ZigZag filter clamps it at the borders of the image: the window
+     * covers the size rows after the returned one.
+     */
+    private int windowStart(int y, int length) {
+        int start = y - half - 1;
+        if (start < 0) return 0;
+        return y + half >= length ? length - 1 - size : start;
+    }
+
+    /**
+     * upsampled thresholds the foreground upsampled twice, and decimates it back except in BINARY_UPSAMPLED mode.
+     * Below the threshold, pixels are black, or keep their level in GRAY_LEVEL mode.
+     */
+    private BufferedImage upsampled(byte[] foreground, int width, int height, int threshold) {
+        BufferedImage plane = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        System.arraycopy(foreground, 0, ((DataBufferByte) plane.getRaster().getDataBuffer()).getData(), 0,
+                width * height);
+        BufferedImage upsampled = ImageUtil.scaleImage(plane, 2.0, false, null);
+        byte[] up = ((DataBufferByte) upsampled.getRaster().getDataBuffer()).getData();
+        if (mode == ImageBinarizer.MODE_GRAY_LEVEL) {
+            for (int i = 0; i < up.length; i++)
+                if ((up[i] & 0xFF) >= threshold) up[i] = (byte) 255;
+        } else {
+            kernels.threshold(up, up, 0, up.length, threshold);
+        }
+        if (mode == ImageBinarizer.MODE_BINARY_UPSAMPLED) return upsampled;
+
+        // decimation: mean of the 3x3 upsampled pixels around the pixel, moved inside at the borders
+        BufferedImage decimated = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] output = ((DataBufferByte) decimated.getRaster().getDataBuffer()).getData();
+        int upWidth = 2 * width;
+        for (int y = 0; y < height; y++) {
+            int offset = (y == 0 ? 0 : y == height - 1 ? 2 * y - 2 : 2 * y - 1) * upWidth;
+            for (int x = 0; x < width; x++) {
+                int left = x == 0 ? 0 : x == width - 1 ? 2 * x - 2 : 2 * x - 1;
+                int sum = 0;
+                for (int dy = 0; dy < 3; dy++) {
+                    int index = offset + dy * upWidth + left;
+                    sum += (up[index] & 0xFF) + (up[index + 1] & 0xFF) + (up[index + 2] & 0xFF);
+                }
+                output[y * width + x] = (byte) (sum / 9);
+            }
+        }
+        return decimated;
+    }
+}
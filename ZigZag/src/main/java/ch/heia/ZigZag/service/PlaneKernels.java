@@ -0,0 +1,238 @@
+package ch.heia.ZigZag.service;
+
+import org.slf4j.LoggerFactory;
+import sugarcube.zigzag.util.ImageUtil;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * PlaneKernels are the loops of the PlaneBinarizer and the IntegralBinarizer over the rows of their planes (one byte
+ * per pixel), in scalar code. VectorPlaneKernels overrides them with the Vector API when the jdk.incubator.vector
+ * module is available (started with --add-modules jdk.incubator.vector), both give the same results, bit for bit.
+ */
+class PlaneKernels {
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    static final PlaneKernels SCALAR = new PlaneKernels();
+    /**
+     * VECTOR are the kernels of the Vector API, null if they are not available.
+     */
+    static final PlaneKernels VECTOR = vector();
+
+    /**
+     * vector loads the kernels of the Vector API. The class is only loaded once the module is known to be there, so
+     * the service runs without it.
+     * @return the kernels, null if the Vector API is not available or does not pay off on this CPU.
+     */
+    static PlaneKernels vector() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) return null;
+        try {
+            PlaneKernels kernels = (PlaneKernels) Class.forName(PlaneKernels.class.getPackageName()
+                    + ".VectorPlaneKernels").getDeclaredConstructor().newInstance();
+            return kernels.isUseful() ? kernels : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            LoggerFactory.getLogger(PlaneKernels.class).warn("Vector API not available: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the name of the kernels, for the logs.
+     */
+    String name() {
+        return "scalar";
+    }
+
+    /**
+     * @return true if the kernels are faster than the scalar ones.
+     */
+    boolean isUseful() {
+        return true;
+    }
+
+    /**
+     * grayFromRgb converts a row of opaque RGB pixels to gray levels like Java2D does when an RGB image is drawn into
+     * a gray one: (77 r + 150 g + 29 b + 128) / 256.
+     */
+    void grayFromRgb(int[] pixels, int offset, byte[] gray, int out, int width) {
+        for (int x = 0; x < width; x++) {
+            int pixel = pixels[offset + x];
+            gray[out + x] = (byte) ((77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF) + 29 * (pixel & 0xFF)
+                    + 128) >> 8);
+        }
+    }
+
+    /**
+     * grayFromBgr converts a row of interleaved blue, green, red bytes to gray levels, see grayFromRgb.
+     */
+    void grayFromBgr(byte[] bgr, int offset, byte[] gray, int out, int width) {
+        for (int x = 0, i = offset; x < width; x++, i += 3) {
+            gray[out + x] = (byte) ((29 * (bgr[i] & 0xFF) + 150 * (bgr[i + 1] & 0xFF) + 77 * (bgr[i + 2] & 0xFF)
+                    + 128) >> 8);
+        }
+    }
+
+    /**
+     * addRow adds a row of unsigned bytes to the column sums.
+     */
+    void addRow(int[] sums, byte[] plane, int offset, int width) {
+        for (int x = 0; x < width; x++) sums[x] += plane[offset + x] & 0xFF;
+    }
+
+    /**
+     * subtractRow subtracts a row of unsigned bytes from the column sums.
+     */
+    void subtractRow(int[] sums, byte[] plane, int offset, int width) {
+        for (int x = 0; x < width; x++) sums[x] -= plane[offset + x] & 0xFF;
+    }
+
+    /**
+     * addSquaredRow adds the squares of a row of unsigned bytes to the column sums.
+     */
+    void addSquaredRow(int[] sums, byte[] plane, int offset, int width) {
+        for (int x = 0; x < width; x++) {
+            int value = plane[offset + x] & 0xFF;
+            sums[x] += value * value;
+        }
+    }
+
+    /**
+     * subtractSquaredRow subtracts the squares of a row of unsigned bytes from the column sums.
+     */
+    void subtractSquaredRow(int[] sums, byte[] plane, int offset, int width) {
+        for (int x = 0; x < width; x++) {
+            int value = plane[offset + x] & 0xFF;
+            sums[x] -= value * value;
+        }
+    }
+
+    /**
+     * windowSums gives the sum of the column sums over the window of each column of the row, clamped at the borders
+     * like the ZigZag filter does: the window of x covers the columns after x - half - 1 up to x + half, and the
+     * first (last) size columns after the first (before the last) one near the borders.
+     * @param columns the column sums of the row
+     * @param prefix a buffer of width + 1 values, the sums of the columns before each column
+     * @param box the sums, for each column
+     */
+    final void windowSums(int[] columns, int[] prefix, int[] box, int width, int half, int size) {
+        int sum = 0;
+        prefix[0] = 0;
+        for (int x = 0; x < width; x++) {
+            sum += columns[x];
+            prefix[x + 1] = sum;
+        }
+        int first = Math.min(width, half + 1);
+        int last = Math.max(first, width - half);
+        int left = prefix[size + 1] - prefix[1];
+        for (int x = 0; x < first; x++) box[x] = left;
+        differences(prefix, box, first, last, half);
+        int right = prefix[width] - prefix[width - size];
+        for (int x = last; x < width; x++) box[x] = right;
+    }
+
+    /**
+     * differences computes the window sums of the columns from (included) to to (excluded), whose windows are not
+     * clamped.
+     */
+    void differences(int[] prefix, int[] box, int from, int to, int half) {
+        for (int x = from; x < to; x++) box[x] = prefix[x + half + 1] - prefix[x - half];
+    }
+
+    /**
+     * background finds the background pixels of a row: not darker than percent of the mean of their window, nor
+     * whiter than the white threshold (nor black).
+     * @param gray the gray levels
+     * @param box the sums of the gray levels over the window of each pixel
+     * @param mask set to 1 for the background pixels, 0 for the others
+     * @param maskedGray set to the gray level of the background pixels, 0 for the others
+     * @param area 100 times the number of pixels of a window
+     */
+    void background(byte[] gray, int offset, int[] box, byte[] mask, byte[] maskedGray, int width, int percent,
+                    int area, int whiteThreshold) {
+        for (int x = 0; x < width; x++) {
+            int threshold = percent * box[x] / area;
+            int value = gray[offset + x] & 0xFF;
+            if (value > whiteThreshold) value = 0;
+            boolean background = value > 0 && value >= threshold;
+            mask[offset + x] = (byte) (background ? 1 : 0);
+            maskedGray[offset + x] = (byte) (background ? value : 0);
+        }
+    }
+
+    /**
+     * foreground divides the gray levels of a row by the mean of the background pixels of their window.
+     * @param gray the gray levels
+     * @param counts the number of background pixels in the window of each pixel
+     * @param sums the sum of the gray levels of these background pixels
+     * @param foreground set to 255 for the pixels not darker than their mean, to 256 times the ratio otherwise
+     */
+    void foreground(byte[] gray, int offset, int[] counts, int[] sums, byte[] foreground, int width) {
+        for (int x = 0; x < width; x++) {
+            int count = counts[x];
+            int mean = count == 0 ? 0 : sums[x] / count;
+            int value = gray[offset + x] & 0xFF;
+            foreground[offset + x] = (byte) (value >= mean ? 255 : value * 256 / mean);
+        }
+    }
+
+    /**
+     * threshold sets the pixels to 0 below the threshold, to 255 otherwise.
+     */
+    void threshold(byte[] plane, byte[] output, int from, int to, int threshold) {
+        for (int i = from; i < to; i++) output[i] = (byte) ((plane[i] & 0xFF) < threshold ? 0 : 255);
+    }
+
+    /**
+     * grayPlane gives the gray levels of an image, one byte per pixel. Gray images backed by a plain array are used
+     * as they are, opaque RGB and BGR images are converted by the kernels and other images by the filter's
+     * ImageUtil.
+     */
+    final byte[] grayPlane(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Raster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+                if (isPlain(raster, 1)) return ((DataBufferByte) raster.getDataBuffer()).getData();
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+                if (raster.getSampleModel() instanceof SinglePixelPackedSampleModel model
+                        && model.getScanlineStride() == width && raster.getDataBuffer().getOffset() == 0
+                        && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+                    int[] pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    byte[] gray = new byte[width * height];
+                    for (int y = 0; y < height; y++) grayFromRgb(pixels, y * width, gray, y * width, width);
+                    return gray;
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                if (isPlain(raster, 3)) {
+                    byte[] bgr = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    byte[] gray = new byte[width * height];
+                    for (int y = 0; y < height; y++) grayFromBgr(bgr, 3 * y * width, gray, y * width, width);
+                    return gray;
+                }
+                break;
+            default:
+                break;
+        }
+        BufferedImage converted = ImageUtil.convertToGrayLevel(image, null);
+        return ((DataBufferByte) converted.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @return true if the samples of the raster start at the beginning of its array and its rows are contiguous.
+     */
+    private static boolean isPlain(Raster raster, int pixelStride) {
+        return raster.getSampleModel() instanceof PixelInterleavedSampleModel model
+                && model.getPixelStride() == pixelStride && model.getScanlineStride() == pixelStride * raster.getWidth()
+                && raster.getDataBuffer().getOffset() == 0 && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0 && raster.getParent() == null;
+    }
+}
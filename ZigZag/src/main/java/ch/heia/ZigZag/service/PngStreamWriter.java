@@ -0,0 +1,128 @@
+package ch.heia.ZigZag.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PngStreamWriter encodes a gray level image as PNG one row at a time, so that an image produced strip by strip never
+ * has to be held in memory as a whole (the ImageIO encoder needs the complete image). Rows are compressed as they come
+ * and written out in IDAT chunks of CHUNK_SIZE bytes. Rows are not filtered: binarized images are mostly runs of the
+ * same level, which deflate compresses better than their differences (the ImageIO encoder leaves them unfiltered too).
+ * Black and white images are written with a bit depth of 1, like the images packed by
+ * BinarizationService.toBinaryImage, other images with a bit depth of 8.
+ */
+public class PngStreamWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * The compression level of the ImageIO PNG encoder.
+     */
+    private static final int COMPRESSION_LEVEL = 4;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream output;
+    private final int width;
+    private final int height;
+    private final boolean binary;
+    private final Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final CRC32 crc = new CRC32();
+    private final byte[] row;
+    private int rows;
+
+    /**
+     * @param output the stream the PNG is written to, left open
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param binary true to write a black and white image with a bit depth of 1, false for a gray level image
+     * @throws IOException if the header could not be written
+     */
+    public PngStreamWriter(OutputStream output, int width, int height, boolean binary) throws IOException {
+        this.output = output;
+        this.width = width;
+        this.height = height;
+        this.binary = binary;
+        // each row starts with its filter type, 0 (none)
+        this.row = new byte[1 + (binary ? (width + 7) / 8 : width)];
+
+        output.write(SIGNATURE);
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = (byte) (binary ? 1 : 8);
+        // gray level (0), deflate (0), standard filters (0), no interlacing (0)
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * writeRow compresses the next row of the image.
+     * @param pixels the gray levels of the row (0 to 255), a black and white row is packed here (128 and above is
+     *               white)
+     * @param offset the index of the first pixel of the row in pixels
+     * @throws IOException if the compressed data could not be written
+     */
+    public void writeRow(byte[] pixels, int offset) throws IOException {
+        if (rows == height) throw new IllegalStateException("All the rows of the image are already written");
+        if (binary) {
+            for (int x = 0; x < width; x += 8) {
+                int packed = 0;
+                int end = Math.min(8, width - x);
+                for (int bit = 0; bit < end; bit++) {
+                    if ((pixels[offset + x + bit] & 0xFF) >= 128) packed |= 0x80 >>> bit;
+                }
+                row[1 + x / 8] = (byte) packed;
+            }
+        } else {
+            System.arraycopy(pixels, offset, row, 1, width);
+        }
+        deflater.setInput(row, 0, row.length);
+        while (!deflater.needsInput()) writeCompressed();
+        rows++;
+    }
+
+    /**
+     * finish writes the last compressed data and the end of the PNG, the output stream is flushed but not closed.
+     * @throws IOException if the data could not be written
+     * @throws IllegalStateException if not all the rows of the image were written
+     */
+    public void finish() throws IOException {
+        if (rows != height)
+            throw new IllegalStateException("Only " + rows + " rows of " + height + " were written");
+        deflater.finish();
+        while (!deflater.finished()) writeCompressed();
+        deflater.end();
+        writeChunk("IEND", chunk, 0);
+        output.flush();
+    }
+
+    private void writeCompressed() throws IOException {
+        int length = deflater.deflate(chunk);
+        if (length > 0) writeChunk("IDAT", chunk, length);
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] number = new byte[4];
+        writeInt(number, 0, length);
+        output.write(number);
+        output.write(typeBytes);
+        output.write(data, 0, length);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        writeInt(number, 0, (int) crc.getValue());
+        output.write(number);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
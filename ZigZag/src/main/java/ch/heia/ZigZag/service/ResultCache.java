@@ -0,0 +1,376 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.BinarizedImage;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * ResultCache keeps the PNG of the images already binarized, keyed by the SHA-256 of the input file and the settings
+ * of the filter, so that a page submitted again (retries, pipelines sharing a preprocessing step) is not binarized and
+ * encoded again.
+ * The cache has two tiers: a memory tier bounded by ResultCacheBytes and an optional disk tier, a directory bounded by
+ * ResultCacheDiskBytes which survives restarts. Both evict the least recently used results, a result larger than a
+ * quarter of a tier is not kept in that tier. The memory tier also remembers the keys the result was uploaded with in
+ * each storage (endpoint and bucket), so a hit can reuse the uploaded object instead of uploading it again.
+ */
+@Service
+public class ResultCache {
+
+    private final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+
+    /**
+     * Key identifies a result: the digest of the input file and the settings it was binarized with.
+     */
+    public record Key(String digest, int mode, int windowSize, int percent, int whiteThreshold) {
+
+        private String fileName() {
+            return digest + "-" + mode + "-" + windowSize + "-" + percent + "-" + whiteThreshold + ".png";
+        }
+
+        private static Key ofFileName(String name) {
+            String[] parts = name.substring(0, name.length() - ".png".length()).split("-");
+            if (parts.length != 5) throw new IllegalArgumentException("Not a cached result: " + name);
+            return new Key(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] png;
+        private final Map<String, String> objectKeys = new ConcurrentHashMap<>();
+
+        private Entry(byte[] png) {
+            this.png = png;
+        }
+    }
+
+    /**
+     * A tier keeps results up to a quarter of its capacity.
+     */
+    private static final int MAX_ENTRY_SHARE = 4;
+
+    private final long memoryCapacity;
+    private final Path directory;
+    private final long diskCapacity;
+
+    /**
+     * memory and disk are kept in access order, their first entry is the least recently used. Both are guarded by
+     * the cache itself.
+     */
+    private final LinkedHashMap<Key, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reusedUploads = new AtomicLong();
+
+    /**
+     * @param memoryCapacity the number of bytes of PNG kept in memory, 0 for no memory tier
+     * @param directory the directory of the disk tier, empty for no disk tier
+     * @param diskCapacity the number of bytes of PNG kept in the directory
+     * @param meterRegistry the registry the hits and misses are exported to
+     */
+    @Autowired
+    public ResultCache(@Value("${ResultCacheBytes}") long memoryCapacity,
+                       @Value("${ResultCacheDirectory}") String directory,
+                       @Value("${ResultCacheDiskBytes}") long diskCapacity,
+                       MeterRegistry meterRegistry) {
+        this.memoryCapacity = Math.max(0, memoryCapacity);
+        this.directory = directory == null || directory.isBlank() || diskCapacity <= 0 ? null : Path.of(directory);
+        this.diskCapacity = this.directory == null ? 0 : diskCapacity;
+        if (this.directory != null) loadDirectory();
+
+        registerRequests(meterRegistry, "hit", "memory", memoryHits);
+        registerRequests(meterRegistry, "hit", "disk", diskHits);
+        registerRequests(meterRegistry, "miss", "none", misses);
+        FunctionCounter.builder("zigzag.cache.reused.uploads", reusedUploads, AtomicLong::get)
+                .description("Number of results whose already uploaded object was reused")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.cache.hit.ratio", this, ResultCache::getHitRatio)
+                .description("Ratio of the lookups answered by the result cache")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.cache.size", this, cache -> cache.getSize(false))
+                .description("Number of bytes of PNG in a tier of the result cache")
+                .baseUnit("bytes")
+                .tag("tier", "memory")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.cache.size", this, cache -> cache.getSize(true))
+                .description("Number of bytes of PNG in a tier of the result cache")
+                .baseUnit("bytes")
+                .tag("tier", "disk")
+                .register(meterRegistry);
+        logger.info("Result cache: memory=" + this.memoryCapacity + " bytes, disk=" + this.diskCapacity + " bytes"
+                + (this.directory == null ? "" : " in " + this.directory));
+    }
+
+    private static void registerRequests(MeterRegistry meterRegistry, String result, String tier, AtomicLong count) {
+        FunctionCounter.builder("zigzag.cache.requests", count, AtomicLong::get)
+                .description("Number of lookups in the result cache")
+                .tag("result", result)
+                .tag("tier", tier)
+                .register(meterRegistry);
+    }
+
+    /**
+     * loadDirectory indexes the results left in the directory by a previous run, oldest first, and removes the
+     * files of writes that did not complete.
+     */
+    private void loadDirectory() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> listing = Files.list(directory)) {
+                listing.forEach(files::add);
+            }
+            files.sort(Comparator.comparingLong(ResultCache::lastModified));
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    if (!name.endsWith(".png")) throw new IllegalArgumentException("Not a cached result: " + name);
+                    long size = Files.size(file);
+                    synchronized (this) {
+                        disk.put(Key.ofFileName(name), size);
+                        diskBytes += size;
+                    }
+                } catch (IllegalArgumentException e) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            synchronized (this) {
+                evictDisk();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the result cache directory " + directory, e);
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if the cache has at least one tier.
+     */
+    public boolean isEnabled() {
+        return memoryCapacity > 0 || directory != null;
+    }
+
+    /**
+     * @return a new digest for the keys of the cache.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * key builds the key of the result of an input file.
+     * @param digest the digest of the input file, see newDigest
+     * @return the key of the result
+     */
+    public static Key key(MessageDigest digest, int mode, int windowSize, int percent, int whiteThreshold) {
+        return new Key(HexFormat.of().formatHex(digest.digest()), mode, windowSize, percent, whiteThreshold);
+    }
+
+    /**
+     * get looks a result up, first in memory then on disk. A result found on disk is moved to memory if it fits,
+     * otherwise it is copied to a temporary file owned by the caller.
+     * @param key the key of the result
+     * @param source the storage key of the input file
+     * @param location the storage (endpoint and bucket) the result would be uploaded to
+     * @return the cached result, with the key it was uploaded with to location if known, null if not cached
+     * @throws IOException if the result could not be read from disk
+     */
+    public BinarizedImage get(Key key, String source, String location) throws IOException {
+        Entry entry;
+        boolean onDisk;
+        synchronized (this) {
+            entry = memory.get(key);
+            onDisk = entry == null && disk.get(key) != null;
+        }
+        if (entry != null) {
+            memoryHits.incrementAndGet();
+            return BinarizedImage.cached(source, entry.png, null, entry.objectKeys.get(location));
+        }
+        if (onDisk) {
+            Path file = directory.resolve(key.fileName());
+            try {
+                if (Files.size(file) <= memoryCapacity / MAX_ENTRY_SHARE) {
+                    byte[] png = Files.readAllBytes(file);
+                    putInMemory(key, png);
+                    diskHits.incrementAndGet();
+                    return BinarizedImage.cached(source, png, null, null);
+                }
+                Path copy = Files.createTempFile("zigzag-cached-", ".png");
+                try {
+                    Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(copy);
+                    throw e;
+                }
+                diskHits.incrementAndGet();
+                return BinarizedImage.cached(source, null, copy, null);
+            } catch (NoSuchFileException e) {
+                // evicted in the meantime
+                synchronized (this) {
+                    Long size = disk.remove(key);
+                    if (size != null) diskBytes -= size;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * put stores a result that was just uploaded. For a result already in the cache, only the key of the uploaded
+     * object is recorded.
+     * @param key the key of the result
+     * @param png the PNG of the result
+     * @param location the storage (endpoint and bucket) the result was uploaded to
+     * @param objectKey the key of the uploaded object
+     * @throws IOException if the result could not be written to disk
+     */
+    public void put(Key key, byte[] png, String location, String objectKey) throws IOException {
+        Entry entry = putInMemory(key, png);
+        if (entry != null) entry.objectKeys.put(location, objectKey);
+        if (directory != null && png.length <= diskCapacity / MAX_ENTRY_SHARE && !isOnDisk(key)) {
+            Path temp = Files.createTempFile(directory, "put-", ".tmp");
+            try {
+                Files.write(temp, png);
+                putOnDisk(key, temp, png.length);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * put stores a result that was just uploaded from a file.
+     * @param key the key of the result
+     * @param pngFile the PNG file of the result, left in place
+     * @param location the storage (endpoint and bucket) the result was uploaded to
+     * @param objectKey the key of the uploaded object
+     * @throws IOException if the file could not be read or the result written to disk
+     */
+    public void put(Key key, Path pngFile, String location, String objectKey) throws IOException {
+        long size = Files.size(pngFile);
+        if (size <= memoryCapacity / MAX_ENTRY_SHARE) {
+            put(key, Files.readAllBytes(pngFile), location, objectKey);
+        } else if (directory != null && size <= diskCapacity / MAX_ENTRY_SHARE && !isOnDisk(key)) {
+            Path temp = Files.createTempFile(directory, "put-", ".tmp");
+            try {
+                Files.copy(pngFile, temp, StandardCopyOption.REPLACE_EXISTING);
+                putOnDisk(key, temp, size);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * recordReuse counts a cached result whose uploaded object was reused instead of being uploaded again.
+     */
+    public void recordReuse() {
+        reusedUploads.incrementAndGet();
+    }
+
+    private synchronized Entry putInMemory(Key key, byte[] png) {
+        if (png.length > memoryCapacity / MAX_ENTRY_SHARE) return null;
+        Entry entry = memory.get(key);
+        if (entry != null) return entry;
+        entry = new Entry(png);
+        memory.put(key, entry);
+        memoryBytes += png.length;
+        Iterator<Entry> eldest = memory.values().iterator();
+        while (memoryBytes > memoryCapacity) {
+            memoryBytes -= eldest.next().png.length;
+            eldest.remove();
+        }
+        return entry;
+    }
+
+    private synchronized boolean isOnDisk(Key key) {
+        return disk.containsKey(key);
+    }
+
+    private synchronized void putOnDisk(Key key, Path temp, long size) throws IOException {
+        if (disk.containsKey(key)) return;
+        Files.move(temp, directory.resolve(key.fileName()), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        disk.put(key, size);
+        diskBytes += size;
+        evictDisk();
+    }
+
+    private void evictDisk() throws IOException {
+        Iterator<Map.Entry<Key, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > diskCapacity) {
+            Map.Entry<Key, Long> evicted = eldest.next();
+            Files.deleteIfExists(directory.resolve(evicted.getKey().fileName()));
+            diskBytes -= evicted.getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return the ratio of the lookups that were hits, 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long hits = memoryHits.get() + diskHits.get();
+        long lookups = hits + misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public long getHits() {
+        return memoryHits.get() + diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @param onDisk true for the disk tier, false for the memory tier
+     * @return the number of bytes of PNG in the tier.
+     */
+    public synchronized long getSize(boolean onDisk) {
+        return onDisk ? diskBytes : memoryBytes;
+    }
+}
@@ -0,0 +1,328 @@
+package ch.heia.ZigZag.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * S3ClientPool keeps the S3 clients used by the StorageService so that they are reused across tasks instead of being
+ * built and closed for every image. Clients are cached by (endpoint, region, access key id, bucket), the cache is
+ * bounded and clients that have not been used for a while are closed.
+ * All the clients share one HTTP client (sync) and one async HTTP client (Netty or CRT), so connections to a given
+ * storage host are pooled and kept alive between tasks.
+ * The number of cached clients, the leases in use and the evictions are exported as zigzag.s3.clients,
+ * zigzag.s3.leases and zigzag.s3.evictions.
+ */
+@Service
+public class S3ClientPool {
+
+    private final Logger logger = LoggerFactory.getLogger(S3ClientPool.class);
+
+    /**
+     * ClientKey identifies the clients of one storage. The secret access key is part of the equality so that rotated
+     * credentials never reuse a stale client. The credentials are left out of toString() as they must not end up in
+     * the logs.
+     */
+    public record ClientKey(String endpointUrl, String regionName, String accessKeyId, String bucket,
+                            String secretAccessKey) {
+        @Override
+        public String toString() {
+            return "ClientKey[endpoint=" + endpointUrl + ", region=" + regionName + ", bucket=" + bucket + "]";
+        }
+    }
+
+    /**
+     * Lease gives access to a pooled client, it must be closed once the caller is done with the client so that the
+     * client can be closed if it was evicted in the meantime.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Entry entry;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public S3Client client() {
+            return entry.client;
+        }
+
+        public S3AsyncClient asyncClient() {
+            return entry.asyncClient();
+        }
+
+        @Override
+        public void close() {
+            entry.release();
+        }
+    }
+
+    private final class Entry {
+        private final ClientKey key;
+        private final S3Client client;
+        private volatile S3AsyncClient asyncClient;
+        private final AtomicInteger leases = new AtomicInteger();
+        private volatile long lastUsedNanos = System.nanoTime();
+        private volatile boolean evicted;
+
+        private Entry(ClientKey key) {
+            this.key = key;
+            this.client = S3Client.builder()
+                    .region(Region.of(key.regionName()))
+                    .endpointOverride(URI.create(key.endpointUrl()))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                    .credentialsProvider(credentials(key))
+                    .httpClient(httpClient)
+                    .build();
+        }
+
+        private S3AsyncClient asyncClient() {
+            S3AsyncClient result = asyncClient;
+            if (result == null) {
+                synchronized (this) {
+                    result = asyncClient;
+                    if (result == null) {
+                        result = S3AsyncClient.builder()
+                                .region(Region.of(key.regionName()))
+                                .endpointOverride(URI.create(key.endpointUrl()))
+                                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                                .credentialsProvider(credentials(key))
+                                .httpClient(asyncHttpClient())
+                                .build();
+                        asyncClient = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private boolean acquire() {
+            leases.incrementAndGet();
+            if (evicted) {
+                release();
+                return false;
+            }
+            lastUsedNanos = System.nanoTime();
+            return true;
+        }
+
+        private void release() {
+            lastUsedNanos = System.nanoTime();
+            if (leases.decrementAndGet() == 0 && evicted) closeClients();
+        }
+
+        private void evict() {
+            evicted = true;
+            if (leases.get() == 0) closeClients();
+        }
+
+        private synchronized void closeClients() {
+            client.close();
+            if (asyncClient != null) asyncClient.close();
+        }
+    }
+
+    private final int maxClients;
+    private final long idleNanos;
+    private final int maxConnections;
+    private final String asyncHttpClientType;
+    private final SdkHttpClient httpClient;
+    private volatile SdkAsyncHttpClient asyncHttpClient;
+    private final ConcurrentHashMap<ClientKey, Entry> clients = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final Counter evictions;
+
+    /**
+     * Creates a pool whose metrics are only kept in memory.
+     */
+    public S3ClientPool(int maxClients, int idleSeconds, int maxConnections, String asyncHttpClientType) {
+        this(maxClients, idleSeconds, maxConnections, asyncHttpClientType, new SimpleMeterRegistry());
+    }
+
+    /**
+     * @param maxClients the maximum number of cached clients
+     * @param idleSeconds the number of seconds after which an unused client is closed
+     * @param maxConnections the maximum number of pooled connections of the shared HTTP clients
+     * @param asyncHttpClientType the async HTTP client shared by the async clients, "netty" or "crt"
+     * @param meterRegistry the registry the state of the pool is exported to
+     */
+    @Autowired
+    public S3ClientPool(@Value("${S3MaxClients}") int maxClients,
+                        @Value("${S3ClientIdleSeconds}") int idleSeconds,
+                        @Value("${S3MaxConnections}") int maxConnections,
+                        @Value("${S3AsyncHttpClient}") String asyncHttpClientType,
+                        MeterRegistry meterRegistry) {
+        this.maxClients = Math.max(1, maxClients);
+        this.idleNanos = TimeUnit.SECONDS.toNanos(Math.max(1, idleSeconds));
+        this.maxConnections = Math.max(1, maxConnections);
+        this.asyncHttpClientType = asyncHttpClientType;
+        this.httpClient = ApacheHttpClient.builder()
+                .maxConnections(this.maxConnections)
+                .tcpKeepAlive(true)
+                .connectionMaxIdleTime(Duration.ofSeconds(Math.max(1, idleSeconds)))
+                .build();
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "s3-client-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleSeconds / 2);
+        evictor.scheduleAtFixedRate(this::evictIdleClients, period, period, TimeUnit.SECONDS);
+        Gauge.builder("zigzag.s3.clients", this, S3ClientPool::size)
+                .description("Number of cached S3 clients")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.s3.leases", this, S3ClientPool::getLeaseCount)
+                .description("Number of S3 clients in use")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("zigzag.s3.evictions")
+                .description("Number of S3 clients closed because they were idle or beyond the maximum")
+                .register(meterRegistry);
+    }
+
+    /**
+     * lease returns the client of the given storage, creating it if needed.
+     * @param endpointUrl The endpoint url of the S3 server
+     * @param regionName The region name of the S3 server
+     * @param accessKeyId The access key id of the S3 server
+     * @param secretAccessKey The secret access key of the S3 server
+     * @param bucket The bucket name on the S3 server
+     * @return a lease on the client, to be closed after use.
+     */
+    public Lease lease(String endpointUrl, String regionName, String accessKeyId, String secretAccessKey,
+                       String bucket) {
+        ClientKey key = new ClientKey(endpointUrl, regionName, accessKeyId, bucket, secretAccessKey);
+        while (true) {
+            Entry entry = clients.computeIfAbsent(key, k -> {
+                logger.info("Creating S3 client for " + k);
+                return new Entry(k);
+            });
+            if (entry.acquire()) {
+                if (clients.size() > maxClients) evictLeastRecentlyUsed();
+                return new Lease(entry);
+            }
+            // the entry was evicted between the lookup and the acquisition, try again with a fresh one
+            clients.remove(key, entry);
+        }
+    }
+
+    /**
+     * @return the number of cached clients.
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * @return the number of leases not closed yet, over all the cached clients.
+     */
+    public int getLeaseCount() {
+        int count = 0;
+        for (Entry entry : clients.values()) count += entry.leases.get();
+        return count;
+    }
+
+    /**
+     * evictIdleClients closes the clients that have not been used for longer than the idle time.
+     */
+    void evictIdleClients() {
+        long now = System.nanoTime();
+        for (Map.Entry<ClientKey, Entry> client : clients.entrySet()) {
+            Entry entry = client.getValue();
+            if (entry.leases.get() == 0 && now - entry.lastUsedNanos > idleNanos) evict(entry);
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        while (clients.size() > maxClients) {
+            Entry oldest = clients.values().stream()
+                    .filter(entry -> !entry.evicted)
+                    .min(Comparator.comparingLong(entry -> entry.lastUsedNanos))
+                    .orElse(null);
+            if (oldest == null) return;
+            evict(oldest);
+        }
+    }
+
+    private void evict(Entry entry) {
+        if (clients.remove(entry.key, entry)) {
+            logger.info("Closing S3 client for " + entry.key);
+            evictions.increment();
+            entry.evict();
+        }
+    }
+
+    private SdkAsyncHttpClient asyncHttpClient() {
+        SdkAsyncHttpClient result = asyncHttpClient;
+        if (result == null) {
+            synchronized (this) {
+                result = asyncHttpClient;
+                if (result == null) {
+                    result = createAsyncHttpClient();
+                    asyncHttpClient = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private SdkAsyncHttpClient createAsyncHttpClient() {
+        Duration idleTime = Duration.ofNanos(idleNanos);
+        if ("crt".equalsIgnoreCase(asyncHttpClientType)) {
+            logger.info("Using CRT async HTTP client for S3");
+            return AwsCrtAsyncHttpClient.builder()
+                    .maxConcurrency(maxConnections)
+                    .connectionMaxIdleTime(idleTime)
+                    .build();
+        }
+        if (!"netty".equalsIgnoreCase(asyncHttpClientType))
+            logger.warn("Unknown async HTTP client " + asyncHttpClientType + ", falling back to netty");
+        logger.info("Using Netty async HTTP client for S3");
+        return NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(maxConnections)
+                .connectionMaxIdleTime(idleTime)
+                .tcpKeepAlive(true)
+                .build();
+    }
+
+    private static StaticCredentialsProvider credentials(ClientKey key) {
+        return StaticCredentialsProvider.create(AwsBasicCredentials.create(key.accessKeyId(), key.secretAccessKey()));
+    }
+
+    /**
+     * close closes all the cached clients and the shared HTTP clients.
+     */
+    @PreDestroy
+    public void close() {
+        evictor.shutdownNow();
+        for (Entry entry : clients.values()) evict(entry);
+        httpClient.close();
+        if (asyncHttpClient != null) asyncHttpClient.close();
+    }
+}
@@ -0,0 +1,231 @@
+package ch.heia.ZigZag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * S3UploadOutputStream streams what is written to it to an S3 object, so an encoder can write its output directly
+ * into the PUT without materializing the whole file first.
+ * Data is buffered up to the part size: if the stream is closed before that, the object is sent with a single
+ * PutObject, otherwise a multipart upload is started and every full buffer is sent as a part while the encoder keeps
+ * writing. The number of parts in flight is bounded, so the memory used is at most a few part buffers.
+ * The buffers are direct buffers taken from the BufferPool, so the HTTP client sends them without copying them out of
+ * the heap, and they go back to the pool once sent.
+ */
+public class S3UploadOutputStream extends OutputStream {
+
+    /**
+     * MIN_PART_SIZE is the minimum size of a part (except the last one) accepted by S3.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final int MAX_PARTS_IN_FLIGHT = 2;
+
+    private final Logger logger = LoggerFactory.getLogger(S3UploadOutputStream.class);
+
+    private final S3ClientPool.Lease lease;
+    private final S3AsyncClient client;
+    private final String bucket;
+    private final String key;
+    private final String contentType;
+    private final int partSize;
+    private final BufferPool bufferPool;
+    private final Semaphore partsInFlight = new Semaphore(MAX_PARTS_IN_FLIGHT);
+    private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+    private ByteBuffer buffer;
+    private long size;
+    private String uploadId;
+    private boolean closed;
+    private boolean failed;
+
+    /**
+     * @param lease the lease on the client of the storage, closed with the stream
+     * @param bucket the bucket name on the S3 server
+     * @param key the key of the uploaded object
+     * @param contentType the content type of the uploaded object
+     * @param partSize the size above which a multipart upload is used, also the size of the parts
+     * @param bufferPool the pool of the buffers of the parts
+     */
+    S3UploadOutputStream(S3ClientPool.Lease lease, String bucket, String key, String contentType, int partSize,
+                         BufferPool bufferPool) {
+        this.lease = lease;
+        this.client = lease.asyncClient();
+        this.bucket = bucket;
+        this.key = key;
+        this.contentType = contentType;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.takeDirect(Math.min(this.partSize, 64 * 1024));
+    }
+
+    /**
+     * @return the key of the uploaded object.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the number of bytes written to the stream.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        buffer.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            ensureCapacity(1);
+            int count = Math.min(length, Math.min(buffer.remaining(), partSize - buffer.position()));
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    /**
+     * ensureCapacity makes room in the buffer: it grows the buffer up to the part size, then sends the full buffer
+     * as a part of the multipart upload.
+     */
+    private void ensureCapacity(int count) throws IOException {
+        if (closed) throw new IOException("Upload stream is closed");
+        int position = buffer.position();
+        if (position + count <= Math.min(buffer.capacity(), partSize)) return;
+        if (buffer.capacity() < partSize) {
+            ByteBuffer grown = bufferPool.takeDirect(Math.min(partSize, Math.max(buffer.capacity() * 2,
+                    position + count)));
+            grown.put(buffer.flip());
+            bufferPool.giveDirect(buffer);
+            buffer = grown;
+            return;
+        }
+        sendPart();
+    }
+
+    private void sendPart() throws IOException {
+        try {
+            if (uploadId == null) {
+                logger.info("Starting multipart upload of " + key);
+                uploadId = client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .contentType(contentType)
+                        .build()).get().uploadId();
+            }
+            partsInFlight.acquire();
+            int partNumber = parts.size() + 1;
+            ByteBuffer part = buffer.flip();
+            CompletableFuture<CompletedPart> completed = client.uploadPart(UploadPartRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .contentLength((long) part.remaining())
+                            .build(), AsyncRequestBody.fromByteBufferUnsafe(part))
+                    .thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build())
+                    .whenComplete((result, error) -> {
+                        bufferPool.giveDirect(part);
+                        partsInFlight.release();
+                    });
+            parts.add(completed);
+            // the buffer now belongs to the part being sent
+            buffer = bufferPool.takeDirect(partSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (ExecutionException | CompletionException e) {
+            failed = true;
+            throw new IOException("Could not start multipart upload of " + key, e.getCause());
+        }
+    }
+
+    /**
+     * close sends what is left in the buffer and waits for the object to be stored.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (failed) {
+                abort();
+                throw new IOException("Upload of " + key + " failed");
+            }
+            if (uploadId == null) {
+                ByteBuffer object = buffer.flip();
+                client.putObject(PutObjectRequest.builder()
+                                .bucket(bucket)
+                                .key(key)
+                                .contentType(contentType)
+                                .contentLength((long) object.remaining())
+                                .build(), AsyncRequestBody.fromByteBufferUnsafe(object))
+                        .get();
+                // the object is stored, its buffer can be used again
+                bufferPool.giveDirect(object);
+                return;
+            }
+            if (buffer.position() > 0) sendPart();
+            bufferPool.giveDirect(buffer);
+            List<CompletedPart> completedParts = new ArrayList<>();
+            for (CompletableFuture<CompletedPart> part : parts) completedParts.add(part.get());
+            client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build()).get();
+            logger.info("Completed multipart upload of " + key + " (" + parts.size() + " parts, " + size + " bytes)");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Could not upload " + key, e.getCause());
+        } finally {
+            buffer = null;
+            lease.close();
+        }
+    }
+
+    /**
+     * abort cancels the multipart upload (if any) so the storage drops the parts already sent.
+     */
+    private void abort() {
+        if (uploadId == null) return;
+        try {
+            client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Could not abort multipart upload of " + key + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,26 +1,138 @@
 package ch.heia.ZigZag.service;
-import java.net.URI;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
-import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.*;
 
 /**
  * StorageService handles image uploading and downloading from the storage server.
+ * The S3 clients are taken from the S3ClientPool so connections are reused between tasks.
+ * Besides the synchronous methods working on whole byte arrays, it offers a streaming path built on the async client:
+ * downloads are exposed as an InputStream fed by the HTTP response and uploads as an OutputStream sent while it is
+ * written, so images never need to be held as complete byte arrays.
  */
 @Service
 public class StorageService {
 
-    private final Logger logger = LoggerFactory.getLogger(TaskService.class);
+    private final Logger logger = LoggerFactory.getLogger(StorageService.class);
+
+    private final S3ClientPool clientPool;
+
+    /**
+     * partSize is the size above which uploads are sent as multipart uploads, and the size of their parts.
+     */
+    private final int partSize;
+
+    /**
+     * bufferPool gives the buffers of the upload streams.
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * Creates a service whose upload buffers are not pooled.
+     */
+    public StorageService(S3ClientPool clientPool, int partSize) {
+        this(clientPool, partSize, new BufferPool(0));
+    }
+
+    @Autowired
+    public StorageService(S3ClientPool clientPool, @Value("${S3PartSizeBytes}") int partSize, BufferPool bufferPool) {
+        this.clientPool = clientPool;
+        this.partSize = Math.max(S3UploadOutputStream.MIN_PART_SIZE, partSize);
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Opens a file of the storage service as a stream, the content is read from the network as the stream is consumed.
+     * @param key The requested file's key
+     * @param regionName The region name of the S3 server
+     * @param secretAccessKey The secret access key of the S3 server
+     * @param accessKeyId The access key id of the S3 server
+     * @param endpointUrl The endpoint url of the S3 server
+     * @param bucket The bucket name on the S3 server
+     * @return the content of the file, the stream must be closed by the caller.
+     */
+    public InputStream getFileStream(
+            String key,
+            String regionName,
+            String secretAccessKey,
+            String accessKeyId,
+            String endpointUrl,
+            String bucket
+    ) throws IOException {
+        logger.info("Requesting object stream from S3: " + key);
+        S3ClientPool.Lease lease = clientPool.lease(endpointUrl, regionName, accessKeyId, secretAccessKey, bucket);
+        try {
+            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build();
+            ResponseInputStream<GetObjectResponse> response = lease.asyncClient()
+                    .getObject(getObjectRequest, AsyncResponseTransformer.toBlockingInputStream())
+                    .get();
+            return new FilterInputStream(response) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) return;
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        lease.close();
+                    }
+                }
+            };
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lease.close();
+            throw new InterruptedIOException("Interrupted while getting " + key);
+        } catch (ExecutionException e) {
+            lease.close();
+            throw new IOException("Error getting file " + key + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Opens a stream uploading what is written to it as a new file of the storage service. The file is stored when
+     * the stream is closed, large files are sent as multipart uploads while they are written.
+     * @param fileExtensionWithDot The file extension (with the dot)
+     * @param contentType The content type of the file
+     * @param regionName The region name of the S3 server
+     * @param secretAccessKey The secret access key of the S3 server
+     * @param accessKeyId The access key id of the S3 server
+     * @param endpointUrl The endpoint url of the S3 server
+     * @param bucket The bucket name on the S3 server
+     * @return the upload stream, its getKey() gives the key of the stored file.
+     */
+    public S3UploadOutputStream openUploadStream(
+            String fileExtensionWithDot,
+            String contentType,
+            String regionName,
+            String secretAccessKey,
+            String accessKeyId,
+            String endpointUrl,
+            String bucket
+    ) {
+        String key = UUID.randomUUID() + fileExtensionWithDot;
+        S3ClientPool.Lease lease = clientPool.lease(endpointUrl, regionName, accessKeyId, secretAccessKey, bucket);
+        logger.info("Opening upload stream to s3:" + key);
+        return new S3UploadOutputStream(lease, bucket, key, contentType, partSize, bufferPool);
+    }
 
     /**
      * Uploads a file to the storage service.
@@ -43,15 +155,8 @@ public class StorageService {
     ) {
         String key = UUID.randomUUID() + fileExtensionWithDot;
 
-        AwsBasicCredentials credentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
-
-        S3Configuration conf = S3Configuration.builder().pathStyleAccessEnabled(true).build();
-        try (S3Client s3Client = S3Client.builder()
-                .region(Region.of(regionName))
-                .endpointOverride(URI.create(endpointUrl))
-                .serviceConfiguration(conf)
-                .credentialsProvider(StaticCredentialsProvider.create(credentials))
-                .build()) {
+        try (S3ClientPool.Lease lease = clientPool.lease(endpointUrl, regionName, accessKeyId, secretAccessKey,
+                bucket)) {
 
             PutObjectRequest putObjectRequest = PutObjectRequest.builder()
                     .bucket(bucket)
@@ -59,7 +164,7 @@ public class StorageService {
                     .build();
 
             logger.info("About to request to put file on s3:" + key);
-            s3Client.putObject(putObjectRequest, RequestBody.fromByteBuffer(ByteBuffer.wrap(uploadFile)));
+            lease.client().putObject(putObjectRequest, RequestBody.fromByteBuffer(ByteBuffer.wrap(uploadFile)));
         } catch (Exception e) {
             logger.error("Error uploading file: " + e.getMessage());
             return null;
@@ -67,6 +172,39 @@ public class StorageService {
         return key;
     }
 
+    /**
+     * Tells if a file exists in the storage service.
+     * @param key The file's key
+     * @param regionName The region name of the S3 server
+     * @param secretAccessKey The secret access key of the S3 server
+     * @param accessKeyId The access key id of the S3 server
+     * @param endpointUrl The endpoint url of the S3 server
+     * @param bucket The bucket name on the S3 server
+     * @return true if the file exists, false if it does not or could not be checked.
+     */
+    public boolean exists(
+            String key,
+            String regionName,
+            String secretAccessKey,
+            String accessKeyId,
+            String endpointUrl,
+            String bucket
+    ) {
+        try (S3ClientPool.Lease lease = clientPool.lease(endpointUrl, regionName, accessKeyId, secretAccessKey,
+                bucket)) {
+            lease.client().headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        } catch (Exception e) {
+            logger.error("Error checking file " + key + ": " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Downloads a file from the storage service.
      * @param key The requested file's key
@@ -85,18 +223,10 @@ public class StorageService {
             String bucket
     ) {
 
-        AwsBasicCredentials credentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
-
-        logger.info("getFile called with parameters: key=" + key + "\n, regionName=" + regionName + "\n secretAccessKey=" + secretAccessKey +
-                "\n accessKeyId=" + accessKeyId + "\n endpointUrl=" + endpointUrl + "\n bucket=" + bucket);
-        S3Configuration conf = S3Configuration.builder().pathStyleAccessEnabled(true).build();
-        logger.info("actual endpoint used :" + URI.create(endpointUrl));
-        try (S3Client s3Client = S3Client.builder()
-                .region(Region.of(regionName))
-                .endpointOverride(URI.create(endpointUrl))
-                .serviceConfiguration(conf)
-                .credentialsProvider(() -> credentials)
-                .build()) {
+        logger.info("getFile called with parameters: key=" + key + ", regionName=" + regionName +
+                ", endpointUrl=" + endpointUrl + ", bucket=" + bucket);
+        try (S3ClientPool.Lease lease = clientPool.lease(endpointUrl, regionName, accessKeyId, secretAccessKey,
+                bucket)) {
 
             GetObjectRequest getObjectRequest = GetObjectRequest.builder()
                     .bucket(bucket)
@@ -104,7 +234,7 @@ public class StorageService {
                     .build();
 
             logger.info("Requesting object from S3: " + key);
-            ResponseBytes<GetObjectResponse> responseBytes = s3Client.getObjectAsBytes(getObjectRequest);
+            ResponseBytes<GetObjectResponse> responseBytes = lease.client().getObjectAsBytes(getObjectRequest);
 
             return responseBytes.asByteArray();
         } catch (Exception ex) {
@@ -0,0 +1,358 @@
+package ch.heia.ZigZag.service;
+
+import sugarcube.zigzag.ImageBinarizer;
+import sugarcube.zigzag.util.ImageUtil;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * StripBinarizer binarizes images too large to be decoded at once. The image is read through its ImageReader in
+ * horizontal strips (source regions), binarized strip by strip and written to a PngStreamWriter as the rows are done,
+ * so memory grows with the strip size instead of the page size.
+ * The binarization is the one of ZigZagFilter, step by step, for the modes BINARY to GRAY_LEVEL (COLOR needs the whole
+ * color image):
+ * 1. a pixel is background when it is not darker than the mean of its window, or whiter than the white threshold,
+ * 2. the foreground is the pixel divided by the mean of the background pixels of its window,
+ * 3. the foreground is thresholded at 250, or at its Otsu threshold if lower (binary modes), the output is upsampled
+ * twice before thresholding and decimated back except in BINARY mode.
+ * Each step only looks at the window around a pixel, so strips overlap by twice the window size on each side and the
+ * result is the same as the one of the whole image, pixel for pixel. The Otsu threshold is computed on the foreground of
+ * the whole image: in binary modes the foreground is computed first and spooled to a temporary file (one byte per
+ * pixel), then thresholded in a second pass.
+ * ImageIO readers decode an image from its start for every source region, strips should then be as large as the
+ * memory allows. A StripBinarizer keeps its buffers from one strip to the next, it must not be shared between threads.
+ */
+public class StripBinarizer {
+
+    private static final int THRESHOLD = 250;
+
+    private final int mode;
+    private final int half;
+    private final int size;
+    private final int percent;
+    private final int whiteThreshold;
+    private final int stripPixels;
+
+    private int width;
+    private int height;
+    private int[] columnStarts;
+    private int[] columnEnds;
+
+    private byte[] gray = new byte[0];
+    private int grayFrom;
+    private int grayTo;
+    private int[] integral = new int[0];
+    private byte[] background = new byte[0];
+    private int[] backgroundSums = new int[0];
+    private int[] backgroundCounts = new int[0];
+    private byte[] foreground = new byte[0];
+
+    /**
+     * @param mode the zigzag mode, BINARY to GRAY_LEVEL
+     * @param windowSize the size of the window
+     * @param percent the percentage of the local mean used as threshold
+     * @param whiteThreshold the historical white threshold
+     * @param stripPixels the number of pixels of a strip, the strips are at least four windows high
+     */
+    public StripBinarizer(int mode, int windowSize, int percent, int whiteThreshold, int stripPixels) {
+        if (mode < ImageBinarizer.MODE_BINARY || mode > ImageBinarizer.MODE_GRAY_LEVEL)
+            throw new IllegalArgumentException("Mode " + mode + " can not be binarized in strips");
+        this.mode = mode;
+        this.half = windowSize / 2;
+        this.size = 2 * half + 1;
+        this.percent = percent;
+        this.whiteThreshold = whiteThreshold;
+        this.stripPixels = stripPixels;
+    }
+
+    /**
+     * binarize reads the image of the reader strip by strip and writes the binarized image as PNG, 1-bit for the
+     * black and white modes and 8-bit otherwise.
+     * @param reader the reader of the image, its input must be seekable (a file or a cached stream)
+     * @param output the stream the PNG is written to, left open
+     * @throws IOException if the image could not be read or the PNG written
+     * @throws IllegalArgumentException if the image is not larger than the window
+     */
+    public void binarize(ImageReader reader, OutputStream output) throws IOException {
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        if (width <= size || height <= size)
+            throw new IllegalArgumentException("Image of " + width + "x" + height + " smaller than the window");
+        columnStarts = new int[width];
+        columnEnds = new int[width];
+        for (int x = 0; x < width; x++) {
+            int[] window = window(x, width);
+            columnStarts[x] = window[0];
+            columnEnds[x] = window[1];
+        }
+        grayFrom = 0;
+        grayTo = 0;
+
+        int stripRows = Math.max(4 * size, stripPixels / width);
+        boolean upsampled = mode == ImageBinarizer.MODE_BINARY_UPSAMPLED;
+        PngStreamWriter png = new PngStreamWriter(output, upsampled ? 2 * width : width,
+                upsampled ? 2 * height : height, BinarizationService.isBinaryOutput(mode));
+        // the upsampling interpolates between rows, one more row on each side is enough
+        int margin = mode == ImageBinarizer.MODE_BINARY ? 0 : 2;
+
+        if (mode == ImageBinarizer.MODE_GRAY_LEVEL) {
+            for (int y = 0; y < height; y += stripRows) {
+                int end = Math.min(height, y + stripRows);
+                int from = Math.max(0, y - margin);
+                int to = Math.min(height, end + margin);
+                computeForeground(reader, from, to);
+                writeRows(png, foreground, from, to, y, end, THRESHOLD);
+            }
+        } else {
+            Path spool = Files.createTempFile("zigzag-foreground-", ".raw");
+            try (RandomAccessFile file = new RandomAccessFile(spool.toFile(), "rw")) {
+                int[] histogram = new int[256];
+                for (int y = 0; y < height; y += stripRows) {
+                    int end = Math.min(height, y + stripRows);
+                    computeForeground(reader, y, end);
+                    addToHistogram(histogram, y, end);
+                    file.write(foreground, 0, (end - y) * width);
+                }
+                int threshold = Math.min(THRESHOLD, ImageUtil.computeOtsuThreshold(histogram));
+                releaseBuffers();
+
+                byte[] rows = new byte[Math.min(height, stripRows + 2 * margin) * width];
+                for (int y = 0; y < height; y += stripRows) {
+                    int end = Math.min(height, y + stripRows);
+                    int from = Math.max(0, y - margin);
+                    int to = Math.min(height, end + margin);
+                    file.seek((long) from * width);
+                    file.readFully(rows, 0, (to - from) * width);
+                    writeRows(png, rows, from, to, y, end, threshold);
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+        png.finish();
+        releaseBuffers();
+    }
+
+    /**
+     * window returns the window around a row (or column) as the ZigZag filter clamps it at the borders of the image:
+     * the window covers the rows after the first returned value up to the second one, included.
+     */
+    private int[] window(int y, int length) {
+        int start = y - half - 1;
+        int end = y + half;
+        if (start < 0) {
+            start = 0;
+            end = size;
+        } else if (end >= length) {
+            end = length - 1;
+            start = end - size;
+        }
+        return new int[]{start, end};
+    }
+
+    /**
+     * computeForeground computes the normalized foreground (step 2) of the rows from (included) to to (excluded) in
+     * the foreground buffer, reading the gray rows it needs from the image.
+     */
+    private void computeForeground(ImageReader reader, int from, int to) throws IOException {
+        int backgroundFrom = Math.max(0, from - size);
+        int backgroundTo = Math.min(height, to + size);
+        readGrayRows(reader, Math.max(0, from - 2 * size), Math.min(height, to + 2 * size));
+
+        // step 1: background pixels, from the integral image of the gray rows
+        int columns = width + 1;
+        integral = sumRows(integral, gray, null, grayFrom, grayTo);
+        background = ensure(background, (backgroundTo - backgroundFrom) * width);
+        int area = 100 * size * size;
+        for (int y = backgroundFrom; y < backgroundTo; y++) {
+            int[] window = window(y, height);
+            int top = (window[0] + 1 - grayFrom) * columns;
+            int bottom = (window[1] + 1 - grayFrom) * columns;
+            int row = (y - grayFrom) * width;
+            int out = (y - backgroundFrom) * width;
+            for (int x = 0; x < width; x++) {
+                int left = columnStarts[x] + 1;
+                int right = columnEnds[x] + 1;
+                int threshold = percent * (integral[bottom + right] - integral[top + right]
+                        - integral[bottom + left] + integral[top + left]) / area;
+                int value = gray[row + x] & 0xFF;
+                if (value > whiteThreshold) value = 0;
+                background[out + x] = (byte) (value > 0 && value >= threshold ? 1 : 0);
+            }
+        }
+
+        // step 2: foreground, from the integral images of the background pixels and of their gray levels
+        backgroundSums = sumRows(backgroundSums, gray, background, backgroundFrom, backgroundTo);
+        backgroundCounts = sumRows(backgroundCounts, null, background, backgroundFrom, backgroundTo);
+        foreground = ensure(foreground, (to - from) * width);
+        for (int y = from; y < to; y++) {
+            int[] window = window(y, height);
+            int top = (window[0] + 1 - backgroundFrom) * columns;
+            int bottom = (window[1] + 1 - backgroundFrom) * columns;
+            int row = (y - grayFrom) * width;
+            int out = (y - from) * width;
+            for (int x = 0; x < width; x++) {
+                int left = columnStarts[x] + 1;
+                int right = columnEnds[x] + 1;
+                int count = backgroundCounts[bottom + right] - backgroundCounts[top + right]
+                        - backgroundCounts[bottom + left] + backgroundCounts[top + left];
+                int mean = count == 0 ? 0 : (backgroundSums[bottom + right] - backgroundSums[top + right]
+                        - backgroundSums[bottom + left] + backgroundSums[top + left]) / count;
+                int value = gray[row + x] & 0xFF;
+                foreground[out + x] = (byte) (value >= mean ? 255 : value * 256 / mean);
+            }
+        }
+    }
+
+    /**
+     * sumRows computes the integral image of the rows from (included) to to (excluded), with a first row and column
+     * of zeros: the gray levels of the pixels, only the ones of the mask if there is one, or the number of pixels of
+     * the mask if there are no gray levels.
+     */
+    private int[] sumRows(int[] sums, byte[] levels, byte[] mask, int from, int to) {
+        int columns = width + 1;
+        sums = ensure(sums, (to - from + 1) * columns);
+        Arrays.fill(sums, 0, columns, 0);
+        for (int y = from; y < to; y++) {
+            int levelRow = (y - grayFrom) * width;
+            int maskRow = (y - from) * width;
+            int previous = (y - from) * columns;
+            int current = previous + columns;
+            int rowSum = 0;
+            sums[current] = 0;
+            for (int x = 0; x < width; x++) {
+                if (mask == null || mask[maskRow + x] != 0)
+                    rowSum += levels == null ? 1 : levels[levelRow + x] & 0xFF;
+                sums[current + x + 1] = sums[previous + x + 1] + rowSum;
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * readGrayRows makes the gray rows from (included) to to (excluded) available in the gray buffer, keeping the rows
+     * already read and decoding the next ones. Strips only move down the image, so rows above from are dropped.
+     */
+    private void readGrayRows(ImageReader reader, int from, int to) throws IOException {
+        int kept = Math.max(0, grayTo - Math.max(from, grayFrom));
+        if (kept > 0 && from > grayFrom)
+            System.arraycopy(gray, (from - grayFrom) * width, gray, 0, kept * width);
+        if (kept == 0) grayTo = from;
+        grayFrom = from;
+        gray = ensureKeeping(gray, kept * width, (to - from) * width);
+        if (to <= grayTo) return;
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, grayTo, width, to - grayTo));
+        BufferedImage strip = reader.read(0, param);
+        if (strip.getType() != BufferedImage.TYPE_BYTE_GRAY)
+            strip = ImageUtil.convertToGrayLevel(strip, null);
+        Raster raster = strip.getRaster();
+        byte[] row = new byte[width];
+        for (int y = 0; y < to - grayTo; y++) {
+            raster.getDataElements(0, y, width, 1, row);
+            System.arraycopy(row, 0, gray, (grayTo - grayFrom + y) * width, width);
+        }
+        grayTo = to;
+    }
+
+    private void addToHistogram(int[] histogram, int from, int to) {
+        // the Otsu threshold of the filter leaves out 10% of the image on each side
+        int top = height * 10 / 100;
+        int left = width * 10 / 100;
+        for (int y = Math.max(from, top); y < Math.min(to, height - top); y++) {
+            int row = (y - from) * width;
+            for (int x = left; x < width - left; x++)
+                histogram[foreground[row + x] & 0xFF]++;
+        }
+    }
+
+    /**
+     * writeRows thresholds the foreground rows first (included) to end (excluded) and writes them to the PNG.
+     * @param rows the foreground rows from (included) to to (excluded), with the rows around the written ones that
+     *             the upsampling needs
+     */
+    private void writeRows(PngStreamWriter png, byte[] rows, int from, int to, int first, int end, int threshold)
+            throws IOException {
+        if (mode == ImageBinarizer.MODE_BINARY) {
+            byte[] row = new byte[width];
+            for (int y = first; y < end; y++) {
+                int offset = (y - from) * width;
+                for (int x = 0; x < width; x++)
+                    row[x] = (byte) ((rows[offset + x] & 0xFF) < threshold ? 0 : 255);
+                png.writeRow(row, 0);
+            }
+            return;
+        }
+
+        BufferedImage strip = new BufferedImage(width, to - from, BufferedImage.TYPE_BYTE_GRAY);
+        System.arraycopy(rows, 0, ((DataBufferByte) strip.getRaster().getDataBuffer()).getData(), 0,
+                (to - from) * width);
+        BufferedImage upsampled = ImageUtil.scaleImage(strip, 2.0, false, null);
+        byte[] up = ((DataBufferByte) upsampled.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < up.length; i++) {
+            int value = up[i] & 0xFF;
+            up[i] = (byte) (value < threshold ? (mode == ImageBinarizer.MODE_GRAY_LEVEL ? value : 0) : 255);
+        }
+        int upWidth = 2 * width;
+        if (mode == ImageBinarizer.MODE_BINARY_UPSAMPLED) {
+            for (int y = 2 * (first - from); y < 2 * (end - from); y++)
+                png.writeRow(up, y * upWidth);
+            return;
+        }
+
+        // decimation: mean of the 3x3 upsampled pixels around the pixel, moved inside at the borders
+        byte[] row = new byte[width];
+        for (int y = first; y < end; y++) {
+            int top = y == 0 ? 0 : y == height - 1 ? 2 * y - 2 : 2 * y - 1;
+            int offset = (top - 2 * from) * upWidth;
+            for (int x = 0; x < width; x++) {
+                int left = x == 0 ? 0 : x == width - 1 ? 2 * x - 2 : 2 * x - 1;
+                int sum = 0;
+                for (int dy = 0; dy < 3; dy++) {
+                    int index = offset + dy * upWidth + left;
+                    sum += (up[index] & 0xFF) + (up[index + 1] & 0xFF) + (up[index + 2] & 0xFF);
+                }
+                row[x] = (byte) (sum / 9);
+            }
+            png.writeRow(row, 0);
+        }
+    }
+
+    private void releaseBuffers() {
+        gray = new byte[0];
+        grayFrom = 0;
+        grayTo = 0;
+        integral = new int[0];
+        background = new byte[0];
+        backgroundSums = new int[0];
+        backgroundCounts = new int[0];
+        foreground = new byte[0];
+    }
+
+    private static int[] ensure(int[] array, int length) {
+        return array.length >= length ? array : new int[length];
+    }
+
+    private static byte[] ensure(byte[] array, int length) {
+        return array.length >= length ? array : new byte[length];
+    }
+
+    private static byte[] ensureKeeping(byte[] array, int kept, int length) {
+        if (array.length >= length) return array;
+        byte[] larger = new byte[length];
+        System.arraycopy(array, 0, larger, 0, kept);
+        return larger;
+    }
+}
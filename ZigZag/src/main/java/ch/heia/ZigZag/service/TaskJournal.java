@@ -0,0 +1,401 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.OutputFormat;
+import ch.heia.ZigZag.tasks.ServiceTaskBase;
+import ch.heia.ZigZag.tasks.ServiceTaskTask;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskJournal keeps the tasks of the service on disk so that they survive a restart: the arrival of each task, the
+ * result of each saved page and the end of the task (finished or failed) are appended to a journal file in
+ * TaskJournalDirectory. At startup the journal is replayed: the tasks that were not ended are resumed, without their
+ * pages already saved, which are neither downloaded nor binarized again.
+ * Appending only queues the record, a writer thread writes the queued records in batches and forces each batch to
+ * disk (group commit), so the pipeline never waits for the disk and thousands of records per second cost a few
+ * fsyncs. A record is durable once its batch is forced, a crash may lose the last batch, and at worst a page is
+ * processed again.
+ * The journal is compacted when it grows beyond TaskJournalCompactBytes: it is rewritten with the records of the tasks
+ * not ended only. A partial last line (crash in the middle of a write) is ignored by the replay.
+ * The journal holds the storage credentials of the tasks, so it is kept in a tasks subdirectory of
+ * TaskJournalDirectory that the service creates for itself: on POSIX file systems the subdirectory is created
+ * rwx------ and the files rw-------, and the journal refuses to start if the subdirectory already exists readable by
+ * the group or the others. TaskJournalDirectory itself may be shared, e.g. the root of a mounted volume.
+ * An empty TaskJournalDirectory disables the journal.
+ */
+@Service
+public class TaskJournal {
+
+    private final Logger logger = LoggerFactory.getLogger(TaskJournal.class);
+
+    static final String SUBDIRECTORY = "tasks";
+
+    static final String FILE_NAME = "tasks.journal";
+
+    private static final JSONObject STOP = new JSONObject();
+
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+    /**
+     * Recovered is a task found in the journal at startup, with the results of its pages already saved.
+     * @param task the task
+     * @param savedResults the storage keys of the saved results, by storage key of their image
+     */
+    public record Recovered(ServiceTaskBase task, Map<String, String> savedResults) {
+    }
+
+    /**
+     * LiveTask holds the records of a task not ended, they are kept by the compaction.
+     */
+    private static final class LiveTask {
+        private final JSONObject arrival;
+        private final List<JSONObject> pages = new ArrayList<>();
+
+        private LiveTask(JSONObject arrival) {
+            this.arrival = arrival;
+        }
+    }
+
+    private final Path file;
+    private final long compactBytes;
+    private final LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * live contains the tasks not ended, by uuid, in arrival order. Only used by the writer thread once started.
+     */
+    private final Map<String, LiveTask> live = new LinkedHashMap<>();
+    private final List<Recovered> recovered = new ArrayList<>();
+    private final Counter appended;
+    private final Timer syncs;
+    private final Counter compactions;
+    private FileChannel channel;
+    private long size;
+    private long nextCompaction;
+    private Thread writer;
+
+    /**
+     * @param directory the directory of the journal, empty to disable it
+     * @param compactBytes the size of the journal above which it is compacted
+     */
+    @Autowired
+    public TaskJournal(@Value("${TaskJournalDirectory}") String directory,
+                       @Value("${TaskJournalCompactBytes}") long compactBytes,
+                       MeterRegistry meterRegistry) {
+        this.file = directory == null || directory.isBlank() ? null
+                : Path.of(directory).resolve(SUBDIRECTORY).resolve(FILE_NAME);
+        this.compactBytes = Math.max(1, compactBytes);
+        this.appended = Counter.builder("zigzag.journal.records")
+                .description("Records appended to the task journal")
+                .register(meterRegistry);
+        this.syncs = Timer.builder("zigzag.journal.sync")
+                .description("Time to write and force a batch of records of the task journal")
+                .register(meterRegistry);
+        this.compactions = Counter.builder("zigzag.journal.compactions")
+                .description("Compactions of the task journal")
+                .register(meterRegistry);
+        if (file == null) return;
+        try {
+            createDirectory(file.getParent());
+            replay();
+            compact();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the task journal " + file, e);
+        }
+        writer = new Thread(this::write, "task-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * createDirectory creates the subdirectory of the journal private to the service, or checks that an existing one
+     * is. The parent directories are created with the default permissions.
+     * @throws IllegalStateException if the existing subdirectory is readable by the group or the others
+     */
+    private static void createDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory.getParent());
+        if (!POSIX) {
+            Files.createDirectories(directory);
+            return;
+        }
+        if (!Files.exists(directory)) {
+            Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(DIRECTORY_PERMISSIONS));
+            return;
+        }
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+        if (permissions.contains(PosixFilePermission.GROUP_READ)
+                || permissions.contains(PosixFilePermission.OTHERS_READ))
+            throw new IllegalStateException("The task journal directory " + directory + " is readable by others ("
+                    + PosixFilePermissions.toString(permissions) + "), it holds storage credentials");
+    }
+
+    /**
+     * @return the attributes the files of the journal are created with, none if the file system is not POSIX.
+     */
+    private static FileAttribute<?>[] fileAttributes() {
+        return POSIX ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(FILE_PERMISSIONS)}
+                : new FileAttribute<?>[0];
+    }
+
+    /**
+     * @return true if the tasks are journaled.
+     */
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * takeRecovered returns the tasks to resume, found in the journal at startup, once.
+     * @return the tasks, in arrival order.
+     */
+    public synchronized List<Recovered> takeRecovered() {
+        List<Recovered> tasks = new ArrayList<>(recovered);
+        recovered.clear();
+        return tasks;
+    }
+
+    /**
+     * recordArrival journals a new task.
+     * @param task the task
+     */
+    public void recordArrival(ServiceTaskBase task) {
+        if (file != null) append(new JSONObject().put("type", "arrival").put("payload", toJson(task)));
+    }
+
+    /**
+     * recordPage journals the result of a page.
+     * @param task the task of the page
+     * @param image the storage key of the image of the page
+     * @param objectKey the storage key of the result
+     */
+    public void recordPage(ServiceTaskBase task, String image, String objectKey) {
+        if (file != null) append(new JSONObject().put("type", "page").put("id", task.getTask().getId().toString())
+                .put("image", image).put("result", objectKey));
+    }
+
+    /**
+     * recordEnd journals the end of a task (finished or failed), it is not resumed after a restart.
+     * @param task the task
+     */
+    public void recordEnd(ServiceTaskBase task) {
+        if (file != null) append(new JSONObject().put("type", "end").put("id", task.getTask().getId().toString())
+                .put("status", task.getTask().getStatus().getValue()));
+    }
+
+    private void append(JSONObject record) {
+        queue.add(record);
+    }
+
+    /**
+     * write is the loop of the writer thread: it takes all the queued records, writes and forces them at once.
+     */
+    private void write() {
+        List<JSONObject> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            boolean stop = batch.remove(STOP);
+            try {
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    if (size >= nextCompaction) compact();
+                }
+            } catch (IOException e) {
+                logger.error("Could not write the task journal: " + e.getMessage());
+            }
+            batch.clear();
+            if (stop) return;
+        }
+    }
+
+    private void writeBatch(List<JSONObject> batch) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (JSONObject record : batch) {
+            apply(record);
+            bytes.write((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) size += channel.write(buffer);
+        channel.force(false);
+        syncs.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        appended.increment(batch.size());
+    }
+
+    /**
+     * apply updates the live tasks with a record.
+     */
+    private void apply(JSONObject record) {
+        switch (record.getString("type")) {
+            case "arrival" -> {
+                JSONObject payload = record.getJSONObject("payload");
+                live.put(payload.getJSONObject("task").getString("id"), new LiveTask(record));
+            }
+            case "page" -> {
+                LiveTask task = live.get(record.getString("id"));
+                if (task != null) task.pages.add(record);
+            }
+            case "end" -> live.remove(record.getString("id"));
+            default -> logger.warn("Unknown task journal record " + record.getString("type"));
+        }
+    }
+
+    /**
+     * replay reads the journal at startup and collects the tasks to resume.
+     */
+    private void replay() throws IOException {
+        if (!Files.exists(file)) return;
+        int records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    apply(new JSONObject(line));
+                    records++;
+                } catch (JSONException e) {
+                    logger.warn("Ignoring the truncated end of the task journal");
+                    break;
+                }
+            }
+        }
+        for (LiveTask task : live.values()) {
+            Map<String, String> savedResults = new LinkedHashMap<>();
+            for (JSONObject page : task.pages) savedResults.put(page.getString("image"), page.getString("result"));
+            recovered.add(new Recovered(fromJson(task.arrival.getJSONObject("payload")), savedResults));
+        }
+        logger.info("Task journal replayed: " + records + " records, " + recovered.size() + " tasks to resume");
+    }
+
+    /**
+     * compact rewrites the journal with the records of the live tasks only, and reopens it for appending. The
+     * rewritten journal is created private to the service, whatever the permissions of the journal it replaces.
+     */
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(FILE_NAME + ".compact");
+        Files.deleteIfExists(temp);
+        try (FileChannel out = FileChannel.open(temp, Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                fileAttributes())) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (LiveTask task : live.values()) {
+                bytes.write((task.arrival.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                for (JSONObject page : task.pages)
+                    bytes.write((page.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        if (channel != null) channel.close();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        // a journal of live tasks only larger than the threshold is not compacted again until it doubles
+        nextCompaction = Math.max(compactBytes, 2 * size);
+        compactions.increment();
+    }
+
+    /**
+     * @return the task as a compute payload.
+     */
+    static JSONObject toJson(ServiceTaskBase task) {
+        ServiceTaskTask details = task.getTask();
+        JSONObject json = new JSONObject()
+                .put("id", details.getId().toString())
+                .put("status", ServiceTaskBase.TaskStatus.PENDING.getValue())
+                .put("service_id", details.getServiceId() == null ? JSONObject.NULL : details.getServiceId().toString())
+                .put("pipeline_execution_id", details.getPipelineExecutionID() == null ? JSONObject.NULL
+                        : details.getPipelineExecutionID().toString())
+                .put("data_in", new JSONArray(details.getDataIn()));
+        return new JSONObject()
+                .put("task", json)
+                .put("s3_access_key_id", task.getS3AccessKeyId())
+                .put("s3_secret_access_key", task.getS3SecretAccessKey())
+                .put("s3_region", task.getS3Region())
+                .put("s3_host", task.getS3Host())
+                .put("s3_bucket", task.getS3Bucket())
+                .put("callback_url", task.getCallbackUrl())
+                .put("priority", task.getPriority())
+                .put("format", task.getOutputFormat().getValue())
+                .put("engine", task.getEngine() == null ? null : task.getEngine().getValue());
+    }
+
+    /**
+     * @return the task of a compute payload written by toJson, pending.
+     */
+    static ServiceTaskBase fromJson(JSONObject json) {
+        JSONObject details = json.getJSONObject("task");
+        ServiceTaskTask task = new ServiceTaskTask(UUID.fromString(details.getString("id")),
+                ServiceTaskBase.TaskStatus.PENDING,
+                details.isNull("service_id") ? null : UUID.fromString(details.getString("service_id")),
+                details.isNull("pipeline_execution_id") ? null
+                        : UUID.fromString(details.getString("pipeline_execution_id")));
+        JSONArray dataIn = details.getJSONArray("data_in");
+        for (int i = 0; i < dataIn.length(); i++) task.getDataIn().add(dataIn.getString(i));
+        ServiceTaskBase base = new ServiceTaskBase(json.getString("s3_access_key_id"),
+                json.getString("s3_secret_access_key"), json.getString("s3_region"), json.getString("s3_host"),
+                json.getString("s3_bucket"), task, json.getString("callback_url"));
+        base.setPriority(json.optInt("priority", 0));
+        base.setOutputFormat(OutputFormat.of(json.optString("format", null)));
+        base.setEngine(BinarizationEngine.of(json.optString("engine", null)));
+        return base;
+    }
+
+    /**
+     * close writes the records still queued and closes the journal.
+     */
+    @PreDestroy
+    public void close() {
+        if (writer == null) return;
+        queue.add(STOP);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Could not close the task journal: " + e.getMessage());
+        }
+        writer = null;
+    }
+}
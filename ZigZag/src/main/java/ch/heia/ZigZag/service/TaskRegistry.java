@@ -0,0 +1,273 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.ServiceTaskBase;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * TaskRegistry knows every task of the service by its uuid: the active ones (queued or in the pipeline) and, for a
+ * while, the finished and failed ones, so the core engine can still poll their status. Lookups are a read of a
+ * ConcurrentHashMap, without locks, whatever the number of tasks.
+ * A finished or failed task is retired: it is kept for TaskRetentionSeconds, and at most TaskRetentionMax retired tasks
+ * are kept, the oldest ones are forgotten first.
+ * The status changes of the tasks (transitions) are published to the listeners by a publisher thread. Publishing only
+ * offers the transition to a bounded queue, so a slow listener never blocks the pipeline: when the queue is full the
+ * transition is dropped and counted in zigzag.tasks.transitions.dropped.
+ */
+@Service
+public class TaskRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(TaskRegistry.class);
+
+    private static final int TRANSITION_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Transition is a status change of a task.
+     * @param task the task
+     * @param status the new status
+     * @param timestamp the time of the change, in milliseconds since the epoch
+     */
+    public record Transition(ServiceTaskBase task, ServiceTaskBase.TaskStatus status, long timestamp) {
+    }
+
+    /**
+     * Entry is a registered task, with the time it was retired at (0 while active).
+     */
+    private static final class Entry {
+        private final ServiceTaskBase task;
+        private volatile long retiredAt;
+
+        private Entry(ServiceTaskBase task) {
+            this.task = task;
+        }
+
+        private boolean isRetired() {
+            return retiredAt != 0;
+        }
+    }
+
+    private final long retentionNanos;
+    private final int maxRetained;
+    private final LongSupplier nanoClock;
+    private final ConcurrentHashMap<UUID, Entry> tasks = new ConcurrentHashMap<>();
+
+    /**
+     * retired contains the retired entries, oldest first.
+     */
+    private final ConcurrentLinkedQueue<Entry> retired = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retiredCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final List<Consumer<Transition>> listeners = new CopyOnWriteArrayList<>();
+    private final ArrayBlockingQueue<Transition> transitions = new ArrayBlockingQueue<>(TRANSITION_QUEUE_CAPACITY);
+    private final Counter droppedTransitions;
+    private Thread publisher;
+
+    /**
+     * @param retentionSeconds the number of seconds a finished or failed task is kept
+     * @param maxRetained the maximum number of finished or failed tasks kept
+     */
+    @Autowired
+    public TaskRegistry(@Value("${TaskRetentionSeconds}") long retentionSeconds,
+                        @Value("${TaskRetentionMax}") int maxRetained,
+                        MeterRegistry meterRegistry) {
+        this(retentionSeconds, maxRetained, meterRegistry, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock the clock the retention is measured with, in nanoseconds
+     */
+    public TaskRegistry(long retentionSeconds, int maxRetained, MeterRegistry meterRegistry, LongSupplier nanoClock) {
+        this.retentionNanos = TimeUnit.SECONDS.toNanos(Math.max(0, retentionSeconds));
+        this.maxRetained = Math.max(0, maxRetained);
+        this.nanoClock = nanoClock;
+        this.droppedTransitions = Counter.builder("zigzag.tasks.transitions.dropped")
+                .description("Task transitions not published because the listeners were behind")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.tasks", activeCount, AtomicInteger::get)
+                .description("Number of tasks known to the service")
+                .tag("state", "active")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.tasks", retiredCount, AtomicInteger::get)
+                .description("Number of tasks known to the service")
+                .tag("state", "retired")
+                .register(meterRegistry);
+    }
+
+    /**
+     * register adds an active task, replacing a task with the same uuid.
+     * @param task the task
+     */
+    public void register(ServiceTaskBase task) {
+        activeCount.incrementAndGet();
+        add(task);
+    }
+
+    /**
+     * tryRegister adds an active task unless there are already maxActive active tasks.
+     * @param task the task
+     * @param maxActive the maximum number of active tasks, 0 or less for no limit
+     * @return true if the task was added.
+     */
+    public boolean tryRegister(ServiceTaskBase task, int maxActive) {
+        if (maxActive <= 0) {
+            register(task);
+            return true;
+        }
+        int active;
+        do {
+            active = activeCount.get();
+            if (active >= maxActive) return false;
+        } while (!activeCount.compareAndSet(active, active + 1));
+        add(task);
+        return true;
+    }
+
+    private void add(ServiceTaskBase task) {
+        Entry previous = tasks.put(task.getTask().getId(), new Entry(task));
+        if (previous != null) {
+            if (previous.isRetired()) retiredCount.decrementAndGet();
+            else activeCount.decrementAndGet();
+        }
+        publish(task, task.getTask().getStatus());
+    }
+
+    /**
+     * get returns a task, active or retired (until it expires).
+     * @param taskId the uuid of the task
+     * @return the task, null if it is unknown or expired.
+     */
+    public ServiceTaskBase get(UUID taskId) {
+        Entry entry = tasks.get(taskId);
+        if (entry == null || isExpired(entry, nanoClock.getAsLong())) return null;
+        return entry.task;
+    }
+
+    /**
+     * @param taskId the uuid of the task
+     * @return the status of the task, null if it is unknown or expired.
+     */
+    public ServiceTaskBase.TaskStatus getStatus(UUID taskId) {
+        ServiceTaskBase task = get(taskId);
+        return task == null ? null : task.getTask().getStatus();
+    }
+
+    /**
+     * publish hands a status change of a task over to the listeners, without waiting for them.
+     * @param task the task
+     * @param status its new status
+     */
+    public void publish(ServiceTaskBase task, ServiceTaskBase.TaskStatus status) {
+        if (listeners.isEmpty()) return;
+        if (!transitions.offer(new Transition(task, status, System.currentTimeMillis())))
+            droppedTransitions.increment();
+    }
+
+    /**
+     * retire marks a task as finished or failed, it is kept for the retention time. The tasks retired for too long
+     * and the oldest ones beyond the maximum are forgotten.
+     * @param task the task
+     */
+    public void retire(ServiceTaskBase task) {
+        Entry entry = tasks.get(task.getTask().getId());
+        if (entry == null || entry.task != task || entry.isRetired()) return;
+        entry.retiredAt = Math.max(1, nanoClock.getAsLong());
+        activeCount.decrementAndGet();
+        retiredCount.incrementAndGet();
+        retired.add(entry);
+        evict();
+    }
+
+    /**
+     * addListener subscribes to the transitions of the tasks, the listener is called by the publisher thread in the
+     * order of the transitions.
+     * @param listener the listener
+     */
+    public synchronized void addListener(Consumer<Transition> listener) {
+        listeners.add(listener);
+        if (publisher == null) {
+            publisher = new Thread(this::publishTransitions, "task-transitions");
+            publisher.setDaemon(true);
+            publisher.start();
+        }
+    }
+
+    /**
+     * @return the number of known tasks, active and retired.
+     */
+    public int size() {
+        return tasks.size();
+    }
+
+    /**
+     * @return the number of active tasks, queued or in the pipeline.
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * @return the number of retired tasks still kept.
+     */
+    public int getRetiredCount() {
+        return retiredCount.get();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return entry.isRetired() && now - entry.retiredAt >= retentionNanos;
+    }
+
+    /**
+     * evict forgets the retired tasks that expired or are beyond the maximum, oldest first.
+     */
+    private void evict() {
+        long now = nanoClock.getAsLong();
+        Entry oldest;
+        while ((oldest = retired.peek()) != null
+                && (retiredCount.get() > maxRetained || isExpired(oldest, now))) {
+            if (!retired.remove(oldest)) continue;
+            // the task may have been registered again since, the new entry stays
+            if (tasks.remove(oldest.task.getTask().getId(), oldest)) retiredCount.decrementAndGet();
+        }
+    }
+
+    private void publishTransitions() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Transition transition;
+            try {
+                transition = transitions.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Consumer<Transition> listener : listeners) {
+                try {
+                    listener.accept(transition);
+                } catch (RuntimeException e) {
+                    logger.error("Task transition listener failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (publisher != null) publisher.interrupt();
+    }
+}
@@ -1,30 +1,61 @@
 package ch.heia.ZigZag.service;
 
+import ch.heia.ZigZag.service.PipelineMetrics.Step;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.BinarizedImage;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import ch.heia.ZigZag.tasks.OutputFormat;
+import ch.heia.ZigZag.tasks.PageExecution;
 import ch.heia.ZigZag.tasks.ServiceTaskBase;
+import ch.heia.ZigZag.tasks.TaskExecution;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.io.input.CountingInputStream;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToDoubleFunction;
 
 /**
- * TaskService is dedicated to processing binarization tasks. A task has an image input, this image is to be downloaded
- * from the storage before being binarized and then re-uploaded to the storage as output. The core engine is then
- * notified that the task is finished.
+ * TaskService is dedicated to processing binarization tasks. A task has one or more image inputs, each image is to be
+ * downloaded from the storage before being binarized and then re-uploaded to the storage as output. The core engine
+ * is then notified by the CallbackDispatcher that the task is finished, or that it failed.
+ * At most MaxTasks tasks are accepted at once, the TaskRegistry keeps their status.
+ * The images (pages) of tasks go through a pipeline of four stages connected by bounded queues: fetch (download and
+ * decode), compute (binarization), encode (PNG or TIFF, with the ImageEncoder) and save (upload).
+ * The pages of a task go through the pipeline independently, at most TaskPageConcurrency of them at once. The
+ * PageScheduler shares the fetch stage fairly between pipeline executions and serves short tasks first.
+ * The compute workers share the CPU budget of the CpuBudgetScheduler. The fetch and save workers run on virtual
+ * threads when VirtualThreads is enabled.
+ * The ImageRouter decides from the header of each image whether it is decoded at once, binarized in strips from a
+ * temporary file, or rejected. The MemoryBudget then admits the page once its estimated peak heap fits.
+ * The results of PNG tasks are kept in the ResultCache, keyed by the SHA-256 of the input file, so a page submitted
+ * again is neither binarized nor uploaded again.
+ * The TaskJournal records the tasks and their saved pages, the tasks interrupted by a restart are resumed at startup.
+ * The rasters of a page are leased from the BufferPool and given back as soon as the page no longer needs them.
+ * The time spent in each step, the bytes exchanged with the storage and the errors are recorded in the
+ * PipelineMetrics.
  */
 @Service
 public class TaskService {
@@ -33,258 +64,633 @@ public class TaskService {
     private static final String SERVICE_NAME = "zigzag-binarization";
     private final BinarizationService binarizationService;
     private final StorageService storageService;
+    private final CpuBudgetScheduler cpuScheduler;
+    private final ResultCache resultCache;
+    private final ImageEncoder imageEncoder;
+    private final BufferPool bufferPool;
+    private final CallbackDispatcher callbackDispatcher;
+    private final PipelineMetrics metrics;
+    private final ImageRouter imageRouter;
+    private final MemoryBudget memoryBudget;
+    private final int binarizationMode;
+    private final int stripPixels;
+    private final int pageConcurrency;
+    private final int maxTasks;
 
     private final Logger logger = LoggerFactory.getLogger(TaskService.class);
 
     /**
-     * computingThread is the thread responsible for processing tasks.
+     * pageQueue contains the pages of the tasks that have yet to be processed.
      */
-    private Thread computingThread;
+    private final PageScheduler pageQueue = new PageScheduler();
 
     /**
-     * taskQueue contains all tasks that have yet to be processed.
+     * fetchedPages contains the pages whose image is downloaded, waiting for the compute stage.
      */
-    private final LinkedBlockingQueue<ServiceTaskBase> taskQueue = new LinkedBlockingQueue<>();
+    private final ArrayBlockingQueue<PageExecution> fetchedPages;
 
     /**
-     * currentTaskBinarizedImg contains the images already processed (binarized) for the current task.
+     * processedPages contains the pages whose image is binarized, waiting for the encode stage.
      */
-    private final ArrayList<BufferedImage> currenTaskBinarizedImg = new ArrayList<>();
+    private final ArrayBlockingQueue<PageExecution> processedPages;
 
     /**
-     * currentTaskImages contains images that the current task has yet to process.
+     * encodedPages contains the pages whose image is encoded, waiting for the save stage.
      */
-    private final HashMap<String, byte[]> currentTaskImages = new HashMap<>();
+    private final ArrayBlockingQueue<PageExecution> encodedPages;
+
+    private final TaskStage<PageExecution> fetchStage;
+    private final TaskStage<PageExecution> computeStage;
+    private final TaskStage<PageExecution> encodeStage;
+    private final TaskStage<PageExecution> saveStage;
 
     /**
-     * UnfinishedTasks contains all tasks that have not been finished correctly.
+     * taskRegistry knows the tasks queued or in one of the pipeline stages, and for a while the finished and failed
+     * ones. Tasks are registered before their pages are queued so they never disappear while moving from a queue to
+     * a stage.
      */
-    private final LinkedBlockingQueue<ServiceTaskBase> unfinishedTasks = new LinkedBlockingQueue<>();
-    private final static AtomicBoolean running = new AtomicBoolean(false);
-
-    private final ReentrantLock currentTaskLock = new ReentrantLock();
-    private static ServiceTaskBase currentTask = null;
+    private final TaskRegistry taskRegistry;
+    private final TaskJournal taskJournal;
+    private final AtomicBoolean running = new AtomicBoolean(false);
 
     @Autowired
-    public TaskService(StorageService storageService, BinarizationService binarizationService) {
+    public TaskService(StorageService storageService, BinarizationService binarizationService,
+                       CpuBudgetScheduler cpuScheduler, ResultCache resultCache, ImageEncoder imageEncoder,
+                       BufferPool bufferPool, CallbackDispatcher callbackDispatcher, TaskRegistry taskRegistry,
+                       TaskJournal taskJournal, PipelineMetrics metrics,
+                       ImageRouter imageRouter, MemoryBudget memoryBudget, VirtualThreads virtualThreads,
+                       MeterRegistry meterRegistry,
+                       @Value("${FetchThreads}") int fetchThreads,
+                       @Value("${WorkerThreads}") int workerThreads,
+                       @Value("${EncodeThreads}") int encodeThreads,
+                       @Value("${SaveThreads}") int saveThreads,
+                       @Value("${StageQueueCapacity}") int stageQueueCapacity,
+                       @Value("${BinarizationMode}") int binarizationMode,
+                       @Value("${StripPixels}") int stripPixels,
+                       @Value("${TaskPageConcurrency}") int pageConcurrency,
+                       @Value("${MaxTasks}") int maxTasks) {
         this.storageService = storageService;
         this.binarizationService = binarizationService;
+        this.cpuScheduler = cpuScheduler;
+        this.resultCache = resultCache;
+        this.imageEncoder = imageEncoder;
+        this.bufferPool = bufferPool;
+        this.callbackDispatcher = callbackDispatcher;
+        this.taskRegistry = taskRegistry;
+        this.taskJournal = taskJournal;
+        this.metrics = metrics;
+        this.imageRouter = imageRouter;
+        this.memoryBudget = memoryBudget;
+        this.binarizationMode = binarizationMode;
+        this.stripPixels = stripPixels;
+        this.pageConcurrency = Math.max(1, pageConcurrency);
+        this.maxTasks = maxTasks;
+        // every image holds at least one core of the budget, more workers than cores would only wait for a grant
+        int computeThreads = workerThreads > 0 ? workerThreads : cpuScheduler.getBudget();
+        this.fetchedPages = new ArrayBlockingQueue<>(Math.max(1, stageQueueCapacity));
+        this.processedPages = new ArrayBlockingQueue<>(Math.max(1, stageQueueCapacity));
+        this.encodedPages = new ArrayBlockingQueue<>(Math.max(1, stageQueueCapacity));
+        this.fetchStage = new TaskStage<>("fetch", Math.max(1, fetchThreads),
+                virtualThreads.threadFactory("fetch-worker"), pageQueue::take, this::initTask, fetchedPages,
+                meterRegistry);
+        this.computeStage = new TaskStage<>("compute", computeThreads,
+                VirtualThreads.platformThreadFactory("compute-worker"), fetchedPages::take, this::processTask,
+                processedPages, meterRegistry);
+        cpuScheduler.setBacklog(fetchedPages::size);
+        // encoding is CPU bound, it runs on platform threads so the save workers only wait for the storage
+        this.encodeStage = new TaskStage<>("encode", Math.max(1, encodeThreads),
+                VirtualThreads.platformThreadFactory("encode-worker"), processedPages::take, this::encodePage,
+                encodedPages, meterRegistry);
+        this.saveStage = new TaskStage<>("save", Math.max(1, saveThreads),
+                virtualThreads.threadFactory("save-worker"), encodedPages::take, this::savePage, null,
+                meterRegistry);
+        registerQueueGauge(meterRegistry, "fetch", pageQueue, PageScheduler::size);
+        registerQueueGauge(meterRegistry, "compute", fetchedPages, Collection::size);
+        registerQueueGauge(meterRegistry, "encode", processedPages, Collection::size);
+        registerQueueGauge(meterRegistry, "save", encodedPages, Collection::size);
         logger.info(SERVICE_NAME + " service started");
         logger.info("Service URL: " + SERVICE_URL);
+        logger.info("Pipeline threads: fetch=" + fetchStage.getThreads() + ", compute=" + computeThreads
+                + ", encode=" + encodeStage.getThreads() + ", save=" + saveStage.getThreads()
+                + ", queue capacity=" + fetchedPages.remainingCapacity()
+                + ", pages per task=" + this.pageConcurrency + ", max tasks=" + maxTasks
+                + (virtualThreads.isEnabled() ? ", fetch and save on virtual threads" : ""));
     }
 
+    private static <T> void registerQueueGauge(MeterRegistry meterRegistry, String stage, T queue,
+                                               ToDoubleFunction<T> size) {
+        Gauge.builder("zigzag.stage.queue", queue, size)
+                .description("Number of pages waiting for a stage")
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
 
     /**
-     * getTaskStatus returns the status of the given task of it exists, either in the taskQueue (not processed yet),
-     * in the unfinished tasks (error occurred), or the current task.
+     * getTaskStatus returns the status of the given task if it is known, either running (queued or being processed)
+     * or finished or failed within the retention time.
      * @param taskId the uuid of the requested task
      * @return the status of the task if it exists, null otherwise.
      */
     public ServiceTaskBase.TaskStatus getTaskStatus(UUID taskId) {
-        currentTaskLock.lock();
-        try {
-            if (currentTask != null && currentTask.getTask().getId() == taskId)
-                return currentTask.getTask().getStatus();
+        return taskRegistry.getStatus(taskId);
+    }
+
+    /**
+     * advanceStatus moves the status of a task forward and publishes the change.
+     * @param execution the execution of the task
+     * @param status the stage reached by one of its pages
+     */
+    private void advanceStatus(TaskExecution execution, ServiceTaskBase.TaskStatus status) {
+        if (execution.advanceStatus(status)) taskRegistry.publish(execution.getTaskBase(), status);
+    }
 
-            ServiceTaskBase task = findInQueue(taskId, taskQueue);
-            if (task != null) return task.getTask().getStatus();
-            task = findInQueue(taskId, unfinishedTasks);
-            if (task != null) return task.getTask().getStatus();
 
-            return null;
-        } finally {
-            currentTaskLock.unlock();
+    /**
+     * addTask queues the first pages of a task (up to TaskPageConcurrency), the others are queued as these leave the
+     * pipeline. The task is refused if MaxTasks tasks are already queued or in the pipeline.
+     * @param task the task to add
+     * @return true if the task was added, false if it was refused.
+     */
+    public boolean addTask(ServiceTaskBase task) {
+        if (!taskRegistry.tryRegister(task, maxTasks)) {
+            logger.info("Task " + task.getTask().getId() + " refused, " + maxTasks + " tasks already running");
+            return false;
         }
+        taskJournal.recordArrival(task);
+        TaskExecution execution = new TaskExecution(task);
+        for (int i = 0; i < Math.min(pageConcurrency, execution.getPageCount()); i++) queueNextPage(execution);
+        logger.info("Task  " + task.getTask().getId() + "has been added to the task queue ("
+                + execution.getPageCount() + " pages)");
+        start();
+        return true;
     }
 
     /**
-     * findInQueue is a helper function to find a task in a given queue with a given uuid.
-     * @param taskId the searched task's uuid
-     * @param queue the queue the task will be searched in
-     * @return the task with the corresponding uuid if it exists, null otherwise.
+     * resumeTasks queues again the tasks found in the task journal at startup, with only their pages not saved yet.
+     * A task whose pages were all saved is finished right away. Resumed tasks are not subject to MaxTasks.
      */
-    private ServiceTaskBase findInQueue(UUID taskId, LinkedBlockingQueue<ServiceTaskBase> queue) {
-            for (ServiceTaskBase task: queue) {
-                if (task.getTask().getId().equals(taskId)) return task;
+    @PostConstruct
+    public void resumeTasks() {
+        List<TaskJournal.Recovered> recovered = taskJournal.takeRecovered();
+        if (recovered.isEmpty()) return;
+        for (TaskJournal.Recovered task : recovered) {
+            taskRegistry.register(task.task());
+            TaskExecution execution = new TaskExecution(task.task(), task.savedResults());
+            logger.info("Resuming task " + task.task().getTask().getId() + " (" + task.savedResults().size()
+                    + " pages saved, " + execution.getPageCount() + " to process)");
+            if (execution.isComplete()) {
+                finishTask(execution);
+                continue;
             }
-        return null;
+            for (int i = 0; i < Math.min(pageConcurrency, execution.getPageCount()); i++) queueNextPage(execution);
+        }
+        start();
     }
 
-
     /**
-     * addTask adds a task to the taskQueue (tasks that have yet to be processed).
-     * @param task the task to add
+     * queueNextPage queues the next page of a task, if any.
+     * @param execution the execution of the task
      */
-    public void addTask(ServiceTaskBase task) {
-        taskQueue.add(task);
-        logger.info("Task  " + task.getTask().getId() + "has been added to the task queue");
-        start();
+    private void queueNextPage(TaskExecution execution) {
+        PageExecution page = execution.nextPage();
+        if (page != null) pageQueue.put(page);
     }
 
     /**
-     * start creates a new thread (if it doesn't exist yet) which executes the
-     * run() method. It starts the processing of tasks in the task queue.
+     * start creates the workers of the pipeline stages (if they don't exist yet). It starts the processing of the
+     * pages in the page queue.
      */
-    public void start() {
-        running.set(true);
-        if (computingThread == null) {
-            computingThread = new Thread(this::run);
-            computingThread.start();
+    public synchronized void start() {
+        if (running.compareAndSet(false, true)) {
+            saveStage.start();
+            encodeStage.start();
+            computeStage.start();
+            fetchStage.start();
         }
     }
 
     /**
-     * initTask takes a task in the task queue and gets all the related data (should be one image)
-     * from the storage (data_in).
-     * @return true if the method was successful (no exceptions), false otherwise.
+     * stop interrupts the workers of the pipeline stages, pages still in the queue are left untouched. The tasks of the
+     * pages in the stages are left unfinished (see handleTaskError), the task journal resumes them at the next start.
      */
-    public boolean initTask() {
+    @PreDestroy
+    public synchronized void stop() {
+        running.set(false);
+        fetchStage.stop();
+        computeStage.stop();
+        encodeStage.stop();
+        saveStage.stop();
+    }
+
+    /**
+     * initTask is the step of the fetch stage, it gets the image of a page taken from the page queue from the storage
+     * and decodes it while it is downloaded, in gray level unless the binarization mode uses the colors. The header of
+     * the image is read first and routed by the ImageRouter: rejected images fail the task before any pixel is
+     * decoded, images above the strip threshold are downloaded to a temporary file instead. Images are decoded
+     * into rasters leased from the buffer pool for the page. For PNG tasks, the
+     * digest of the file is computed on the way and the file is looked up in the result cache, the decoded or spooled
+     * image of a cached result is released right away.
+     * @param page the page taken from the page queue
+     * @return the page if the method was successful (no exceptions), null otherwise.
+     */
+    public PageExecution initTask(PageExecution page) {
+        if (page.getExecution().isFailed()) return dropPage(page);
+        advanceStatus(page.getExecution(), ServiceTaskBase.TaskStatus.FETCHING);
+        if (page.isEmpty()) return page;
+        ServiceTaskBase task = page.getTaskBase();
+        String file = page.getFile();
+        logger.info("Got next page from page queue: " + file);
+        page.setBuffers(bufferPool.lease());
         try {
-            logger.info("Getting next task from task queue");
-            ServiceTaskBase newTask = taskQueue.take();
-            currentTaskLock.lock();
-            currentTask = newTask;
-            currentTask.getTask().setStatus(ServiceTaskBase.TaskStatus.FETCHING);
-            logger.info("dataIn: " + currentTask.getTask().getDataIn().toString());
-            for (String file : currentTask.getTask().getDataIn()) {
-                if (!file.endsWith(".jpeg") && !file.endsWith(".png") && !file.endsWith(".jpg"))
-                    throw new IllegalArgumentException("Wrong file extension, expected  image/png or image/jpeg got: " + file);
-
-                logger.info("File extension ok, calling storage service to download files");
-                byte[] image = storageService.getFileSynchronous(file, currentTask.getS3Region(),
-                        currentTask.getS3SecretAccessKey(), currentTask.getS3AccessKeyId(), currentTask.getS3Host(),
-                        currentTask.getS3Bucket());
-
-                if (image == null)
-                    throw new IllegalStateException("Could not download image");
-
-                logger.info("Got image from s3 adding to taskImages :" + file);
-                currentTaskImages.put(file , image);
+            if (!file.endsWith(".jpeg") && !file.endsWith(".png") && !file.endsWith(".jpg"))
+                throw new IllegalArgumentException("Wrong file extension, expected  image/png or image/jpeg got: " + file);
+
+            logger.info("File extension ok, calling storage service to download files");
+            // the cache only holds PNG results of the ZigZag filter, its keys do not tell the thresholding engines
+            BinarizationEngine engine = binarizationService.engine(task.getEngine());
+            MessageDigest digest = resultCache.isEnabled() && task.getOutputFormat() == OutputFormat.PNG
+                    && !engine.isThresholding() ? ResultCache.newDigest() : null;
+            long start = PipelineMetrics.start();
+            long decodeNanos = 0;
+            try (CountingInputStream download = new CountingInputStream(storageService.getFileStream(file,
+                    task.getS3Region(), task.getS3SecretAccessKey(), task.getS3AccessKeyId(), task.getS3Host(),
+                    task.getS3Bucket()));
+                 InputStream stream = digest == null ? download : new DigestInputStream(download, digest);
+                 ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+                ImageReader reader = binarizationService.openReader(input);
+                try {
+                    // only the header is read before the route is known, rejected images are never decoded
+                    ImageHeader header = binarizationService.inspect(reader);
+                    ImageRouter.Route route = imageRouter.route(header, binarizationMode, engine);
+                    page.setHeader(header);
+                    metrics.recordImage(header.pixels());
+                    // waits until the peak heap of the image fits in the budget, the download waits with it
+                    page.setMemory(memoryBudget.reserve(memoryBudget.estimate(header, route, binarizationMode,
+                            engine)));
+                    if (route == ImageRouter.Route.STRIPS) {
+                        page.setSpooledImage(spool(input, file));
+                        logger.info("Got large image from s3 (" + header + "), spooled for strips :" + file);
+                    } else {
+                        long decodeStart = PipelineMetrics.start();
+                        page.setImage(binarizationService.readImage(reader, binarizationMode, page.getBuffers()));
+                        decodeNanos = metrics.record(Step.DECODE, decodeStart);
+                        logger.info("Got image from s3 :" + file);
+                    }
+                } finally {
+                    reader.dispose();
+                }
+                // the decoder may stop before the end of the file, the digest covers all of it
+                if (digest != null) stream.transferTo(OutputStream.nullOutputStream());
+                metrics.recordBytesIn(download.getByteCount());
             }
+            metrics.recordNanos(Step.FETCH, System.nanoTime() - start - decodeNanos);
+            if (digest != null) lookUpResult(page, digest);
+        } catch (InterruptedException e) {
+            // interrupted while waiting for the memory budget, the service is stopping
+            Thread.currentThread().interrupt();
+            handleTaskError(page, Step.FETCH);
+            return null;
         } catch ( Exception e) {
             logger.error(e.getMessage());
             logger.info("Error while initiating task");
-            handleTaskError();
-            return false;
-        } finally {
-            currentTaskLock.unlock();
+            handleTaskError(page, Step.FETCH);
+            return null;
         }
-        return true;
+        return page;
+    }
+
+    /**
+     * lookUpResult looks the result of a downloaded page up in the result cache. On a hit, the cached result replaces
+     * the downloaded image.
+     * @param page the page
+     * @param digest the digest of the whole file
+     * @throws IOException if the cached result could not be read
+     */
+    private void lookUpResult(PageExecution page, MessageDigest digest) throws IOException {
+        ResultCache.Key key = ResultCache.key(digest, binarizationMode, BinarizationService.DEFAULT_WINDOW_SIZE,
+                BinarizationService.DEFAULT_PERCENT, BinarizationService.DEFAULT_WHITE_THRESHOLD);
+        page.setDigest(key.digest());
+        BinarizedImage cached = resultCache.get(key, page.getFile(), storageLocation(page.getTaskBase()));
+        if (cached == null) return;
+        logger.info("Found the result of image " + page.getFile() + " in the cache");
+        page.getBuffers().release(page.getImage());
+        page.setImage(null);
+        page.clearSpooledImage();
+        page.setBinarizedImage(cached);
+    }
+
+    /**
+     * cacheKey gives the key of the result of a downloaded page.
+     * @param page the page
+     * @return the key, null if the digest of the file was not computed
+     */
+    private ResultCache.Key cacheKey(PageExecution page) {
+        return page.getDigest() == null ? null : new ResultCache.Key(page.getDigest(), binarizationMode,
+                BinarizationService.DEFAULT_WINDOW_SIZE, BinarizationService.DEFAULT_PERCENT,
+                BinarizationService.DEFAULT_WHITE_THRESHOLD);
+    }
+
+    /**
+     * storageLocation identifies the storage the results of a task are uploaded to.
+     * @param task the task
+     * @return the endpoint and bucket of the storage of the task
+     */
+    private static String storageLocation(ServiceTaskBase task) {
+        return task.getS3Host() + "/" + task.getS3Bucket();
+    }
+
+    /**
+     * spool copies an image whose header has already been read to a temporary file.
+     * @param input the image stream, read from its start again
+     * @param file the storage key of the image
+     * @return the temporary file
+     * @throws IOException if the image could not be downloaded or written
+     */
+    private static Path spool(ImageInputStream input, String file) throws IOException {
+        Path spooled = Files.createTempFile("zigzag-source-", file.substring(file.lastIndexOf('.')));
+        try (OutputStream output = Files.newOutputStream(spooled)) {
+            input.seek(0);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) output.write(buffer, 0, read);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spooled);
+            throw e;
+        }
+        return spooled;
     }
 
     /**
-     * processTask takes the images in the currentTaskImages array and applies binarization.
-     * @return true if the method was successful (no exceptions), false otherwise.
+     * processTask is the step of the compute stage, it takes the downloaded image of a page and applies binarization.
+     * The image waits for its grant of cores before being binarized, a single core when the engine of the task
+     * binarizes it in one thread. Black and white results are packed into 1-bit
+     * images before being handed to the encode stage. Spooled images are binarized in strips, in the worker thread,
+     * straight to a PNG file, whatever the format of the task. Results found in the cache by the fetch stage are handed
+     * over as they are.
+     * @param page the page
+     * @return the page if the method was successful (no exceptions), null otherwise.
+     * @throws InterruptedException if the worker is interrupted while waiting for cores
      */
-    private boolean processTask() {
-        currentTaskLock.lock();
-        currentTask.getTask().setStatus(ServiceTaskBase.TaskStatus.PROCESSING);
-        currentTaskLock.unlock();
-
-
-        for (Map.Entry<String, byte[]> image : currentTaskImages.entrySet()) {
-            try {
-                logger.info("Getting bytes from image: " + image.getKey());
-                byte[] imageBytes = image.getValue();
-                logger.info("got bytes from downloaded file, proceeding with binarization");
-                BufferedImage binarizedImage = binarizationService.binarizeImageBytes(imageBytes,
-                        BinarizationService.DEFAULT_BIN_MODE, BinarizationService.DEFAULT_WINDOW_SIZE);
-                currenTaskBinarizedImg.add(binarizedImage);
-                logger.info("binarization complete for image: " + image.getKey());
-
-            } catch (Exception e ) {
-                logger.info("problem during processing of the image: " + e.getMessage());
-                logger.info(e.getMessage());
-                handleTaskError();
-                return false;
+    private PageExecution processTask(PageExecution page) throws InterruptedException {
+        if (page.getExecution().isFailed()) return dropPage(page);
+        advanceStatus(page.getExecution(), ServiceTaskBase.TaskStatus.PROCESSING);
+        if (page.isEmpty() || page.getBinarizedImage() != null) return page;
+
+        String file = page.getFile();
+        try {
+            if (page.getSpooledImage() != null) {
+                // one core, the strips are binarized one after the other in this thread
+                CpuBudgetScheduler.Grant core = cpuScheduler.acquire(0);
+                try {
+                    logger.info("Proceeding with strip binarization of image: " + file);
+                    long start = PipelineMetrics.start();
+                    page.setBinarizedImage(BinarizedImage.encoded(file, binarizeInStrips(page.getSpooledImage())));
+                    // the strips are decoded, binarized and encoded together
+                    metrics.record(Step.FILTER, start);
+                } finally {
+                    core.close();
+                }
+                page.clearSpooledImage();
+            } else {
+                BufferedImage original = page.getImage();
+                ImageHeader header = page.getHeader();
+                BinarizationEngine engine = page.getTaskBase().getEngine();
+                boolean singleThreaded = binarizationService.isSingleThreaded(engine, binarizationMode,
+                        BinarizationService.DEFAULT_WINDOW_SIZE, header.width(), header.height());
+                try (CpuBudgetScheduler.Grant grant = cpuScheduler.acquire(singleThreaded ? 0 : header.pixels())) {
+                    logger.info("Proceeding with binarization of image: " + file + " ("
+                            + (singleThreaded ? binarizationService.engine(engine).getValue() + " engine"
+                            : grant.threads() + " slice threads") + ")");
+                    long start = PipelineMetrics.start();
+                    BufferedImage binarizedImage = binarizationService.binarizeImage(original, binarizationMode,
+                            BinarizationService.DEFAULT_WINDOW_SIZE, grant.threads(), engine);
+                    if (binarizedImage != original) page.getBuffers().release(original);
+                    if (binarizationService.isBinaryOutput(binarizationMode, engine))
+                        binarizedImage = binarizationService.toBinaryImage(binarizedImage, page.getBuffers());
+                    metrics.record(Step.FILTER, start);
+                    page.setImage(null);
+                    page.setBinarizedImage(BinarizedImage.decoded(file, binarizedImage));
+                }
             }
+            logger.info("binarization complete for image: " + file);
+
+        } catch (InterruptedException e) {
+            handleTaskError(page, Step.FILTER);
+            throw e;
+        } catch (Exception e ) {
+            logger.info("problem during processing of the image: " + e.getMessage());
+            logger.info(e.getMessage());
+            handleTaskError(page, Step.FILTER);
+            return null;
         }
-        return true;
+        return page;
+    }
+
+    /**
+     * binarizeInStrips binarizes a spooled image strip by strip to a temporary PNG file.
+     * @param source the spooled image
+     * @return the PNG file
+     * @throws IOException if the image could not be read or the PNG written
+     */
+    private Path binarizeInStrips(Path source) throws IOException {
+        Path png = Files.createTempFile("zigzag-binarized-", ".png");
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(png))) {
+            binarizationService.binarizeInStrips(source, output, binarizationMode,
+                    BinarizationService.DEFAULT_WINDOW_SIZE, stripPixels);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(png);
+            throw e;
+        }
+        return png;
+    }
+
+    /**
+     * encodePage is the step of the encode stage, it encodes the binarized image of a page in the format of its task.
+     * Images binarized in strips and results found in the cache are already encoded. The raster of the image goes back
+     * to the buffer pool once encoded, and the reservation of the page in the memory budget shrinks to the encoded
+     * result.
+     * @param page the page
+     * @return the page if the method was successful (no exceptions), null otherwise.
+     */
+    private PageExecution encodePage(PageExecution page) {
+        if (page.getExecution().isFailed()) return dropPage(page);
+        if (page.isEmpty()) return page;
+        if (page.getBinarizedImage().isEncoded()) {
+            // the strips are encoded to a file, the cached results are shared with the cache
+            byte[] encoded = page.getBinarizedImage().bytes();
+            page.getMemory().shrink(encoded == null ? 0 : encoded.length);
+            return page;
+        }
+        BinarizedImage image = page.getBinarizedImage();
+        OutputFormat format = page.getTaskBase().getOutputFormat();
+        try {
+            long start = PipelineMetrics.start();
+            byte[] bytes = imageEncoder.encode(image.image(), format);
+            metrics.record(Step.ENCODE, start);
+            page.getBuffers().release(image.image());
+            page.setBinarizedImage(BinarizedImage.encoded(image.source(), bytes, format));
+            page.getMemory().shrink(bytes.length);
+        } catch (IOException | RuntimeException e) {
+            logger.info("problem during encoding of the image: " + e.getMessage());
+            handleTaskError(page, Step.ENCODE);
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * savePage is the step of the save stage, it saves the binarized image of a page (see endTask). After the last
+     * page of a task, the task is finished and the core engine notified, otherwise the next page of the task is
+     * queued.
+     * @param page the page
+     * @return the page if the method was successful (no exceptions), null otherwise.
+     */
+    private PageExecution savePage(PageExecution page) {
+        TaskExecution execution = page.getExecution();
+        if (execution.isFailed()) return dropPage(page);
+        advanceStatus(execution, ServiceTaskBase.TaskStatus.SAVING);
+        String objectKey = page.isEmpty() ? null : endTask(page);
+        if (!page.isEmpty() && objectKey == null) return null;
+        if (!page.isEmpty()) taskJournal.recordPage(execution.getTaskBase(), page.getFile(), objectKey);
+        page.clear();
+        if (execution.complete(page, objectKey)) {
+            finishTask(execution);
+        } else {
+            queueNextPage(execution);
+        }
+        return page;
+    }
+
+    /**
+     * finishTask sets the output and the FINISHED status of a task whose pages are all saved, and notifies the core
+     * engine.
+     * @param execution the execution of the task
+     */
+    private void finishTask(TaskExecution execution) {
+        ServiceTaskBase task = execution.getTaskBase();
+        task.getTask().getDataOut().addAll(execution.getDataOut());
+        execution.markFinished();
+        taskRegistry.publish(task, ServiceTaskBase.TaskStatus.FINISHED);
+        taskRegistry.retire(task);
+        notifyEngine(task);
     }
 
     /**
-     * endTask saves the binarized images (PNG format) in the storage.
-     * @return true if the method was successful (no exceptions), false otherwise.
+     * endTask saves the encoded image of a page in the storage. The uploaded result of a PNG task is put in the result
+     * cache, a cached result is uploaded from its PNG, unless its object is still in the storage of the task.
+     * @param page the page
+     * @return the storage key of the result if the method was successful (no exceptions), null otherwise.
      */
-    private boolean endTask() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        currentTaskLock.lock();
+    private String endTask(PageExecution page) {
+        ServiceTaskBase task = page.getTaskBase();
+        BinarizedImage image = page.getBinarizedImage();
+        long start = PipelineMetrics.start();
         try {
-            for (BufferedImage image: currenTaskBinarizedImg) {
-                ImageIO.write(image,"png", baos);
-                String key = storageService.uploadSynchronous(baos.toByteArray(), ".png", currentTask.getS3Region(),
-                        currentTask.getS3SecretAccessKey(), currentTask.getS3AccessKeyId(), currentTask.getS3Host(),
-                        currentTask.getS3Bucket());
-                logger.info("stored image" + key);
-                currentTask.getTask().getDataOut().add(key);
+            if (image.objectKey() != null && storageService.exists(image.objectKey(), task.getS3Region(),
+                    task.getS3SecretAccessKey(), task.getS3AccessKeyId(), task.getS3Host(), task.getS3Bucket())) {
+                logger.info("reused cached image" + image.objectKey());
+                resultCache.recordReuse();
+                metrics.record(Step.UPLOAD, start);
+                return image.objectKey();
             }
-            currentTask.getTask().setStatus(ServiceTaskBase.TaskStatus.FINISHED);
-        } catch (IOException e) {
-            handleTaskError();
+            ResultCache.Key key = cacheKey(page);
+            S3UploadOutputStream upload = storageService.openUploadStream(image.format().getExtension(),
+                    image.format().getContentType(), task.getS3Region(), task.getS3SecretAccessKey(),
+                    task.getS3AccessKeyId(), task.getS3Host(), task.getS3Bucket());
+            try (upload) {
+                if (image.bytes() != null) upload.write(image.bytes());
+                else Files.copy(image.file(), upload);
+            }
+            metrics.record(Step.UPLOAD, start);
+            metrics.recordBytesOut(upload.getSize());
+            logger.info("stored image" + upload.getKey());
+            if (key != null && image.format() == OutputFormat.PNG)
+                cacheResult(key, image, storageLocation(task), upload.getKey());
+            return upload.getKey();
+        } catch (IOException | RuntimeException e) {
+            handleTaskError(page, Step.UPLOAD);
             logger.info("Failed to upload image");
             logger.error(e.getMessage());
-            return false;
-        } finally {
-            currentTaskLock.unlock();
+            return null;
         }
-        return true;
     }
 
     /**
-     * notifyEngine sends an http patch request to the core engine to notify that the task is finished.
-     * @return true if the method was successful (no exceptions), false otherwise.
+     * cacheResult puts an uploaded result in the result cache, or records the key a cached result was uploaded with
+     * again. A failure only costs a later miss, it does not fail the task.
      */
-    private boolean notifyEngine() {
+    private void cacheResult(ResultCache.Key key, BinarizedImage image, String location, String objectKey) {
+        try {
+            if (image.bytes() != null)
+                resultCache.put(key, image.bytes(), location, objectKey);
+            else
+                resultCache.put(key, image.file(), location, objectKey);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not cache the result " + objectKey + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * notifyEngine hands the status of an ended task (finished or failed) to the callback dispatcher, which sends it to
+     * the core engine in the background. The end of the task is recorded in the task journal once the engine has
+     * accepted it, a task whose notification failed or was interrupted by a restart is resumed and notified again.
+     * @param task the ended task
+     */
+    private void notifyEngine(ServiceTaskBase task) {
         JSONObject payload = new JSONObject();
         payload.put("service", SERVICE_NAME);
         payload.put("url", SERVICE_URL);
-        currentTaskLock.lock();
-        try {
-            payload.put("data_out", currentTask.getTask().getDataOut());
-            payload.put("status", currentTask.getTask().getStatus().toString().toLowerCase());
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(currentTask.getCallbackUrl()))
-                    .method("PATCH", HttpRequest.BodyPublishers.ofString(payload.toString()))
-                    .header("Content-Type", "application/json")
-                    .build();
-            logger.info("Patching task on core engine, sent request: " + request.bodyPublisher().toString());
-            HttpResponse<String> response  = HttpClient.newBuilder()
-                    .build()
-                    .send(request, HttpResponse.BodyHandlers.ofString());
-            logger.info("sent PATCH to core engine: response: " + response.body());
-        } catch (IOException | InterruptedException e) {
-            logger.error(e.getMessage());
-            handleTaskError();
-            return false;
-        } finally {
-            currentTaskLock.unlock();
-        }
-        currenTaskBinarizedImg.clear();
-        currentTaskImages.clear();
-        return true;
+        payload.put("data_out", task.getTask().getDataOut());
+        payload.put("status", task.getTask().getStatus().toString().toLowerCase());
+        callbackDispatcher.dispatch(task.getTask().getId().toString(), task.getCallbackUrl(), payload.toString())
+                .thenAccept(delivered -> {
+                    if (delivered) {
+                        taskJournal.recordEnd(task);
+                    } else if (taskJournal.isEnabled()) {
+                        logger.warn("Task " + task.getTask().getId() + " kept in the journal, the core engine is"
+                                + " notified again after the next start");
+                    }
+                });
     }
 
     /**
-     * the run method processes tasks in the task queue. If an error occurs during the operation,
-     * move on to the next task.
+     * handleTaskError releases the images of a failed page and fails its task. Once the service is stopping, the
+     * pages fail because their workers are interrupted: their task is left unfinished instead, neither failed nor
+     * notified, so the task journal resumes it at the next start.
+     * @param page the failed page
+     * @param step the step the page failed in
      */
-    private void run() {
-        while (running.get()) {
-            if (!(initTask() && processTask() && endTask() && notifyEngine())) continue;
+    private void handleTaskError(PageExecution page, Step step) {
+        page.clear();
+        if (!running.get()) {
+            logger.info("Service stopping, task " + page.getTaskBase().getTask().getId()
+                    + " left unfinished until the next start");
+            return;
         }
+        metrics.recordError(step);
+        failTask(page.getExecution());
     }
 
     /**
-     * handleTaskError sets the status of the current task to ERROR adds it to
-     * the unfinished tasks and resets the image arrays.
+     * failTask sets the status of the task to ERROR and retires it, it is kept in the registry for the retention time.
+     * The core engine is notified of the failure. Its other pages are dropped by the stages they reach next.
+     * @param execution the execution of the failed task
      */
-    private void handleTaskError() {
-        currenTaskBinarizedImg.clear();
-        currentTaskImages.clear();
-        currentTaskLock.lock();
-        currentTask.getTask().setStatus(ServiceTaskBase.TaskStatus.ERROR);
-        unfinishedTasks.add(currentTask);
-        currentTask = null;
-        currentTaskLock.unlock();
+    private void failTask(TaskExecution execution) {
+        if (!execution.markFailed()) return;
+        ServiceTaskBase task = execution.getTaskBase();
+        taskRegistry.publish(task, ServiceTaskBase.TaskStatus.ERROR);
+        taskRegistry.retire(task);
+        notifyEngine(task);
+    }
+
+    /**
+     * dropPage releases the images of a page of a failed task.
+     * @param page the page
+     * @return null, the page goes no further
+     */
+    private PageExecution dropPage(PageExecution page) {
+        page.clear();
+        return null;
     }
 }
@@ -0,0 +1,152 @@
+package ch.heia.ZigZag.service;
+
+import ch.heia.ZigZag.tasks.PageExecution;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TaskStage is one stage of the task pipeline. Its workers take items from the source, apply the stage's step and
+ * hand the resulting page over to the output queue of the next stage. Output queues are bounded, so a slow stage
+ * makes the previous one wait instead of piling up downloaded or binarized images in memory.
+ * The time spent by the step on each item is recorded in the zigzag.stage.duration timer of the stage, the number of
+ * workers busy with an item in the zigzag.stage.workers gauge (state busy, out of the total).
+ * The workers are created by the thread factory of the stage: platform threads for the compute stage, virtual threads
+ * for the I/O stages when they are enabled (see VirtualThreads).
+ * @param <I> the type of the items taken from the source
+ */
+class TaskStage<I> {
+
+    /**
+     * Source provides the items processed by a stage, take() blocks until one is available.
+     */
+    @FunctionalInterface
+    interface Source<I> {
+        I take() throws InterruptedException;
+    }
+
+    /**
+     * Step is the work done by a stage on one item.
+     */
+    @FunctionalInterface
+    interface Step<I> {
+        /**
+         * @param item the item taken from the source
+         * @return the page to hand over to the next stage, null if it must not go further (error or last stage).
+         */
+        PageExecution apply(I item) throws InterruptedException;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(TaskStage.class);
+
+    private final String name;
+    private final int threads;
+    private final Source<I> source;
+    private final Step<I> step;
+    private final BlockingQueue<PageExecution> output;
+    private final ThreadFactory threadFactory;
+    private final Timer duration;
+    private final AtomicInteger busy = new AtomicInteger();
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    /**
+     * @param name the name of the stage
+     * @param threads the number of workers of the stage
+     * @param threadFactory creates the workers of the stage
+     * @param source where the workers take their items from
+     * @param step the work done on each item
+     * @param output the queue of the next stage, null for the last stage
+     * @param meterRegistry the registry the duration of the steps is recorded in
+     */
+    TaskStage(String name, int threads, ThreadFactory threadFactory, Source<I> source, Step<I> step,
+              BlockingQueue<PageExecution> output, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.threads = threads;
+        this.source = source;
+        this.step = step;
+        this.output = output;
+        this.threadFactory = threadFactory;
+        this.duration = Timer.builder("zigzag.stage.duration")
+                .description("Time spent by a stage on one page")
+                .tag("stage", name)
+                .register(meterRegistry);
+        Gauge.builder("zigzag.stage.workers", busy, AtomicInteger::get)
+                .description("Number of workers of a stage")
+                .tag("stage", name)
+                .tag("state", "busy")
+                .register(meterRegistry);
+        Gauge.builder("zigzag.stage.workers", this, TaskStage::getThreads)
+                .description("Number of workers of a stage")
+                .tag("stage", name)
+                .tag("state", "total")
+                .register(meterRegistry);
+    }
+
+    /**
+     * start creates the workers of the stage (if they don't exist yet).
+     */
+    synchronized void start() {
+        if (executor != null) return;
+        running = true;
+        executor = Executors.newFixedThreadPool(threads, threadFactory);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(this::run);
+        }
+    }
+
+    /**
+     * stop interrupts the workers of the stage.
+     */
+    synchronized void stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * the run method is executed by each worker, it takes items until the stage is stopped. put() on the bounded
+     * output queue blocks while the next stage is saturated.
+     */
+    private void run() {
+        while (running) {
+            try {
+                I item = source.take();
+                long start = System.nanoTime();
+                busy.incrementAndGet();
+                PageExecution page;
+                try {
+                    page = step.apply(item);
+                } finally {
+                    busy.decrementAndGet();
+                    duration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+                if (page != null && output != null) output.put(page);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in stage " + name + ": " + e.getMessage());
+            }
+        }
+    }
+}
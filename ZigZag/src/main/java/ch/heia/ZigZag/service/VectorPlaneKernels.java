@@ -0,0 +1,185 @@
+package ch.heia.ZigZag.service;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorPlaneKernels are the PlaneKernels written with the Vector API (jdk.incubator.vector), on the preferred
+ * species of the CPU. The bytes of the planes are widened to ints, as many as the lanes of an IntVector, the rest of a
+ * row (less than a vector) is done by the scalar loops.
+ * The divisions are not vectorized by the CPU, the threshold of the background is compared as a product instead
+ * ((value + 1) area > percent sum is value >= percent sum / area), and the means of the foreground are divided in
+ * floats and corrected by one in ints, so the results stay the ones of the integer divisions.
+ * Only loaded by PlaneKernels.vector() when the module is there.
+ */
+final class VectorPlaneKernels extends PlaneKernels {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final int LANES = INTS.length();
+    /**
+     * INT_BYTES holds as many bytes as INTS holds ints, null if it would be smaller than the smallest shape (64 bits).
+     */
+    private static final VectorSpecies<Byte> INT_BYTES = LANES >= 8
+            ? VectorSpecies.of(byte.class, VectorShape.forBitSize(LANES * 8)) : null;
+
+    @Override
+    String name() {
+        return "vector (" + LANES + " int lanes)";
+    }
+
+    /**
+     * @return true with 8 int lanes or more (256-bit vectors), smaller vectors do not beat the scalar loops.
+     */
+    @Override
+    boolean isUseful() {
+        return INT_BYTES != null;
+    }
+
+    private static IntVector widen(byte[] plane, int offset) {
+        return ((IntVector) ByteVector.fromArray(INT_BYTES, plane, offset)
+                .convertShape(VectorOperators.B2I, INTS, 0)).lanewise(VectorOperators.AND, 0xFF);
+    }
+
+    private static void narrow(IntVector values, byte[] plane, int offset) {
+        values.convertShape(VectorOperators.I2B, INT_BYTES, 0).reinterpretAsBytes().intoArray(plane, offset);
+    }
+
+    /**
+     * divide divides non-negative ints below 2^24 by positive ones, rounding down like the integer division.
+     */
+    private static IntVector divide(IntVector dividend, IntVector divisor) {
+        FloatVector quotient = ((FloatVector) dividend.convert(VectorOperators.I2F, 0))
+                .div((FloatVector) divisor.convert(VectorOperators.I2F, 0));
+        IntVector result = (IntVector) quotient.convert(VectorOperators.F2I, 0);
+        result = result.sub(1, result.mul(divisor).compare(VectorOperators.GT, dividend));
+        return result.add(1, result.add(1).mul(divisor).compare(VectorOperators.LE, dividend));
+    }
+
+    @Override
+    void grayFromRgb(int[] pixels, int offset, byte[] gray, int out, int width) {
+        int x = 0;
+        for (; x < INTS.loopBound(width); x += LANES) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, offset + x);
+            IntVector red = pixel.lanewise(VectorOperators.LSHR, 16).lanewise(VectorOperators.AND, 0xFF);
+            IntVector green = pixel.lanewise(VectorOperators.LSHR, 8).lanewise(VectorOperators.AND, 0xFF);
+            IntVector blue = pixel.lanewise(VectorOperators.AND, 0xFF);
+            narrow(red.mul(77).add(green.mul(150)).add(blue.mul(29)).add(128).lanewise(VectorOperators.LSHR, 8),
+                    gray, out + x);
+        }
+        super.grayFromRgb(pixels, offset + x, gray, out + x, width - x);
+    }
+
+    @Override
+    void addRow(int[] sums, byte[] plane, int offset, int width) {
+        int x = 0;
+        for (; x < INTS.loopBound(width); x += LANES)
+            IntVector.fromArray(INTS, sums, x).add(widen(plane, offset + x)).intoArray(sums, x);
+        for (; x < width; x++) sums[x] += plane[offset + x] & 0xFF;
+    }
+
+    @Override
+    void subtractRow(int[] sums, byte[] plane, int offset, int width) {
+        int x = 0;
+        for (; x < INTS.loopBound(width); x += LANES)
+            IntVector.fromArray(INTS, sums, x).sub(widen(plane, offset + x)).intoArray(sums, x);
+        for (; x < width; x++) sums[x] -= plane[offset + x] & 0xFF;
+    }
+
+    @Override
+    void addSquaredRow(int[] sums, byte[] plane, int offset, int width) {
+        int x = 0;
+        for (; x < INTS.loopBound(width); x += LANES) {
+            IntVector value = widen(plane, offset + x);
+            IntVector.fromArray(INTS, sums, x).add(value.mul(value)).intoArray(sums, x);
+        }
+        for (; x < width; x++) {
+            int value = plane[offset + x] & 0xFF;
+            sums[x] += value * value;
+        }
+    }
+
+    @Override
+    void subtractSquaredRow(int[] sums, byte[] plane, int offset, int width) {
+        int x = 0;
+        for (; x < INTS.loopBound(width); x += LANES) {
+            IntVector value = widen(plane, offset + x);
+            IntVector.fromArray(INTS, sums, x).sub(value.mul(value)).intoArray(sums, x);
+        }
+        for (; x < width; x++) {
+            int value = plane[offset + x] & 0xFF;
+            sums[x] -= value * value;
+        }
+    }
+
+    @Override
+    void differences(int[] prefix, int[] box, int from, int to, int half) {
+        int x = from;
+        for (; x + LANES <= to; x += LANES)
+            IntVector.fromArray(INTS, prefix, x + half + 1).sub(IntVector.fromArray(INTS, prefix, x - half))
+                    .intoArray(box, x);
+        super.differences(prefix, box, x, to, half);
+    }
+
+    @Override
+    void background(byte[] gray, int offset, int[] box, byte[] mask, byte[] maskedGray, int width, int percent,
+                    int area, int whiteThreshold) {
+        IntVector zero = IntVector.zero(INTS);
+        int x = 0;
+        for (; x < INTS.loopBound(width); x += LANES) {
+            IntVector value = widen(gray, offset + x);
+            IntVector sum = IntVector.fromArray(INTS, box, x);
+            VectorMask<Integer> background = value.compare(VectorOperators.GT, 0)
+                    .and(value.compare(VectorOperators.LE, whiteThreshold))
+                    .and(value.add(1).mul(area).compare(VectorOperators.GT, sum.mul(percent)));
+            narrow(zero.blend(1, background), mask, offset + x);
+            narrow(zero.blend(value, background), maskedGray, offset + x);
+        }
+        for (; x < width; x++) {
+            int threshold = percent * box[x] / area;
+            int value = gray[offset + x] & 0xFF;
+            if (value > whiteThreshold) value = 0;
+            boolean background = value > 0 && value >= threshold;
+            mask[offset + x] = (byte) (background ? 1 : 0);
+            maskedGray[offset + x] = (byte) (background ? value : 0);
+        }
+    }
+
+    @Override
+    void foreground(byte[] gray, int offset, int[] counts, int[] sums, byte[] foreground, int width) {
+        int x = 0;
+        for (; x < INTS.loopBound(width); x += LANES) {
+            IntVector value = widen(gray, offset + x);
+            IntVector count = IntVector.fromArray(INTS, counts, x);
+            VectorMask<Integer> empty = count.compare(VectorOperators.EQ, 0);
+            IntVector mean = divide(IntVector.fromArray(INTS, sums, x).blend(0, empty), count.blend(1, empty));
+            IntVector ratio = divide(value.lanewise(VectorOperators.LSHL, 8), mean.max(1));
+            narrow(ratio.blend(255, value.compare(VectorOperators.GE, mean)), foreground, offset + x);
+        }
+        for (; x < width; x++) {
+            int count = counts[x];
+            int mean = count == 0 ? 0 : sums[x] / count;
+            int value = gray[offset + x] & 0xFF;
+            foreground[offset + x] = (byte) (value >= mean ? 255 : value * 256 / mean);
+        }
+    }
+
+    @Override
+    void threshold(byte[] plane, byte[] output, int from, int to, int threshold) {
+        // unsigned bytes compared as signed ones, shifted by 128
+        byte shifted = (byte) (threshold ^ 0x80);
+        ByteVector white = ByteVector.broadcast(BYTES, (byte) 255);
+        int i = from;
+        for (; i + BYTES.length() <= to; i += BYTES.length()) {
+            VectorMask<Byte> below = ByteVector.fromArray(BYTES, plane, i).lanewise(VectorOperators.XOR, (byte) 0x80)
+                    .compare(VectorOperators.LT, shifted);
+            white.blend((byte) 0, below).intoArray(output, i);
+        }
+        super.threshold(plane, output, i, to, threshold);
+    }
+}
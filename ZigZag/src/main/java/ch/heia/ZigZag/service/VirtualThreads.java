@@ -0,0 +1,114 @@
+package ch.heia.ZigZag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VirtualThreads creates the threads of the I/O-bound work of the service: the fetch and save stages (S3 transfers
+ * and the callback to the core engine) and the handling of the HTTP requests by Tomcat. With VirtualThreads=true on
+ * a JDK 21 or later, these run on virtual threads, so a blocked S3 call or callback only parks a virtual thread
+ * instead of holding a platform thread, and the I/O stages can have hundreds of workers. Otherwise (or on an older
+ * JDK, with a warning) they are named platform threads as before.
+ * The CPU-bound work (the compute stage and the filter slices) always stays on platform threads, bounded by the CPU
+ * budget.
+ * The project compiles for Java 17, so the virtual thread API (Thread.ofVirtual) is looked up by reflection.
+ */
+@Service
+public class VirtualThreads {
+
+    private final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    /**
+     * ofVirtual is Thread.ofVirtual(), null before JDK 21.
+     */
+    private static final Method OF_VIRTUAL = lookUp(Thread.class, "ofVirtual");
+
+    private final boolean enabled;
+
+    /**
+     * @param requested true to run the I/O-bound work on virtual threads when the JDK supports them
+     */
+    @Autowired
+    public VirtualThreads(@Value("${VirtualThreads}") boolean requested) {
+        this.enabled = requested && isSupported();
+        if (requested && !enabled)
+            logger.warn("Virtual threads need a JDK 21 or later (running " + Runtime.version()
+                    + "), using platform threads");
+        logger.info("I/O threads: " + (enabled ? "virtual" : "platform"));
+    }
+
+    /**
+     * @return true if the JDK supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return true if the I/O-bound work runs on virtual threads.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * threadFactory creates the threads of I/O-bound workers, named name-1, name-2, ...
+     * @param name the prefix of the thread names
+     * @return a factory of virtual threads if enabled, of platform threads otherwise.
+     */
+    public ThreadFactory threadFactory(String name) {
+        return enabled ? virtualThreadFactory(name) : platformThreadFactory(name);
+    }
+
+    /**
+     * executor runs each task in a new thread of threadFactory(name), for the callers that take an Executor (Tomcat,
+     * HttpClient). Starting a virtual thread is as cheap as queueing a task, so there is no pool.
+     * @param name the prefix of the thread names
+     * @return the executor, null if virtual threads are disabled (the caller keeps its own platform pool).
+     */
+    public Executor executor(String name) {
+        if (!enabled) return null;
+        ThreadFactory factory = virtualThreadFactory(name);
+        return command -> factory.newThread(command).start();
+    }
+
+    /**
+     * platformThreadFactory creates named platform threads.
+     * @param name the prefix of the thread names
+     * @return the factory
+     */
+    static ThreadFactory platformThreadFactory(String name) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + threadIndex.incrementAndGet());
+    }
+
+    /**
+     * virtualThreadFactory calls Thread.ofVirtual().name(name + "-", 1).factory().
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual threads", e);
+        }
+    }
+
+    private static Method lookUp(Class<?> type, String method) {
+        try {
+            return type.getMethod(method);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
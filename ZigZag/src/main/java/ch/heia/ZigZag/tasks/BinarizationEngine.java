@@ -0,0 +1,54 @@
+package ch.heia.ZigZag.tasks;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * BinarizationEngine is the implementation the images of a task are binarized with, given by the optional engine of
+ * the compute payload. ZIGZAG is the ZigZag filter, VECTOR the PlaneBinarizer, which gives the same images with the
+ * Vector API (for the modes BINARY to GRAY_LEVEL, the others are left to the filter).
+ * SAUVOLA, NIBLACK, BRADLEY and OTSU are the legacy binarizers bundled with the filter, computed by the
+ * IntegralBinarizer: their images are black and white, at the size of the original, whatever the mode.
+ */
+public enum BinarizationEngine {
+    ZIGZAG("zigzag", false),
+    VECTOR("vector", false),
+    SAUVOLA("sauvola", true),
+    NIBLACK("niblack", true),
+    BRADLEY("bradley", true),
+    OTSU("otsu", true);
+
+    private final String value;
+    private final boolean thresholding;
+
+    BinarizationEngine(String value, boolean thresholding) {
+        this.value = value;
+        this.thresholding = thresholding;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return true for the engines of the legacy binarizers, which threshold the gray levels of the image instead of
+     * running the ZigZag filter.
+     */
+    public boolean isThresholding() {
+        return thresholding;
+    }
+
+    /**
+     * @param value the name of an engine (zigzag, vector, sauvola, niblack, bradley or otsu), case insensitive
+     * @return the engine, null if value is null or empty (the engine of the service).
+     * @throws IllegalArgumentException if the engine is unknown
+     */
+    public static BinarizationEngine of(String value) {
+        if (value == null || value.isEmpty()) return null;
+        for (BinarizationEngine engine : values()) {
+            if (engine.value.equalsIgnoreCase(value)) return engine;
+        }
+        throw new IllegalArgumentException("Unknown binarization engine " + value + ", expected one of "
+                + Arrays.stream(values()).map(BinarizationEngine::getValue).collect(Collectors.joining(", ")));
+    }
+}
@@ -0,0 +1,37 @@
+package ch.heia.ZigZag.tasks;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+
+/**
+ * BinarizedImage is the binarized image of a task input (source), either decoded (image), encoded by the encode stage
+ * (bytes), already encoded as a PNG file (file) by the strip binarization of large images, or taken from the result
+ * cache (PNG bytes or file). format is the format of the encoded image, null while it is only decoded.
+ * A cached result may come with the key of an object already uploaded with the same content (objectKey).
+ */
+public record BinarizedImage(String source, BufferedImage image, Path file, byte[] bytes, OutputFormat format,
+                             String objectKey) {
+
+    public static BinarizedImage decoded(String source, BufferedImage image) {
+        return new BinarizedImage(source, image, null, null, null, null);
+    }
+
+    public static BinarizedImage encoded(String source, Path pngFile) {
+        return new BinarizedImage(source, null, pngFile, null, OutputFormat.PNG, null);
+    }
+
+    public static BinarizedImage encoded(String source, byte[] bytes, OutputFormat format) {
+        return new BinarizedImage(source, null, null, bytes, format, null);
+    }
+
+    public static BinarizedImage cached(String source, byte[] png, Path pngFile, String objectKey) {
+        return new BinarizedImage(source, null, pngFile, png, OutputFormat.PNG, objectKey);
+    }
+
+    /**
+     * @return true once the image is encoded, in memory or in a file.
+     */
+    public boolean isEncoded() {
+        return bytes != null || file != null;
+    }
+}
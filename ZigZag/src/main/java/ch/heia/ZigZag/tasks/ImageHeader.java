@@ -0,0 +1,40 @@
+package ch.heia.ZigZag.tasks;
+
+/**
+ * ImageHeader describes an encoded image from its header only, before it is decoded: its format, its size and the
+ * layout of its samples. It is read by BinarizationService.inspect and decides how (and if) the image is decoded, see
+ * ImageRouter.
+ * @param format the format of the image, in lower case ("png" or "jpeg" for the supported ones)
+ * @param width the width of the image, in pixels
+ * @param height the height of the image, in pixels
+ * @param bands the number of samples per pixel, 0 if the decoder does not tell it before decoding
+ * @param bitsPerPixel the number of bits per pixel once decoded, 0 if the decoder does not tell it before decoding
+ */
+public record ImageHeader(String format, int width, int height, int bands, int bitsPerPixel) {
+
+    /**
+     * @return the number of pixels of the image.
+     */
+    public long pixels() {
+        return (long) width * height;
+    }
+
+    /**
+     * @return true if the image is a gray level one (a single band).
+     */
+    public boolean isGray() {
+        return bands == 1;
+    }
+
+    /**
+     * @return true if the image is a PNG or JPEG image of positive size.
+     */
+    public boolean isSupported() {
+        return ("png".equals(format) || "jpeg".equals(format)) && width > 0 && height > 0;
+    }
+
+    @Override
+    public String toString() {
+        return format + " " + width + "x" + height + ", " + bands + " bands, " + bitsPerPixel + " bits per pixel";
+    }
+}
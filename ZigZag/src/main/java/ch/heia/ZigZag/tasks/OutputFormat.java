@@ -0,0 +1,47 @@
+package ch.heia.ZigZag.tasks;
+
+/**
+ * OutputFormat is the format the binarized images of a task are encoded in, given by the optional format of the
+ * compute payload. TIFF images of the black and white modes are compressed with CCITT Group 4 (T.6), which is much
+ * smaller than PNG for bilevel scans, the other modes with deflate.
+ */
+public enum OutputFormat {
+    PNG("png", ".png", "image/png"),
+    TIFF("tiff", ".tif", "image/tiff");
+
+    private final String value;
+    private final String extension;
+    private final String contentType;
+
+    OutputFormat(String value, String extension, String contentType) {
+        this.value = value;
+        this.extension = extension;
+        this.contentType = contentType;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @param value the name of a format (png, tiff or tif), case insensitive
+     * @return the format, PNG if value is null or empty.
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    public static OutputFormat of(String value) {
+        if (value == null || value.isEmpty()) return PNG;
+        if (value.equalsIgnoreCase("tif")) return TIFF;
+        for (OutputFormat format : values()) {
+            if (format.value.equalsIgnoreCase(value)) return format;
+        }
+        throw new IllegalArgumentException("Unknown output format " + value + ", expected png or tiff");
+    }
+}
@@ -0,0 +1,170 @@
+package ch.heia.ZigZag.tasks;
+
+import ch.heia.ZigZag.service.BufferPool;
+import ch.heia.ZigZag.service.MemoryBudget;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * PageExecution holds the working state of one image (page) of a task while it goes through the pipeline. The pages
+ * of a task travel through the stages independently of each other, only one worker works on a page at a time.
+ * A task without images goes through the pipeline as one empty page (file is null), so that it is finished and
+ * notified like the others.
+ */
+public class PageExecution {
+
+    private final TaskExecution execution;
+    private final String file;
+
+    /**
+     * header describes the image from its header, read by the fetch stage before the image is decoded.
+     */
+    private ImageHeader header;
+
+    /**
+     * image is the downloaded and decoded image.
+     */
+    private BufferedImage image;
+
+    /**
+     * spooledImage is the image too large to be decoded at once, downloaded to a temporary file for the strip
+     * binarization.
+     */
+    private Path spooledImage;
+
+    /**
+     * digest is the SHA-256 (hex) of the downloaded file, when the result cache is enabled.
+     */
+    private String digest;
+
+    /**
+     * binarizedImage is the result, binarized by the compute stage or found in the result cache by the fetch stage.
+     */
+    private BinarizedImage binarizedImage;
+
+    /**
+     * buffers is the lease of the pooled rasters of the page, taken by the fetch stage and closed with clear.
+     */
+    private BufferPool.Lease buffers;
+
+    /**
+     * memory is the reservation of the heap of the page in the MemoryBudget, taken by the fetch stage once the header
+     * of the image is read and closed with clear.
+     */
+    private MemoryBudget.Reservation memory;
+
+    PageExecution(TaskExecution execution, String file) {
+        this.execution = execution;
+        this.file = file;
+    }
+
+    public TaskExecution getExecution() {
+        return execution;
+    }
+
+    public ServiceTaskBase getTaskBase() {
+        return execution.getTaskBase();
+    }
+
+    /**
+     * @return the storage key of the image, null for the empty page of a task without images.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    public boolean isEmpty() {
+        return file == null;
+    }
+
+    public ImageHeader getHeader() {
+        return header;
+    }
+
+    public void setHeader(ImageHeader header) {
+        this.header = header;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public void setImage(BufferedImage image) {
+        this.image = image;
+    }
+
+    public Path getSpooledImage() {
+        return spooledImage;
+    }
+
+    public void setSpooledImage(Path spooledImage) {
+        this.spooledImage = spooledImage;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    public BinarizedImage getBinarizedImage() {
+        return binarizedImage;
+    }
+
+    public void setBinarizedImage(BinarizedImage binarizedImage) {
+        this.binarizedImage = binarizedImage;
+    }
+
+    public BufferPool.Lease getBuffers() {
+        return buffers;
+    }
+
+    public void setBuffers(BufferPool.Lease buffers) {
+        this.buffers = buffers;
+    }
+
+    public MemoryBudget.Reservation getMemory() {
+        return memory;
+    }
+
+    public void setMemory(MemoryBudget.Reservation memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * clearSpooledImage deletes the temporary file of the spooled image.
+     */
+    public void clearSpooledImage() {
+        if (spooledImage != null) delete(spooledImage);
+        spooledImage = null;
+    }
+
+    /**
+     * clear releases the images held by the page, gives its buffers back to the pool, its reservation back to the
+     * memory budget and deletes its temporary files.
+     */
+    public void clear() {
+        image = null;
+        clearSpooledImage();
+        if (binarizedImage != null && binarizedImage.file() != null) delete(binarizedImage.file());
+        binarizedImage = null;
+        if (buffers != null) buffers.close();
+        buffers = null;
+        if (memory != null) memory.close();
+        memory = null;
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // still open somewhere, try again when the service stops
+            file.toFile().deleteOnExit();
+        }
+    }
+}
@@ -14,6 +14,21 @@ public class ServiceTaskBase {
     private ServiceTaskTask task;
     private String callbackUrl;
 
+    /**
+     * priority is the optional priority of the task given in the compute payload, 0 by default.
+     */
+    private int priority;
+
+    /**
+     * outputFormat is the optional format of the binarized images given in the compute payload, PNG by default.
+     */
+    private OutputFormat outputFormat = OutputFormat.PNG;
+
+    /**
+     * engine is the optional binarization engine given in the compute payload, null for the engine of the service.
+     */
+    private BinarizationEngine engine;
+
     public ServiceTaskBase(String s3AccessKeyId, String s3SecretAccessKey, String s3Region, String s3Host, String s3Bucket, ServiceTaskTask task, String callbackUrl) {
         this.s3AccessKeyId = s3AccessKeyId;
         this.s3SecretAccessKey = s3SecretAccessKey;
@@ -70,4 +85,28 @@ public class ServiceTaskBase {
     public String getCallbackUrl() {
         return callbackUrl;
     }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    public BinarizationEngine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(BinarizationEngine engine) {
+        this.engine = engine;
+    }
 }
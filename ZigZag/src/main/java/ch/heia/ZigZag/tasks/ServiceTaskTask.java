@@ -8,7 +8,7 @@ public class ServiceTaskTask {
 
     private final ArrayList<String> dataOut = new ArrayList<>();
 
-    private ServiceTaskBase.TaskStatus status;
+    private volatile ServiceTaskBase.TaskStatus status;
     private UUID serviceId;
     private UUID pipelineExecutionID;
 
@@ -30,6 +30,14 @@ public class ServiceTaskTask {
         return id;
     }
 
+    public UUID getServiceId() {
+        return serviceId;
+    }
+
+    public UUID getPipelineExecutionID() {
+        return pipelineExecutionID;
+    }
+
     public ArrayList<String> getDataIn() {
         return dataIn;
     }
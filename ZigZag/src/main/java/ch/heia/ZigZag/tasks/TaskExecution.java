@@ -0,0 +1,147 @@
+package ch.heia.ZigZag.tasks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TaskExecution holds the working state of one task while its images are processed. Each distinct image of data_in
+ * is a page (PageExecution) going through the pipeline on its own, so the pages of a task are fetched, binarized and
+ * saved in parallel. The task hands its pages out one at a time (nextPage), which lets the caller bound the number of
+ * pages of a task in flight, and collects the key of each saved result so that data_out follows data_in whatever the
+ * order the pages finish in.
+ */
+public class TaskExecution {
+
+    private final ServiceTaskBase taskBase;
+
+    /**
+     * files contains the distinct storage keys of data_in, in data_in order.
+     */
+    private final List<String> files;
+
+    /**
+     * pending contains the files whose result is not saved yet, all the files unless the task is resumed.
+     */
+    private final List<String> pending;
+
+    /**
+     * results contains the keys of the saved results, keyed by the storage key of their image.
+     */
+    private final Map<String, String> results = new ConcurrentHashMap<>();
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    public TaskExecution(ServiceTaskBase taskBase) {
+        this(taskBase, Map.of());
+    }
+
+    /**
+     * @param taskBase the task
+     * @param savedResults the keys of the results saved before the task was interrupted, by storage key of their
+     *                     image, these pages are not processed again
+     */
+    public TaskExecution(ServiceTaskBase taskBase, Map<String, String> savedResults) {
+        this.taskBase = taskBase;
+        this.files = new ArrayList<>(new LinkedHashSet<>(taskBase.getTask().getDataIn()));
+        this.pending = new ArrayList<>();
+        for (String file : files) {
+            String objectKey = savedResults.get(file);
+            if (objectKey != null) results.put(file, objectKey);
+            else pending.add(file);
+        }
+        this.remaining = new AtomicInteger(getPageCount());
+    }
+
+    public ServiceTaskBase getTaskBase() {
+        return taskBase;
+    }
+
+    public ServiceTaskTask getTask() {
+        return taskBase.getTask();
+    }
+
+    /**
+     * @return the number of pages of the task to process, 1 for a task without images (its empty page), 0 for a
+     * resumed task whose results are all saved.
+     */
+    public int getPageCount() {
+        return files.isEmpty() ? 1 : pending.size();
+    }
+
+    /**
+     * @return true if the results of all the pages are saved.
+     */
+    public boolean isComplete() {
+        return remaining.get() == 0;
+    }
+
+    /**
+     * nextPage hands out the next page of the task to process.
+     * @return the page, null if all the pages were handed out or the task failed.
+     */
+    public PageExecution nextPage() {
+        if (failed.get()) return null;
+        int index = scheduled.getAndIncrement();
+        if (index >= getPageCount()) return null;
+        return new PageExecution(this, files.isEmpty() ? null : pending.get(index));
+    }
+
+    /**
+     * complete records the saved result of a page.
+     * @param page the page
+     * @param objectKey the storage key of the result
+     * @return true if it was the last page of the task.
+     */
+    public boolean complete(PageExecution page, String objectKey) {
+        if (!page.isEmpty()) results.put(page.getFile(), objectKey);
+        return remaining.decrementAndGet() == 0;
+    }
+
+    /**
+     * markFailed marks the task as failed and sets its ERROR status, its pages still in the pipeline are then
+     * dropped. The status is set under the monitor of advanceStatus, so a page in another stage can not move it back.
+     * @return true for the first failure of the task.
+     */
+    public synchronized boolean markFailed() {
+        if (!failed.compareAndSet(false, true)) return false;
+        getTask().setStatus(ServiceTaskBase.TaskStatus.ERROR);
+        return true;
+    }
+
+    /**
+     * markFinished sets the FINISHED status of a task whose pages are all saved, under the monitor of advanceStatus.
+     */
+    public synchronized void markFinished() {
+        getTask().setStatus(ServiceTaskBase.TaskStatus.FINISHED);
+    }
+
+    public boolean isFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the keys of the results, in data_in order (an image given twice has its result twice).
+     */
+    public List<String> getDataOut() {
+        return getTask().getDataIn().stream().map(results::get).toList();
+    }
+
+    /**
+     * advanceStatus moves the status of the task forward, the pages in different stages never move it back.
+     * @param status the stage reached by one of the pages
+     * @return true if the status changed.
+     */
+    public synchronized boolean advanceStatus(ServiceTaskBase.TaskStatus status) {
+        ServiceTaskBase.TaskStatus current = getTask().getStatus();
+        if (current == ServiceTaskBase.TaskStatus.ERROR) return false;
+        if (current != null && current.ordinal() >= status.ordinal()) return false;
+        getTask().setStatus(status);
+        return true;
+    }
+}
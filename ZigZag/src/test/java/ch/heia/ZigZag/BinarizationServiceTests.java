@@ -0,0 +1,105 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinarizationServiceTests {
+
+	private FilterRegistry registry;
+	private BinarizationService binarizationService;
+
+	@BeforeEach
+	void setUp() {
+		registry = new FilterRegistry(0, 4);
+		binarizationService = new BinarizationService(registry);
+	}
+
+	@AfterEach
+	void tearDown() {
+		registry.close();
+	}
+
+	@Test
+	void grayDecodingGivesSameResultAsColorDecoding() throws IOException {
+		for (String format : new String[]{"png", "jpeg"}) {
+			byte[] encoded = SyntheticDocuments.encode(SyntheticDocuments.page(0.2, 9, true), format);
+			for (int mode = ImageBinarizer.MODE_BINARY; mode <= ImageBinarizer.MODE_GRAY_LEVEL; mode++) {
+				BufferedImage gray = binarizationService.readImage(new ByteArrayInputStream(encoded), mode);
+				assertEquals(BufferedImage.TYPE_BYTE_GRAY, gray.getType());
+				BufferedImage color = binarizationService.readImage(new ByteArrayInputStream(encoded));
+				assertPixelsEqual(binarizationService.binarizeImage(color, mode, 30),
+						binarizationService.binarizeImage(gray, mode, 30), format + " mode " + mode);
+			}
+		}
+	}
+
+	@Test
+	void colorModeKeepsColors() throws IOException {
+		byte[] encoded = SyntheticDocuments.encode(SyntheticDocuments.page(0.05, 3, true), "png");
+		BufferedImage image = binarizationService.readImage(new ByteArrayInputStream(encoded), ImageBinarizer.MODE_COLOR);
+		assertNotEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+	}
+
+	@Test
+	void binaryImageKeepsPixelsAndIsWrittenWithOneBit() throws IOException {
+		// odd width, the last byte of each row is only partly used
+		BufferedImage page = SyntheticDocuments.page(333, 471, 5, false);
+		BufferedImage binarized = binarizationService.binarizeImage(page, ImageBinarizer.MODE_BINARY, 30);
+		assertTrue(BinarizationService.isBinaryOutput(ImageBinarizer.MODE_BINARY));
+		assertFalse(BinarizationService.isBinaryOutput(BinarizationService.DEFAULT_BIN_MODE));
+
+		BufferedImage binary = binarizationService.toBinaryImage(binarized);
+		assertEquals(BufferedImage.TYPE_BYTE_BINARY, binary.getType());
+		assertPixelsEqual(binarized, binary, "packed");
+
+		byte[] png = SyntheticDocuments.encode(binary, "png");
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+		assertEquals(1, decoded.getColorModel().getPixelSize());
+		assertPixelsEqual(binarized, decoded, "decoded");
+		assertTrue(png.length < SyntheticDocuments.encode(binarized, "png").length);
+	}
+
+	@Test
+	void headerIsInspectedBeforeDecoding() throws IOException {
+		String[][] cases = {{"png", "false", "png"}, {"jpeg", "true", "jpeg"}, {"jpg", "false", "jpeg"},
+				{"gif", "false", "gif"}};
+		for (String[] test : cases) {
+			boolean color = Boolean.parseBoolean(test[1]);
+			byte[] encoded = SyntheticDocuments.encode(SyntheticDocuments.page(321, 123, 7, color), test[0]);
+			try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+				ImageReader reader = binarizationService.openReader(input);
+				ImageHeader header = binarizationService.inspect(reader);
+				reader.dispose();
+				assertEquals(test[2], header.format(), test[0]);
+				assertEquals(321, header.width(), test[0]);
+				assertEquals(123, header.height(), test[0]);
+				assertEquals(321L * 123, header.pixels(), test[0]);
+				assertEquals(!test[0].equals("gif"), header.isSupported(), test[0]);
+				if (!test[0].equals("gif")) assertEquals(!color, header.isGray(), test[0]);
+			}
+		}
+	}
+
+	private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual, String message) {
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				if (expected.getRGB(x, y) != actual.getRGB(x, y))
+					fail(message + ": pixels differ at " + x + "," + y);
+	}
+}
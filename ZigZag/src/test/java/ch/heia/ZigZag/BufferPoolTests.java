@@ -0,0 +1,187 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.BufferPool;
+import ch.heia.ZigZag.service.FilterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTests {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final BufferPool pool = new BufferPool(16 << 20, meterRegistry);
+	private FilterRegistry registry;
+	private BinarizationService binarizationService;
+
+	@BeforeEach
+	void setUp() {
+		registry = new FilterRegistry(0, 4);
+		binarizationService = new BinarizationService(registry);
+	}
+
+	@AfterEach
+	void tearDown() {
+		registry.close();
+	}
+
+	private double requests(String result) {
+		return meterRegistry.find("zigzag.buffers.requests").tag("result", result).functionCounter().count();
+	}
+
+	@Test
+	void buffersOfTheSameSizeClassAreReused() {
+		byte[] first = pool.takeBytes(300_000);
+		assertTrue(first.length >= 300_000 && first.length <= 300_000 * 5 / 4);
+		pool.giveBytes(first);
+		assertEquals(first.length, pool.getPooledBytes());
+		// any size of the class gets the same array back
+		assertSame(first, pool.takeBytes(first.length - 1000));
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(1, requests("reused"));
+		assertEquals(1, requests("allocated"));
+
+		// small arrays are not pooled
+		byte[] small = pool.takeBytes(1000);
+		assertEquals(1000, small.length);
+		pool.giveBytes(small);
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	void poolIsBoundedByBytes() {
+		byte[][] arrays = new byte[6][];
+		for (int i = 0; i < arrays.length; i++) arrays[i] = pool.takeBytes(4 << 20);
+		for (byte[] array : arrays) pool.giveBytes(array);
+		assertEquals(16 << 20, pool.getPooledBytes());
+
+		BufferPool disabled = new BufferPool(0);
+		byte[] exact = disabled.takeBytes(300_000);
+		assertEquals(300_000, exact.length);
+		disabled.giveBytes(exact);
+		assertEquals(0, disabled.getPooledBytes());
+		assertFalse(disabled.takeDirect(100_000).isDirect());
+	}
+
+	@Test
+	void leaseGivesBackWhatWasNotReleased() {
+		ByteBuffer direct;
+		try (BufferPool.Lease lease = pool.lease()) {
+			byte[] bytes = lease.bytes(100_000);
+			int[] ints = lease.ints(100_000);
+			direct = lease.direct(200_000);
+			assertTrue(direct.isDirect());
+			assertEquals(direct.capacity(), direct.remaining());
+			lease.release(bytes);
+			assertEquals(bytes.length, pool.getPooledBytes());
+			// released twice, kept once
+			lease.release(bytes);
+			lease.release(new byte[bytes.length]);
+			assertEquals(bytes.length, pool.getPooledBytes());
+			assertTrue(ints.length >= 100_000);
+		}
+		assertEquals(3, requests("allocated"));
+		try (BufferPool.Lease lease = pool.lease()) {
+			assertSame(direct, lease.direct(direct.capacity()));
+			lease.ints(100_000);
+			lease.bytes(100_000);
+		}
+		assertEquals(3, requests("reused"));
+	}
+
+	@Test
+	void pooledImagesAreClearedAndReused() {
+		BufferedImage gray;
+		byte[] data;
+		try (BufferPool.Lease lease = pool.lease()) {
+			gray = lease.image(BufferedImage.TYPE_BYTE_GRAY, 500, 400);
+			assertEquals(BufferedImage.TYPE_BYTE_GRAY, gray.getType());
+			data = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+			Arrays.fill(data, (byte) 200);
+		}
+		try (BufferPool.Lease lease = pool.lease()) {
+			BufferedImage binary = lease.image(BufferedImage.TYPE_BYTE_BINARY, 2000, 1000);
+			assertEquals(BufferedImage.TYPE_BYTE_BINARY, binary.getType());
+			BufferedImage again = lease.image(BufferedImage.TYPE_BYTE_GRAY, 400, 500);
+			assertSame(data, ((DataBufferByte) again.getRaster().getDataBuffer()).getData());
+			for (int y = 0; y < again.getHeight(); y++)
+				for (int x = 0; x < again.getWidth(); x++)
+					assertEquals(0, again.getRaster().getSample(x, y, 0));
+		}
+	}
+
+	@Test
+	void imagesDecodedIntoPooledRastersAreTheSame() throws IOException {
+		BufferedImage color = SyntheticDocuments.page(640, 480, 7, true);
+		BufferedImage translucent = new BufferedImage(640, 480, BufferedImage.TYPE_INT_ARGB);
+		translucent.getGraphics().drawImage(color, 0, 0, null);
+		for (int x = 0; x < 640; x++) translucent.setRGB(x, 10, 0x00FFFFFF);
+		byte[][] inputs = {SyntheticDocuments.encode(color, "jpeg"), SyntheticDocuments.encode(color, "png"),
+				SyntheticDocuments.encode(SyntheticDocuments.page(640, 480, 7, false), "png"),
+				SyntheticDocuments.encode(translucent, "png")};
+		for (byte[] input : inputs) {
+			for (int mode : new int[]{ImageBinarizer.MODE_BINARY, ImageBinarizer.MODE_COLOR}) {
+				BufferedImage expected = binarizationService.readImage(new ByteArrayInputStream(input), mode);
+				// twice, the second time into the rasters released by the first one
+				for (int i = 0; i < 2; i++) {
+					try (BufferPool.Lease lease = pool.lease();
+						 ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(input))) {
+						ImageReader reader = binarizationService.openReader(stream);
+						BufferedImage actual = binarizationService.readImage(reader, mode, lease);
+						reader.dispose();
+						assertEquals(expected.getType(), actual.getType());
+						assertSamePixels(expected, actual);
+					}
+				}
+			}
+		}
+		assertTrue(requests("reused") > 0);
+	}
+
+	@Test
+	void packedImagesAreTheSame() {
+		BufferedImage page = SyntheticDocuments.page(999, 701, 3, false);
+		BufferedImage binarized = binarizationService.binarizeImage(page, ImageBinarizer.MODE_BINARY,
+				BinarizationService.DEFAULT_WINDOW_SIZE);
+		BufferedImage expected = binarizationService.toBinaryImage(binarized);
+		try (BufferPool.Lease lease = pool.lease()) {
+			assertSamePixels(expected, binarizationService.toBinaryImage(binarized, lease));
+		}
+	}
+
+	@Test
+	void outputGrowsThroughThePool() throws IOException {
+		byte[] content = new byte[1_000_000];
+		new java.util.Random(5).nextBytes(content);
+		try (BufferPool.Output output = pool.output(1000)) {
+			for (int offset = 0; offset < content.length; offset += 4096)
+				output.write(content, offset, Math.min(4096, content.length - offset));
+			assertEquals(content.length, output.size());
+			assertArrayEquals(content, output.toByteArray());
+		}
+		assertTrue(pool.getPooledBytes() >= content.length);
+	}
+
+	private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				if (expected.getRGB(x, y) != actual.getRGB(x, y))
+					fail("pixels differ at " + x + "," + y);
+	}
+}
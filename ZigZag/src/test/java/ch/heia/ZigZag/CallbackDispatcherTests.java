@@ -0,0 +1,139 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.CallbackDispatcher;
+import ch.heia.ZigZag.service.PipelineMetrics;
+import ch.heia.ZigZag.service.VirtualThreads;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CallbackDispatcherTests {
+
+	private FakeCoreEngine engine;
+	private SimpleMeterRegistry meterRegistry;
+	private CallbackDispatcher dispatcher;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		engine = new FakeCoreEngine();
+		meterRegistry = new SimpleMeterRegistry();
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (dispatcher != null) dispatcher.close();
+		engine.close();
+	}
+
+	private CallbackDispatcher dispatcher(int maxAttempts, int hostConcurrency) {
+		dispatcher = new CallbackDispatcher(maxAttempts, 10, 40, hostConcurrency, 5, new VirtualThreads(false),
+				new PipelineMetrics(meterRegistry), meterRegistry);
+		return dispatcher;
+	}
+
+	private static String body(String status) {
+		return new JSONObject().put("status", status).put("data_out", List.of("out.png")).toString();
+	}
+
+	private static boolean await(CompletableFuture<Boolean> future) throws Exception {
+		return future.get(10, TimeUnit.SECONDS);
+	}
+
+	private double callbacks(String result) {
+		return meterRegistry.find("zigzag.callbacks").tag("result", result).counter().count();
+	}
+
+	@Test
+	void updateIsDelivered() throws Exception {
+		assertTrue(await(dispatcher(3, 4).dispatch("t1", engine.callbackUrl("t1"), body("finished"))));
+		assertEquals("finished", engine.getCallback("t1").status());
+		assertEquals(1, engine.getCallback("t1").dataOut());
+		assertEquals(1, callbacks("delivered"));
+		assertEquals(0, dispatcher.getPendingCount());
+	}
+
+	@Test
+	void transientFailuresAreRetried() throws Exception {
+		engine.failNext(2, 503);
+		assertTrue(await(dispatcher(3, 4).dispatch("t1", engine.callbackUrl("t1"), body("finished"))));
+		assertEquals(3, engine.requestCount());
+		assertEquals(2, callbacks("retried"));
+		assertEquals(1, callbacks("delivered"));
+
+		engine.failNext(1, 429);
+		assertTrue(await(dispatcher.dispatch("t2", engine.callbackUrl("t2"), body("finished"))));
+		assertEquals(5, engine.requestCount());
+	}
+
+	@Test
+	void deliveryGivesUpAfterTheLastAttempt() throws Exception {
+		engine.failNext(10, 500);
+		assertFalse(await(dispatcher(3, 4).dispatch("t1", engine.callbackUrl("t1"), body("finished"))));
+		assertEquals(3, engine.requestCount());
+		assertEquals(1, callbacks("failed"));
+		assertNull(engine.getCallback("t1"));
+	}
+
+	@Test
+	void clientErrorsAreNotRetried() throws Exception {
+		engine.failNext(1, 404);
+		assertFalse(await(dispatcher(3, 4).dispatch("t1", engine.callbackUrl("t1"), body("finished"))));
+		assertEquals(1, engine.requestCount());
+		assertEquals(0, callbacks("retried"));
+	}
+
+	@Test
+	void unreachableEngineIsRetried() throws Exception {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		assertFalse(await(dispatcher(3, 4).dispatch("t1", "http://127.0.0.1:" + port + "/tasks/t1",
+				body("finished"))));
+		assertEquals(2, callbacks("retried"));
+		assertFalse(await(dispatcher.dispatch("t2", "not a url", body("finished"))));
+	}
+
+	@Test
+	void updatesOfATaskAreCoalesced() throws Exception {
+		engine.setLatency(300);
+		dispatcher(3, 4);
+		List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+		futures.add(dispatcher.dispatch("t1", engine.callbackUrl("t1"), body("processing")));
+		// the first update is in flight, only the last of the next ones is sent after it
+		Thread.sleep(100);
+		futures.add(dispatcher.dispatch("t1", engine.callbackUrl("t1"), body("saving")));
+		futures.add(dispatcher.dispatch("t1", engine.callbackUrl("t1"), body("finished")));
+		for (CompletableFuture<Boolean> future : futures) assertTrue(await(future));
+		List<FakeCoreEngine.Callback> received = engine.getCallbacks("t1");
+		assertEquals(2, received.size());
+		assertEquals("processing", received.get(0).status());
+		assertEquals("finished", received.get(1).status());
+		assertEquals(1, callbacks("coalesced"));
+	}
+
+	@Test
+	void requestsToAHostAreLimited() throws Exception {
+		engine.setLatency(100);
+		dispatcher(3, 2);
+		List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			futures.add(dispatcher.dispatch("t" + i, engine.callbackUrl("t" + i), body("finished")));
+		// the dispatch does not wait for the engine
+		assertTrue(dispatcher.getPendingCount() > 0);
+		for (CompletableFuture<Boolean> future : futures) assertTrue(await(future));
+		assertEquals(8, engine.callbackCount());
+		assertTrue(engine.maxInFlight() <= 2, "max in flight " + engine.maxInFlight());
+	}
+}
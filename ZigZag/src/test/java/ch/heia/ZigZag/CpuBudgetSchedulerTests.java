@@ -0,0 +1,97 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.CpuBudgetScheduler;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CpuBudgetSchedulerTests {
+
+	private static final int BUDGET = 8;
+	private static final long PIXELS_PER_THREAD = 1_000_000;
+
+	private MeterRegistry meterRegistry;
+	private CpuBudgetScheduler scheduler;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		scheduler = new CpuBudgetScheduler(BUDGET, PIXELS_PER_THREAD, meterRegistry);
+	}
+
+	@Test
+	void singleHugePageIsSlicedOverTheWholeBudget() throws Exception {
+		try (CpuBudgetScheduler.Grant grant = scheduler.acquire(100 * PIXELS_PER_THREAD)) {
+			assertEquals(BUDGET, grant.threads());
+			assertEquals(BUDGET, scheduler.coresInUse());
+		}
+		assertEquals(0, scheduler.coresInUse());
+	}
+
+	@Test
+	void smallPageIsNotSliced() throws Exception {
+		try (CpuBudgetScheduler.Grant grant = scheduler.acquire(PIXELS_PER_THREAD / 2)) {
+			assertEquals(1, grant.threads());
+		}
+	}
+
+	@Test
+	void queuedImagesNarrowTheGrants() throws Exception {
+		scheduler.setBacklog(() -> 3);
+		try (CpuBudgetScheduler.Grant grant = scheduler.acquire(100 * PIXELS_PER_THREAD)) {
+			assertEquals(BUDGET / 4, grant.threads());
+		}
+		scheduler.setBacklog(() -> 100);
+		try (CpuBudgetScheduler.Grant grant = scheduler.acquire(100 * PIXELS_PER_THREAD)) {
+			assertEquals(1, grant.threads());
+		}
+	}
+
+	@Test
+	void grantsNeverExceedTheBudget() throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(BUDGET * 2);
+		AtomicInteger inUse = new AtomicInteger();
+		AtomicInteger maxInUse = new AtomicInteger();
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				long pixels = (i % 7 + 1) * PIXELS_PER_THREAD;
+				results.add(workers.submit(() -> {
+					try (CpuBudgetScheduler.Grant grant = scheduler.acquire(pixels)) {
+						maxInUse.accumulateAndGet(inUse.addAndGet(grant.threads()), Math::max);
+						Thread.sleep(1);
+						inUse.addAndGet(-grant.threads());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> result : results) result.get();
+		} finally {
+			workers.shutdownNow();
+		}
+		assertTrue(maxInUse.get() <= BUDGET, "cores in use exceeded the budget: " + maxInUse.get());
+		assertEquals(0, scheduler.coresInUse());
+		assertEquals(200, meterRegistry.find("zigzag.cpu.grant.threads").summary().count());
+	}
+
+	@Test
+	void decisionsAreExported() throws Exception {
+		assertEquals(BUDGET, meterRegistry.find("zigzag.cpu.budget").gauge().value());
+		try (CpuBudgetScheduler.Grant grant = scheduler.acquire(4 * PIXELS_PER_THREAD)) {
+			assertEquals(4, grant.threads());
+			assertEquals(4, meterRegistry.find("zigzag.cpu.cores.in.use").gauge().value());
+			assertEquals(1, meterRegistry.find("zigzag.cpu.images.running").gauge().value());
+		}
+		assertEquals(4, meterRegistry.find("zigzag.cpu.grant.threads").summary().max());
+	}
+}
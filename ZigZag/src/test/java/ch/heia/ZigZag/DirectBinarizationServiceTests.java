@@ -0,0 +1,188 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.BufferPool;
+import ch.heia.ZigZag.service.CpuBudgetScheduler;
+import ch.heia.ZigZag.service.DirectBinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import ch.heia.ZigZag.service.ImageEncoder;
+import ch.heia.ZigZag.service.MemoryBudget;
+import ch.heia.ZigZag.tasks.OutputFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.http.HttpStatus;
+import sugarcube.zigzag.ImageBinarizer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectBinarizationServiceTests {
+
+	private static final long MAX_BYTES = 2_000_000;
+	private static final long MAX_PIXELS = 1_000_000;
+	private static final int MAX_WINDOW_SIZE = 100;
+
+	private FilterRegistry registry;
+	private BinarizationService binarizationService;
+	private DirectBinarizationService directService;
+
+	@BeforeEach
+	void setUp() {
+		registry = new FilterRegistry(0, 4);
+		binarizationService = new BinarizationService(registry);
+		CpuBudgetScheduler scheduler = new CpuBudgetScheduler(2, 1_000_000, new SimpleMeterRegistry());
+		directService = new DirectBinarizationService(binarizationService, scheduler, new ImageEncoder(),
+				new BufferPool(16 << 20), new MemoryBudget(0, 0, new SimpleMeterRegistry()),
+				ImageBinarizer.MODE_BINARY_ANTIALIASED, MAX_BYTES, MAX_PIXELS, MAX_WINDOW_SIZE, 1);
+	}
+
+	@AfterEach
+	void tearDown() {
+		registry.close();
+	}
+
+	private static HttpStatus rejection(Executable executable) {
+		return assertThrows(DirectBinarizationService.Rejection.class, executable).getStatus();
+	}
+
+	@Test
+	void responseIsTheBinarizedPng() throws Exception {
+		BufferedImage page = SyntheticDocuments.page(500, 700, 4, true);
+		byte[] encoded = SyntheticDocuments.encode(page, "jpeg");
+		for (int mode = ImageBinarizer.MODE_BINARY; mode <= ImageBinarizer.MODE_GRAY_LEVEL; mode++) {
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			try (DirectBinarizationService.Binarized binarized = directService.binarize(
+					new ByteArrayInputStream(encoded), encoded.length, mode, 20, null, null)) {
+				binarized.writeTo(png);
+			}
+			BufferedImage expected = binarizationService.binarizeImage(
+					binarizationService.readImage(new ByteArrayInputStream(encoded), mode), mode, 20);
+			BufferedImage actual = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+			assertEquals(BinarizationService.isBinaryOutput(mode) ? 1 : 8, actual.getColorModel().getPixelSize());
+			assertEquals(expected.getWidth(), actual.getWidth());
+			assertEquals(expected.getHeight(), actual.getHeight());
+			for (int y = 0; y < expected.getHeight(); y++)
+				for (int x = 0; x < expected.getWidth(); x++)
+					if (expected.getRGB(x, y) != actual.getRGB(x, y))
+						fail("mode " + mode + ": pixels differ at " + x + "," + y);
+		}
+	}
+
+	@Test
+	void badParametersAreRejected() throws Exception {
+		byte[] encoded = SyntheticDocuments.encode(SyntheticDocuments.page(100, 100, 1, false), "png");
+		assertEquals(HttpStatus.BAD_REQUEST, rejection(() -> directService.binarize(
+				new ByteArrayInputStream(encoded), encoded.length, 7, null, null, null)));
+		assertEquals(HttpStatus.BAD_REQUEST, rejection(() -> directService.binarize(
+				new ByteArrayInputStream(encoded), encoded.length, null, 0, null, null)));
+		assertEquals(HttpStatus.BAD_REQUEST, rejection(() -> directService.binarize(
+				new ByteArrayInputStream(encoded), encoded.length, null, MAX_WINDOW_SIZE + 1, null, "zigzag")));
+		assertEquals(HttpStatus.UNSUPPORTED_MEDIA_TYPE, rejection(() -> directService.binarize(
+				new ByteArrayInputStream("not an image".getBytes(StandardCharsets.UTF_8)), -1, null, null, null,
+				null)));
+		assertEquals(HttpStatus.BAD_REQUEST, rejection(() -> directService.binarize(
+				new ByteArrayInputStream(encoded), encoded.length, null, null, "gif", null)));
+		assertEquals(HttpStatus.BAD_REQUEST, rejection(() -> directService.binarize(
+				new ByteArrayInputStream(encoded), encoded.length, null, null, null, "fast")));
+	}
+
+	@Test
+	void responseCanBeATiff() throws Exception {
+		BufferedImage page = SyntheticDocuments.page(400, 300, 2, false);
+		byte[] encoded = SyntheticDocuments.encode(page, "png");
+		ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+		try (DirectBinarizationService.Binarized binarized = directService.binarize(
+				new ByteArrayInputStream(encoded), encoded.length, ImageBinarizer.MODE_BINARY, null, "tiff", null)) {
+			assertEquals(OutputFormat.TIFF, binarized.getFormat());
+			binarized.writeTo(tiff);
+		}
+		BufferedImage expected = binarizationService.binarizeImage(page, ImageBinarizer.MODE_BINARY,
+				BinarizationService.DEFAULT_WINDOW_SIZE);
+		BufferedImage actual = ImageIO.read(new ByteArrayInputStream(tiff.toByteArray()));
+		assertEquals(1, actual.getColorModel().getPixelSize());
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+	}
+
+	@Test
+	void oversizeInputsAreRejectedBeforeDecoding() throws Exception {
+		// declared too large: nothing is read
+		InputStream unread = new InputStream() {
+			@Override
+			public int read() {
+				throw new AssertionError("the body must not be read");
+			}
+		};
+		assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, rejection(() -> directService.binarize(unread, MAX_BYTES + 1,
+				null, null, null, null)));
+
+		// no declared length, larger than allowed once read
+		byte[] noisy = SyntheticDocuments.encode(SyntheticDocuments.page(1000, 1000, 2, true), "png");
+		DirectBinarizationService smallService = new DirectBinarizationService(binarizationService,
+				new CpuBudgetScheduler(2, 1_000_000, new SimpleMeterRegistry()), new ImageEncoder(),
+				new BufferPool(16 << 20), new MemoryBudget(0, 0, new SimpleMeterRegistry()), ImageBinarizer.MODE_BINARY,
+				noisy.length / 2, MAX_PIXELS, MAX_WINDOW_SIZE, 1);
+		assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, rejection(() -> smallService.binarize(
+				new ByteArrayInputStream(noisy), -1, null, null, null, null)));
+
+		// too many pixels, known from the header
+		byte[] large = SyntheticDocuments.encode(SyntheticDocuments.page(1100, 1000, 2, false), "jpeg");
+		assertTrue(large.length < MAX_BYTES);
+		assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, rejection(() -> directService.binarize(
+				new ByteArrayInputStream(large), large.length, null, null, null, null)));
+
+		// more heap than the whole memory budget, known from the header
+		byte[] page = SyntheticDocuments.encode(SyntheticDocuments.page(800, 800, 2, false), "png");
+		DirectBinarizationService budgetedService = new DirectBinarizationService(binarizationService,
+				new CpuBudgetScheduler(2, 1_000_000, new SimpleMeterRegistry()), new ImageEncoder(),
+				new BufferPool(16 << 20), new MemoryBudget(4 << 20, 0, new SimpleMeterRegistry()),
+				ImageBinarizer.MODE_BINARY, MAX_BYTES, MAX_PIXELS, MAX_WINDOW_SIZE, 1);
+		assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, rejection(() -> budgetedService.binarize(
+				new ByteArrayInputStream(page), page.length, null, null, null, null)));
+		budgetedService.binarize(new ByteArrayInputStream(page), page.length, null, null, null, "otsu").close();
+	}
+
+	@Test
+	void concurrentRequestsAreCapped() throws Exception {
+		byte[] encoded = SyntheticDocuments.encode(SyntheticDocuments.page(200, 200, 1, false), "png");
+		DirectBinarizationService.Binarized first = directService.binarize(new ByteArrayInputStream(encoded),
+				encoded.length, null, null, null, null);
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, rejection(() -> directService.binarize(
+				new ByteArrayInputStream(encoded), encoded.length, null, null, null, null)));
+		first.close();
+		directService.binarize(new ByteArrayInputStream(encoded), encoded.length, null, null, null, null).close();
+	}
+
+	@Test
+	void rejectionsFreeTheirSlot() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertEquals(HttpStatus.UNSUPPORTED_MEDIA_TYPE, rejection(() -> directService.binarize(
+					new ByteArrayInputStream(new byte[10]), 10, null, null, null, null)));
+		}
+		byte[] encoded = SyntheticDocuments.encode(SyntheticDocuments.page(200, 200, 1, false), "png");
+		directService.binarize(new ByteArrayInputStream(encoded), encoded.length, null, null, null, null).close();
+	}
+
+	@Test
+	void b64ImagesAreDecodedLikeRawImages() throws IOException {
+		byte[] encoded = SyntheticDocuments.encode(SyntheticDocuments.page(300, 200, 6, false), "png");
+		String base64 = java.util.Base64.getMimeEncoder().encodeToString(encoded);
+		BufferedImage fromB64 = binarizationService.binarizeImageB64("data:image/png;base64," + base64,
+				ImageBinarizer.MODE_BINARY, 30);
+		BufferedImage fromBytes = binarizationService.binarizeImageBytes(encoded, ImageBinarizer.MODE_BINARY, 30);
+		for (int y = 0; y < fromBytes.getHeight(); y++)
+			for (int x = 0; x < fromBytes.getWidth(); x++)
+				assertEquals(fromBytes.getRGB(x, y), fromB64.getRGB(x, y));
+	}
+}
@@ -0,0 +1,160 @@
+package ch.heia.ZigZag;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FakeCoreEngine is an in-process stand-in for the core engine, it receives the PATCH sent by the service when a task
+ * is done (on /tasks/{id}) and records when it arrived and with which status. It can be made to fail the next
+ * requests and to answer slowly, to test the retries of the service, and it counts the requests it is answering at
+ * once.
+ */
+public class FakeCoreEngine implements AutoCloseable {
+
+	/**
+	 * Callback is a PATCH received from the service.
+	 */
+	public record Callback(String taskId, String status, int dataOut, long receivedNanos) {
+	}
+
+	private final HttpServer server;
+	private final Map<String, Callback> callbacks = new ConcurrentHashMap<>();
+	private final List<Callback> accepted = new ArrayList<>();
+	private volatile CountDownLatch expected = new CountDownLatch(0);
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile int failureStatus = 503;
+	private volatile long latencyMillis;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	public FakeCoreEngine() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/tasks/", this::handle);
+		AtomicInteger threadIndex = new AtomicInteger();
+		server.setExecutor(Executors.newCachedThreadPool(
+				runnable -> new Thread(runnable, "stand-in-engine-" + threadIndex.incrementAndGet())));
+		server.start();
+	}
+
+	/**
+	 * @return the callback url of the given task.
+	 */
+	public String callbackUrl(String taskId) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/tasks/" + taskId;
+	}
+
+	public Callback getCallback(String taskId) {
+		return callbacks.get(taskId);
+	}
+
+	public int callbackCount() {
+		return callbacks.size();
+	}
+
+	/**
+	 * @return the callbacks accepted for the given task, in the order they arrived.
+	 */
+	public List<Callback> getCallbacks(String taskId) {
+		synchronized (accepted) {
+			return accepted.stream().filter(callback -> callback.taskId().equals(taskId)).toList();
+		}
+	}
+
+	/**
+	 * failNext answers the next requests with an error status instead of accepting them.
+	 * @param count the number of requests to fail
+	 * @param status the status they are answered with
+	 */
+	public void failNext(int count, int status) {
+		failureStatus = status;
+		failures.set(count);
+	}
+
+	/**
+	 * @param millis the time the engine waits before answering each request
+	 */
+	public void setLatency(long millis) {
+		latencyMillis = millis;
+	}
+
+	/**
+	 * @return the number of PATCH requests received, failed ones included.
+	 */
+	public int requestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the largest number of requests answered at once.
+	 */
+	public int maxInFlight() {
+		return maxInFlight.get();
+	}
+
+	/**
+	 * expect sets the number of callbacks awaitCallbacks() waits for.
+	 */
+	public void expect(int count) {
+		expected = new CountDownLatch(Math.max(0, count - callbacks.size()));
+	}
+
+	/**
+	 * @return true if the expected callbacks all arrived before the timeout.
+	 */
+	public boolean awaitCallbacks(long timeout, TimeUnit unit) throws InterruptedException {
+		return expected.await(timeout, unit);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long received = System.nanoTime();
+		try (exchange) {
+			if (!exchange.getRequestMethod().equals("PATCH")) {
+				FakeS3Server.send(exchange, 405, new byte[0]);
+				return;
+			}
+			requests.incrementAndGet();
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				if (latencyMillis > 0) Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				inFlight.decrementAndGet();
+			}
+			if (failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+				FakeS3Server.send(exchange, failureStatus, new byte[0]);
+				return;
+			}
+			String taskId = exchange.getRequestURI().getPath().substring("/tasks/".length());
+			JSONObject body = new JSONObject(new String(exchange.getRequestBody().readAllBytes(),
+					StandardCharsets.UTF_8));
+			int dataOut = body.optJSONArray("data_out") == null ? 0 : body.optJSONArray("data_out").length();
+			Callback callback = new Callback(taskId, body.optString("status"), dataOut, received);
+			synchronized (accepted) {
+				accepted.add(callback);
+			}
+			if (callbacks.putIfAbsent(taskId, callback) == null)
+				expected.countDown();
+			FakeS3Server.send(exchange, 200, "{}".getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
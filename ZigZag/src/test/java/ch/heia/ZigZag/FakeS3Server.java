@@ -0,0 +1,240 @@
+package ch.heia.ZigZag;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FakeS3Server is an in-process stand-in for the S3 storage, it serves path-style GET, HEAD and PUT requests and
+ * multipart uploads from memory on localhost. It does not check signatures. It keeps track of the client connections
+ * it sees so tests can check that connections are reused.
+ */
+public class FakeS3Server implements AutoCloseable {
+
+	private final HttpServer server;
+	private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+	private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong multipartUploads = new AtomicLong();
+	private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+	private volatile long latencyMillis;
+
+	public FakeS3Server() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::handle);
+		AtomicInteger threadIndex = new AtomicInteger();
+		server.setExecutor(Executors.newCachedThreadPool(
+				runnable -> new Thread(runnable, "stand-in-s3-" + threadIndex.incrementAndGet())));
+		server.start();
+	}
+
+	public String endpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public void putObject(String bucket, String key, byte[] content) {
+		objects.put(bucket + "/" + key, content);
+	}
+
+	public byte[] getObject(String bucket, String key) {
+		return objects.get(bucket + "/" + key);
+	}
+
+	public int objectCount() {
+		return objects.size();
+	}
+
+	/**
+	 * @return the number of distinct client connections seen so far.
+	 */
+	public int connectionCount() {
+		return clientPorts.size();
+	}
+
+	public long requestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of completed multipart uploads.
+	 */
+	public long multipartUploadCount() {
+		return multipartUploads.get();
+	}
+
+	/**
+	 * setLatencyMillis makes every request wait before being answered, to simulate a slow storage.
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		clientPorts.add(exchange.getRemoteAddress().getPort());
+		try (exchange) {
+			if (latencyMillis > 0) Thread.sleep(latencyMillis);
+			String path = exchange.getRequestURI().getPath().substring(1);
+			Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+			if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+				handleMultipart(exchange, path, query);
+				return;
+			}
+			switch (exchange.getRequestMethod()) {
+				case "GET", "HEAD" -> {
+					byte[] content = objects.get(path);
+					if (content == null) {
+						send(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>".getBytes(StandardCharsets.UTF_8));
+						return;
+					}
+					exchange.getResponseHeaders().add("ETag", etag(content));
+					exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+					if (exchange.getRequestMethod().equals("HEAD")) {
+						exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+						exchange.sendResponseHeaders(200, -1);
+					} else {
+						send(exchange, 200, content);
+					}
+				}
+				case "PUT" -> {
+					byte[] content = readBody(exchange);
+					objects.put(path, content);
+					exchange.getResponseHeaders().add("ETag", etag(content));
+					send(exchange, 200, new byte[0]);
+				}
+				default -> send(exchange, 405, new byte[0]);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void handleMultipart(HttpExchange exchange, String path, Map<String, String> query) throws IOException {
+		String method = exchange.getRequestMethod();
+		if (method.equals("POST") && query.containsKey("uploads")) {
+			String uploadId = UUID.randomUUID().toString();
+			uploads.put(uploadId, new ConcurrentSkipListMap<>());
+			int separator = path.indexOf('/');
+			send(exchange, 200, ("<InitiateMultipartUploadResult><Bucket>" + path.substring(0, separator)
+					+ "</Bucket><Key>" + path.substring(separator + 1) + "</Key><UploadId>" + uploadId
+					+ "</UploadId></InitiateMultipartUploadResult>").getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		Map<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+		if (parts == null) {
+			send(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>".getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		switch (method) {
+			case "PUT" -> {
+				byte[] content = readBody(exchange);
+				parts.put(Integer.parseInt(query.get("partNumber")), content);
+				exchange.getResponseHeaders().add("ETag", etag(content));
+				send(exchange, 200, new byte[0]);
+			}
+			case "POST" -> {
+				exchange.getRequestBody().readAllBytes();
+				ByteArrayOutputStream object = new ByteArrayOutputStream();
+				for (byte[] part : parts.values()) object.write(part);
+				uploads.remove(query.get("uploadId"));
+				objects.put(path, object.toByteArray());
+				multipartUploads.incrementAndGet();
+				send(exchange, 200, ("<CompleteMultipartUploadResult><Key>" + path + "</Key><ETag>"
+						+ etag(object.toByteArray()) + "</ETag></CompleteMultipartUploadResult>")
+						.getBytes(StandardCharsets.UTF_8));
+			}
+			case "DELETE" -> {
+				uploads.remove(query.get("uploadId"));
+				send(exchange, 204, new byte[0]);
+			}
+			default -> send(exchange, 405, new byte[0]);
+		}
+	}
+
+	private static Map<String, String> query(String rawQuery) {
+		Map<String, String> parameters = new HashMap<>();
+		if (rawQuery == null) return parameters;
+		for (String parameter : rawQuery.split("&")) {
+			int separator = parameter.indexOf('=');
+			if (separator < 0) parameters.put(parameter, "");
+			else parameters.put(parameter.substring(0, separator),
+					URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+
+	/**
+	 * readBody reads the request body, decoding the aws-chunked encoding used by the SDK for signed payloads.
+	 */
+	static byte[] readBody(HttpExchange exchange) throws IOException {
+		byte[] raw = exchange.getRequestBody().readAllBytes();
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		boolean chunked = (encoding != null && encoding.contains("aws-chunked"))
+				|| exchange.getRequestHeaders().containsKey("x-amz-decoded-content-length");
+		return chunked ? decodeAwsChunked(raw) : raw;
+	}
+
+	private static byte[] decodeAwsChunked(byte[] raw) {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream(raw.length);
+		int position = 0;
+		while (position < raw.length) {
+			int lineEnd = indexOfCrlf(raw, position);
+			if (lineEnd < 0) break;
+			String header = new String(raw, position, lineEnd - position, StandardCharsets.US_ASCII);
+			int separator = header.indexOf(';');
+			int size = Integer.parseInt(separator < 0 ? header.trim() : header.substring(0, separator).trim(), 16);
+			position = lineEnd + 2;
+			if (size == 0) break;
+			decoded.write(raw, position, size);
+			position += size + 2;
+		}
+		return decoded.toByteArray();
+	}
+
+	private static int indexOfCrlf(byte[] raw, int from) {
+		for (int i = from; i < raw.length - 1; i++) {
+			if (raw[i] == '\r' && raw[i + 1] == '\n') return i;
+		}
+		return -1;
+	}
+
+	static String etag(byte[] content) {
+		try {
+			return "\"" + HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(content)) + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		if (body.length > 0) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
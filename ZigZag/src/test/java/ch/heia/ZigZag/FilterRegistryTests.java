@@ -0,0 +1,129 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ZigZagFilter;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FilterRegistryTests {
+
+	private static final int CALLERS = 4;
+	private static final int SLICE_THREADS = 2;
+
+	private FilterRegistry registry;
+	private BinarizationService binarizationService;
+	private ExecutorService callers;
+
+	@BeforeEach
+	void setUp() {
+		registry = new FilterRegistry(SLICE_THREADS, CALLERS);
+		binarizationService = new BinarizationService(registry);
+		callers = Executors.newFixedThreadPool(CALLERS);
+	}
+
+	@AfterEach
+	void tearDown() {
+		callers.shutdownNow();
+		registry.close();
+	}
+
+	@Test
+	void threadCountStaysFlatOverThousandsOfImages() throws Exception {
+		long baseline = sliceThreadCount();
+		for (int round = 0; round < 5; round++) {
+			binarize(500);
+			int filters = registry.size();
+			assertTrue(filters <= CALLERS, "at most one filter per caller, got " + filters);
+			assertEquals(baseline + (long) filters * SLICE_THREADS, sliceThreadCount(),
+					"slice threads leaked in round " + round);
+		}
+
+		registry.close();
+		assertEquals(0, registry.size());
+		waitForSliceThreads(baseline);
+		assertEquals(baseline, sliceThreadCount());
+	}
+
+	@Test
+	void reusedFilterGivesSameResultAsNewFilter() {
+		for (int mode = 0; mode <= 3; mode++) {
+			binarizationService.binarizeImage(image(1), mode, 30);
+			BufferedImage reused = binarizationService.binarizeImage(image(2), mode, 30);
+			BufferedImage expected = new ZigZagFilter(30, 100, mode).setHistoricalWhiteThreshold(245)
+					.filterImplementation(image(2));
+			assertArrayEquals(pixels(expected), pixels(reused), "mode " + mode);
+		}
+	}
+
+	@Test
+	void concurrentCallersGetDistinctFilters() {
+		try (FilterRegistry.Lease first = registry.lease(2, 30, 100, 245);
+			 FilterRegistry.Lease second = registry.lease(2, 30, 100, 245)) {
+			assertNotSame(first.filter(), second.filter());
+		}
+		assertEquals(2, registry.idleSize());
+		try (FilterRegistry.Lease lease = registry.lease(2, 30, 100, 245)) {
+			assertNotNull(lease.filter());
+			assertEquals(1, registry.idleSize());
+		}
+	}
+
+	@Test
+	void idleFiltersAreBounded() {
+		List<FilterRegistry.Lease> leases = new ArrayList<>();
+		for (int i = 0; i < CALLERS * 2; i++) leases.add(registry.lease(0, 10 + i, 100, 245));
+		leases.forEach(FilterRegistry.Lease::close);
+		assertEquals(CALLERS, registry.idleSize());
+		assertEquals(CALLERS, registry.size());
+	}
+
+	private void binarize(int count) throws Exception {
+		List<Future<BufferedImage>> results = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int seed = i;
+			results.add(callers.submit(() -> binarizationService.binarizeImage(image(seed), 2, 30)));
+		}
+		for (Future<BufferedImage> result : results) assertNotNull(result.get());
+	}
+
+	private static BufferedImage image(int seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(48, 48, BufferedImage.TYPE_BYTE_GRAY);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				int ink = (x / 6 + y / 6) % 2 == 0 ? 40 : 210;
+				image.getRaster().setSample(x, y, 0, ink + random.nextInt(30));
+			}
+		}
+		return image;
+	}
+
+	private static int[] pixels(BufferedImage image) {
+		return image.getRaster().getPixels(0, 0, image.getWidth(), image.getHeight(), (int[]) null);
+	}
+
+	/**
+	 * @return the number of live slice threads (the ZigZag library names them all "ProcessThread").
+	 */
+	private static long sliceThreadCount() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> thread.isAlive() && thread.getName().equals("ProcessThread"))
+				.count();
+	}
+
+	private static void waitForSliceThreads(long expected) throws InterruptedException {
+		for (int i = 0; i < 100 && sliceThreadCount() > expected; i++) Thread.sleep(10);
+	}
+}
@@ -0,0 +1,155 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import ch.heia.ZigZag.service.ImageEncoder;
+import ch.heia.ZigZag.tasks.OutputFormat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageEncoderTests {
+
+	private static FilterRegistry registry;
+	private static BinarizationService binarizationService;
+
+	@BeforeAll
+	static void setUp() {
+		registry = new FilterRegistry(0, 4);
+		binarizationService = new BinarizationService(registry);
+	}
+
+	@AfterAll
+	static void tearDown() {
+		registry.close();
+	}
+
+	private static BufferedImage binarized(int mode, boolean color) {
+		BufferedImage page = SyntheticDocuments.page(700, 900, 3, color);
+		BufferedImage image = binarizationService.binarizeImage(page, mode, BinarizationService.DEFAULT_WINDOW_SIZE);
+		return BinarizationService.isBinaryOutput(mode) ? binarizationService.toBinaryImage(image) : image;
+	}
+
+	private static BufferedImage decode(byte[] encoded) throws IOException {
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoded));
+		assertNotNull(decoded);
+		return decoded;
+	}
+
+	private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				if (expected.getRGB(x, y) != actual.getRGB(x, y))
+					fail("pixels differ at " + x + "," + y);
+	}
+
+	@Test
+	void pngRoundTripsForEveryFilterAndImageType() throws IOException {
+		BufferedImage[] images = {binarized(ImageBinarizer.MODE_BINARY, false),
+				binarized(ImageBinarizer.MODE_GRAY_LEVEL, false), binarized(ImageBinarizer.MODE_COLOR, true)};
+		for (String filter : new String[]{"none", "sub", "up"}) {
+			ImageEncoder encoder = new ImageEncoder(4, filter, 0, 1);
+			try {
+				for (BufferedImage image : images) {
+					BufferedImage decoded = decode(encoder.encode(image, OutputFormat.PNG));
+					if (image.getColorModel().getPixelSize() == 1)
+						assertEquals(1, decoded.getColorModel().getPixelSize());
+					assertSamePixels(image, decoded);
+				}
+			} finally {
+				encoder.close();
+			}
+		}
+	}
+
+	@Test
+	void chunksDeflatedInParallelMakeTheSameImage() throws IOException {
+		BufferedImage binary = binarized(ImageBinarizer.MODE_BINARY, false);
+		BufferedImage gray = binarized(ImageBinarizer.MODE_GRAY_LEVEL, false);
+		// chunks of the minimum size, many of them per image, more than the threads
+		ImageEncoder parallel = new ImageEncoder(6, "up", 1, 3);
+		ImageEncoder sequential = new ImageEncoder(6, "up", 0, 1);
+		try {
+			for (BufferedImage image : new BufferedImage[]{binary, gray}) {
+				byte[] chunked = parallel.encode(image, OutputFormat.PNG);
+				// the zlib stream is checked (Adler-32 included) when it is inflated
+				assertSamePixels(image, decode(chunked));
+				assertSamePixels(decode(sequential.encode(image, OutputFormat.PNG)), decode(chunked));
+			}
+		} finally {
+			parallel.close();
+			sequential.close();
+		}
+	}
+
+	@Test
+	void bilevelTiffIsCompressedWithGroup4() throws IOException {
+		ImageEncoder encoder = new ImageEncoder();
+		try {
+			BufferedImage binary = binarized(ImageBinarizer.MODE_BINARY, false);
+			byte[] tiff = encoder.encode(binary, OutputFormat.TIFF);
+			assertSamePixels(binary, decode(tiff));
+			assertEquals("CCITT T.6", compression(tiff));
+
+			BufferedImage gray = binarized(ImageBinarizer.MODE_GRAY_LEVEL, false);
+			byte[] grayTiff = encoder.encode(gray, OutputFormat.TIFF);
+			assertSamePixels(gray, decode(grayTiff));
+			assertEquals("Deflate", compression(grayTiff));
+		} finally {
+			encoder.close();
+		}
+	}
+
+	@Test
+	void otherImageTypesAreEncodedToo() throws IOException {
+		ImageEncoder encoder = new ImageEncoder();
+		try {
+			BufferedImage argb = new BufferedImage(120, 80, BufferedImage.TYPE_INT_ARGB);
+			for (int y = 0; y < argb.getHeight(); y++)
+				for (int x = 0; x < argb.getWidth(); x++)
+					argb.setRGB(x, y, ((x * 2) << 24) | (y << 16) | (x << 8) | (x ^ y));
+			assertSamePixels(argb, decode(encoder.encode(argb, OutputFormat.PNG)));
+		} finally {
+			encoder.close();
+		}
+	}
+
+	@Test
+	void formatsAreParsed() {
+		assertEquals(OutputFormat.PNG, OutputFormat.of(null));
+		assertEquals(OutputFormat.PNG, OutputFormat.of("PNG"));
+		assertEquals(OutputFormat.TIFF, OutputFormat.of("tif"));
+		assertEquals(OutputFormat.TIFF, OutputFormat.of("tiff"));
+		assertThrows(IllegalArgumentException.class, () -> OutputFormat.of("gif"));
+		assertThrows(IllegalArgumentException.class, () -> new ImageEncoder(4, "paeth", 0, 1));
+	}
+
+	private static String compression(byte[] tiff) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(tiff))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input);
+				IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(0).getAsTree("javax_imageio_1.0");
+				return ((IIOMetadataNode) root.getElementsByTagName("CompressionTypeName").item(0))
+						.getAttribute("value");
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+}
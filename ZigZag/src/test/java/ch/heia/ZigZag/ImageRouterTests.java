@@ -0,0 +1,54 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.ImageRouter;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageRouterTests {
+
+	private static final long MAX_PIXELS = 1_000_000;
+	private static final long DECODE_MAX_PIXELS = 250_000;
+	private static final long STRIP_THRESHOLD_PIXELS = 100_000;
+
+	private final ImageRouter router = new ImageRouter(MAX_PIXELS, DECODE_MAX_PIXELS, STRIP_THRESHOLD_PIXELS);
+
+	private static ImageHeader header(String format, int width, int height) {
+		return new ImageHeader(format, width, height, 1, 8);
+	}
+
+	@Test
+	void imagesAreRoutedBySize() {
+		assertEquals(ImageRouter.Route.DECODE, router.route(header("png", 300, 300), ImageBinarizer.MODE_BINARY,
+				BinarizationEngine.ZIGZAG));
+		assertEquals(ImageRouter.Route.STRIPS, router.route(header("jpeg", 400, 400), ImageBinarizer.MODE_BINARY,
+				BinarizationEngine.ZIGZAG));
+		assertEquals(ImageRouter.Route.STRIPS, router.route(header("png", 1000, 1000), ImageBinarizer.MODE_GRAY_LEVEL,
+				BinarizationEngine.VECTOR));
+		// the COLOR mode and the thresholding engines decode the whole image
+		assertEquals(ImageRouter.Route.DECODE, router.route(header("png", 400, 400), ImageBinarizer.MODE_COLOR,
+				BinarizationEngine.ZIGZAG));
+		assertEquals(ImageRouter.Route.DECODE, router.route(header("png", 400, 400), ImageBinarizer.MODE_BINARY,
+				BinarizationEngine.SAUVOLA));
+	}
+
+	@Test
+	void pathologicalImagesAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> router.route(header("gif", 100, 100),
+				ImageBinarizer.MODE_BINARY, BinarizationEngine.ZIGZAG));
+		assertThrows(IllegalArgumentException.class, () -> router.route(header("png", 0, 100),
+				ImageBinarizer.MODE_BINARY, BinarizationEngine.ZIGZAG));
+		assertThrows(IllegalArgumentException.class, () -> router.route(header("jpeg", 1001, 1000),
+				ImageBinarizer.MODE_BINARY, BinarizationEngine.ZIGZAG));
+		// too large to be decoded at once, and not binarized in strips
+		assertThrows(IllegalArgumentException.class, () -> router.route(header("png", 600, 600),
+				ImageBinarizer.MODE_COLOR, BinarizationEngine.ZIGZAG));
+		assertThrows(IllegalArgumentException.class, () -> router.route(header("png", 600, 600),
+				ImageBinarizer.MODE_BINARY, BinarizationEngine.OTSU));
+		assertEquals(ImageRouter.Route.DECODE, new ImageRouter(0, 0, 0).route(header("png", 60000, 60000),
+				ImageBinarizer.MODE_COLOR, BinarizationEngine.ZIGZAG));
+	}
+}
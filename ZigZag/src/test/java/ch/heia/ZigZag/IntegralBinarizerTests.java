@@ -0,0 +1,114 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import ch.heia.ZigZag.service.IntegralBinarizer;
+import ch.heia.ZigZag.service.PipelineMetrics;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+import sugarcube.zigzag.legacy.BradleyBinarizer;
+import sugarcube.zigzag.legacy.NiblackBinarizer;
+import sugarcube.zigzag.legacy.OtsuBinarizer;
+import sugarcube.zigzag.legacy.SauvolaBinarizer;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntegralBinarizerTests {
+
+	private static final BinarizationEngine[] THRESHOLDING = {BinarizationEngine.SAUVOLA, BinarizationEngine.NIBLACK,
+			BinarizationEngine.BRADLEY, BinarizationEngine.OTSU};
+
+	private FilterRegistry registry;
+
+	@BeforeEach
+	void setUp() {
+		registry = new FilterRegistry(0, 4);
+	}
+
+	@AfterEach
+	void tearDown() {
+		registry.close();
+	}
+
+	@Test
+	void integralImagesGiveSameResultAsLegacyBinarizers() {
+		// odd sizes, and a page smaller than the window on one side
+		int[][] sizes = {{213, 301}, {64, 20}};
+		int[] types = {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB};
+		for (int[] size : sizes) {
+			for (boolean color : new boolean[]{false, true}) {
+				BufferedImage page = SyntheticDocuments.page(size[0], size[1], 13, color);
+				for (int type : types) {
+					BufferedImage image = convert(page, type);
+					for (int window : new int[]{15, 30}) {
+						for (BinarizationEngine engine : THRESHOLDING) {
+							// the legacy Otsu binarizer writes into its input
+							BufferedImage expected = legacy(engine, window)
+									.filterImplementation(SyntheticDocuments.copy(image));
+							assertPixelsEqual(expected, new IntegralBinarizer(engine, window).binarize(image),
+									size[0] + "x" + size[1] + " color " + color + " type " + type + " window "
+											+ window + " " + engine.getValue());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void engineIsSelectedByTheTask() {
+		BinarizationService service = new BinarizationService(registry, new PipelineMetrics(), "otsu");
+		BufferedImage page = SyntheticDocuments.page(200, 283, 6, false);
+		assertTrue(service.isSingleThreaded(null, ImageBinarizer.MODE_COLOR, 30, 200, 283));
+		assertTrue(service.isBinaryOutput(ImageBinarizer.MODE_GRAY_LEVEL, null));
+		assertFalse(service.isBinaryOutput(ImageBinarizer.MODE_GRAY_LEVEL, BinarizationEngine.ZIGZAG));
+		for (BinarizationEngine engine : THRESHOLDING) {
+			BufferedImage binarized = service.binarizeImage(SyntheticDocuments.copy(page),
+					ImageBinarizer.MODE_BINARY_UPSAMPLED, 30, 1, engine);
+			// black and white, at the size of the page, whatever the mode
+			assertEquals(page.getWidth(), binarized.getWidth());
+			assertPixelsEqual(legacy(engine, 30).filterImplementation(SyntheticDocuments.copy(page)), binarized,
+					engine.getValue());
+		}
+		assertThrows(IllegalArgumentException.class, () -> new IntegralBinarizer(BinarizationEngine.ZIGZAG, 30));
+		assertThrows(IllegalArgumentException.class, () -> new IntegralBinarizer(BinarizationEngine.SAUVOLA,
+				IntegralBinarizer.MAX_WINDOW_SIZE + 1));
+		assertEquals(BinarizationEngine.BRADLEY, BinarizationEngine.of("Bradley"));
+	}
+
+	private static ImageBinarizer legacy(BinarizationEngine engine, int window) {
+		return switch (engine) {
+			case SAUVOLA -> new SauvolaBinarizer(window);
+			case NIBLACK -> new NiblackBinarizer(window);
+			case BRADLEY -> new BradleyBinarizer(window);
+			default -> new OtsuBinarizer();
+		};
+	}
+
+	private static BufferedImage convert(BufferedImage page, int type) {
+		if (page.getType() == type) return page;
+		BufferedImage image = new BufferedImage(page.getWidth(), page.getHeight(), type);
+		Graphics2D graphics = image.createGraphics();
+		graphics.drawImage(page, 0, 0, null);
+		graphics.dispose();
+		return image;
+	}
+
+	private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual, String message) {
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		Raster expectedRaster = expected.getRaster();
+		Raster actualRaster = actual.getRaster();
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				if (expectedRaster.getSample(x, y, 0) != actualRaster.getSample(x, y, 0))
+					fail(message + ": pixel " + x + "," + y);
+	}
+}
@@ -0,0 +1,406 @@
+package ch.heia.ZigZag;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadHarness measures the throughput and latency of the service through POST /compute, entirely on localhost: the
+ * service runs in-process (Spring Boot on a random port) with a FakeS3Server as storage and a FakeCoreEngine receiving
+ * the callbacks.
+ * Tasks arrive as a Poisson process at the given rate (open loop, arrivals don't wait for completions), each with one
+ * generated page picked from the image mix. Tasks submitted during the warm-up are processed but not measured. Once
+ * the arrivals stop, the harness waits for the outstanding callbacks and reports:
+ * - the throughput (completed pages per second) and the end-to-end latency (POST to callback) percentiles, overall and
+ *   per page size,
+ * - the mean and max time of each pipeline stage and the max length of its queue,
+ * - the peak heap, the peak number of platform threads of the service (the threads of the stand-ins are not counted),
+ *   the megabytes allocated, and the GC count and time.
+ * Run with mvn -P load test-compile exec:exec (see the load profile), options are passed as --name=value:
+ * --rate (tasks per second), --warmup and --duration (seconds), --mix (megapixels:weight,...), --format (png or jpeg),
+ * --variants (distinct pages per size), --drain (seconds to wait for the last callbacks), --s3latency (milliseconds
+ * the storage waits before answering each request) and --report (JSON file).
+ * Any other --name=value is passed to the service, e.g. --WorkerThreads=4. The result cache is off unless
+ * --ResultCacheBytes is given, the few variants of each size would be served from it otherwise, and the number of
+ * tasks is not limited unless --MaxTasks is given.
+ * To compare platform and virtual I/O threads under many concurrent slow-S3 tasks, run the same small-page load with a
+ * slow storage and many I/O workers, once with each kind of thread (virtual threads need a JDK 21 or later):
+ * --rate=200 --mix=0.1:1 --s3latency=200 --FetchThreads=256 --SaveThreads=256 --S3MaxConnections=512
+ *   --VirtualThreads=false (then true)
+ * and compare the throughput, the latency and the peak platform threads.
+ * To measure what the buffer pool saves, run the same load once more with --BufferPoolBytes=0 and compare the
+ * megabytes allocated and the GC time.
+ */
+public class LoadHarness {
+
+	private static final String BUCKET = "load";
+	private static final Set<String> OPTIONS = Set.of("rate", "warmup", "duration", "mix", "format", "variants",
+			"drain", "s3latency", "report");
+	private static final String[] STAGES = {"fetch", "compute", "encode", "save"};
+
+	/**
+	 * STAND_IN_THREADS is the prefix of the names of the threads of the stand-ins and of the harness.
+	 */
+	static final String STAND_IN_THREADS = "stand-in-";
+
+	/**
+	 * SizeClass is a page size of the image mix with its share of the tasks.
+	 */
+	public record SizeClass(double megapixels, double weight) {
+	}
+
+	/**
+	 * Settings of a load run.
+	 */
+	public record Settings(double rate, Duration warmup, Duration duration, List<SizeClass> mix, String format,
+						   int variants, Duration drain, long s3LatencyMillis, Map<String, String> serviceProperties) {
+
+		/**
+		 * @param args --name=value options, see LoadHarness.
+		 * @return the settings, with defaults for missing options.
+		 */
+		public static Settings parse(String... args) {
+			Map<String, String> options = new LinkedHashMap<>();
+			Map<String, String> serviceProperties = new LinkedHashMap<>();
+			for (String arg : args) {
+				if (!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("Bad option " + arg);
+				String name = arg.substring(2, arg.indexOf('='));
+				String value = arg.substring(arg.indexOf('=') + 1);
+				(OPTIONS.contains(name) ? options : serviceProperties).put(name, value);
+			}
+			serviceProperties.putIfAbsent("ResultCacheBytes", "0");
+			serviceProperties.putIfAbsent("MaxTasks", "0");
+			List<SizeClass> mix = new ArrayList<>();
+			for (String size : options.getOrDefault("mix", "1:0.6,10:0.3,50:0.1").split(",")) {
+				String[] parts = size.split(":");
+				mix.add(new SizeClass(Double.parseDouble(parts[0]), parts.length > 1 ? Double.parseDouble(parts[1]) : 1));
+			}
+			return new Settings(Double.parseDouble(options.getOrDefault("rate", "2")),
+					seconds(options.getOrDefault("warmup", "10")), seconds(options.getOrDefault("duration", "60")),
+					mix, options.getOrDefault("format", "png"),
+					Integer.parseInt(options.getOrDefault("variants", "4")),
+					seconds(options.getOrDefault("drain", "120")),
+					Long.parseLong(options.getOrDefault("s3latency", "0")), serviceProperties);
+		}
+
+		private static Duration seconds(String value) {
+			return Duration.ofMillis(Math.round(Double.parseDouble(value) * 1000));
+		}
+	}
+
+	private record Submission(String taskId, SizeClass size, long submittedNanos, boolean measured) {
+	}
+
+	private final Settings settings;
+	private final Map<String, Submission> submissions = new ConcurrentHashMap<>();
+	private final AtomicInteger rejected = new AtomicInteger();
+	private final Map<String, Double> maxQueues = new ConcurrentHashMap<>();
+	private volatile long peakHeap;
+	private volatile int peakThreads;
+
+	public LoadHarness(Settings settings) {
+		this.settings = settings;
+	}
+
+	public static void main(String... args) throws Exception {
+		Settings settings = Settings.parse(args);
+		String report = Arrays.stream(args).filter(arg -> arg.startsWith("--report=")).findFirst()
+				.map(arg -> arg.substring("--report=".length())).orElse(null);
+		JSONObject result = new LoadHarness(settings).run();
+		System.out.println(format(result));
+		if (report != null) {
+			Files.writeString(Path.of(report), result.toString(2));
+			System.out.println("Report written to " + report);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * run starts the stand-ins and the service, drives the load and stops everything.
+	 * @return the report of the run.
+	 */
+	public JSONObject run() throws Exception {
+		try (FakeS3Server s3 = new FakeS3Server(); FakeCoreEngine engine = new FakeCoreEngine()) {
+			List<List<String>> inputs = uploadInputs(s3);
+			s3.setLatencyMillis(settings.s3LatencyMillis());
+			List<String> args = new ArrayList<>(List.of("--server.port=0"));
+			settings.serviceProperties().forEach((name, value) -> args.add("--" + name + "=" + value));
+			try (ConfigurableApplicationContext context = SpringApplication.run(ZigZagApplication.class,
+					args.toArray(String[]::new))) {
+				String computeUrl = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port")
+						+ context.getEnvironment().getProperty("UrlPrefix", "") + "/compute";
+				return drive(s3, engine, inputs, computeUrl, context.getBean(MeterRegistry.class));
+			}
+		}
+	}
+
+	private List<List<String>> uploadInputs(FakeS3Server s3) {
+		String extension = settings.format().equals("jpeg") ? ".jpg" : ".png";
+		List<List<String>> inputs = new ArrayList<>();
+		for (SizeClass size : settings.mix()) {
+			List<String> keys = new ArrayList<>();
+			for (int variant = 0; variant < settings.variants(); variant++) {
+				String key = "inputs/" + size.megapixels() + "mp-" + variant + extension;
+				s3.putObject(BUCKET, key, SyntheticDocuments.encode(
+						SyntheticDocuments.page(size.megapixels(), variant, true), settings.format()));
+				keys.add(key);
+			}
+			inputs.add(keys);
+		}
+		return inputs;
+	}
+
+	private JSONObject drive(FakeS3Server s3, FakeCoreEngine engine, List<List<String>> inputs, String computeUrl,
+							 MeterRegistry meterRegistry) throws Exception {
+		AtomicInteger threadIndex = new AtomicInteger();
+		HttpClient client = HttpClient.newBuilder().executor(Executors.newCachedThreadPool(
+				runnable -> new Thread(runnable, STAND_IN_THREADS + "harness-" + threadIndex.incrementAndGet()))).build();
+		Random random = new Random(1);
+		double totalWeight = settings.mix().stream().mapToDouble(SizeClass::weight).sum();
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(
+				runnable -> new Thread(runnable, STAND_IN_THREADS + "sampler"));
+		sampler.scheduleAtFixedRate(() -> sample(meterRegistry), 0, 100, TimeUnit.MILLISECONDS);
+
+		long start = System.nanoTime();
+		long measureStart = start + settings.warmup().toNanos();
+		long end = measureStart + settings.duration().toNanos();
+		Snapshot before = null;
+		long next = start;
+		while (next < end) {
+			LockSupport.parkNanos(next - System.nanoTime());
+			if (before == null && next >= measureStart) before = new Snapshot(meterRegistry);
+			int size = pick(random, totalWeight);
+			List<String> keys = inputs.get(size);
+			submit(client, s3, engine, computeUrl, settings.mix().get(size),
+					keys.get(random.nextInt(keys.size())), next >= measureStart);
+			// exponential inter-arrival times
+			next += (long) (-Math.log(1 - random.nextDouble()) / settings.rate() * 1e9);
+		}
+		if (before == null) before = new Snapshot(meterRegistry);
+
+		engine.expect(submissions.size() - rejected.get());
+		boolean drained = engine.awaitCallbacks(settings.drain().toMillis(), TimeUnit.MILLISECONDS);
+		Snapshot after = new Snapshot(meterRegistry);
+		sampler.shutdownNow();
+		return report(engine, before, after, measureStart, drained);
+	}
+
+	private int pick(Random random, double totalWeight) {
+		double value = random.nextDouble() * totalWeight;
+		for (int i = 0; i < settings.mix().size(); i++) {
+			value -= settings.mix().get(i).weight();
+			if (value < 0) return i;
+		}
+		return settings.mix().size() - 1;
+	}
+
+	private void submit(HttpClient client, FakeS3Server s3, FakeCoreEngine engine, String computeUrl, SizeClass size,
+						String key, boolean measured) {
+		String taskId = UUID.randomUUID().toString();
+		JSONObject task = new JSONObject()
+				.put("id", taskId)
+				.put("status", "pending")
+				.put("service_id", UUID.randomUUID().toString())
+				.put("pipeline_execution_id", JSONObject.NULL)
+				.put("data_in", new JSONArray().put(key));
+		JSONObject body = new JSONObject()
+				.put("task", task)
+				.put("s3_access_key_id", "load")
+				.put("s3_secret_access_key", "load")
+				.put("s3_region", "eu-central-2")
+				.put("s3_host", s3.endpoint())
+				.put("s3_bucket", BUCKET)
+				.put("callback_url", engine.callbackUrl(taskId));
+		submissions.put(taskId, new Submission(taskId, size, System.nanoTime(), measured));
+		client.sendAsync(HttpRequest.newBuilder(URI.create(computeUrl))
+								.header("Content-Type", "application/json")
+								.POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+								.build(), HttpResponse.BodyHandlers.discarding())
+				.whenComplete((response, error) -> {
+					if (error != null || response.statusCode() != 200) rejected.incrementAndGet();
+				});
+	}
+
+	private void sample(MeterRegistry meterRegistry) {
+		peakHeap = Math.max(peakHeap, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		peakThreads = Math.max(peakThreads, serviceThreads());
+		for (String stage : STAGES) {
+			Gauge queue = meterRegistry.find("zigzag.stage.queue").tag("stage", stage).gauge();
+			if (queue != null) maxQueues.merge(stage, queue.value(), Math::max);
+		}
+	}
+
+	/**
+	 * @return the number of live platform threads, without the threads of the stand-ins and of the harness (virtual
+	 * threads are not listed by the thread MXBean).
+	 */
+	private static int serviceThreads() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int count = 0;
+		for (ThreadInfo thread : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (thread != null && !thread.getThreadName().startsWith(STAND_IN_THREADS)) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Snapshot holds the cumulated stage timers and GC activity at a point of the run, the report uses the
+	 * difference between the start and the end of the measurement.
+	 */
+	private static final class Snapshot {
+		private final long nanos = System.nanoTime();
+		private final Map<String, Long> stageCounts = new HashMap<>();
+		private final Map<String, Double> stageTimes = new HashMap<>();
+		private long gcCount;
+		private long gcMillis;
+		private long allocatedBytes;
+
+		private Snapshot(MeterRegistry meterRegistry) {
+			for (String stage : STAGES) {
+				Timer timer = meterRegistry.find("zigzag.stage.duration").tag("stage", stage).timer();
+				stageCounts.put(stage, timer == null ? 0 : timer.count());
+				stageTimes.put(stage, timer == null ? 0 : timer.totalTime(TimeUnit.MILLISECONDS));
+			}
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(0, gc.getCollectionCount());
+				gcMillis += Math.max(0, gc.getCollectionTime());
+			}
+			// bytes allocated by the live threads, those of the worker pools live as long as the service
+			if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads) {
+				for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+					allocatedBytes += Math.max(0, bytes);
+			}
+		}
+	}
+
+	private JSONObject report(FakeCoreEngine engine, Snapshot before, Snapshot after, long measureStart,
+							  boolean drained) {
+		List<Submission> measured = submissions.values().stream().filter(Submission::measured).toList();
+		List<Long> latencies = new ArrayList<>();
+		Map<Double, List<Long>> latenciesBySize = new TreeMap<>();
+		long lastCompletion = measureStart;
+		int errors = 0;
+		for (Submission submission : measured) {
+			FakeCoreEngine.Callback callback = engine.getCallback(submission.taskId());
+			if (callback == null) continue;
+			if (!"finished".equals(callback.status())) errors++;
+			long latency = callback.receivedNanos() - submission.submittedNanos();
+			latencies.add(latency);
+			latenciesBySize.computeIfAbsent(submission.size().megapixels(), size -> new ArrayList<>()).add(latency);
+			lastCompletion = Math.max(lastCompletion, callback.receivedNanos());
+		}
+		double seconds = Math.max(1e-9, (lastCompletion - measureStart) / 1e9);
+
+		JSONObject report = new JSONObject()
+				.put("rate", settings.rate())
+				.put("durationSeconds", settings.duration().toMillis() / 1000.0)
+				.put("format", settings.format())
+				.put("submitted", measured.size())
+				.put("completed", latencies.size())
+				.put("rejected", rejected.get())
+				.put("errors", errors)
+				.put("drained", drained)
+				.put("throughputPagesPerSecond", latencies.size() / seconds)
+				.put("latencyMillis", percentiles(latencies));
+		JSONObject bySize = new JSONObject();
+		latenciesBySize.forEach((size, values) -> bySize.put(size + "mp", percentiles(values)));
+		report.put("latencyMillisBySize", bySize);
+
+		JSONObject stages = new JSONObject();
+		for (String stage : STAGES) {
+			long count = after.stageCounts.get(stage) - before.stageCounts.get(stage);
+			double time = after.stageTimes.get(stage) - before.stageTimes.get(stage);
+			stages.put(stage, new JSONObject()
+					.put("count", count)
+					.put("meanMillis", count == 0 ? 0 : time / count)
+					.put("maxQueue", maxQueues.getOrDefault(stage, 0.0)));
+		}
+		report.put("stages", stages);
+		report.put("jvm", new JSONObject()
+				.put("peakHeapMegabytes", peakHeap / (1024 * 1024))
+				.put("peakThreads", peakThreads)
+				.put("maxHeapMegabytes", Runtime.getRuntime().maxMemory() / (1024 * 1024))
+				.put("allocatedMegabytes", (after.allocatedBytes - before.allocatedBytes) / (1024 * 1024))
+				.put("gcCount", after.gcCount - before.gcCount)
+				.put("gcMillis", after.gcMillis - before.gcMillis)
+				.put("gcPercent", 100.0 * (after.gcMillis - before.gcMillis) / Math.max(1, (after.nanos - before.nanos) / 1e6)));
+		return report;
+	}
+
+	private static JSONObject percentiles(List<Long> latencies) {
+		long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+		return new JSONObject()
+				.put("count", sorted.length)
+				.put("p50", percentile(sorted, 50))
+				.put("p90", percentile(sorted, 90))
+				.put("p99", percentile(sorted, 99))
+				.put("max", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+	}
+
+	/**
+	 * @return the nearest-rank percentile, in milliseconds.
+	 */
+	static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) return 0;
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / 1e6;
+	}
+
+	/**
+	 * @return a human-readable version of the report.
+	 */
+	static String format(JSONObject report) {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("Load: %.1f tasks/s for %.0f s (%s)%n", report.getDouble("rate"),
+				report.getDouble("durationSeconds"), report.getString("format")));
+		text.append(String.format("Tasks: %d submitted, %d completed, %d rejected, %d errors%s%n",
+				report.getInt("submitted"), report.getInt("completed"), report.getInt("rejected"),
+				report.getInt("errors"), report.getBoolean("drained") ? "" : " (not drained)"));
+		text.append(String.format("Throughput: %.2f pages/s%n", report.getDouble("throughputPagesPerSecond")));
+		text.append(latencyLine("Latency", report.getJSONObject("latencyMillis")));
+		JSONObject bySize = report.getJSONObject("latencyMillisBySize");
+		for (String size : bySize.keySet()) text.append(latencyLine("  " + size, bySize.getJSONObject(size)));
+		JSONObject stages = report.getJSONObject("stages");
+		for (String stage : STAGES) {
+			JSONObject values = stages.getJSONObject(stage);
+			text.append(String.format("Stage %-8s mean %.1f ms over %d tasks, max queue %.0f%n", stage,
+					values.getDouble("meanMillis"), values.getLong("count"), values.getDouble("maxQueue")));
+		}
+		JSONObject jvm = report.getJSONObject("jvm");
+		text.append(String.format("Heap: peak %d MB of %d MB, GC: %d collections, %d ms (%.1f%%)%n",
+				jvm.getLong("peakHeapMegabytes"), jvm.getLong("maxHeapMegabytes"), jvm.getLong("gcCount"),
+				jvm.getLong("gcMillis"), jvm.getDouble("gcPercent")));
+		text.append(String.format("Allocated: %d MB%n", jvm.getLong("allocatedMegabytes")));
+		text.append(String.format("Threads: peak %d platform threads%n", jvm.getInt("peakThreads")));
+		return text.toString();
+	}
+
+	private static String latencyLine(String label, JSONObject values) {
+		return String.format("%-10s p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms (%d)%n", label,
+				values.getDouble("p50"), values.getDouble("p90"), values.getDouble("p99"), values.getDouble("max"),
+				values.getInt("count"));
+	}
+}
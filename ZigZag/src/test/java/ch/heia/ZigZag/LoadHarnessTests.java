@@ -0,0 +1,35 @@
+package ch.heia.ZigZag;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadHarnessTests {
+
+	@Test
+	void smallLoadCompletesEveryTask() throws Exception {
+		JSONObject report = new LoadHarness(LoadHarness.Settings.parse("--rate=10", "--warmup=0.5",
+				"--duration=2", "--mix=0.1:1", "--variants=2", "--drain=60")).run();
+
+		assertTrue(report.getBoolean("drained"));
+		assertTrue(report.getInt("submitted") > 0);
+		assertEquals(report.getInt("submitted"), report.getInt("completed"));
+		assertEquals(0, report.getInt("rejected"));
+		assertEquals(0, report.getInt("errors"));
+		assertTrue(report.getJSONObject("latencyMillis").getDouble("p50") > 0);
+		for (String stage : new String[]{"fetch", "compute", "encode", "save"}) {
+			assertTrue(report.getJSONObject("stages").getJSONObject(stage).getLong("count") > 0, stage);
+		}
+	}
+
+	@Test
+	void percentilesAreNearestRank() {
+		long[] sorted = new long[100];
+		for (int i = 0; i < sorted.length; i++) sorted[i] = (i + 1) * 1_000_000L;
+		assertEquals(50, LoadHarness.percentile(sorted, 50));
+		assertEquals(99, LoadHarness.percentile(sorted, 99));
+		assertEquals(100, LoadHarness.percentile(sorted, 100));
+		assertEquals(0, LoadHarness.percentile(new long[0], 99));
+	}
+}
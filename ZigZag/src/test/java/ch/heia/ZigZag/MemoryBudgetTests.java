@@ -0,0 +1,86 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.ImageRouter;
+import ch.heia.ZigZag.service.MemoryBudget;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.ImageHeader;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTests {
+
+	private static final long MIB = 1 << 20;
+	private static final int STRIP_PIXELS = 1_000_000;
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final MemoryBudget budget = new MemoryBudget(10 * MIB, STRIP_PIXELS, meterRegistry);
+
+	@Test
+	void estimatesFollowTheImageTheModeAndTheEngine() {
+		ImageHeader gray = new ImageHeader("png", 2480, 3508, 1, 8);
+		ImageHeader color = new ImageHeader("jpeg", 2480, 3508, 3, 24);
+		long zigzag = budget.estimate(gray, ImageRouter.Route.DECODE, ImageBinarizer.MODE_BINARY_ANTIALIASED,
+				BinarizationEngine.ZIGZAG);
+		long vector = budget.estimate(gray, ImageRouter.Route.DECODE, ImageBinarizer.MODE_BINARY_ANTIALIASED,
+				BinarizationEngine.VECTOR);
+		long sauvola = budget.estimate(gray, ImageRouter.Route.DECODE, ImageBinarizer.MODE_BINARY_ANTIALIASED,
+				BinarizationEngine.SAUVOLA);
+		assertTrue(zigzag > vector && vector > sauvola);
+		assertTrue(sauvola > gray.pixels());
+		assertTrue(budget.estimate(color, ImageRouter.Route.DECODE, ImageBinarizer.MODE_COLOR,
+				BinarizationEngine.ZIGZAG) > budget.estimate(gray, ImageRouter.Route.DECODE, ImageBinarizer.MODE_COLOR,
+				BinarizationEngine.ZIGZAG));
+		assertTrue(budget.estimate(color, ImageRouter.Route.DECODE, ImageBinarizer.MODE_BINARY,
+				BinarizationEngine.OTSU) > budget.estimate(gray, ImageRouter.Route.DECODE, ImageBinarizer.MODE_BINARY,
+				BinarizationEngine.OTSU));
+		// the strips only hold a strip at a time, whatever the size of the image
+		ImageHeader huge = new ImageHeader("jpeg", 20000, 30000, 3, 24);
+		assertEquals(budget.estimate(color, ImageRouter.Route.STRIPS, ImageBinarizer.MODE_BINARY,
+				BinarizationEngine.ZIGZAG), budget.estimate(huge, ImageRouter.Route.STRIPS, ImageBinarizer.MODE_BINARY,
+				BinarizationEngine.ZIGZAG));
+	}
+
+	@Test
+	void reservationsWaitUntilTheyFit() throws Exception {
+		MemoryBudget.Reservation first = budget.reserve(6 * MIB);
+		assertEquals(6 * MIB, budget.reservedBytes());
+		CompletableFuture<MemoryBudget.Reservation> second = CompletableFuture.supplyAsync(() -> {
+			try {
+				return budget.reserve(6 * MIB);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThrows(TimeoutException.class, () -> second.get(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, meterRegistry.find("zigzag.memory.images.waiting").gauge().value());
+
+		// the first image is encoded, it only keeps its result
+		first.shrink(MIB);
+		second.get(5, TimeUnit.SECONDS).close();
+		assertEquals(MIB, budget.reservedBytes());
+		first.close();
+		first.close();
+		assertEquals(0, budget.reservedBytes());
+		assertEquals(2, meterRegistry.find("zigzag.memory.wait").timer().count());
+		assertEquals(2, meterRegistry.find("zigzag.memory.estimate").summary().count());
+	}
+
+	@Test
+	void imagesLargerThanTheBudgetAreRejected() throws Exception {
+		assertThrows(IllegalArgumentException.class, () -> budget.reserve(11 * MIB));
+		assertEquals(1, meterRegistry.find("zigzag.memory.rejected").counter().count());
+		assertEquals(0, budget.reservedBytes());
+		budget.reserve(10 * MIB).close();
+
+		MemoryBudget unlimited = new MemoryBudget(0, STRIP_PIXELS, new SimpleMeterRegistry());
+		assertFalse(unlimited.isEnabled());
+		unlimited.reserve(Long.MAX_VALUE / 2).close();
+	}
+}
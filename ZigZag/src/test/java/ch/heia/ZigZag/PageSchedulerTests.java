@@ -0,0 +1,121 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.PageScheduler;
+import ch.heia.ZigZag.tasks.PageExecution;
+import ch.heia.ZigZag.tasks.ServiceTaskBase;
+import ch.heia.ZigZag.tasks.ServiceTaskTask;
+import ch.heia.ZigZag.tasks.TaskExecution;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageSchedulerTests {
+
+	private final PageScheduler scheduler = new PageScheduler();
+
+	private static TaskExecution task(UUID pipeline, int pages, int priority) {
+		ServiceTaskTask task = new ServiceTaskTask(UUID.randomUUID(), ServiceTaskBase.TaskStatus.PENDING,
+				UUID.randomUUID(), pipeline);
+		for (int i = 0; i < pages; i++) task.getDataIn().add(task.getId() + "/page-" + i + ".png");
+		ServiceTaskBase base = new ServiceTaskBase("access", "secret", "region", "http://storage", "bucket", task,
+				"http://engine/tasks/" + task.getId());
+		base.setPriority(priority);
+		return new TaskExecution(base);
+	}
+
+	private void queueAll(TaskExecution execution) {
+		for (PageExecution page = execution.nextPage(); page != null; page = execution.nextPage()) scheduler.put(page);
+	}
+
+	private List<TaskExecution> takeAll() throws InterruptedException {
+		List<TaskExecution> order = new ArrayList<>();
+		while (scheduler.size() > 0) order.add(scheduler.take().getExecution());
+		return order;
+	}
+
+	@Test
+	void singleFlowKeepsArrivalOrderForEqualTasks() throws InterruptedException {
+		UUID pipeline = UUID.randomUUID();
+		List<TaskExecution> tasks = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			TaskExecution task = task(pipeline, 1, 0);
+			queueAll(task);
+			tasks.add(task);
+		}
+		assertEquals(tasks, takeAll());
+	}
+
+	@Test
+	void largeFlowDoesNotStarveOthers() throws InterruptedException {
+		TaskExecution book = task(UUID.randomUUID(), 1000, 0);
+		queueAll(book);
+		TaskExecution interactive = task(UUID.randomUUID(), 1, 0);
+		queueAll(interactive);
+		List<TaskExecution> order = takeAll();
+		assertEquals(1001, order.size());
+		assertTrue(order.indexOf(interactive) <= 1, "served at " + order.indexOf(interactive));
+	}
+
+	@Test
+	void flowsShareByWeight() throws InterruptedException {
+		TaskExecution normal = task(UUID.randomUUID(), 300, 0);
+		TaskExecution urgent = task(UUID.randomUUID(), 300, 2);
+		queueAll(normal);
+		queueAll(urgent);
+		List<TaskExecution> first = takeAll().subList(0, 200);
+		long urgentPages = first.stream().filter(task -> task == urgent).count();
+		// weights 3 and 1
+		assertEquals(150, urgentPages, 2);
+	}
+
+	@Test
+	void shortTasksGoFirstWithinAFlow() throws InterruptedException {
+		UUID pipeline = UUID.randomUUID();
+		TaskExecution longTask = task(pipeline, 20, 0);
+		// the task service queues a few pages of a task at a time
+		for (int i = 0; i < 8; i++) scheduler.put(longTask.nextPage());
+		TaskExecution shortTask = task(pipeline, 1, 0);
+		queueAll(shortTask);
+		assertSame(shortTask, scheduler.take().getExecution());
+	}
+
+	@Test
+	void longTasksAreNotStarvedByShortOnes() throws InterruptedException {
+		UUID pipeline = UUID.randomUUID();
+		TaskExecution longTask = task(pipeline, 500, 0);
+		PageExecution longPage = longTask.nextPage();
+		scheduler.put(longPage);
+		int taken = 0;
+		while (true) {
+			// a steady stream of one-page tasks in the same flow
+			queueAll(task(pipeline, 1, 0));
+			PageExecution page = scheduler.take();
+			taken++;
+			if (page == longPage) break;
+			assertTrue(taken < 1000, "long task starved");
+		}
+		assertTrue(taken <= 1 + 64, "served after " + taken);
+	}
+
+	@Test
+	void takeWaitsForAPage() throws Exception {
+		CompletableFuture<PageExecution> taken = CompletableFuture.supplyAsync(() -> {
+			try {
+				return scheduler.take();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(100);
+		assertFalse(taken.isDone());
+		TaskExecution task = task(null, 1, 0);
+		queueAll(task);
+		assertSame(task, taken.get(10, TimeUnit.SECONDS).getExecution());
+	}
+}
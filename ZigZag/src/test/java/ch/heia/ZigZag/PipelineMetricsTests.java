@@ -0,0 +1,56 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import ch.heia.ZigZag.service.PipelineMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineMetricsTests {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final PipelineMetrics metrics = new PipelineMetrics(meterRegistry);
+
+	@Test
+	void stepsAreRecordedUnderTheirOwnTag() {
+		long start = PipelineMetrics.start();
+		long elapsed = metrics.record(PipelineMetrics.Step.DECODE, start);
+		metrics.recordNanos(PipelineMetrics.Step.FETCH, TimeUnit.MILLISECONDS.toNanos(5));
+		metrics.recordNanos(PipelineMetrics.Step.FETCH, -1);
+		assertTrue(elapsed >= 0);
+		assertEquals(1, meterRegistry.find("zigzag.step.duration").tag("step", "decode").timer().count());
+		assertEquals(2, meterRegistry.find("zigzag.step.duration").tag("step", "fetch").timer().count());
+		assertEquals(5, meterRegistry.find("zigzag.step.duration").tag("step", "fetch").timer()
+				.totalTime(TimeUnit.MILLISECONDS));
+		assertEquals(0, meterRegistry.find("zigzag.step.duration").tag("step", "notify").timer().count());
+	}
+
+	@Test
+	void errorsBytesAndImagesAreCounted() {
+		metrics.recordError(PipelineMetrics.Step.UPLOAD);
+		metrics.recordError(PipelineMetrics.Step.UPLOAD);
+		metrics.recordBytesIn(1000);
+		metrics.recordBytesOut(250);
+		metrics.recordImage(2_500_000);
+		assertEquals(2, meterRegistry.find("zigzag.step.errors").tag("step", "upload").counter().count());
+		assertEquals(0, meterRegistry.find("zigzag.step.errors").tag("step", "fetch").counter().count());
+		assertEquals(1000, meterRegistry.find("zigzag.bytes").tag("direction", "in").counter().count());
+		assertEquals(250, meterRegistry.find("zigzag.bytes").tag("direction", "out").counter().count());
+		assertEquals(2.5, meterRegistry.find("zigzag.image.megapixels").summary().max());
+	}
+
+	@Test
+	void filterChronometerIsRecordedForEachBinarization() {
+		BinarizationService binarizationService = new BinarizationService(new FilterRegistry(0, 4), metrics);
+		BufferedImage image = SyntheticDocuments.page(400, 300, 1, false);
+		binarizationService.binarizeImage(image, ImageBinarizer.MODE_BINARY, BinarizationService.DEFAULT_WINDOW_SIZE);
+		binarizationService.binarizeImage(image, ImageBinarizer.MODE_BINARY, BinarizationService.DEFAULT_WINDOW_SIZE, 2);
+		assertEquals(2, meterRegistry.find("zigzag.filter.chronometer").timer().count());
+	}
+}
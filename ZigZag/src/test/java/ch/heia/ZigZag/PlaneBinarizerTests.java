@@ -0,0 +1,137 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import ch.heia.ZigZag.service.PipelineMetrics;
+import ch.heia.ZigZag.service.PlaneBinarizer;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+import sugarcube.zigzag.ZigZagFilter;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlaneBinarizerTests {
+
+	private FilterRegistry registry;
+
+	@BeforeEach
+	void setUp() {
+		registry = new FilterRegistry(0, 4);
+	}
+
+	@AfterEach
+	void tearDown() {
+		registry.close();
+	}
+
+	@Test
+	void planesGiveSameResultAsFilter() {
+		// odd sizes, the rows are not a multiple of the vectors, and a page barely larger than the window
+		int[][] sizes = {{413, 587}, {64, 40}};
+		int[] types = {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR,
+				BufferedImage.TYPE_INT_ARGB};
+		for (int[] size : sizes) {
+			for (boolean color : new boolean[]{false, true}) {
+				BufferedImage page = SyntheticDocuments.page(size[0], size[1], 9, color);
+				for (int type : types) {
+					BufferedImage image = convert(page, type);
+					for (int mode = ImageBinarizer.MODE_BINARY; mode <= ImageBinarizer.MODE_GRAY_LEVEL; mode++) {
+						// the filter writes into its input
+						BufferedImage expected = new ZigZagFilter(BinarizationService.DEFAULT_WINDOW_SIZE,
+								BinarizationService.DEFAULT_PERCENT, mode)
+								.setHistoricalWhiteThreshold(BinarizationService.DEFAULT_WHITE_THRESHOLD)
+								.filterImplementation(SyntheticDocuments.copy(image));
+						for (boolean vector : new boolean[]{false, true}) {
+							PlaneBinarizer binarizer = new PlaneBinarizer(mode, BinarizationService.DEFAULT_WINDOW_SIZE,
+									BinarizationService.DEFAULT_PERCENT, BinarizationService.DEFAULT_WHITE_THRESHOLD,
+									vector);
+							assertPixelsEqual(expected, binarizer.binarize(image), size[0] + "x" + size[1]
+									+ " color " + color + " type " + type + " mode " + mode + " "
+									+ binarizer.getKernels());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void inputIsNotModified() {
+		BufferedImage page = SyntheticDocuments.page(200, 283, 5, false);
+		BufferedImage image = SyntheticDocuments.copy(page);
+		new PlaneBinarizer(ImageBinarizer.MODE_BINARY, BinarizationService.DEFAULT_WINDOW_SIZE,
+				BinarizationService.DEFAULT_PERCENT, BinarizationService.DEFAULT_WHITE_THRESHOLD, true).binarize(image);
+		assertPixelsEqual(page, image, "input");
+	}
+
+	@Test
+	void colorModeAndSmallImagesAreLeftToTheFilter() {
+		assertFalse(PlaneBinarizer.supports(ImageBinarizer.MODE_COLOR));
+		assertThrows(IllegalArgumentException.class, () -> new PlaneBinarizer(ImageBinarizer.MODE_COLOR, 30, 100,
+				245, true));
+		PlaneBinarizer binarizer = new PlaneBinarizer(ImageBinarizer.MODE_BINARY, 30, 100, 245, true);
+		BufferedImage small = SyntheticDocuments.page(31, 100, 3, false);
+		assertFalse(binarizer.accepts(small));
+		assertThrows(IllegalArgumentException.class, () -> binarizer.binarize(small));
+
+		BinarizationService service = new BinarizationService(registry, new PipelineMetrics(), "vector");
+		assertEquals(BinarizationEngine.VECTOR, service.engine(null));
+		assertEquals(BinarizationEngine.ZIGZAG, service.engine(BinarizationEngine.ZIGZAG));
+		assertTrue(service.isSingleThreaded(null, ImageBinarizer.MODE_BINARY, 30, 200, 283));
+		assertFalse(service.isSingleThreaded(null, ImageBinarizer.MODE_COLOR, 30, 200, 283));
+		assertFalse(service.isSingleThreaded(null, ImageBinarizer.MODE_BINARY, 30, 31, 283));
+		assertFalse(service.isSingleThreaded(BinarizationEngine.ZIGZAG, ImageBinarizer.MODE_BINARY, 30, 200, 283));
+	}
+
+	@Test
+	void enginesGiveSameResult() {
+		BinarizationService zigzag = new BinarizationService(registry);
+		BinarizationService vector = new BinarizationService(registry, new PipelineMetrics(), "vector");
+		BufferedImage page = SyntheticDocuments.page(300, 424, 11, false);
+		for (int mode = ImageBinarizer.MODE_BINARY; mode <= ImageBinarizer.MODE_COLOR; mode++) {
+			BufferedImage expected = zigzag.binarizeImage(SyntheticDocuments.copy(page), mode,
+					BinarizationService.DEFAULT_WINDOW_SIZE, 1, null);
+			BufferedImage actual = vector.binarizeImage(SyntheticDocuments.copy(page), mode,
+					BinarizationService.DEFAULT_WINDOW_SIZE, 1, null);
+			assertPixelsEqual(expected, actual, "mode " + mode);
+		}
+	}
+
+	@Test
+	void engineIsParsed() {
+		assertNull(BinarizationEngine.of(null));
+		assertNull(BinarizationEngine.of(""));
+		assertEquals(BinarizationEngine.VECTOR, BinarizationEngine.of("Vector"));
+		assertEquals(BinarizationEngine.ZIGZAG, BinarizationEngine.of("zigzag"));
+		assertThrows(IllegalArgumentException.class, () -> BinarizationEngine.of("fast"));
+	}
+
+	private static BufferedImage convert(BufferedImage page, int type) {
+		if (page.getType() == type) return page;
+		BufferedImage image = new BufferedImage(page.getWidth(), page.getHeight(), type);
+		Graphics2D graphics = image.createGraphics();
+		graphics.drawImage(page, 0, 0, null);
+		graphics.dispose();
+		return image;
+	}
+
+	private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual, String message) {
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		Raster expectedRaster = expected.getRaster();
+		Raster actualRaster = actual.getRaster();
+		int bands = Math.min(expectedRaster.getNumBands(), actualRaster.getNumBands());
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				for (int b = 0; b < bands; b++)
+					if (expectedRaster.getSample(x, y, b) != actualRaster.getSample(x, y, b))
+						fail(message + ": pixel " + x + "," + y + " band " + b);
+	}
+}
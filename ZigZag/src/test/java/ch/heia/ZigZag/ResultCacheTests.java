@@ -0,0 +1,146 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.ResultCache;
+import ch.heia.ZigZag.tasks.BinarizedImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultCacheTests {
+
+	private static final String LOCATION = "http://storage/bucket";
+
+	private Path directory;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		directory = Files.createTempDirectory("zigzag-cache-test");
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	private static ResultCache.Key key(String content, int mode) {
+		MessageDigest digest = ResultCache.newDigest();
+		digest.update(content.getBytes(StandardCharsets.UTF_8));
+		return ResultCache.key(digest, mode, 30, 100, 245);
+	}
+
+	@Test
+	void keysDependOnContentAndSettings() {
+		assertEquals(key("page", 2), key("page", 2));
+		assertNotEquals(key("page", 2), key("other page", 2));
+		assertNotEquals(key("page", 2), key("page", 0));
+		assertEquals(64, key("page", 2).digest().length());
+	}
+
+	@Test
+	void memoryTierIsBoundedByBytesAndEvictsLeastRecentlyUsed() throws Exception {
+		ResultCache cache = new ResultCache(4000, "", 0, new SimpleMeterRegistry());
+		cache.put(key("a", 2), new byte[1000], LOCATION, "a.png");
+		cache.put(key("b", 2), new byte[1000], LOCATION, "b.png");
+		cache.put(key("c", 2), new byte[1000], LOCATION, "c.png");
+		assertNotNull(cache.get(key("a", 2), "a.jpg", LOCATION));
+		cache.put(key("d", 2), new byte[1000], LOCATION, "d.png");
+		cache.put(key("e", 2), new byte[1000], LOCATION, "e.png");
+
+		assertTrue(cache.getSize(false) <= 4000);
+		assertNull(cache.get(key("b", 2), "b.jpg", LOCATION));
+		assertNotNull(cache.get(key("a", 2), "a.jpg", LOCATION));
+		assertNotNull(cache.get(key("e", 2), "e.jpg", LOCATION));
+		// more than a quarter of the tier
+		cache.put(key("f", 2), new byte[1001], LOCATION, "f.png");
+		assertNull(cache.get(key("f", 2), "f.jpg", LOCATION));
+	}
+
+	@Test
+	void hitsGiveTheUploadedKeyOfTheSameStorageOnly() throws Exception {
+		ResultCache cache = new ResultCache(1 << 20, "", 0, new SimpleMeterRegistry());
+		byte[] png = "binarized".getBytes(StandardCharsets.UTF_8);
+		cache.put(key("page", 2), png, LOCATION, "result.png");
+
+		BinarizedImage hit = cache.get(key("page", 2), "page.jpg", LOCATION);
+		assertArrayEquals(png, hit.bytes());
+		assertEquals("page.jpg", hit.source());
+		assertEquals("result.png", hit.objectKey());
+		assertNull(cache.get(key("page", 2), "page.jpg", "http://storage/other").objectKey());
+
+		cache.put(key("page", 2), png, "http://storage/other", "copy.png");
+		assertEquals("copy.png", cache.get(key("page", 2), "page.jpg", "http://storage/other").objectKey());
+		assertEquals(png.length, cache.getSize(false));
+	}
+
+	@Test
+	void diskTierSurvivesRestarts() throws Exception {
+		byte[] png = new byte[3000];
+		png[0] = 42;
+		ResultCache cache = new ResultCache(1000, directory.toString(), 1 << 20, new SimpleMeterRegistry());
+		cache.put(key("page", 2), png, LOCATION, "result.png");
+		assertEquals(0, cache.getSize(false));
+		assertEquals(png.length, cache.getSize(true));
+
+		ResultCache restarted = new ResultCache(1 << 20, directory.toString(), 1 << 20, new SimpleMeterRegistry());
+		assertEquals(png.length, restarted.getSize(true));
+		BinarizedImage hit = restarted.get(key("page", 2), "page.jpg", LOCATION);
+		assertArrayEquals(png, hit.bytes());
+		// the object key is only known to the memory tier of the process that uploaded it
+		assertNull(hit.objectKey());
+		assertEquals(png.length, restarted.getSize(false));
+	}
+
+	@Test
+	void diskHitsTooLargeForMemoryAreCopiedToAFile() throws Exception {
+		ResultCache cache = new ResultCache(0, directory.toString(), 1 << 20, new SimpleMeterRegistry());
+		Path result = Files.createTempFile("zigzag-result", ".png");
+		try {
+			Files.write(result, new byte[5000]);
+			cache.put(key("page", 2), result, LOCATION, "result.png");
+			BinarizedImage hit = cache.get(key("page", 2), "page.jpg", LOCATION);
+			assertNull(hit.bytes());
+			assertNotEquals(result, hit.file());
+			assertEquals(5000, Files.size(hit.file()));
+			Files.delete(hit.file());
+		} finally {
+			Files.deleteIfExists(result);
+		}
+	}
+
+	@Test
+	void diskTierIsBoundedByBytes() throws Exception {
+		ResultCache cache = new ResultCache(0, directory.toString(), 10000, new SimpleMeterRegistry());
+		for (int i = 0; i < 10; i++)
+			cache.put(key("page " + i, 2), new byte[2000], LOCATION, i + ".png");
+		assertTrue(cache.getSize(true) <= 10000);
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals(5, files.count());
+		}
+		assertNull(cache.get(key("page 0", 2), "page.jpg", LOCATION));
+		assertNotNull(cache.get(key("page 9", 2), "page.jpg", LOCATION));
+	}
+
+	@Test
+	void hitRatioCountsAllLookups() throws Exception {
+		ResultCache cache = new ResultCache(1 << 20, "", 0, new SimpleMeterRegistry());
+		assertEquals(0, cache.getHitRatio());
+		assertNull(cache.get(key("page", 2), "page.jpg", LOCATION));
+		cache.put(key("page", 2), new byte[10], LOCATION, "result.png");
+		for (int i = 0; i < 3; i++) assertNotNull(cache.get(key("page", 2), "page.jpg", LOCATION));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.75, cache.getHitRatio(), 1e-9);
+	}
+}
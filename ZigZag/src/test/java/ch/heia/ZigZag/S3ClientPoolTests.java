@@ -0,0 +1,18 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.S3ClientPool;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3ClientPoolTests {
+
+	@Test
+	void clientKeyLeavesTheCredentialsOutOfTheLogs() {
+		S3ClientPool.ClientKey key = new S3ClientPool.ClientKey("http://storage", "eu-central-2", "AKIAEXAMPLE",
+				"bucket", "secret");
+		assertFalse(key.toString().contains("AKIAEXAMPLE"));
+		assertFalse(key.toString().contains("secret"));
+		assertTrue(key.toString().contains("bucket"));
+	}
+}
@@ -0,0 +1,119 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BufferPool;
+import ch.heia.ZigZag.service.S3ClientPool;
+import ch.heia.ZigZag.service.S3UploadOutputStream;
+import ch.heia.ZigZag.service.StorageService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageServiceTests {
+
+	private static final String BUCKET = "bucket";
+	private static final String REGION = "eu-central-2";
+
+	private FakeS3Server s3;
+	private S3ClientPool pool;
+	private StorageService storageService;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		s3 = new FakeS3Server();
+		pool = new S3ClientPool(2, 60, 8, "netty");
+		storageService = new StorageService(pool, S3UploadOutputStream.MIN_PART_SIZE, new BufferPool(64 << 20));
+	}
+
+	@AfterEach
+	void tearDown() {
+		pool.close();
+		s3.close();
+	}
+
+	@Test
+	void uploadThenDownloadThroughPooledClient() {
+		byte[] content = "binarized page".getBytes(StandardCharsets.UTF_8);
+		String key = storageService.uploadSynchronous(content, ".png", REGION, "secret", "access", s3.endpoint(),
+				BUCKET);
+		assertNotNull(key);
+		assertTrue(key.endsWith(".png"));
+		assertArrayEquals(content, s3.getObject(BUCKET, key));
+
+		byte[] downloaded = storageService.getFileSynchronous(key, REGION, "secret", "access", s3.endpoint(), BUCKET);
+		assertArrayEquals(content, downloaded);
+	}
+
+	@Test
+	void clientsAndConnectionsAreReused() {
+		s3.putObject(BUCKET, "page.png", new byte[1024]);
+		for (int i = 0; i < 50; i++) {
+			assertNotNull(storageService.getFileSynchronous("page.png", REGION, "secret", "access", s3.endpoint(),
+					BUCKET));
+		}
+		assertEquals(1, pool.size());
+		assertEquals(50, s3.requestCount());
+		assertTrue(s3.connectionCount() <= 2, "connections should be kept alive, got " + s3.connectionCount());
+	}
+
+	@Test
+	void cacheIsBoundedByStorage() {
+		s3.putObject(BUCKET, "page.png", new byte[16]);
+		for (int i = 0; i < 5; i++) {
+			assertNotNull(storageService.getFileSynchronous("page.png", REGION, "secret", "access-" + i,
+					s3.endpoint(), BUCKET));
+		}
+		assertEquals(2, pool.size());
+	}
+
+	@Test
+	void streamedUploadBelowPartSizeIsSinglePut() throws Exception {
+		byte[] content = new byte[100_000];
+		new Random(1).nextBytes(content);
+		S3UploadOutputStream upload = storageService.openUploadStream(".png", "image/png", REGION, "secret",
+				"access", s3.endpoint(), BUCKET);
+		try (upload) {
+			upload.write(content);
+		}
+		assertArrayEquals(content, s3.getObject(BUCKET, upload.getKey()));
+		assertEquals(0, s3.multipartUploadCount());
+	}
+
+	@Test
+	void streamedUploadAbovePartSizeIsMultipart() throws Exception {
+		byte[] content = new byte[2 * S3UploadOutputStream.MIN_PART_SIZE + 12345];
+		new Random(2).nextBytes(content);
+		S3UploadOutputStream upload = storageService.openUploadStream(".png", "image/png", REGION, "secret",
+				"access", s3.endpoint(), BUCKET);
+		try (upload) {
+			for (int offset = 0; offset < content.length; offset += 4096) {
+				upload.write(content, offset, Math.min(4096, content.length - offset));
+			}
+		}
+		assertEquals(1, s3.multipartUploadCount());
+		assertArrayEquals(content, s3.getObject(BUCKET, upload.getKey()));
+	}
+
+	@Test
+	void streamedDownload() throws Exception {
+		byte[] content = new byte[3 * 1024 * 1024];
+		new Random(3).nextBytes(content);
+		s3.putObject(BUCKET, "scan.png", content);
+		try (InputStream stream = storageService.getFileStream("scan.png", REGION, "secret", "access",
+				s3.endpoint(), BUCKET)) {
+			assertArrayEquals(content, stream.readAllBytes());
+		}
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	void missingObjectReturnsNull() {
+		assertNull(storageService.getFileSynchronous("missing.png", REGION, "secret", "access", s3.endpoint(),
+				BUCKET));
+	}
+}
@@ -0,0 +1,86 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.BinarizationService;
+import ch.heia.ZigZag.service.FilterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sugarcube.zigzag.ImageBinarizer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripBinarizerTests {
+
+	private FilterRegistry registry;
+	private BinarizationService binarizationService;
+	private Path source;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		registry = new FilterRegistry(0, 4);
+		binarizationService = new BinarizationService(registry);
+		source = Files.createTempFile("strip-source-", ".img");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		registry.close();
+		Files.deleteIfExists(source);
+	}
+
+	@Test
+	void stripsGiveSameResultAsWholeImage() throws IOException {
+		for (String format : new String[]{"png", "jpeg"}) {
+			// odd sizes, the last strip is shorter than the others
+			Files.write(source, SyntheticDocuments.encode(SyntheticDocuments.page(413, 587, 21, true), format));
+			for (int mode = ImageBinarizer.MODE_BINARY; mode <= ImageBinarizer.MODE_GRAY_LEVEL; mode++) {
+				BufferedImage whole = binarizationService.binarizeImage(
+						ImageIO.read(source.toFile()), mode, BinarizationService.DEFAULT_WINDOW_SIZE);
+				// strips of the minimum height (four windows) and a single strip
+				for (int stripPixels : new int[]{1, Integer.MAX_VALUE}) {
+					BufferedImage strips = ImageIO.read(new ByteArrayInputStream(binarizeInStrips(mode, stripPixels)));
+					assertPixelsEqual(whole, strips, format + " mode " + mode + " strip pixels " + stripPixels);
+				}
+			}
+		}
+	}
+
+	@Test
+	void blackAndWhiteModesAreWrittenWithOneBit() throws IOException {
+		Files.write(source, SyntheticDocuments.encode(SyntheticDocuments.page(200, 283, 4, false), "png"));
+		for (int mode = ImageBinarizer.MODE_BINARY; mode <= ImageBinarizer.MODE_GRAY_LEVEL; mode++) {
+			BufferedImage strips = ImageIO.read(new ByteArrayInputStream(binarizeInStrips(mode, 1)));
+			assertEquals(BinarizationService.isBinaryOutput(mode) ? 1 : 8, strips.getColorModel().getPixelSize());
+		}
+	}
+
+	@Test
+	void colorModeIsRejected() throws IOException {
+		Files.write(source, SyntheticDocuments.encode(SyntheticDocuments.page(200, 283, 4, true), "png"));
+		assertFalse(BinarizationService.isStripMode(ImageBinarizer.MODE_COLOR));
+		assertThrows(IllegalArgumentException.class, () -> binarizeInStrips(ImageBinarizer.MODE_COLOR, 1));
+	}
+
+	private byte[] binarizeInStrips(int mode, int stripPixels) throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		binarizationService.binarizeInStrips(source, png, mode, BinarizationService.DEFAULT_WINDOW_SIZE, stripPixels);
+		return png.toByteArray();
+	}
+
+	private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual, String message) {
+		assertEquals(expected.getWidth(), actual.getWidth(), message);
+		assertEquals(expected.getHeight(), actual.getHeight(), message);
+		for (int y = 0; y < expected.getHeight(); y++)
+			for (int x = 0; x < expected.getWidth(); x++)
+				if (expected.getRGB(x, y) != actual.getRGB(x, y))
+					fail(message + ": pixels differ at " + x + "," + y);
+	}
+}
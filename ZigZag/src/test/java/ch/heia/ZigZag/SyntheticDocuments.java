@@ -0,0 +1,141 @@
+package ch.heia.ZigZag;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+/**
+ * SyntheticDocuments generates scanned-document-like images for tests and benchmarks: a page with uneven lighting,
+ * lines of dark "words", a few stains and sensor noise. Pages have the A4 aspect ratio, and the same size and seed
+ * always give the same pixels, so measurements made on them are comparable between runs and machines.
+ */
+public final class SyntheticDocuments {
+
+	private static final double A4_RATIO = Math.sqrt(2);
+
+	private SyntheticDocuments() {
+	}
+
+	/**
+	 * @param megapixels the number of pixels of the page, in millions (fractions allowed)
+	 * @param seed the seed of the page content
+	 * @param color true for an RGB page (yellowish paper, blue-black ink), false for a gray level page
+	 * @return the generated page.
+	 */
+	public static BufferedImage page(double megapixels, long seed, boolean color) {
+		int width = (int) Math.max(16, Math.round(Math.sqrt(megapixels * 1e6 / A4_RATIO)));
+		int height = (int) Math.max(16, Math.round(width * A4_RATIO));
+		return page(width, height, seed, color);
+	}
+
+	/**
+	 * @param width the width of the page
+	 * @param height the height of the page
+	 * @param seed the seed of the page content
+	 * @param color true for an RGB page, false for a gray level page
+	 * @return the generated page.
+	 */
+	public static BufferedImage page(int width, int height, long seed, boolean color) {
+		BufferedImage image = new BufferedImage(width, height,
+				color ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_BYTE_GRAY);
+		Random random = new Random(seed);
+		Graphics2D graphics = image.createGraphics();
+		try {
+			// paper lit from the top left corner, darker towards the binding
+			graphics.setPaint(new GradientPaint(0, 0, color ? new Color(242, 236, 214) : new Color(238, 238, 238),
+					width, height, color ? new Color(196, 188, 160) : new Color(186, 186, 186)));
+			graphics.fillRect(0, 0, width, height);
+
+			int margin = width / 12;
+			int lineHeight = Math.max(4, height / 64);
+			int glyphHeight = Math.max(2, lineHeight * 3 / 5);
+			Color ink = color ? new Color(28, 34, 72) : new Color(40, 40, 40);
+			for (int y = margin; y + glyphHeight < height - margin; y += lineHeight) {
+				int x = margin;
+				while (x < width - margin) {
+					int word = glyphHeight * (2 + random.nextInt(6));
+					int shade = random.nextInt(40);
+					graphics.setColor(new Color(Math.min(255, ink.getRed() + shade),
+							Math.min(255, ink.getGreen() + shade), Math.min(255, ink.getBlue() + shade)));
+					for (int glyph = x; glyph < Math.min(x + word, width - margin); glyph += glyphHeight / 2 + 1) {
+						int stroke = Math.max(1, glyphHeight / 5);
+						int top = y + random.nextInt(Math.max(1, glyphHeight / 4));
+						graphics.fillRect(glyph, top, stroke, glyphHeight - (top - y));
+						graphics.fillRect(glyph, y + glyphHeight - stroke, glyphHeight / 2, stroke);
+					}
+					x += word + glyphHeight;
+				}
+				// short paragraph endings
+				if (random.nextInt(8) == 0) y += lineHeight;
+			}
+
+			for (int stain = 0; stain < 3; stain++) {
+				int size = width / (4 + random.nextInt(6));
+				graphics.setColor(color ? new Color(150, 120, 60, 40) : new Color(110, 110, 110, 40));
+				graphics.fillOval(random.nextInt(width), random.nextInt(height), size, size * 2 / 3);
+			}
+		} finally {
+			graphics.dispose();
+		}
+		addNoise(image, seed);
+		return image;
+	}
+
+	/**
+	 * @return the page encoded in the given format ("png" or "jpeg").
+	 */
+	public static byte[] encode(BufferedImage image, String format) {
+		try {
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			if (!ImageIO.write(image, format, stream))
+				throw new IllegalArgumentException("No writer for " + format);
+			return stream.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return a copy of the image, with its own raster.
+	 */
+	public static BufferedImage copy(BufferedImage image) {
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+		image.copyData(copy.getRaster());
+		return copy;
+	}
+
+	private static void addNoise(BufferedImage image, long seed) {
+		// xorshift instead of Random, the pages go up to 50 MP
+		long state = seed * 0x9E3779B97F4A7C15L | 1;
+		if (image.getRaster().getDataBuffer() instanceof DataBufferInt buffer) {
+			int[] pixels = buffer.getData();
+			for (int i = 0; i < pixels.length; i++) {
+				state ^= state << 13;
+				state ^= state >>> 7;
+				state ^= state << 17;
+				int noise = (int) (state & 15) - 8;
+				int rgb = pixels[i];
+				pixels[i] = clamp((rgb >> 16 & 0xFF) + noise) << 16 | clamp((rgb >> 8 & 0xFF) + noise) << 8
+						| clamp((rgb & 0xFF) + noise);
+			}
+		} else {
+			byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+			for (int i = 0; i < pixels.length; i++) {
+				state ^= state << 13;
+				state ^= state >>> 7;
+				state ^= state << 17;
+				pixels[i] = (byte) clamp((pixels[i] & 0xFF) + (int) (state & 15) - 8);
+			}
+		}
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+}
@@ -0,0 +1,95 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.tasks.PageExecution;
+import ch.heia.ZigZag.tasks.ServiceTaskBase;
+import ch.heia.ZigZag.tasks.ServiceTaskTask;
+import ch.heia.ZigZag.tasks.TaskExecution;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskExecutionTests {
+
+	private static TaskExecution execution(String... dataIn) {
+		ServiceTaskTask task = new ServiceTaskTask(UUID.randomUUID(), ServiceTaskBase.TaskStatus.PENDING,
+				UUID.randomUUID(), null);
+		task.getDataIn().addAll(List.of(dataIn));
+		return new TaskExecution(new ServiceTaskBase("access", "secret", "region", "http://storage", "bucket", task,
+				"http://engine/tasks/" + task.getId()));
+	}
+
+	private static List<PageExecution> allPages(TaskExecution execution) {
+		List<PageExecution> pages = new ArrayList<>();
+		for (PageExecution page = execution.nextPage(); page != null; page = execution.nextPage()) pages.add(page);
+		return pages;
+	}
+
+	@Test
+	void dataOutFollowsDataInWhateverTheCompletionOrder() {
+		String[] dataIn = new String[200];
+		for (int i = 0; i < dataIn.length; i++) dataIn[i] = "book/page-" + i + ".png";
+		TaskExecution execution = execution(dataIn);
+		List<PageExecution> pages = allPages(execution);
+		assertEquals(200, pages.size());
+
+		Collections.shuffle(pages, new Random(7));
+		for (int i = 0; i < pages.size(); i++) {
+			PageExecution page = pages.get(i);
+			assertEquals(i == pages.size() - 1, execution.complete(page, page.getFile() + ".out"));
+		}
+		List<String> dataOut = execution.getDataOut();
+		for (int i = 0; i < dataIn.length; i++) assertEquals(dataIn[i] + ".out", dataOut.get(i));
+	}
+
+	@Test
+	void imagesGivenTwiceAreProcessedOnce() {
+		TaskExecution execution = execution("a.png", "b.png", "a.png");
+		List<PageExecution> pages = allPages(execution);
+		assertEquals(List.of("a.png", "b.png"), pages.stream().map(PageExecution::getFile).toList());
+		execution.complete(pages.get(1), "b.out");
+		assertTrue(execution.complete(pages.get(0), "a.out"));
+		assertEquals(List.of("a.out", "b.out", "a.out"), execution.getDataOut());
+	}
+
+	@Test
+	void taskWithoutImagesHasOneEmptyPage() {
+		TaskExecution execution = execution();
+		PageExecution page = execution.nextPage();
+		assertTrue(page.isEmpty());
+		assertNull(execution.nextPage());
+		assertTrue(execution.complete(page, null));
+		assertEquals(List.of(), execution.getDataOut());
+	}
+
+	@Test
+	void failedTaskHandsOutNoMorePages() {
+		TaskExecution execution = execution("a.png", "b.png", "c.png");
+		assertNotNull(execution.nextPage());
+		assertTrue(execution.markFailed());
+		assertFalse(execution.markFailed());
+		assertNull(execution.nextPage());
+		assertEquals(ServiceTaskBase.TaskStatus.ERROR, execution.getTask().getStatus());
+	}
+
+	@Test
+	void statusOnlyMovesForward() {
+		TaskExecution execution = execution("a.png", "b.png");
+		execution.advanceStatus(ServiceTaskBase.TaskStatus.SAVING);
+		execution.advanceStatus(ServiceTaskBase.TaskStatus.FETCHING);
+		assertEquals(ServiceTaskBase.TaskStatus.SAVING, execution.getTask().getStatus());
+		execution.markFailed();
+		execution.advanceStatus(ServiceTaskBase.TaskStatus.FINISHED);
+		assertEquals(ServiceTaskBase.TaskStatus.ERROR, execution.getTask().getStatus());
+
+		TaskExecution finished = execution("a.png");
+		finished.markFinished();
+		finished.advanceStatus(ServiceTaskBase.TaskStatus.SAVING);
+		assertEquals(ServiceTaskBase.TaskStatus.FINISHED, finished.getTask().getStatus());
+	}
+}
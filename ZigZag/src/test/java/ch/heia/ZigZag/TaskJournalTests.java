@@ -0,0 +1,166 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.TaskJournal;
+import ch.heia.ZigZag.tasks.BinarizationEngine;
+import ch.heia.ZigZag.tasks.ServiceTaskBase;
+import ch.heia.ZigZag.tasks.ServiceTaskTask;
+import ch.heia.ZigZag.tasks.TaskExecution;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TaskJournalTests {
+
+	private Path directory;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		directory = Files.createTempDirectory("zigzag-journal-test");
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	private Path journalFile() {
+		return directory.resolve("tasks").resolve("tasks.journal");
+	}
+
+	private TaskJournal open(long compactBytes) {
+		return new TaskJournal(directory.toString(), compactBytes, new SimpleMeterRegistry());
+	}
+
+	private static ServiceTaskBase task(String... dataIn) {
+		ServiceTaskTask task = new ServiceTaskTask(UUID.randomUUID(), ServiceTaskBase.TaskStatus.PROCESSING,
+				UUID.randomUUID(), UUID.randomUUID());
+		task.getDataIn().addAll(List.of(dataIn));
+		ServiceTaskBase base = new ServiceTaskBase("access", "secret", "eu-central-2", "http://storage", "bucket",
+				task, "http://engine/tasks/" + task.getId());
+		base.setPriority(3);
+		base.setEngine(BinarizationEngine.VECTOR);
+		return base;
+	}
+
+	@Test
+	void unfinishedTasksAreResumedWithoutTheirSavedPages() {
+		ServiceTaskBase book = task("a.png", "b.png", "c.png");
+		ServiceTaskBase finished = task("d.png");
+		TaskJournal journal = open(1 << 20);
+		assertTrue(journal.takeRecovered().isEmpty());
+		journal.recordArrival(book);
+		journal.recordArrival(finished);
+		journal.recordPage(book, "b.png", "b-result.png");
+		journal.recordPage(finished, "d.png", "d-result.png");
+		journal.recordEnd(finished);
+		journal.close();
+
+		List<TaskJournal.Recovered> recovered = open(1 << 20).takeRecovered();
+		assertEquals(1, recovered.size());
+		ServiceTaskBase resumed = recovered.get(0).task();
+		assertEquals(book.getTask().getId(), resumed.getTask().getId());
+		assertEquals(ServiceTaskBase.TaskStatus.PENDING, resumed.getTask().getStatus());
+		assertEquals(book.getTask().getServiceId(), resumed.getTask().getServiceId());
+		assertEquals(book.getTask().getPipelineExecutionID(), resumed.getTask().getPipelineExecutionID());
+		assertEquals(book.getTask().getDataIn(), resumed.getTask().getDataIn());
+		assertEquals("secret", resumed.getS3SecretAccessKey());
+		assertEquals(book.getCallbackUrl(), resumed.getCallbackUrl());
+		assertEquals(3, resumed.getPriority());
+		assertEquals(BinarizationEngine.VECTOR, resumed.getEngine());
+		assertEquals(Map.of("b.png", "b-result.png"), recovered.get(0).savedResults());
+
+		TaskExecution execution = new TaskExecution(resumed, recovered.get(0).savedResults());
+		assertEquals(2, execution.getPageCount());
+		assertEquals("a.png", execution.nextPage().getFile());
+		assertEquals("c.png", execution.nextPage().getFile());
+		assertNull(execution.nextPage());
+	}
+
+	@Test
+	void truncatedLastRecordIsIgnored() throws Exception {
+		ServiceTaskBase task = task("a.png");
+		TaskJournal journal = open(1 << 20);
+		journal.recordArrival(task);
+		journal.close();
+		Files.writeString(journalFile(), "{\"type\":\"page\",\"id\":\"" + task.getTask().getId(),
+				StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+		List<TaskJournal.Recovered> recovered = open(1 << 20).takeRecovered();
+		assertEquals(1, recovered.size());
+		assertTrue(recovered.get(0).savedResults().isEmpty());
+	}
+
+	@Test
+	void endedTasksAreCompactedAway() throws Exception {
+		TaskJournal journal = open(16 * 1024);
+		ServiceTaskBase kept = task("kept.png");
+		journal.recordArrival(kept);
+		for (int i = 0; i < 500; i++) {
+			ServiceTaskBase task = task("page-" + i + ".png");
+			journal.recordArrival(task);
+			journal.recordPage(task, "page-" + i + ".png", "result-" + i + ".png");
+			journal.recordEnd(task);
+		}
+		journal.close();
+		assertTrue(Files.size(journalFile()) < 32 * 1024);
+
+		TaskJournal reopened = open(16 * 1024);
+		List<TaskJournal.Recovered> recovered = reopened.takeRecovered();
+		assertEquals(1, recovered.size());
+		assertEquals(kept.getTask().getId(), recovered.get(0).task().getTask().getId());
+		// the replay compacts, only the live task is left
+		assertEquals(1, Files.readAllLines(journalFile()).size());
+		reopened.close();
+	}
+
+	@Test
+	void resumedTaskWithAllPagesSavedIsComplete() {
+		ServiceTaskBase task = task("a.png", "b.png", "a.png");
+		TaskExecution execution = new TaskExecution(task, Map.of("a.png", "a.out", "b.png", "b.out"));
+		assertTrue(execution.isComplete());
+		assertEquals(0, execution.getPageCount());
+		assertNull(execution.nextPage());
+		assertEquals(List.of("a.out", "b.out", "a.out"), execution.getDataOut());
+	}
+
+	@Test
+	void journalIsPrivateToTheService() throws Exception {
+		assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+		// the directory may be shared, as the root of a freshly mounted volume
+		Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxr-xr-x"));
+		open(1 << 20).close();
+		assertEquals("rwx------",
+				PosixFilePermissions.toString(Files.getPosixFilePermissions(journalFile().getParent())));
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(journalFile())));
+
+		Files.setPosixFilePermissions(journalFile().getParent(), PosixFilePermissions.fromString("rwxr-x---"));
+		assertThrows(IllegalStateException.class, () -> open(1 << 20));
+	}
+
+	@Test
+	void disabledJournalKeepsNothing() {
+		TaskJournal journal = new TaskJournal("", 1 << 20, new SimpleMeterRegistry());
+		assertFalse(journal.isEnabled());
+		journal.recordArrival(task("a.png"));
+		journal.close();
+		assertTrue(journal.takeRecovered().isEmpty());
+	}
+}
@@ -0,0 +1,163 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.TaskRegistry;
+import ch.heia.ZigZag.tasks.ServiceTaskBase;
+import ch.heia.ZigZag.tasks.ServiceTaskTask;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskRegistryTests {
+
+	private final AtomicLong clock = new AtomicLong(1);
+	private TaskRegistry registry;
+
+	@BeforeEach
+	void setUp() {
+		registry = new TaskRegistry(60, 3, new SimpleMeterRegistry(), clock::get);
+	}
+
+	@AfterEach
+	void tearDown() {
+		registry.close();
+	}
+
+	private static ServiceTaskBase task() {
+		ServiceTaskTask task = new ServiceTaskTask(UUID.randomUUID(), ServiceTaskBase.TaskStatus.PENDING,
+				UUID.randomUUID(), null);
+		return new ServiceTaskBase("access", "secret", "region", "http://storage", "bucket", task,
+				"http://engine/tasks/" + task.getId());
+	}
+
+	private static UUID id(ServiceTaskBase task) {
+		return task.getTask().getId();
+	}
+
+	@Test
+	void tasksAreFoundByTheirId() {
+		List<ServiceTaskBase> tasks = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			ServiceTaskBase task = task();
+			registry.register(task);
+			tasks.add(task);
+		}
+		for (ServiceTaskBase task : tasks) assertSame(task, registry.get(id(task)));
+		tasks.get(10).getTask().setStatus(ServiceTaskBase.TaskStatus.PROCESSING);
+		assertEquals(ServiceTaskBase.TaskStatus.PROCESSING, registry.getStatus(id(tasks.get(10))));
+		assertNull(registry.getStatus(UUID.randomUUID()));
+	}
+
+	@Test
+	void retiredTasksExpire() {
+		ServiceTaskBase task = task();
+		registry.register(task);
+		task.getTask().setStatus(ServiceTaskBase.TaskStatus.FINISHED);
+		registry.retire(task);
+		assertEquals(ServiceTaskBase.TaskStatus.FINISHED, registry.getStatus(id(task)));
+
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(59));
+		assertEquals(ServiceTaskBase.TaskStatus.FINISHED, registry.getStatus(id(task)));
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		assertNull(registry.getStatus(id(task)));
+
+		// expired entries are dropped by the next retirement
+		ServiceTaskBase other = task();
+		registry.register(other);
+		registry.retire(other);
+		assertEquals(1, registry.size());
+		assertEquals(1, registry.getRetiredCount());
+	}
+
+	@Test
+	void oldestRetiredTasksAreForgottenFirst() {
+		ServiceTaskBase active = task();
+		registry.register(active);
+		List<ServiceTaskBase> retired = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			ServiceTaskBase task = task();
+			registry.register(task);
+			registry.retire(task);
+			retired.add(task);
+		}
+		assertEquals(3, registry.getRetiredCount());
+		assertNull(registry.get(id(retired.get(0))));
+		assertNull(registry.get(id(retired.get(1))));
+		for (int i = 2; i < 5; i++) assertSame(retired.get(i), registry.get(id(retired.get(i))));
+		// active tasks are never evicted
+		assertSame(active, registry.get(id(active)));
+	}
+
+	@Test
+	void resubmittedTaskReplacesItsRetiredEntry() {
+		ServiceTaskBase first = task();
+		registry.register(first);
+		registry.retire(first);
+		ServiceTaskBase again = new ServiceTaskBase("access", "secret", "region", "http://storage", "bucket",
+				new ServiceTaskTask(id(first), ServiceTaskBase.TaskStatus.PENDING, UUID.randomUUID(), null),
+				"http://engine");
+		registry.register(again);
+		assertEquals(0, registry.getRetiredCount());
+		// retiring the old instance again has no effect on the new one
+		registry.retire(first);
+		for (int i = 0; i < 5; i++) {
+			ServiceTaskBase task = task();
+			registry.register(task);
+			registry.retire(task);
+		}
+		assertSame(again, registry.get(id(first)));
+	}
+
+	@Test
+	void admissionIsLimitedToActiveTasks() {
+		ServiceTaskBase first = task();
+		ServiceTaskBase second = task();
+		assertTrue(registry.tryRegister(first, 2));
+		assertTrue(registry.tryRegister(second, 2));
+		assertFalse(registry.tryRegister(task(), 2));
+		assertEquals(2, registry.getActiveCount());
+		// retired tasks don't count
+		registry.retire(first);
+		assertTrue(registry.tryRegister(task(), 2));
+		assertTrue(registry.tryRegister(task(), 0));
+		assertEquals(3, registry.getActiveCount());
+	}
+
+	@Test
+	void transitionsArePublishedInOrderWithoutBlocking() throws Exception {
+		List<ServiceTaskBase.TaskStatus> received = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(4);
+		registry.addListener(transition -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			received.add(transition.status());
+			done.countDown();
+		});
+		ServiceTaskBase task = task();
+		long start = System.nanoTime();
+		registry.register(task);
+		registry.publish(task, ServiceTaskBase.TaskStatus.FETCHING);
+		registry.publish(task, ServiceTaskBase.TaskStatus.PROCESSING);
+		registry.publish(task, ServiceTaskBase.TaskStatus.FINISHED);
+		// the listener is blocked, publishing did not wait for it
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(List.of(ServiceTaskBase.TaskStatus.PENDING, ServiceTaskBase.TaskStatus.FETCHING,
+				ServiceTaskBase.TaskStatus.PROCESSING, ServiceTaskBase.TaskStatus.FINISHED), received);
+	}
+}
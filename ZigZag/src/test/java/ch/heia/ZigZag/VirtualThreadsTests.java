@@ -0,0 +1,58 @@
+package ch.heia.ZigZag;
+
+import ch.heia.ZigZag.service.VirtualThreads;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VirtualThreadsTests {
+
+	private static boolean isVirtual(Thread thread) throws Exception {
+		if (!VirtualThreads.isSupported()) return false;
+		return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+	}
+
+	@Test
+	void disabledGivesNamedPlatformThreads() throws Exception {
+		VirtualThreads virtualThreads = new VirtualThreads(false);
+		assertFalse(virtualThreads.isEnabled());
+		assertNull(virtualThreads.executor("http"));
+		Thread first = virtualThreads.threadFactory("fetch-worker").newThread(() -> {
+		});
+		Thread second = virtualThreads.threadFactory("fetch-worker").newThread(() -> {
+		});
+		assertEquals("fetch-worker-1", first.getName());
+		assertEquals("fetch-worker-1", second.getName());
+		assertFalse(isVirtual(first));
+	}
+
+	@Test
+	void enabledGivesVirtualThreadsWhenSupported() throws Exception {
+		VirtualThreads virtualThreads = new VirtualThreads(true);
+		assertEquals(VirtualThreads.isSupported(), virtualThreads.isEnabled());
+		Thread thread = virtualThreads.threadFactory("save-worker").newThread(() -> {
+		});
+		assertEquals("save-worker-1", thread.getName());
+		assertEquals(VirtualThreads.isSupported(), isVirtual(thread));
+
+		Executor executor = virtualThreads.executor("http");
+		if (!VirtualThreads.isSupported()) {
+			assertNull(executor);
+			return;
+		}
+		AtomicReference<Thread> runner = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(1);
+		executor.execute(() -> {
+			runner.set(Thread.currentThread());
+			done.countDown();
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(isVirtual(runner.get()));
+		assertTrue(runner.get().getName().startsWith("http-"));
+	}
+}